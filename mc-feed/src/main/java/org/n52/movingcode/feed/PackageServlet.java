@@ -15,8 +15,20 @@
  */
 package org.n52.movingcode.feed;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.TimeZone;
 
 import javax.servlet.ServletException;
 import javax.servlet.ServletOutputStream;
@@ -30,6 +42,15 @@ import org.n52.movingcode.runtime.codepackage.PID;
 /**
  * Servlet for direct access to the code packages.
  * 
+ * Packages that are backed by a zip file are sent straight from that file with
+ * {@link FileChannel#transferTo(long, long, WritableByteChannel)}: the servlet sets the
+ * Content-Length, an ETag and the Last-Modified date, and answers single byte Range requests
+ * (conditional on <code>If-Range</code>) and HEAD requests.
+ * 
+ * Zip files may be replaced while they are sent (e.g. spool files or rebuilt artifacts). The
+ * response is therefore written from the file that has been opened for the request, and the
+ * validators are taken from the same file, so a response never mixes two versions of a package.
+ * 
  * @author Matthias Mueller, TU Dresden
  *
  */
@@ -41,6 +62,12 @@ public class PackageServlet extends RepositoryServlet {
 	 */
 	private static final long serialVersionUID = 8856458560873746081L;
 	
+	// attempts to open a zip file that is not replaced meanwhile
+	private static final int OPEN_ATTEMPTS = 3;
+	
+	// marker for a Range header that cannot be satisfied
+	private static final long[] UNSATISFIABLE = new long[0];
+	
 	@Override
 	public void init() throws ServletException {
 		super.init();
@@ -53,6 +80,15 @@ public class PackageServlet extends RepositoryServlet {
 	
 	@Override
 	protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+		servePackage(request, response, true);
+	}
+	
+	@Override
+	protected void doHead(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+		servePackage(request, response, false);
+	}
+	
+	private void servePackage(HttpServletRequest request, HttpServletResponse response, boolean sendBody) throws IOException {
 		PackageProperties props = new PackageProperties(request);
 		
 		if (props.packageId==null){
@@ -71,15 +107,23 @@ public class PackageServlet extends RepositoryServlet {
 			switch (props.prop) {
 			case XML:
 				response.setContentType("text/xml");
-				PrintWriter out = response.getWriter();
-				out.print(mcp.getDescriptionAsString());
-				out.close();
+				if (sendBody){
+					PrintWriter out = response.getWriter();
+					out.print(mcp.getDescriptionAsString());
+					out.close();
+				}
 				break;
 			case ZIP:
 				response.setContentType("application/zip");
-				ServletOutputStream os = response.getOutputStream();
-				mcp.dumpPackage(os);
-				os.close();
+				File archive = mcp.getArchiveFile();
+				if (archive != null){
+					sendArchive(request, response, archive, sendBody);
+				} else if (sendBody){
+					// no zip file on disk, so the package is zipped on the fly
+					ServletOutputStream os = response.getOutputStream();
+					mcp.dumpPackage(os);
+					os.close();
+				}
 				break;
 
 			default:
@@ -95,6 +139,183 @@ public class PackageServlet extends RepositoryServlet {
 	}
 	
 	
+	/**
+	 * Sends a zip file or the requested byte range of it.
+	 * 
+	 * @param request
+	 * @param response
+	 * @param archive {@link File} - the zip file
+	 * @param sendBody - false for HEAD requests
+	 * @throws IOException
+	 */
+	static void sendArchive(final HttpServletRequest request, final HttpServletResponse response, final File archive, final boolean sendBody) throws IOException {
+		Path path = archive.toPath();
+		for (int attempt = 1; ; attempt++){
+			BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+			try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+				// the file may have been replaced between reading its attributes and opening it
+				if (!sameFile(attributes, Files.readAttributes(path, BasicFileAttributes.class)) || channel.size() != attributes.size()){
+					if (attempt < OPEN_ATTEMPTS){
+						continue;
+					}
+					throw new IOException("Zip file keeps changing: " + archive.getAbsolutePath());
+				}
+				sendArchive(request, response, channel, attributes.lastModifiedTime().toMillis(), sendBody);
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Sends an opened zip file or the requested byte range of it.
+	 * 
+	 * @param request
+	 * @param response
+	 * @param channel {@link FileChannel} - the opened zip file
+	 * @param lastModified - the modification time of the zip file
+	 * @param sendBody - false for HEAD requests
+	 * @throws IOException
+	 */
+	private static void sendArchive(final HttpServletRequest request, final HttpServletResponse response, final FileChannel channel, final long lastModified, final boolean sendBody) throws IOException {
+		final long length = channel.size();
+		long start = 0;
+		long end = length - 1;
+		
+		String eTag = eTag(lastModified, length);
+		response.setHeader("Accept-Ranges", "bytes");
+		response.setHeader("ETag", eTag);
+		response.setDateHeader("Last-Modified", lastModified);
+		
+		// a range of an outdated copy must not be combined with the current file
+		long[] range = null;
+		if (ifRangeMatches(request.getHeader("If-Range"), eTag, lastModified)){
+			range = parseRange(request.getHeader("Range"), length);
+		}
+		if (range == UNSATISFIABLE){
+			response.setHeader("Content-Range", "bytes */" + length);
+			response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+			return;
+		} else if (range != null){
+			start = range[0];
+			end = range[1];
+			response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+			response.setHeader("Content-Range", "bytes " + start + "-" + end + "/" + length);
+		}
+		
+		final long count = end - start + 1;
+		if (count <= Integer.MAX_VALUE){
+			response.setContentLength((int) count);
+		} else {
+			response.setHeader("Content-Length", Long.toString(count));
+		}
+		
+		if (!sendBody || count == 0){
+			return;
+		}
+		
+		try (ServletOutputStream os = response.getOutputStream()) {
+			WritableByteChannel target = Channels.newChannel(os);
+			long position = start;
+			while (position <= end){
+				long sent = channel.transferTo(position, end + 1 - position, target);
+				if (sent <= 0){
+					break;
+				}
+				position += sent;
+			}
+		}
+	}
+	
+	/**
+	 * @return <code>true</code> if both attributes describe the same, unmodified file
+	 */
+	private static boolean sameFile(final BasicFileAttributes a, final BasicFileAttributes b){
+		return a.size() == b.size()
+				&& a.lastModifiedTime().equals(b.lastModifiedTime())
+				&& (a.fileKey() == null || a.fileKey().equals(b.fileKey()));
+	}
+	
+	/**
+	 * @return {@link String} - a strong ETag for a zip file
+	 */
+	static String eTag(final long lastModified, final long length){
+		return "\"" + Long.toHexString(lastModified) + "-" + Long.toHexString(length) + "\"";
+	}
+	
+	/**
+	 * Evaluates an If-Range header: a range may only be sent if the client's copy is current.
+	 * 
+	 * @param header {@link String} - the If-Range header, may be <code>null</code>
+	 * @param eTag {@link String} - the current ETag
+	 * @param lastModified - the current modification time
+	 * @return <code>true</code> if there is no If-Range header or if it matches the current file
+	 */
+	static boolean ifRangeMatches(final String header, final String eTag, final long lastModified){
+		if (header == null){
+			return true;
+		}
+		String value = header.trim();
+		if (value.startsWith("\"") || value.startsWith("W/")){
+			// strong comparison; weak ETags never match
+			return value.equals(eTag);
+		}
+		SimpleDateFormat httpDate = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+		httpDate.setTimeZone(TimeZone.getTimeZone("GMT"));
+		try {
+			// HTTP dates have a resolution of seconds
+			return httpDate.parse(value).getTime() / 1000 == lastModified / 1000;
+		} catch (ParseException e){
+			return false;
+		}
+	}
+	
+	/**
+	 * Parses a single byte range ("bytes=first-last", "bytes=first-" or "bytes=-suffix").
+	 * 
+	 * @param header {@link String} - the Range header, may be <code>null</code>
+	 * @param length - the length of the file
+	 * @return the first and last byte position; <code>null</code> if the whole file shall be sent
+	 *         (no Range header, a malformed one or multiple ranges); {@link #UNSATISFIABLE} if the
+	 *         range lies beyond the end of the file
+	 */
+	static long[] parseRange(final String header, final long length){
+		if (header == null || !header.startsWith("bytes=")){
+			return null;
+		}
+		String spec = header.substring("bytes=".length()).trim();
+		int dash = spec.indexOf('-');
+		// multiple ranges are not supported
+		if (dash < 0 || spec.indexOf(',') >= 0){
+			return null;
+		}
+		
+		try {
+			long start;
+			long end;
+			if (dash == 0){
+				long suffix = Long.parseLong(spec.substring(1));
+				if (suffix <= 0 || length == 0){
+					return UNSATISFIABLE;
+				}
+				start = Math.max(0, length - suffix);
+				end = length - 1;
+			} else {
+				start = Long.parseLong(spec.substring(0, dash));
+				end = dash == spec.length() - 1 ? Long.MAX_VALUE : Long.parseLong(spec.substring(dash + 1));
+				if (start < 0 || end < start){
+					return null;
+				}
+				if (start >= length){
+					return UNSATISFIABLE;
+				}
+				end = Math.min(end, length - 1);
+			}
+			return new long[]{start, end};
+		} catch (NumberFormatException e){
+			return null;
+		}
+	}
+	
 	/**
 	 * Small properties class that describes the content to be delivered by
 	 * the {@link PackageServlet}
@@ -0,0 +1,204 @@
+/**
+ * Copyright (C) 2012 52°North Initiative for Geospatial Open Source Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.n52.movingcode.feed;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PackageServletTest {
+
+	private File zipFile;
+	private byte[] content;
+
+	@Before
+	public void setUp() throws Exception {
+		content = new byte[1000];
+		for (int i = 0; i < content.length; i++){
+			content[i] = (byte) i;
+		}
+		zipFile = Files.createTempFile("package", ".zip").toFile();
+		Files.write(zipFile.toPath(), content);
+	}
+
+	@After
+	public void tearDown() {
+		zipFile.delete();
+	}
+
+	@Test
+	public void parseRangeTest() {
+		assertNull(PackageServlet.parseRange(null, 1000));
+		assertNull(PackageServlet.parseRange("items=0-1", 1000));
+		assertNull(PackageServlet.parseRange("bytes=0-1,5-6", 1000));
+		assertNull(PackageServlet.parseRange("bytes=5-1", 1000));
+		assertNull(PackageServlet.parseRange("bytes=a-b", 1000));
+		assertArrayEquals(new long[]{0, 99}, PackageServlet.parseRange("bytes=0-99", 1000));
+		assertArrayEquals(new long[]{500, 999}, PackageServlet.parseRange("bytes=500-", 1000));
+		assertArrayEquals(new long[]{900, 999}, PackageServlet.parseRange("bytes=-100", 1000));
+		assertArrayEquals(new long[]{0, 999}, PackageServlet.parseRange("bytes=-2000", 1000));
+		assertArrayEquals(new long[]{990, 999}, PackageServlet.parseRange("bytes=990-2000", 1000));
+		assertEquals(0, PackageServlet.parseRange("bytes=1000-", 1000).length);
+		assertEquals(0, PackageServlet.parseRange("bytes=-0", 1000).length);
+	}
+
+	@Test
+	public void ifRangeTest() {
+		long lastModified = 1400000000000L;
+		String eTag = PackageServlet.eTag(lastModified, 1000);
+		SimpleDateFormat httpDate = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+		httpDate.setTimeZone(TimeZone.getTimeZone("GMT"));
+
+		assertTrue(PackageServlet.ifRangeMatches(null, eTag, lastModified));
+		assertTrue(PackageServlet.ifRangeMatches(eTag, eTag, lastModified));
+		assertFalse(PackageServlet.ifRangeMatches("W/" + eTag, eTag, lastModified));
+		assertFalse(PackageServlet.ifRangeMatches(PackageServlet.eTag(lastModified, 999), eTag, lastModified));
+		assertTrue(PackageServlet.ifRangeMatches(httpDate.format(new Date(lastModified)), eTag, lastModified));
+		assertFalse(PackageServlet.ifRangeMatches(httpDate.format(new Date(lastModified - 5000)), eTag, lastModified));
+		assertFalse(PackageServlet.ifRangeMatches("no date", eTag, lastModified));
+	}
+
+	@Test
+	public void rangeIsSent() throws Exception {
+		// Arrange
+		Map<String, String> headers = new HashMap<String, String>();
+		headers.put("Range", "bytes=100-199");
+		ResponseStub response = new ResponseStub();
+
+		// Act
+		PackageServlet.sendArchive(request(headers), response.proxy(), zipFile, true);
+
+		// Assert
+		assertEquals(HttpServletResponse.SC_PARTIAL_CONTENT, response.status);
+		assertEquals("bytes 100-199/1000", response.headers.get("Content-Range"));
+		assertEquals("100", response.headers.get("Content-Length"));
+		assertEquals(PackageServlet.eTag(zipFile.lastModified(), 1000), response.headers.get("ETag"));
+		assertArrayEquals(Arrays.copyOfRange(content, 100, 200), response.body.toByteArray());
+	}
+
+	@Test
+	public void unsatisfiableRangeIsRejected() throws Exception {
+		// Arrange
+		Map<String, String> headers = new HashMap<String, String>();
+		headers.put("Range", "bytes=1000-");
+		ResponseStub response = new ResponseStub();
+
+		// Act
+		PackageServlet.sendArchive(request(headers), response.proxy(), zipFile, true);
+
+		// Assert
+		assertEquals(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE, response.status);
+		assertEquals("bytes */1000", response.headers.get("Content-Range"));
+		assertEquals(0, response.body.size());
+	}
+
+	@Test
+	public void outdatedIfRangeSendsWholeFile() throws Exception {
+		// Arrange: the client's copy has another ETag
+		Map<String, String> headers = new HashMap<String, String>();
+		headers.put("Range", "bytes=100-199");
+		headers.put("If-Range", PackageServlet.eTag(zipFile.lastModified() - 1000, 1000));
+		ResponseStub response = new ResponseStub();
+
+		// Act
+		PackageServlet.sendArchive(request(headers), response.proxy(), zipFile, true);
+
+		// Assert
+		assertEquals(HttpServletResponse.SC_OK, response.status);
+		assertNull(response.headers.get("Content-Range"));
+		assertEquals("1000", response.headers.get("Content-Length"));
+		assertArrayEquals(content, response.body.toByteArray());
+	}
+
+	/**
+	 * @return {@link HttpServletRequest} - a request that only provides headers
+	 */
+	private static HttpServletRequest request(final Map<String, String> headers){
+		return (HttpServletRequest) Proxy.newProxyInstance(PackageServletTest.class.getClassLoader(),
+				new Class<?>[]{HttpServletRequest.class}, new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						if (method.getName().equals("getHeader")){
+							return headers.get(args[0]);
+						}
+						throw new UnsupportedOperationException(method.getName());
+					}
+				});
+	}
+
+	/**
+	 * Records status, headers and body of a response.
+	 */
+	private static final class ResponseStub implements InvocationHandler {
+		int status = HttpServletResponse.SC_OK;
+		final Map<String, String> headers = new HashMap<String, String>();
+		final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+		HttpServletResponse proxy(){
+			return (HttpServletResponse) Proxy.newProxyInstance(PackageServletTest.class.getClassLoader(),
+					new Class<?>[]{HttpServletResponse.class}, this);
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) {
+			switch (method.getName()){
+			case "setStatus":
+			case "sendError":
+				status = (Integer) args[0];
+				return null;
+			case "setHeader":
+				headers.put((String) args[0], (String) args[1]);
+				return null;
+			case "setDateHeader":
+				headers.put((String) args[0], String.valueOf(args[1]));
+				return null;
+			case "setContentLength":
+				headers.put("Content-Length", String.valueOf(args[0]));
+				return null;
+			case "getOutputStream":
+				return new ServletOutputStream() {
+					@Override
+					public void write(int b) throws IOException {
+						body.write(b);
+					}
+				};
+			default:
+				throw new UnsupportedOperationException(method.getName());
+			}
+		}
+	}
+}
@@ -17,8 +17,6 @@ package org.n52.movingcode.runtime;
 
 import java.io.File;
 import java.net.URL;
-import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -28,11 +26,17 @@ import java.util.Set;
 
 import net.opengis.wps.x100.ProcessDescriptionType;
 
+import org.joda.time.DateTime;
 import org.n52.movingcode.runtime.codepackage.MovingCodePackage;
 import org.n52.movingcode.runtime.codepackage.PID;
 import org.n52.movingcode.runtime.coderepository.CachedRemoteFeedRepository;
 import org.n52.movingcode.runtime.coderepository.MovingCodeRepository;
+import org.n52.movingcode.runtime.coderepository.RepositoryChangeEvent;
 import org.n52.movingcode.runtime.coderepository.RepositoryChangeListener;
+import org.n52.movingcode.runtime.coderepository.RepositoryChangeSupport;
+import org.n52.movingcode.runtime.coderepository.RepositoryDeltaListener;
+import org.n52.movingcode.runtime.coderepository.SynchronousDeltaListener;
+import org.n52.movingcode.runtime.coderepository.RepositoryScheduler;
 
 import com.google.common.collect.ImmutableSet;
 
@@ -41,8 +45,11 @@ import de.tudresden.gis.geoprocessing.movingcode.schema.PackageDescriptionDocume
 /**
  * The Repository Manager is a singleton instance that manages all active Moving Code Repositories.
  * 
- * Almost thread safe, but:
- * TODO: add read/write locks to make it really thread safe (see {@link CachedRemoteFeedRepository})
+ * Thread safe. Package and function lookups are answered from a global {@link RepositoryIndex}.
+ * The index is updated on the thread that changes a registered repository (see
+ * {@link SynchronousDeltaListener}), so it never lags behind the repositories.
+ * The changes of the global package set are passed on to the manager's own listeners
+ * as coalesced {@link RepositoryChangeEvent}s.
  * 
  * 
  * 
@@ -61,9 +68,15 @@ public class GlobalRepositoryManager implements MovingCodeRepository {
 	// synchronized map for an up-to-date view of the registered repositories
 	// performance should not be crucial here
 	private final Map<String, MovingCodeRepository> repositories = Collections.synchronizedMap(new HashMap<String, MovingCodeRepository>());
+	
+	// the change listeners this manager has added to the registered repositories
+	private final Map<String, RepositoryChangeListener> repositoryListeners = new HashMap<String, RepositoryChangeListener>();
+	
+	// global packageId and functionId lookup tables
+	private final RepositoryIndex index = new RepositoryIndex();
 
-	// registered changeListerners
-	private volatile List<RepositoryChangeListener> changeListeners =  new ArrayList<RepositoryChangeListener>();
+	// registered changeListerners; coalesces and delivers change events
+	private final RepositoryChangeSupport changeSupport = new RepositoryChangeSupport(this);
 
 	/**
 	 * private constructor for singleton pattern
@@ -99,7 +112,7 @@ public class GlobalRepositoryManager implements MovingCodeRepository {
 
 		// add new repo
 		MovingCodeRepository repo = MovingCodeRepository.Factory.createFromPlainFolder(new File(directory)); 
-		return registerRepo(repoID, repo);
+		return registerNewRepo(repoID, repo);
 	}
 
 	/**
@@ -117,7 +130,7 @@ public class GlobalRepositoryManager implements MovingCodeRepository {
 
 		// add new repo
 		MovingCodeRepository repo = MovingCodeRepository.Factory.createFromZipFilesFolder(new File(directory));
-		return registerRepo(repoID, repo);
+		return registerNewRepo(repoID, repo);
 
 	}
 
@@ -142,11 +155,12 @@ public class GlobalRepositoryManager implements MovingCodeRepository {
 
 		// add new repo
 		MovingCodeRepository repo = MovingCodeRepository.Factory.createCachedRemoteRepository(atomFeedURL, cacheDirectory); 
-		return registerRepo(repoID, repo);
+		return registerNewRepo(repoID, repo);
 	}
 
 	/**
-	 * Registers a previously created {@link MovingCodeRepository}.
+	 * Registers a previously created {@link MovingCodeRepository}. The manager takes
+	 * ownership of the repository, i.e. the repository is closed when it is removed.
 	 * 
 	 * @param repo a previously created {@link MovingCodeRepository} instance
 	 * @param repoId the id 
@@ -170,7 +184,22 @@ public class GlobalRepositoryManager implements MovingCodeRepository {
 	public boolean addRepository(final URL atomFeedURL) {
 		final String repoID = atomFeedURL.toString();
 		MovingCodeRepository repo = MovingCodeRepository.Factory.createFromRemoteFeed(atomFeedURL); 
-		return registerRepo(repoID, repo);
+		return registerNewRepo(repoID, repo);
+	}
+
+	/**
+	 * Registers a repository that has been created by this manager. If the repository
+	 * cannot be registered it is closed, so its background tasks do not linger.
+	 * 
+	 * @param repoID {@link String} - the ID of the repository
+	 * @param repo {@link MovingCodeRepository} - the repository
+	 */
+	private final boolean registerNewRepo(final String repoID, final MovingCodeRepository repo){
+		if (registerRepo(repoID, repo)){
+			return true;
+		}
+		repo.close();
+		return false;
 	}
 
 	/**
@@ -191,16 +220,28 @@ public class GlobalRepositoryManager implements MovingCodeRepository {
 		// add repo to map
 		repositories.put(repoID, repo);
 
-		// add change listener
-		repo.addRepositoryChangeListener(new RepositoryChangeListener() {
+		// add change listener; the index is updated right away, so lookups are never stale,
+		// while the changes are coalesced for this manager's own listeners
+		RepositoryChangeListener listener = new SynchronousDeltaListener() {
+			@Override
+			public void onRepositoryChange(RepositoryChangeEvent event) {
+				// only re-index the packages that have changed
+				Set<PID> changed = new HashSet<PID>(event.getAddedPackages());
+				changed.addAll(event.getRemovedPackages());
+				changed.addAll(event.getUpdatedPackages());
+				changeSupport.fireChange(index.update(repoID, changed));
+			}
+			
 			@Override
 			public void onRepositoryUpdate(MovingCodeRepository updatedRepo) {
-				informRepositoryChangeListeners();
+				changeSupport.fireChange(index.update(repoID));
 			}
-		});
+		};
+		repositoryListeners.put(repoID, listener);
+		repo.addRepositoryChangeListener(listener);
 
-		// inform listeners
-		informRepositoryChangeListeners();
+		// index packages and inform listeners
+		changeSupport.fireChange(index.add(repoID, repo));
 		return true;
 	}
 
@@ -213,7 +254,9 @@ public class GlobalRepositoryManager implements MovingCodeRepository {
 	public ProcessDescriptionType getProcessDescription(final String functionIdentifier) {
 		MovingCodePackage[] mcpArray = getPackageByFunction(functionIdentifier);
 		if (mcpArray != null && mcpArray.length > 0){
-			return mcpArray[0].getDescriptionAsDocument().getPackageDescription().getFunctionality().getWps100ProcessDescription();
+			// return a copy, the shared description must not be modified
+			ProcessDescriptionType pd = mcpArray[0].getSharedDescription().getPackageDescription().getFunctionality().getWps100ProcessDescription();
+			return (ProcessDescriptionType) pd.copy();
 		} else {
 			return null;
 		}
@@ -226,15 +269,7 @@ public class GlobalRepositoryManager implements MovingCodeRepository {
 	 * @return int - multiplicity
 	 */
 	public int checkMultiplicityOfPackage(final PID identifier) {
-		int counter = 0;
-
-		for (MovingCodeRepository repo : repositories.values()) {
-			if (repo.containsPackage(identifier)) {
-				counter++;
-			}
-		}
-
-		return counter;
+		return index.countPackage(identifier);
 	}
 
 	/**
@@ -244,12 +279,7 @@ public class GlobalRepositoryManager implements MovingCodeRepository {
 	 * @return boolean
 	 */
 	public boolean providesFunction(final String functionalID) {
-		for (MovingCodeRepository repo : repositories.values()) {
-			if (repo.providesFunction(functionalID)) {
-				return true;
-			}
-		}
-		return false;
+		return index.providesFunction(functionalID);
 	}
 
 	/**
@@ -272,125 +302,110 @@ public class GlobalRepositoryManager implements MovingCodeRepository {
 	}
 
 	/**
-	 * Remove/unregister a repository.
+	 * Remove/unregister a repository. The repository is closed, i.e. its
+	 * background tasks are stopped.
 	 * 
 	 * @param repoID {@link String} - the repository ID
 	 */
 	public synchronized void removeRepository(final String repoID) {
-		repositories.remove(repoID);
+		MovingCodeRepository repo = repositories.remove(repoID);
+		if (repo == null){
+			return;
+		}
+		
+		// stop listening and drop the repo's packages from the index
+		repo.removeRepositoryChangeListener(repositoryListeners.remove(repoID));
+		RepositoryChangeEvent.Builder delta = index.remove(repoID);
+		repo.close();
+		
+		// inform listeners
+		changeSupport.fireChange(delta);
 	}
-
+	
+	/**
+	 * Removes and closes all registered repositories. The manager can still be used afterwards.
+	 * 
+	 * The shared {@link RepositoryScheduler} keeps running, since repositories that are not
+	 * registered with this manager may still use it. Applications should call
+	 * {@link RepositoryScheduler#shutdown()} on exit.
+	 */
 	@Override
-	public synchronized MovingCodePackage getPackage(final PID packageId) {
-		for(MovingCodeRepository currentRepo : repositories.values()){
-			if (currentRepo.containsPackage(packageId)){
-				return currentRepo.getPackage(packageId);
-			}
+	public synchronized void close() {
+		for (String repoID : getRegisteredRepositories()){
+			removeRepository(repoID);
 		}
-		return null;
 	}
 
+	/**
+	 * Returns the package as registered by its repository. Repositories which track the use
+	 * of their packages (e.g. a {@link CachedRemoteFeedRepository}) register packages that
+	 * take notice themselves, so this and the other lookups are answered from the index.
+	 */
 	@Override
-	public PID[] getPackageIDs() {
-		Set<PID> globalPIDs = new HashSet<PID>();
-		for (String currentRepoID : repositories.keySet()){
-
-			for (PID pid : repositories.get(currentRepoID).getPackageIDs()){
-				globalPIDs.add(pid);
-			}
-		}
+	public MovingCodePackage getPackage(final PID packageId) {
+		return index.getPackage(packageId);
+	}
 
-		return globalPIDs.toArray(new PID[globalPIDs.size()]);
+	@Override
+	public PID[] getPackageIDs() {
+		return index.getPackageIDs();
 	}
 	
 	@Override
 	public ImmutableSet<MovingCodePackage> getLatestPackages() {
-		Set<MovingCodePackage> packages = new HashSet<MovingCodePackage>();
-		for (MovingCodeRepository currentRepo : repositories.values()){
-			packages.addAll(currentRepo.getLatestPackages());
-		}
-		return ImmutableSet.copyOf(packages);
+		return index.getLatestPackages();
+	}
+	
+	@Override
+	public MovingCodePackage getLatestPackage(final String packageName) {
+		return index.getLatestPackage(packageName);
+	}
+	
+	@Override
+	public MovingCodePackage getPackageAsOf(final String packageName, final DateTime date) {
+		return index.getPackageAsOf(packageName, date);
 	}
 
 	@Override
 	public boolean containsPackage(final PID packageId) {
-		for(MovingCodeRepository currentRepo : repositories.values()){
-			if (currentRepo.containsPackage(packageId)){
-				return true;
-			}
-		}
-		return false;
+		return index.containsPackage(packageId);
 	}
 
 	@Override
 	public MovingCodePackage[] getPackageByFunction(final String functionID) {
-		ArrayList<MovingCodePackage> resultSet = new ArrayList<MovingCodePackage>();
-		// for each repo
-		for (MovingCodeRepository currentRepo : repositories.values()){
-			// add the matching packages to the result set
-			resultSet.addAll( Arrays.asList(currentRepo.getPackageByFunction(functionID)) );
-		}
-
+		List<MovingCodePackage> resultSet = index.getPackagesByFunction(functionID);
 		return resultSet.toArray(new MovingCodePackage[resultSet.size()]);
 	}
 
 	@Override
 	public PackageDescriptionDocument getPackageDescriptionAsDocument(PID packageId) {
-		for(MovingCodeRepository currentRepo : repositories.values()){
-			// cycle through all repos to find the packageId
-			if (currentRepo.containsPackage(packageId)){
-				// attempt a package retrieval
-				PackageDescriptionDocument doc = currentRepo.getPackageDescriptionAsDocument(packageId);
-				if (doc != null){
-					return doc;
-				}
-			}
-		}
-		return null; 
+		MovingCodePackage mcp = index.getPackage(packageId);
+		return mcp == null ? null : mcp.getDescriptionAsDocument();
 	}
 	
 	@Override
 	public String getPackageDescriptionAsString(PID packageId) {
-		for(MovingCodeRepository currentRepo : repositories.values()){
-			// cycle through all repos to find the packageId
-			if (currentRepo.containsPackage(packageId)){
-				// attempt a package retrieval
-				String packageDescription = currentRepo.getPackageDescriptionAsString(packageId);
-				if (packageDescription != null){
-					return packageDescription;
-				}
-			}
-		}
-		return null; 
+		MovingCodePackage mcp = index.getPackage(packageId);
+		return mcp == null ? null : mcp.getDescriptionAsString();
 	}
 
 	@Override
 	public String[] getFunctionIDs() {
-		HashSet<String> fids = new HashSet<String>();
-		for (MovingCodeRepository currentRepo : repositories.values()){
-			fids.addAll(Arrays.asList(currentRepo.getFunctionIDs()));
-		}
-
-		return fids.toArray(new String[fids.size()]);
+		return index.getFunctionIDs();
 	}
 
+	/**
+	 * Registers a change listener. {@link RepositoryDeltaListener}s receive the packages
+	 * that have been added to, removed from or replaced in the union of all repositories.
+	 */
 	@Override
 	public void addRepositoryChangeListener(final RepositoryChangeListener l) {
-		this.changeListeners.add(l);
+		changeSupport.addListener(l);
 	}
 
 	@Override
 	public void removeRepositoryChangeListener(final RepositoryChangeListener l) {
-		this.changeListeners.remove(l);
-	}
-
-	/**
-	 * informs all listeners about an update.
-	 */
-	private synchronized void informRepositoryChangeListeners() {
-		for (RepositoryChangeListener l : this.changeListeners) {
-			l.onRepositoryUpdate(this);
-		}
+		changeSupport.removeListener(l);
 	}
 
 }
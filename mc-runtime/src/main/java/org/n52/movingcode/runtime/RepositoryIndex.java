@@ -0,0 +1,362 @@
+/**
+ * Copyright (C) 2012 52°North Initiative for Geospatial Open Source Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.n52.movingcode.runtime;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.joda.time.DateTime;
+import org.n52.movingcode.runtime.codepackage.MovingCodePackage;
+import org.n52.movingcode.runtime.codepackage.PID;
+import org.n52.movingcode.runtime.coderepository.MovingCodeRepository;
+import org.n52.movingcode.runtime.coderepository.RepositoryChangeEvent;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * Global lookup tables for the packages of all repositories registered with
+ * the {@link GlobalRepositoryManager}:
+ * 
+ * packageId -> packages (one per repository that contains the packageId)
+ * functionId -> packages (from all repositories)
+ * packageName -> (timestamp -> package) for latest and as-of lookups
+ * 
+ * Lookups are single reads from concurrent maps and do not lock. Updates
+ * are triggered by the repositories' change notifications; they are serialized
+ * and only touch the entries of packages that have been added, removed or replaced
+ * in the updated repository. The lists stored in the maps are immutable and
+ * replaced as a whole. Each update reports how the global set of packages has
+ * changed, so the manager can pass it on to its own listeners.
+ */
+final class RepositoryIndex {
+
+	// lookup table packageId -> packages (in order of registration of their repositories)
+	private final Map<PID, ImmutableList<IndexedPackage>> packagesById = new ConcurrentHashMap<PID, ImmutableList<IndexedPackage>>();
+
+	// lookup table functionId -> packages
+	private final Map<String, ImmutableList<MovingCodePackage>> packagesByFunctionId = new ConcurrentHashMap<String, ImmutableList<MovingCodePackage>>();
+
+	// version index packageName -> (timestamp -> package); the sorted maps are never modified
+	private final Map<String, NavigableMap<DateTime, MovingCodePackage>> versionsByName = new ConcurrentHashMap<String, NavigableMap<DateTime, MovingCodePackage>>();
+
+	// latest version for each package name; computed on demand, reset on every change; guarded by this
+	private volatile ImmutableSet<MovingCodePackage> latestPackages = null;
+
+	// indexed repositories and their packages; guarded by this
+	private final Map<String, MovingCodeRepository> repositories = new HashMap<String, MovingCodeRepository>();
+	private final Map<String, Map<PID, MovingCodePackage>> indexedPackages = new HashMap<String, Map<PID, MovingCodePackage>>();
+
+	/**
+	 * Adds a repository to the index.
+	 * 
+	 * @param repoID
+	 * @param repo
+	 * @return {@link RepositoryChangeEvent.Builder} - the changes of the global package set
+	 */
+	synchronized RepositoryChangeEvent.Builder add(final String repoID, final MovingCodeRepository repo){
+		repositories.put(repoID, repo);
+		indexedPackages.put(repoID, new HashMap<PID, MovingCodePackage>());
+		return update(repoID);
+	}
+
+	/**
+	 * Re-indexes the content of a repository. Unknown (e.g. removed) repositories are ignored.
+	 * 
+	 * @param repoID
+	 * @return {@link RepositoryChangeEvent.Builder} - the changes of the global package set
+	 */
+	synchronized RepositoryChangeEvent.Builder update(final String repoID){
+		RepositoryChangeEvent.Builder delta = new RepositoryChangeEvent.Builder();
+		MovingCodeRepository repo = repositories.get(repoID);
+		if (repo == null){
+			return delta;
+		}
+
+		Map<PID, MovingCodePackage> oldPackages = indexedPackages.get(repoID);
+		Map<PID, MovingCodePackage> newPackages = new HashMap<PID, MovingCodePackage>();
+		for (PID pid : repo.getPackageIDs()){
+			MovingCodePackage mcp = repo.getPackage(pid);
+			if (mcp != null){
+				newPackages.put(pid, mcp);
+			}
+		}
+
+		// removed or replaced packages
+		for (Map.Entry<PID, MovingCodePackage> entry : oldPackages.entrySet()){
+			MovingCodePackage newPackage = newPackages.get(entry.getKey());
+			if (newPackage != entry.getValue()){
+				unindex(repoID, entry.getValue(), delta);
+			}
+		}
+
+		// new or replaced packages
+		for (Map.Entry<PID, MovingCodePackage> entry : newPackages.entrySet()){
+			MovingCodePackage oldPackage = oldPackages.get(entry.getKey());
+			if (oldPackage != entry.getValue()){
+				index(repoID, entry.getValue(), delta);
+			}
+		}
+
+		indexedPackages.put(repoID, newPackages);
+		return delta;
+	}
+
+	/**
+	 * Re-indexes some packages of a repository, e.g. the packages reported by a
+	 * {@link RepositoryChangeEvent}. Unknown (e.g. removed) repositories are ignored.
+	 * 
+	 * @param repoID
+	 * @param packageIds - the packages to re-index
+	 * @return {@link RepositoryChangeEvent.Builder} - the changes of the global package set
+	 */
+	synchronized RepositoryChangeEvent.Builder update(final String repoID, final Set<PID> packageIds){
+		RepositoryChangeEvent.Builder delta = new RepositoryChangeEvent.Builder();
+		MovingCodeRepository repo = repositories.get(repoID);
+		if (repo == null){
+			return delta;
+		}
+
+		Map<PID, MovingCodePackage> packages = indexedPackages.get(repoID);
+		for (PID pid : packageIds){
+			MovingCodePackage oldPackage = packages.get(pid);
+			MovingCodePackage newPackage = repo.getPackage(pid);
+			if (oldPackage == newPackage){
+				continue;
+			}
+			if (oldPackage != null){
+				unindex(repoID, oldPackage, delta);
+				packages.remove(pid);
+			}
+			if (newPackage != null){
+				index(repoID, newPackage, delta);
+				packages.put(pid, newPackage);
+			}
+		}
+		return delta;
+	}
+
+	/**
+	 * Removes a repository and its packages from the index.
+	 * 
+	 * @param repoID
+	 * @return {@link RepositoryChangeEvent.Builder} - the changes of the global package set
+	 */
+	synchronized RepositoryChangeEvent.Builder remove(final String repoID){
+		RepositoryChangeEvent.Builder delta = new RepositoryChangeEvent.Builder();
+		if (repositories.remove(repoID) == null){
+			return delta;
+		}
+		for (MovingCodePackage mcp : indexedPackages.remove(repoID).values()){
+			unindex(repoID, mcp, delta);
+		}
+		return delta;
+	}
+
+	/**
+	 * @param packageId
+	 * @return {@link MovingCodePackage} - the package from the first repository that contains the packageId,
+	 *         or <code>null</code> if there is no such package
+	 */
+	MovingCodePackage getPackage(final PID packageId){
+		ImmutableList<IndexedPackage> packages = packagesById.get(packageId);
+		return packages == null ? null : packages.get(0).mcPackage;
+	}
+
+	/**
+	 * @param packageId
+	 * @return the number of repositories that contain the packageId
+	 */
+	int countPackage(final PID packageId){
+		ImmutableList<IndexedPackage> packages = packagesById.get(packageId);
+		return packages == null ? 0 : packages.size();
+	}
+
+	boolean containsPackage(final PID packageId){
+		return packagesById.containsKey(packageId);
+	}
+
+	boolean providesFunction(final String functionId){
+		return packagesByFunctionId.containsKey(functionId);
+	}
+
+	/**
+	 * @param functionId
+	 * @return {@link List} of {@link MovingCodePackage} - all packages that provide the function; never <code>null</code>
+	 */
+	List<MovingCodePackage> getPackagesByFunction(final String functionId){
+		ImmutableList<MovingCodePackage> packages = packagesByFunctionId.get(functionId);
+		return packages == null ? ImmutableList.<MovingCodePackage>of() : packages;
+	}
+
+	PID[] getPackageIDs(){
+		return packagesById.keySet().toArray(new PID[0]);
+	}
+
+	String[] getFunctionIDs(){
+		return packagesByFunctionId.keySet().toArray(new String[0]);
+	}
+
+	/**
+	 * @param packageName {@link String} - the name part of a {@link PID}
+	 * @return {@link MovingCodePackage} - the latest version of the package, or <code>null</code>
+	 *         if there is no package with this name
+	 */
+	MovingCodePackage getLatestPackage(final String packageName){
+		NavigableMap<DateTime, MovingCodePackage> versions = versionsByName.get(packageName);
+		return versions == null ? null : versions.lastEntry().getValue();
+	}
+
+	/**
+	 * @param packageName {@link String} - the name part of a {@link PID}
+	 * @param date {@link DateTime}
+	 * @return {@link MovingCodePackage} - the package with the greatest timestamp that is not after <code>date</code>,
+	 *         or <code>null</code> if there is no such package
+	 */
+	MovingCodePackage getPackageAsOf(final String packageName, final DateTime date){
+		NavigableMap<DateTime, MovingCodePackage> versions = versionsByName.get(packageName);
+		if (versions == null){
+			return null;
+		}
+		Map.Entry<DateTime, MovingCodePackage> entry = versions.floorEntry(date);
+		return entry == null ? null : entry.getValue();
+	}
+
+	/**
+	 * @return {@link ImmutableSet} - the latest version of each package
+	 */
+	ImmutableSet<MovingCodePackage> getLatestPackages(){
+		ImmutableSet<MovingCodePackage> latest = latestPackages;
+		if (latest != null){
+			return latest;
+		}
+		// computed under the index lock, so it cannot miss a concurrent update
+		synchronized (this){
+			if (latestPackages == null){
+				ImmutableSet.Builder<MovingCodePackage> builder = ImmutableSet.builder();
+				for (NavigableMap<DateTime, MovingCodePackage> versions : versionsByName.values()){
+					builder.add(versions.lastEntry().getValue());
+				}
+				latestPackages = builder.build();
+			}
+			return latestPackages;
+		}
+	}
+
+	private void index(final String repoID, final MovingCodePackage mcp, final RepositoryChangeEvent.Builder delta){
+		PID pid = mcp.getPackageId();
+		ImmutableList<IndexedPackage> byId = packagesById.get(pid);
+		ImmutableList.Builder<IndexedPackage> newById = ImmutableList.builder();
+		if (byId != null){
+			newById.addAll(byId);
+			delta.updated(pid);
+		} else {
+			delta.added(pid);
+		}
+		packagesById.put(pid, newById.add(new IndexedPackage(repoID, mcp)).build());
+		indexVersion(pid);
+
+		String fid = mcp.getFunctionIdentifier();
+		ImmutableList<MovingCodePackage> byFunction = packagesByFunctionId.get(fid);
+		ImmutableList.Builder<MovingCodePackage> newByFunction = ImmutableList.builder();
+		if (byFunction != null){
+			newByFunction.addAll(byFunction);
+		}
+		packagesByFunctionId.put(fid, newByFunction.add(mcp).build());
+	}
+
+	private void unindex(final String repoID, final MovingCodePackage mcp, final RepositoryChangeEvent.Builder delta){
+		PID pid = mcp.getPackageId();
+		ImmutableList<IndexedPackage> byId = packagesById.get(pid);
+		if (byId != null){
+			List<IndexedPackage> remaining = new ArrayList<IndexedPackage>(byId.size());
+			for (IndexedPackage ip : byId){
+				if (!(ip.repoID.equals(repoID) && ip.mcPackage == mcp)){
+					remaining.add(ip);
+				}
+			}
+			if (remaining.isEmpty()){
+				packagesById.remove(pid);
+				delta.removed(pid);
+			} else {
+				packagesById.put(pid, ImmutableList.copyOf(remaining));
+				delta.updated(pid);
+			}
+			indexVersion(pid);
+		}
+
+		String fid = mcp.getFunctionIdentifier();
+		ImmutableList<MovingCodePackage> byFunction = packagesByFunctionId.get(fid);
+		if (byFunction != null){
+			List<MovingCodePackage> remaining = new ArrayList<MovingCodePackage>(byFunction.size());
+			boolean removed = false;
+			for (MovingCodePackage p : byFunction){
+				// remove a single occurrence; the same instance may be provided by several repos
+				if (!removed && p == mcp){
+					removed = true;
+				} else {
+					remaining.add(p);
+				}
+			}
+			if (remaining.isEmpty()){
+				packagesByFunctionId.remove(fid);
+			} else {
+				packagesByFunctionId.put(fid, ImmutableList.copyOf(remaining));
+			}
+		}
+	}
+
+	/**
+	 * Updates the version index for a packageId; the package from the first repository
+	 * that contains the packageId represents this version.
+	 */
+	private void indexVersion(final PID pid){
+		ImmutableList<IndexedPackage> byId = packagesById.get(pid);
+		NavigableMap<DateTime, MovingCodePackage> versions = versionsByName.get(pid.name);
+		NavigableMap<DateTime, MovingCodePackage> newVersions = versions == null
+				? new TreeMap<DateTime, MovingCodePackage>() : new TreeMap<DateTime, MovingCodePackage>(versions);
+		if (byId == null){
+			newVersions.remove(pid.timestamp);
+		} else {
+			newVersions.put(pid.timestamp, byId.get(0).mcPackage);
+		}
+		if (newVersions.isEmpty()){
+			versionsByName.remove(pid.name);
+		} else {
+			versionsByName.put(pid.name, newVersions);
+		}
+		latestPackages = null;
+	}
+
+	/**
+	 * A package and the repository it belongs to.
+	 */
+	private static final class IndexedPackage {
+		final String repoID;
+		final MovingCodePackage mcPackage;
+
+		IndexedPackage(String repoID, MovingCodePackage mcPackage){
+			this.repoID = repoID;
+			this.mcPackage = mcPackage;
+		}
+	}
+}
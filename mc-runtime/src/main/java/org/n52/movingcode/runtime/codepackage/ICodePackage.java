@@ -34,8 +34,9 @@ public interface ICodePackage {
 	 * 
 	 * @param workspaceDirName {@link String)
 	 * @param targetDirectory {@link File}
+	 * @return boolean - true if the workspace was successfully dumped, false otherwise
 	 */
-	public void dumpPackage(String workspaceDirName, File targetDirectory);
+	public boolean dumpPackage(String workspaceDirName, File targetDirectory);
 
 	/**
 	 * Writes the content of this {@link ICodePackage} Object to a zipfile. 
@@ -53,6 +54,14 @@ public interface ICodePackage {
 	 */
 	public boolean dumpPackage(OutputStream os);
 	
+	/**
+	 * Returns a local zip file with the content of this {@link ICodePackage}, so that it
+	 * can be served or copied without re-packing it.
+	 * 
+	 * @return {@link File} - the zip file or <code>null</code> if the package is not backed by one
+	 */
+	public File getArchiveFile();
+	
 	/**
 	 * 
 	 * 
@@ -19,6 +19,7 @@ import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.lang.ref.SoftReference;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.List;
@@ -40,6 +41,11 @@ import static org.n52.movingcode.runtime.codepackage.Constants.*;
  * 
  * MovingCode Packages a the basic entities for shipping code from platform to platform.
  * 
+ * The header of a package (ID, function identifier, title and abstract) is available as soon as the
+ * package has been created. The heavy parts are materialized on first access: the validation result
+ * (including the schema validation and the workspace check), the serialized description and, if it has
+ * been reclaimed in the meantime, the description document. This is thread safe.
+ * 
  * @author Matthias Mueller, TU Dresden
  * 
  */
@@ -50,13 +56,13 @@ public class MovingCodePackage implements Comparable<MovingCodePackage>{
 	// the physical instance of this package
 	private final ICodePackage archive;
 
-	// package description XML document
-//	private PackageDescriptionDocument packageDescription = null;
+	// package description XML document; softly referenced, so it can be
+	// reclaimed and read from the archive again when memory is low
+	private volatile SoftReference<PackageDescriptionDocument> descriptionDocument;
 	
 	// immutable representation of the package description XML
-	private final String packageDescription;
-	
-	
+	// (serialized on demand)
+	private volatile String packageDescription;
 	
 	// identifier of the provided functionality (e.g. WPS process identifier)
 	private final String functionIdentifier;
@@ -67,7 +73,8 @@ public class MovingCodePackage implements Comparable<MovingCodePackage>{
 	private final String functionTitle;
 	private final String functionAbstract;
 	
-	private final boolean isValid;
+	// result of validate(); null until the package is validated on first request
+	private volatile Boolean isValid;
 
 	private final List<FunctionalType> supportedFuncTypes;
 	
@@ -78,94 +85,18 @@ public class MovingCodePackage implements Comparable<MovingCodePackage>{
 	 * @param {@link File} zipFile - a zip file with a valid package structure
 	 */
 	public MovingCodePackage(final File zipFile) {
-
-		this.archive = new ZippedPackage(zipFile);
-		PackageDescriptionDocument doc = this.archive.getDescription();
-		
-		// assign properties fields
-		if (doc != null) {
-			ProcessDescriptionType pd = doc.getPackageDescription().getFunctionality().getWps100ProcessDescription();
-			functionIdentifier = pd.getIdentifier().getStringValue();
-			functionTitle = pd.getTitle().getStringValue();
-			if (pd.isSetAbstract()){
-				functionAbstract = pd.getAbstract().getStringValue();
-			} else {
-				functionAbstract = null;
-			}
-			
-			supportedFuncTypes = getFunctionalTypes(doc);
-			
-			DateTime timestamp = new DateTime(doc.getPackageDescription().getTimestamp());
-			String id = doc.getPackageDescription().getPackageId();
-			packageId = new PID(id, timestamp);
-			packageDescription = XMLUtils.toString(doc);
-			
-		}
-		else {
-			functionIdentifier = null;
-			functionTitle = null;
-			functionAbstract = null;
-			supportedFuncTypes = null;
-			packageId = null;
-			packageDescription = null;
-		}
-		
-		isValid = validate(doc, this);
+		this(new ZippedPackage(zipFile));
 	}
 	
-	/**
-	 * Constructor for geoprocessing feed entries. Creates a MovingCodePackage from an atom feed entry.
-	 * 
-	 * @param {@link GeoprocessingFeedEntry} atomFeedEntry - an entry from a geoprocessing feed
-	 * 
-	 */
 	/**
 	 * Constructor for geoprocessing feed entries. Creates a MovingCodePackage from a remote URL.
-	 * Also requires the intended packageID an
 	 * 
 	 * @param zipPackageURL
-	 * @param packageId
-	 * @param packageStamp
 	 */
 	public MovingCodePackage(final URL zipPackageURL) {
-		
-		ZippedPackage archive = null;
-		
-		archive = new ZippedPackage(zipPackageURL);
-		PackageDescriptionDocument doc = archive.getDescription();
-		
 		// TODO: Information from the feed might lag during updates
 		// how can deal with that?
-		// assign properties fields
-		if (doc != null) {
-			ProcessDescriptionType pd = doc.getPackageDescription().getFunctionality().getWps100ProcessDescription();
-			functionIdentifier = pd.getIdentifier().getStringValue();
-			functionTitle = pd.getTitle().getStringValue();
-			if (pd.isSetAbstract()){
-				functionAbstract = pd.getAbstract().getStringValue();
-			} else {
-				functionAbstract = null;
-			}
-			
-			supportedFuncTypes = getFunctionalTypes(doc);
-				
-			DateTime timestamp = new DateTime(doc.getPackageDescription().getTimestamp());
-			String id = doc.getPackageDescription().getPackageId();
-			packageId = new PID(id, timestamp);
-			packageDescription = XMLUtils.toString(doc);
-		}
-		else {
-			functionIdentifier = null;
-			functionTitle = null;
-			functionAbstract = null;
-			supportedFuncTypes = null;
-			packageId = null;
-			packageDescription = null;
-		}
-		
-		this.archive = archive;
-		isValid = validate(doc, this);
-
+		this(new ZippedPackage(zipPackageURL));
 	}
 
 	/**
@@ -178,6 +109,21 @@ public class MovingCodePackage implements Comparable<MovingCodePackage>{
 	 *        the lastModified date is obtained from the workspace's content.
 	 */
 	public MovingCodePackage(final File workspace, final PackageDescriptionDocument doc) {
+		this(new PlainPackage(workspace, doc), doc);
+	}
+
+	private MovingCodePackage(final ICodePackage archive) {
+		this(archive, archive.getDescription());
+	}
+
+	/**
+	 * Reads the header from the package description. Everything else is materialized on demand.
+	 * 
+	 * @param archive {@link ICodePackage} - the physical instance of the package
+	 * @param doc {@link PackageDescriptionDocument} - the package description; may be <code>null</code>
+	 */
+	private MovingCodePackage(final ICodePackage archive, final PackageDescriptionDocument doc) {
+		this.archive = archive;
 		
 		// assign properties fields
 		if (doc != null) {
@@ -195,7 +141,7 @@ public class MovingCodePackage implements Comparable<MovingCodePackage>{
 			DateTime timestamp = new DateTime(doc.getPackageDescription().getTimestamp());
 			String id = doc.getPackageDescription().getPackageId();
 			packageId = new PID(id, timestamp);
-			packageDescription = XMLUtils.toString(doc);
+			descriptionDocument = new SoftReference<PackageDescriptionDocument>(doc);
 		}
 		else {
 			functionIdentifier = null;
@@ -203,12 +149,67 @@ public class MovingCodePackage implements Comparable<MovingCodePackage>{
 			functionAbstract = null;
 			supportedFuncTypes = null;
 			packageId = null;
-			packageDescription = null;
+			isValid = Boolean.FALSE;
 		}
-		
-		this.archive = new PlainPackage(workspace, doc);
-		isValid = validate(doc, this);
+	}
+
+	/**
+	 * Internal constructor for packages whose header is already known, e.g. from a
+	 * repository snapshot. The package description is read from the archive on demand
+	 * and the package is not validated again.
+	 * 
+	 * @param archive {@link ICodePackage} - the physical instance of the package
+	 * @param header {@link PackageHeader} - header of a package that has been validated before
+	 */
+	private MovingCodePackage(final ICodePackage archive, final PackageHeader header) {
+		this.archive = archive;
+		this.packageId = header.getPackageId();
+		this.functionIdentifier = header.getFunctionIdentifier();
+		this.functionTitle = header.getTitle();
+		this.functionAbstract = header.getAbstract();
+		this.supportedFuncTypes = getFunctionalTypes(null);
+		this.isValid = Boolean.TRUE;
+	}
+
+	/**
+	 * Creates a {@link MovingCodePackage} from a zipFile on disk and a previously obtained header.
+	 * The zipFile is not opened until the package's content or description is requested.
+	 * 
+	 * @param zipFile {@link File} - a zip file with a valid package structure
+	 * @param header {@link PackageHeader} - header of the package, as obtained from {@link #getHeader()}
+	 * @return {@link MovingCodePackage}
+	 */
+	public static MovingCodePackage createFromZipFile(final File zipFile, final PackageHeader header){
+		return new MovingCodePackage(new ZippedPackage(zipFile), header);
+	}
 
+	/**
+	 * Creates a {@link MovingCodePackage} from a package folder on disk and a previously obtained header.
+	 * The folder contains the <packagedescription.xml> and the workspace. Neither is read until the
+	 * package's content or description is requested.
+	 * 
+	 * @param packageFolder {@link File} - the folder that contains description and workspace
+	 * @param header {@link PackageHeader} - header of the package, as obtained from {@link #getHeader()}
+	 * @return {@link MovingCodePackage}
+	 */
+	public static MovingCodePackage createFromPackageFolder(final File packageFolder, final PackageHeader header){
+		return new MovingCodePackage(new PlainPackage(packageFolder), header);
+	}
+
+	/**
+	 * Creates a {@link MovingCodePackage} whose content is looked up each time it is used, e.g. for a
+	 * repository that fetches its packages on demand. Header and description are taken from the given
+	 * package; whenever the workspace is cloned or the package is written, the content is taken from the
+	 * package that the resolver returns (or from the given package if the resolver returns <code>null</code>).
+	 * 
+	 * @param mcp {@link MovingCodePackage} - a valid package with the header and description
+	 * @param resolver {@link PackageResolver} - provides the content
+	 * @return {@link MovingCodePackage}
+	 */
+	public static MovingCodePackage createOnDemand(final MovingCodePackage mcp, final PackageResolver resolver){
+		MovingCodePackage onDemand = new MovingCodePackage(new OnDemandPackage(mcp, resolver), mcp.getHeader());
+		onDemand.isValid = mcp.isValid();
+		return onDemand;
 	}
 
 	/**
@@ -219,7 +220,7 @@ public class MovingCodePackage implements Comparable<MovingCodePackage>{
 	 * @return {@link String} dumpWorkspacePath - absolute path of the dumped workspace
 	 */
 	public String dumpWorkspace(File targetDirectory) {
-		String wsRoot = archive.getDescription().getPackageDescription().getWorkspace().getWorkspaceRoot();
+		String wsRoot = getDescription().getPackageDescription().getWorkspace().getWorkspaceRoot();
 		this.archive.dumpPackage(wsRoot, targetDirectory);
 		if (wsRoot.startsWith("./")) {
 			wsRoot = wsRoot.substring(2);
@@ -231,6 +232,73 @@ public class MovingCodePackage implements Comparable<MovingCodePackage>{
 		return targetDirectory + File.separator + wsRoot;
 	}
 
+	/**
+	 * Writes the workspace and the package description to a given directory, so that the
+	 * directory can be read as a package folder (see {@link #createFromPackageFolder(File, PackageHeader)}).
+	 * 
+	 * @param {@link File} targetDirectory - directory to store the package
+	 * @return boolean - true if workspace and description were successfully written, false otherwise
+	 */
+	public boolean dumpPackageFolder(File targetDirectory) {
+		String wsRoot = getDescription().getPackageDescription().getWorkspace().getWorkspaceRoot();
+		return this.archive.dumpPackage(wsRoot, targetDirectory)
+				&& dumpDescription(new File(targetDirectory, PACKAGE_DESCRIPTION_XML));
+	}
+
+	/**
+	 * Clone workspace to a given directory for a single execution. Other than {@link #dumpWorkspace(File)}
+	 * this does not unzip the package each time: the files are hard links to a read-only template
+	 * of the workspace, which is extracted (or, for plain packages, copied) once per package
+	 * (copies are made where links are not supported). Executions may add files to the workspace,
+	 * but must not modify the existing ones. Use {@link #deleteWorkspace(File)} to delete the clone.
+	 * 
+	 * @param {@link File} targetDirectory - directory for the cloned workspace
+	 * @return {@link String} - absolute path of the cloned workspace
+	 */
+	public String cloneWorkspace(File targetDirectory) {
+		String wsRoot = getSharedDescription().getPackageDescription().getWorkspace().getWorkspaceRoot();
+		String wsName = wsRoot;
+		if (wsName.startsWith("./") || wsName.startsWith(".\\")) {
+			wsName = wsName.substring(2);
+		}
+		File clonedWorkspace = new File(targetDirectory, wsName);
+		
+		if (packageId == null) {
+			return dumpWorkspace(targetDirectory);
+		}
+		if (this.archive instanceof OnDemandPackage) {
+			// clone the template of the package that holds the content
+			return ((OnDemandPackage) this.archive).resolve().cloneWorkspace(targetDirectory);
+		}
+		
+		boolean cloned;
+		if (this.archive instanceof PlainPackage) {
+			// the template is copied from the workspace, without zipping it first
+			File workspace = ((PlainPackage) this.archive).getWorkspace();
+			cloned = workspace != null && WorkspaceTemplates.cloneWorkspace(packageId.toString() + "@" + workspace.getAbsolutePath(),
+					workspace, wsRoot, targetDirectory);
+		} else {
+			File archiveFile = this.archive.getArchiveFile();
+			cloned = archiveFile != null && WorkspaceTemplates.cloneWorkspace(packageId.toString() + "@" + archiveFile.getAbsolutePath(),
+					archiveFile, this.archive, wsRoot, targetDirectory);
+		}
+		if (!cloned) {
+			return dumpWorkspace(targetDirectory);
+		}
+		return clonedWorkspace.getPath();
+	}
+
+	/**
+	 * Deletes a directory that contains a cloned workspace (see {@link #cloneWorkspace(File)}).
+	 * Write protected files are made writable if they cannot be deleted otherwise.
+	 * 
+	 * @param {@link File} directory - the directory to delete
+	 * @return boolean - true if the directory has been deleted, false otherwise
+	 */
+	public static boolean deleteWorkspace(File directory) {
+		return WorkspaceTemplates.delete(directory);
+	}
+
 	/**
 	 * Writes a copy of the {@link MovingCodePackage} to a given directory. This is going to be a zipFile
 	 * 
@@ -246,6 +314,24 @@ public class MovingCodePackage implements Comparable<MovingCodePackage>{
 		return this.archive.dumpPackage(os);
 	}
 
+	/**
+	 * Returns the zip file that backs this package, if there is one. Callers may read
+	 * the file directly (e.g. to serve it without an intermediate copy) but must not modify it.
+	 * 
+	 * @return {@link File} - the zip file or <code>null</code> if the package has to be
+	 *         written with {@link #dumpPackage(OutputStream)}
+	 */
+	public File getArchiveFile() {
+		return this.archive.getArchiveFile();
+	}
+
+	/**
+	 * @return {@link ICodePackage} - the physical instance of this package
+	 */
+	ICodePackage getArchive() {
+		return this.archive;
+	}
+
 	/**
 	 * writes a copy of the package (zipfile) to a given directory TODO: implement for URL sources
 	 * 
@@ -255,9 +341,10 @@ public class MovingCodePackage implements Comparable<MovingCodePackage>{
 	public boolean dumpDescription(File targetFile) {
 		try {
 			PrintWriter out = new PrintWriter(targetFile);
-			out.print(packageDescription);
+			out.print(getDescriptionAsString());
 			out.close();
-			return true;
+			// PrintWriter does not throw on write errors
+			return !out.checkError();
 		}
 		catch (IOException e) {
 			return false;
@@ -279,15 +366,86 @@ public class MovingCodePackage implements Comparable<MovingCodePackage>{
 	 * @return {@link String}
 	 */
 	public String getDescriptionAsString() {
-		return packageDescription;
+		String description = packageDescription;
+		if (description == null){
+			PackageDescriptionDocument doc = getDescription();
+			if (doc != null){
+				description = XMLUtils.toString(doc);
+				packageDescription = description;
+			}
+		}
+		return description;
 	}
 	
+	/**
+	 * Returns an exclusive copy of the PackageDescription. Changes to the returned
+	 * document are not forwarded to the package.
+	 * 
+	 * @return {@link PackageDescriptionDocument} - or <code>null</code> if the package has no readable description
+	 */
 	public PackageDescriptionDocument getDescriptionAsDocument() {
-		return XMLUtils.fromString(packageDescription);
+		PackageDescriptionDocument doc = getDescription();
+		return doc == null ? null : (PackageDescriptionDocument) doc.copy();
+	}
+	
+	/**
+	 * Returns the parsed PackageDescription that is shared by all callers. Unlike
+	 * {@link #getDescriptionAsDocument()}, this neither parses nor copies the description,
+	 * so it is the method of choice for code that only reads the description. Reading is
+	 * thread safe. The returned document <b>must not be modified</b>.
+	 * 
+	 * @return {@link PackageDescriptionDocument} - or <code>null</code> if the package has no readable description
+	 */
+	public PackageDescriptionDocument getSharedDescription() {
+		return getDescription();
+	}
+	
+	/**
+	 * Returns the shared description document. It is read from the archive
+	 * again if it has been reclaimed.
+	 * 
+	 * @return {@link PackageDescriptionDocument} - or <code>null</code> if the archive has no readable description
+	 */
+	private PackageDescriptionDocument getDescription() {
+		SoftReference<PackageDescriptionDocument> ref = descriptionDocument;
+		PackageDescriptionDocument doc = ref == null ? null : ref.get();
+		if (doc == null){
+			doc = archive.getDescription();
+			if (doc != null){
+				descriptionDocument = new SoftReference<PackageDescriptionDocument>(doc);
+			}
+		}
+		return doc;
+	}
+	
+	/**
+	 * Returns the header of this package, i.e. the information that is required
+	 * to re-create the package with {@link #createFromZipFile(File, PackageHeader)}
+	 * or {@link #createFromPackageFolder(File, PackageHeader)}.
+	 * 
+	 * @return {@link PackageHeader}
+	 */
+	public PackageHeader getHeader(){
+		return new PackageHeader(packageId, functionIdentifier, functionTitle, functionAbstract);
 	}
 	
+	/**
+	 * Validates the package on first call; the result is kept.
+	 * 
+	 * @return boolean - true if content is valid, false if not
+	 */
 	public boolean isValid(){
-		return isValid;
+		Boolean valid = isValid;
+		if (valid == null){
+			synchronized (this){
+				valid = isValid;
+				if (valid == null){
+					valid = validate(getDescription(), this);
+					isValid = valid;
+				}
+			}
+		}
+		return valid;
 	}
 
 	/**
@@ -383,16 +541,34 @@ public class MovingCodePackage implements Comparable<MovingCodePackage>{
 		
 		// TODO: verify path to executable.
 		String exLoc = doc.getPackageDescription().getWorkspace().getExecutableLocation();
-		if (!mcp.archive.containsFileInWorkspace(exLoc)){
-			return false;
+		boolean executableFound = mcp.archive.containsFileInWorkspace(exLoc);
+		
+		// unchanged descriptions are validated only once
+		// (the serialized description is not kept, to keep the package light)
+		String description = mcp.packageDescription;
+		if (description == null){
+			description = XMLUtils.toString(doc);
+		}
+		Boolean cached = ValidationCache.get(description, executableFound);
+		if (cached != null){
+			return cached;
 		}
 		
-		// check if there exists a package description
-		// and return the validation result
-		//information on validation errors
-		if (!doc.validate()) {
-			List<XmlError> errors = new ArrayList<XmlError>();
-			doc.validate(new XmlOptions().setErrorListener(errors));
+		boolean valid = executableFound && validateSchema(doc);
+		ValidationCache.put(description, executableFound, valid);
+		return valid;
+	}
+	
+	/**
+	 * Validates a package description against the schema. Validation errors are logged.
+	 * 
+	 * @param doc {@link PackageDescriptionDocument}
+	 * @return boolean - true if the description is valid, false if not
+	 */
+	private static final boolean validateSchema(PackageDescriptionDocument doc) {
+		// collect information on validation errors in the same pass
+		List<XmlError> errors = new ArrayList<XmlError>();
+		if (!doc.validate(new XmlOptions().setErrorListener(errors))) {
 			LOGGER.warn("Package is not valid: "+errors);
 			return false;
 		} else {
@@ -0,0 +1,84 @@
+/**
+ * Copyright (C) 2012 52°North Initiative for Geospatial Open Source Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.n52.movingcode.runtime.codepackage;
+
+import java.io.File;
+import java.io.OutputStream;
+
+import de.tudresden.gis.geoprocessing.movingcode.schema.PackageDescriptionDocument;
+
+/**
+ * An {@link ICodePackage} whose content is looked up by a {@link PackageResolver} each time
+ * it is used. The description is read from the package that has been passed in, so reading
+ * it does not trigger the resolver unless that package's description has gone.
+ * 
+ */
+final class OnDemandPackage implements ICodePackage {
+
+	// the package to use if the resolver has none
+	private final MovingCodePackage fallback;
+	private final PackageResolver resolver;
+
+	OnDemandPackage(final MovingCodePackage fallback, final PackageResolver resolver) {
+		this.fallback = fallback;
+		this.resolver = resolver;
+	}
+
+	/**
+	 * @return {@link MovingCodePackage} - the package that currently holds the content
+	 */
+	MovingCodePackage resolve() {
+		MovingCodePackage resolved = resolver.resolve(fallback.getPackageId());
+		return resolved == null ? fallback : resolved;
+	}
+
+	@Override
+	public PackageDescriptionDocument getDescription() {
+		PackageDescriptionDocument doc = fallback.getSharedDescription();
+		return doc == null ? resolve().getSharedDescription() : doc;
+	}
+
+	@Override
+	public boolean dumpPackage(String workspaceDirName, File targetDirectory) {
+		return resolve().getArchive().dumpPackage(workspaceDirName, targetDirectory);
+	}
+
+	@Override
+	public boolean dumpPackage(File targetZipFile) {
+		return resolve().getArchive().dumpPackage(targetZipFile);
+	}
+
+	@Override
+	public boolean dumpPackage(OutputStream os) {
+		return resolve().getArchive().dumpPackage(os);
+	}
+
+	@Override
+	public File getArchiveFile() {
+		return resolve().getArchive().getArchiveFile();
+	}
+
+	@Override
+	public boolean containsFileInWorkspace(String relativePath) {
+		return resolve().getArchive().containsFileInWorkspace(relativePath);
+	}
+
+	@Override
+	public String toString() {
+		return "OnDemandPackage [fallback=" + fallback.getPackageId() + "]";
+	}
+
+}
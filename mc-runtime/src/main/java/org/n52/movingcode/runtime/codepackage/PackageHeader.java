@@ -0,0 +1,73 @@
+/**
+ * Copyright (C) 2012 52°North Initiative for Geospatial Open Source Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.n52.movingcode.runtime.codepackage;
+
+/**
+ * An immutable summary of a {@link MovingCodePackage}, i.e. the information
+ * that is required to list and look up a package without reading its description.
+ */
+public final class PackageHeader {
+
+	private final PID packageId;
+	private final String functionIdentifier;
+	private final String title;
+	private final String functionAbstract;
+
+	/**
+	 * @param packageId {@link PID} - the package ID
+	 * @param functionIdentifier {@link String} - the identifier of the provided function
+	 * @param title {@link String} - human readable title of the function
+	 * @param functionAbstract {@link String} - human readable abstract of the function; may be <code>null</code>
+	 */
+	public PackageHeader(final PID packageId, final String functionIdentifier, final String title, final String functionAbstract){
+		this.packageId = packageId;
+		this.functionIdentifier = functionIdentifier;
+		this.title = title;
+		this.functionAbstract = functionAbstract;
+	}
+
+	public PID getPackageId() {
+		return packageId;
+	}
+
+	public String getFunctionIdentifier() {
+		return functionIdentifier;
+	}
+
+	public String getTitle() {
+		return title;
+	}
+
+	/**
+	 * @return {@link String} - the abstract or <code>null</code> if the abstract is empty
+	 */
+	public String getAbstract() {
+		return functionAbstract;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		builder.append("PackageHeader [packageId=");
+		builder.append(packageId);
+		builder.append(", functionIdentifier=");
+		builder.append(functionIdentifier);
+		builder.append(", title=");
+		builder.append(title);
+		builder.append("]");
+		return builder.toString();
+	}
+}
@@ -0,0 +1,36 @@
+/**
+ * Copyright (C) 2012 52°North Initiative for Geospatial Open Source Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.n52.movingcode.runtime.codepackage;
+
+/**
+ * Provides the content of packages that are created with
+ * {@link MovingCodePackage#createOnDemand(MovingCodePackage, PackageResolver)}.
+ * The resolver is called whenever the content of such a package is used, e.g. when its
+ * workspace is cloned or the package is written to a file, but not for the header lookups.
+ * 
+ */
+public interface PackageResolver {
+
+	/**
+	 * Called before the content of a package is used.
+	 * 
+	 * @param packageId {@link PID} - the package whose content is requested
+	 * @return {@link MovingCodePackage} - the package that holds the content, or <code>null</code> to use
+	 *         the package that has been passed to {@link MovingCodePackage#createOnDemand(MovingCodePackage, PackageResolver)}
+	 */
+	public MovingCodePackage resolve(PID packageId);
+
+}
@@ -20,7 +20,8 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.Collection;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
@@ -35,14 +36,23 @@ import de.tudresden.gis.geoprocessing.movingcode.schema.PackageDescriptionDocume
 /**
  * This class provides reading and writing capabilities for plain (unzipped) Moving Code packages.
  * 
+ * Zipped copies of a plain package are taken from a prebuilt artifact (see {@link ZipArtifactCache}),
+ * which is only rebuilt when the package changes.
+ * 
  * @author Matthias Mueller, TU Dresden
  * 
  */
 final class PlainPackage implements ICodePackage {
 
 	// Two elements for a plain (unzipped) package
-	private final File plainWorkspace;
-	private final PackageDescriptionDocument plainDescription;
+	private volatile File plainWorkspace;
+	private volatile PackageDescriptionDocument plainDescription;
+
+	// folder with description and workspace; only set if both are read on demand
+	private final File packageFolder;
+
+	// serialized description, used to stamp the zip artifact
+	private volatile String descriptionText;
 
 	// logger
 	private static final Logger LOGGER = LoggerFactory.getLogger(PlainPackage.class);
@@ -57,6 +67,7 @@ final class PlainPackage implements ICodePackage {
 
 		this.plainWorkspace = workspace;
 		this.plainDescription = descriptionXML;
+		this.packageFolder = null;
 	}
 
 	/**
@@ -68,6 +79,7 @@ final class PlainPackage implements ICodePackage {
 	protected PlainPackage(final File workspace, final File descriptionXMLFile) {
 		// register workspace
 		this.plainWorkspace = workspace;
+		this.packageFolder = null;
 
 		// try to read package description
 		// will be null if reading fails
@@ -85,27 +97,77 @@ final class PlainPackage implements ICodePackage {
 		assert this.plainDescription != null;
 	}
 
+	/**
+	 * Constructor to create a {@link PlainPackage} from a package folder. The folder contains
+	 * a <packagedescription.xml> and the workspace. Both are only read when they are needed
+	 * for the first time.
+	 * 
+	 * @param packageFolder {@link File} - folder that contains description and workspace
+	 */
+	protected PlainPackage(final File packageFolder) {
+		this.packageFolder = packageFolder;
+	}
+
+	/**
+	 * Reads description and workspace location from the package folder, if required.
+	 */
+	private void init() {
+		if (plainDescription != null || packageFolder == null){
+			return;
+		}
+		synchronized (this) {
+			if (plainDescription != null){
+				return;
+			}
+			File descriptionXMLFile = new File(packageFolder, Constants.PACKAGE_DESCRIPTION_XML);
+			try {
+				PackageDescriptionDocument doc = PackageDescriptionDocument.Factory.parse(descriptionXMLFile);
+				String workspace = doc.getPackageDescription().getWorkspace().getWorkspaceRoot();
+				if (workspace.startsWith("./") || workspace.startsWith(".\\")){
+					workspace = workspace.substring(2); // remove leading "./" if it exists
+				}
+				plainWorkspace = new File(packageFolder, workspace);
+				plainDescription = doc;
+			} catch (XmlException e) {
+				LOGGER.error("PackageDescription could not be read. " + e.getMessage());
+			} catch (IOException e) {
+				LOGGER.error("PackageDescription could not be read." + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * @return {@link File} - the workspace, or <code>null</code> if it cannot be determined
+	 */
+	File getWorkspace() {
+		init();
+		return plainWorkspace;
+	}
+
 	@Override
 	public PackageDescriptionDocument getDescription() {
+		init();
 		return plainDescription;
 	}
 	@Override
-	public void dumpPackage(String workspaceDirName, File targetDirectory) {
-		// TODO Auto-generated method stub
+	public boolean dumpPackage(String workspaceDirName, File targetDirectory) {
+		File workspace = getWorkspace();
+		if (workspace == null) {
+			return false;
+		}
+		// same layout as a zipped package: the workspace goes to a folder of the same name
+		String wdName = workspaceDirName;
+		if (wdName.startsWith("./") || wdName.startsWith(".\\")) {
+			wdName = wdName.substring(2);
+		}
 		try {
-			Collection<File> files = FileUtils.listFiles(plainWorkspace, null, false);
-			for (File file : files) {
-				if (file.isDirectory()) {
-					FileUtils.copyDirectory(file, targetDirectory);
-				}
-				else {
-					FileUtils.copyFileToDirectory(file, targetDirectory);
-				}
-			}
+			FileUtils.copyDirectory(workspace, new File(targetDirectory, wdName));
+			return true;
 		}
 		catch (IOException e) {
-			LOGGER.error("Error! Could copy from " + plainWorkspace.getAbsolutePath() + " to "
+			LOGGER.error("Error! Could copy from " + workspace + " to "
 					+ targetDirectory.getAbsolutePath());
+			return false;
 		}
 	}
 
@@ -123,18 +185,12 @@ final class PlainPackage implements ICodePackage {
 	@Override
 	public boolean dumpPackage(OutputStream os) {
 		try {
-			ZipOutputStream zos = new ZipOutputStream(os);
-			// add package description to zipFile
-			zos.putNextEntry(new ZipEntry(Constants.PACKAGE_DESCRIPTION_XML));
-			IOUtils.copy(plainDescription.newInputStream(), zos);
-			zos.closeEntry();
-
-			// add workspace recursively, with relative pathnames
-			File base = plainWorkspace.getAbsoluteFile().getParentFile();
-			addDir(plainWorkspace, base, zos);
-
-			zos.close();
-
+			File artifact = getArchiveFile();
+			if (artifact != null){
+				FileUtils.copyFile(artifact, os);
+			} else {
+				writeZip(os, ZipEntry.DEFLATED, Deflater.DEFAULT_COMPRESSION);
+			}
 			return true;
 		}
 		catch (IOException e) {
@@ -142,6 +198,41 @@ final class PlainPackage implements ICodePackage {
 		}
 	}
 
+	/**
+	 * Zips description and workspace.
+	 * 
+	 * @param os {@link OutputStream} - the stream to write the zip to
+	 * @param method - {@link ZipEntry#DEFLATED} or {@link ZipEntry#STORED}
+	 * @param level - the deflate level
+	 * @throws IOException - if writing to the stream fails
+	 */
+	private void writeZip(final OutputStream os, final int method, final int level) throws IOException {
+		ZipOutputStream zos = new ZipOutputStream(os);
+		zos.setMethod(method);
+		zos.setLevel(level);
+		// add package description to zipFile
+		ZipEntry descriptionEntry = new ZipEntry(Constants.PACKAGE_DESCRIPTION_XML);
+		if (method == ZipEntry.STORED){
+			byte[] description = IOUtils.toByteArray(getDescription().newInputStream());
+			CRC32 crc = new CRC32();
+			crc.update(description);
+			storedEntry(descriptionEntry, description.length, crc.getValue());
+			zos.putNextEntry(descriptionEntry);
+			zos.write(description);
+		} else {
+			zos.putNextEntry(descriptionEntry);
+			IOUtils.copy(getDescription().newInputStream(), zos);
+		}
+		zos.closeEntry();
+
+		// add workspace recursively, with relative pathnames
+		File workspace = getWorkspace();
+		File base = workspace.getAbsoluteFile().getParentFile();
+		addDir(workspace, base, zos, method == ZipEntry.STORED);
+
+		zos.finish();
+	}
+
 	/**
 	 * Static private helper method that writes contents of a directory (e.g. a workspace)
 	 * to a {@link ZipOutputStream}.
@@ -149,19 +240,25 @@ final class PlainPackage implements ICodePackage {
 	 * @param contentDirectory {@link File} - the directory that shall be zipped
 	 * @param baseDirectory {@link File} - the part of the @param contentDirectory path that shall be truncated from the zip-Entry
 	 * @param zos {@link ZipOutputStream} - the stream to write the directory contents to
+	 * @param stored - true if the entries are stored without compression
 	 * @throws IOException - if writing to the stream (zos) fails
 	 */
-	private static void addDir(File contentDirectory, File baseDirectory, ZipOutputStream zos) throws IOException {
+	private static void addDir(File contentDirectory, File baseDirectory, ZipOutputStream zos, boolean stored) throws IOException {
 		File[] files = contentDirectory.listFiles();
 
 		for (int i = 0; i < files.length; i++) {
 			if (files[i].isDirectory()) {
-				addDir(files[i], baseDirectory, zos);
+				addDir(files[i], baseDirectory, zos, stored);
 				continue;
 			}
-			FileInputStream in = new FileInputStream(files[i].getAbsolutePath());
 			// construct relative path
-			zos.putNextEntry(new ZipEntry(relative(baseDirectory, files[i])));
+			ZipEntry entry = new ZipEntry(relative(baseDirectory, files[i]));
+			if (stored) {
+				// stored entries need their size and checksum up front
+				storedEntry(entry, files[i].length(), FileUtils.checksumCRC32(files[i]));
+			}
+			FileInputStream in = new FileInputStream(files[i].getAbsolutePath());
+			zos.putNextEntry(entry);
 			// do copy
 			IOUtils.copy(in, zos);
 
@@ -170,6 +267,13 @@ final class PlainPackage implements ICodePackage {
 		}
 	}
 
+	private static void storedEntry(final ZipEntry entry, final long size, final long crc) {
+		entry.setMethod(ZipEntry.STORED);
+		entry.setSize(size);
+		entry.setCompressedSize(size);
+		entry.setCrc(crc);
+	}
+
 	/**
 	 * Static private method that removes the <base> part from an absolute path.
 	 * 
@@ -184,6 +288,30 @@ final class PlainPackage implements ICodePackage {
 		return relFileName;
 	}
 
+	@Override
+	public File getArchiveFile() {
+		PackageDescriptionDocument description = getDescription();
+		File workspace = getWorkspace();
+		if (description == null || workspace == null) {
+			return null;
+		}
+		String text = descriptionText;
+		if (text == null) {
+			text = description.xmlText();
+			descriptionText = text;
+		}
+		// one artifact per PID and workspace
+		String key = description.getPackageDescription().getPackageId() + "@"
+				+ description.getPackageDescription().getTimestamp().getTimeInMillis() + "@"
+				+ workspace.getAbsolutePath();
+		return ZipArtifactCache.get(key, text, workspace, new ZipArtifactCache.ZipWriter() {
+			@Override
+			public void write(OutputStream os, int method, int level) throws IOException {
+				writeZip(os, method, level);
+			}
+		});
+	}
+
 	@Override
 	public boolean containsFileInWorkspace(String relativePath) {
 		if (relativePath.startsWith("./") || relativePath.startsWith(".\\")){
@@ -193,7 +321,7 @@ final class PlainPackage implements ICodePackage {
 			relativePath = relativePath.substring(1);
 		}
 		
-		File f = new File(plainWorkspace + File.separator + File.separator + relativePath);
+		File f = new File(getWorkspace() + File.separator + File.separator + relativePath);
 		return f.exists();
 	}
 
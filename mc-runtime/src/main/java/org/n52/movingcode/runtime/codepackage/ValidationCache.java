@@ -0,0 +1,193 @@
+/**
+ * Copyright (C) 2012 52°North Initiative for Geospatial Open Source Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.n52.movingcode.runtime.codepackage;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Cache for the results of the (expensive) schema validation of package descriptions.
+ * 
+ * Results are keyed by the SHA-256 hash of the serialized package description and the
+ * result of the executable location check, so a description that has not changed is
+ * schema-validated only once, no matter how often its package is re-scanned.
+ * 
+ * The cache can be persisted to a file (see {@link #PROPERTY_CACHE_FILE}). New results
+ * are appended to this file; it is read on first use.
+ * 
+ * Thread safe.
+ */
+public final class ValidationCache {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(ValidationCache.class);
+
+	/**
+	 * System property for the file in which validation results are persisted.
+	 * Results are only kept in memory if the property is not set.
+	 */
+	public static final String PROPERTY_CACHE_FILE = "org.n52.movingcode.validationCacheFile";
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	// key -> validation result
+	private static final Map<String, Boolean> results = new ConcurrentHashMap<String, Boolean>();
+
+	// guarded by ValidationCache.class
+	private static File cacheFile = initialCacheFile();
+	private static volatile boolean loaded = false;
+
+	private ValidationCache(){
+		// static access only
+	}
+
+	/**
+	 * @return {@link File} - the file in which validation results are persisted, or <code>null</code>
+	 */
+	public static synchronized File getCacheFile(){
+		return cacheFile;
+	}
+
+	/**
+	 * Sets the file in which validation results are persisted. Results from this file
+	 * are read on the next validation.
+	 * 
+	 * @param file {@link File} - or <code>null</code> to keep results in memory only
+	 */
+	public static synchronized void setCacheFile(final File file){
+		cacheFile = file;
+		loaded = false;
+	}
+
+	/**
+	 * Drops all results from memory. Results are read from the cache file again on the next validation.
+	 */
+	public static synchronized void clear(){
+		results.clear();
+		loaded = false;
+	}
+
+	/**
+	 * Returns a cached validation result.
+	 * 
+	 * @param description {@link String} - the serialized package description
+	 * @param executableFound - result of the executable location check
+	 * @return {@link Boolean} - the cached result, or <code>null</code> if the description has not been validated yet
+	 */
+	static Boolean get(final String description, final boolean executableFound){
+		if (!loaded){
+			load();
+		}
+		return results.get(key(description, executableFound));
+	}
+
+	/**
+	 * Caches a validation result.
+	 * 
+	 * @param description {@link String} - the serialized package description
+	 * @param executableFound - result of the executable location check
+	 * @param valid - the validation result
+	 */
+	static void put(final String description, final boolean executableFound, final boolean valid){
+		String key = key(description, executableFound);
+		if (results.put(key, valid) == null){
+			append(key, valid);
+		}
+	}
+
+	private static String key(final String description, final boolean executableFound){
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-256");
+			byte[] hash = md.digest(description.getBytes(UTF8));
+			StringBuilder sb = new StringBuilder(hash.length * 2 + 2);
+			for (byte b : hash){
+				sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+				sb.append(Character.forDigit(b & 0xF, 16));
+			}
+			return sb.append(executableFound ? " 1" : " 0").toString();
+		} catch (NoSuchAlgorithmException e) {
+			// every Java platform is required to support SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Reads the cache file, if it has not been read yet.
+	 */
+	private static synchronized void load(){
+		if (loaded){
+			return;
+		}
+		loaded = true;
+		if (cacheFile == null || !cacheFile.exists()){
+			return;
+		}
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new InputStreamReader(new FileInputStream(cacheFile), UTF8));
+			String line;
+			while ((line = reader.readLine()) != null){
+				// <hash> <executableFound> <valid>
+				int split = line.lastIndexOf(' ');
+				if (split > 0){
+					results.put(line.substring(0, split), "1".equals(line.substring(split + 1)));
+				}
+			}
+		} catch (IOException e) {
+			LOGGER.warn("Could not read validation cache " + cacheFile.getAbsolutePath() + ": " + e.getMessage());
+		} finally {
+			IOUtils.closeQuietly(reader);
+		}
+	}
+
+	private static synchronized void append(final String key, final boolean valid){
+		if (cacheFile == null){
+			return;
+		}
+		Writer writer = null;
+		try {
+			File parent = cacheFile.getAbsoluteFile().getParentFile();
+			if (parent != null){
+				parent.mkdirs();
+			}
+			writer = new OutputStreamWriter(new FileOutputStream(cacheFile, true), UTF8);
+			writer.write(key + (valid ? " 1" : " 0") + "\n");
+		} catch (IOException e) {
+			LOGGER.warn("Could not write validation cache " + cacheFile.getAbsolutePath() + ": " + e.getMessage());
+		} finally {
+			IOUtils.closeQuietly(writer);
+		}
+	}
+
+	private static File initialCacheFile(){
+		String value = System.getProperty(PROPERTY_CACHE_FILE);
+		return value == null || value.trim().isEmpty() ? null : new File(value.trim());
+	}
+}
@@ -0,0 +1,511 @@
+/**
+ * Copyright (C) 2012 52°North Initiative for Geospatial Open Source Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.n52.movingcode.runtime.codepackage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps one extracted, read-only template of the workspace for each package, so that
+ * a package is unzipped (or, for plain packages, copied) once instead of once per execution.
+ * 
+ * The workspace for an execution is a new directory tree whose files are hard links to
+ * the template's files; if links are not supported (e.g. across file systems), or if
+ * {@link #PROPERTY_WORKSPACE_COPY} is set, the files are copied. Template files are write
+ * protected, so an execution can add files to its workspace but should not modify the
+ * template through a link. Since write protection does not stop every process (e.g. one
+ * that runs as root), the size and modification time of each template file are recorded
+ * and checked from time to time (see {@link #PROPERTY_CHECK_INTERVAL}); a modified template
+ * is extracted again.
+ * 
+ * A template is rebuilt when the package's zip file changes (see {@link ICodePackage#getArchiveFile()}),
+ * or when the workspace of a plain package changes. Zip files are checked on each clone, plain
+ * workspaces along with the template. Workspaces are cloned outside of any lock; a replaced
+ * template is deleted once its last clone has completed. Templates are deleted when the JVM exits.
+ * 
+ * Thread safe.
+ *
+ */
+final class WorkspaceTemplates {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(WorkspaceTemplates.class);
+
+	/**
+	 * System property for the directory of the workspace templates. Defaults to a folder in the
+	 * system's temp directory.
+	 */
+	static final String PROPERTY_TEMPLATE_DIRECTORY = "org.n52.movingcode.templateDirectory";
+
+	/**
+	 * System property; if <code>true</code> workspace files are copied instead of linked, so each
+	 * execution gets writable files of its own. Defaults to <code>true</code> on Windows, where
+	 * read-only links cannot be deleted without making the template writable.
+	 */
+	static final String PROPERTY_WORKSPACE_COPY = "org.n52.movingcode.workspaceCopy";
+
+	/**
+	 * System property for the minimum time between two checks of a template (and of the
+	 * workspace of a plain package), in milliseconds. Defaults to one minute.
+	 */
+	static final String PROPERTY_CHECK_INTERVAL = "org.n52.movingcode.templateCheckInterval";
+
+	private static final File TEMPLATE_DIRECTORY = new File(System.getProperty(PROPERTY_TEMPLATE_DIRECTORY,
+			new File(FileUtils.getTempDirectory(), "movingcode-templates").getAbsolutePath()));
+
+	private static final boolean COPY = Boolean.parseBoolean(System.getProperty(PROPERTY_WORKSPACE_COPY,
+			String.valueOf(System.getProperty("os.name", "").startsWith("Windows"))));
+
+	private static volatile long checkInterval = Long.getLong(PROPERTY_CHECK_INTERVAL, 60000L);
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	// package key -> template state
+	private static final ConcurrentHashMap<String, Template> templates = new ConcurrentHashMap<String, Template>();
+
+	static {
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				for (Template template : templates.values()){
+					template.deleteAll();
+				}
+			}
+		});
+	}
+
+	private WorkspaceTemplates(){
+		// static access only
+	}
+
+	/**
+	 * Clones the workspace of a zipped package into a target directory. Extracts the template
+	 * if it does not exist yet, or if the package or the template has changed since it was extracted.
+	 * 
+	 * @param key {@link String} - identifies the package, e.g. its PID and zip file location
+	 * @param archiveFile {@link File} - the zip file of the package
+	 * @param archive {@link ICodePackage} - the package
+	 * @param workspaceRoot {@link String} - the workspace root, as given in the package description
+	 * @param targetDirectory {@link File} - the directory to clone the workspace into
+	 * @return <code>true</code> if the workspace has been cloned
+	 */
+	static boolean cloneWorkspace(final String key, final File archiveFile, final ICodePackage archive,
+			final String workspaceRoot, final File targetDirectory){
+		return clone(key, new ZipSource(archiveFile, archive, workspaceRoot), targetDirectory);
+	}
+
+	/**
+	 * Clones the workspace of a plain package into a target directory. Copies the workspace
+	 * into a template if there is none yet, or if the workspace or the template has changed
+	 * since it was copied. Clones never link to the files of the plain workspace itself.
+	 * 
+	 * @param key {@link String} - identifies the package, e.g. its PID and workspace location
+	 * @param workspace {@link File} - the workspace of the plain package
+	 * @param workspaceRoot {@link String} - the workspace root, as given in the package description
+	 * @param targetDirectory {@link File} - the directory to clone the workspace into
+	 * @return <code>true</code> if the workspace has been cloned
+	 */
+	static boolean cloneWorkspace(final String key, final File workspace, final String workspaceRoot,
+			final File targetDirectory){
+		return clone(key, new PlainSource(workspace, workspaceRoot), targetDirectory);
+	}
+
+	/**
+	 * Sets the minimum time between two checks of a template.
+	 * 
+	 * @param millis - the interval in milliseconds; <code>0</code> checks on each clone
+	 */
+	static void setCheckInterval(final long millis){
+		checkInterval = millis;
+	}
+
+	/**
+	 * Deletes a directory tree, e.g. a cloned workspace. Files that cannot be deleted
+	 * because they are write protected are made writable first.
+	 * 
+	 * @param directory {@link File} - the directory to delete
+	 * @return <code>true</code> if the directory has been deleted
+	 */
+	static boolean delete(final File directory){
+		if (directory == null || !directory.exists()){
+			return true;
+		}
+		try {
+			Files.walkFileTree(directory.toPath(), new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+					deleteWritable(file);
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+					if (e != null){
+						throw e;
+					}
+					deleteWritable(dir);
+					return FileVisitResult.CONTINUE;
+				}
+			});
+			return true;
+		} catch (IOException e) {
+			LOGGER.warn("Could not delete " + directory.getAbsolutePath() + ": " + e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * Deletes a file or empty directory. The writable bit is only restored if deleting fails,
+	 * since a linked file shares it with the template.
+	 */
+	private static void deleteWritable(final Path path) throws IOException {
+		try {
+			Files.deleteIfExists(path);
+		} catch (IOException e) {
+			File file = path.toFile();
+			if (file.canWrite() || !file.setWritable(true)){
+				throw e;
+			}
+			Files.deleteIfExists(path);
+		}
+	}
+
+	/**
+	 * Clones the current template of a package, outside of the template's lock.
+	 */
+	private static boolean clone(final String key, final Source source, final File targetDirectory){
+		Template template = templates.get(key);
+		if (template == null){
+			Template newTemplate = new Template(key);
+			template = templates.putIfAbsent(key, newTemplate);
+			if (template == null){
+				template = newTemplate;
+			}
+		}
+
+		Generation generation = template.acquire(source);
+		if (generation == null){
+			return false;
+		}
+		try {
+			return link(generation.directory, targetDirectory);
+		} finally {
+			template.release(generation);
+		}
+	}
+
+	/**
+	 * Extracts a workspace into a new template directory and write protects its files.
+	 * 
+	 * @return {@link Generation} - the template, or <code>null</code> if the workspace cannot be extracted
+	 */
+	private static Generation extract(final String key, final Source source){
+		File directory = new File(TEMPLATE_DIRECTORY, UUID.nameUUIDFromBytes(key.getBytes(UTF8)) + "-" + UUID.randomUUID());
+		if (!directory.mkdirs()){
+			LOGGER.error("Could not create workspace template " + directory.getAbsolutePath());
+			return null;
+		}
+
+		String wsRoot = source.workspaceRoot;
+		if (wsRoot.startsWith("./") || wsRoot.startsWith(".\\")){
+			wsRoot = wsRoot.substring(2);
+		}
+		if (!source.extract(directory, wsRoot) || !new File(directory, wsRoot).exists()){
+			LOGGER.error("Could not extract workspace template " + directory.getAbsolutePath());
+			delete(directory);
+			return null;
+		}
+
+		for (File file : FileUtils.listFiles(directory, null, true)){
+			file.setWritable(false, false);
+		}
+		Map<String, String> files = stamps(directory);
+		if (files == null){
+			delete(directory);
+			return null;
+		}
+		return new Generation(directory, files);
+	}
+
+	/**
+	 * Records size and modification time of each file in a directory tree.
+	 * 
+	 * @return {@link Map} - relative path -> size|modification time, or <code>null</code> if the tree cannot be read
+	 */
+	private static Map<String, String> stamps(final File directory){
+		final Path source = directory.toPath();
+		final Map<String, String> files = new HashMap<String, String>();
+		try {
+			Files.walkFileTree(source, new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+					files.put(source.relativize(file).toString(), attrs.size() + "|" + attrs.lastModifiedTime().toMillis());
+					return FileVisitResult.CONTINUE;
+				}
+			});
+			return files;
+		} catch (IOException e) {
+			LOGGER.error("Could not read workspace template " + directory.getAbsolutePath() + ": " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Re-creates a directory tree and links (or copies) its files.
+	 * 
+	 * @return <code>true</code> if successful
+	 */
+	private static boolean link(final File sourceDirectory, final File targetDirectory){
+		final Path source = sourceDirectory.toPath();
+		final Path target = targetDirectory.toPath();
+		try {
+			Files.walkFileTree(source, new SimpleFileVisitor<Path>() {
+				
+				// set once linking has failed, e.g. because source and target are on different file systems
+				private boolean copy = COPY;
+
+				@Override
+				public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+					Files.createDirectories(target.resolve(source.relativize(dir)));
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+					Path newFile = target.resolve(source.relativize(file));
+					if (!copy){
+						try {
+							Files.createLink(newFile, file);
+							return FileVisitResult.CONTINUE;
+						} catch (IOException | UnsupportedOperationException e) {
+							LOGGER.debug("Cannot link workspace files, copying instead: " + e.getMessage());
+							copy = true;
+						}
+					}
+					Files.copy(file, newFile);
+					newFile.toFile().setWritable(true);
+					return FileVisitResult.CONTINUE;
+				}
+			});
+			return true;
+		} catch (IOException e) {
+			LOGGER.error("Could not clone workspace " + sourceDirectory.getAbsolutePath() + " into " + targetDirectory.getAbsolutePath() + ": " + e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * The workspace a template is made from.
+	 */
+	private abstract static class Source {
+		final String workspaceRoot;
+
+		Source(final String workspaceRoot){
+			this.workspaceRoot = workspaceRoot;
+		}
+
+		/**
+		 * @param due - <code>true</code> if the template is due for a check
+		 * @return {@link String} - a stamp that changes with the workspace, or <code>null</code>
+		 *         if the workspace is not checked (or cannot be read)
+		 */
+		abstract String stamp(boolean due);
+
+		/**
+		 * Writes the workspace to <code>directory/wsRoot</code>.
+		 * 
+		 * @return <code>true</code> if successful
+		 */
+		abstract boolean extract(File directory, String wsRoot);
+	}
+
+	/**
+	 * Workspace in a zip file; the zip file is stamped on each clone.
+	 */
+	private static final class ZipSource extends Source {
+		private final File archiveFile;
+		private final ICodePackage archive;
+
+		ZipSource(final File archiveFile, final ICodePackage archive, final String workspaceRoot){
+			super(workspaceRoot);
+			this.archiveFile = archiveFile;
+			this.archive = archive;
+		}
+
+		@Override
+		String stamp(final boolean due){
+			return archiveFile.lastModified() + "|" + archiveFile.length();
+		}
+
+		@Override
+		boolean extract(final File directory, final String wsRoot){
+			return archive.dumpPackage(workspaceRoot, directory);
+		}
+	}
+
+	/**
+	 * Workspace of a plain package; the workspace is walked along with the template.
+	 */
+	private static final class PlainSource extends Source {
+		private final File workspace;
+
+		PlainSource(final File workspace, final String workspaceRoot){
+			super(workspaceRoot);
+			this.workspace = workspace;
+		}
+
+		@Override
+		String stamp(final boolean due){
+			return due ? ZipArtifactCache.stamp("", workspace) : null;
+		}
+
+		@Override
+		boolean extract(final File directory, final String wsRoot){
+			try {
+				FileUtils.copyDirectory(workspace, new File(directory, wsRoot));
+				return true;
+			} catch (IOException e) {
+				LOGGER.error("Could not copy workspace " + workspace.getAbsolutePath() + ": " + e.getMessage());
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * An extracted template. Deleted when it has been replaced and is no longer cloned.
+	 */
+	private static final class Generation {
+		final File directory;
+		// relative path -> size|modification time of the template files
+		final Map<String, String> files;
+		// number of clones in progress; guarded by the template
+		int clones = 0;
+		// set when the template has been replaced; guarded by the template
+		boolean retired = false;
+
+		Generation(final File directory, final Map<String, String> files){
+			this.directory = directory;
+			this.files = files;
+		}
+
+		/**
+		 * Checks that the template still exists and that none of its files has been modified, added or removed.
+		 */
+		boolean isIntact(){
+			if (!directory.isDirectory()){
+				return false;
+			}
+			Map<String, String> current = stamps(directory);
+			if (current == null || !current.equals(files)){
+				LOGGER.warn("Workspace template " + directory.getAbsolutePath() + " has been modified, extracting it again.");
+				return false;
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Template state of a package. The lock is only held to check and replace the template.
+	 */
+	private static final class Template {
+		private final String key;
+		// the template to clone
+		private Generation current;
+		// replaced templates that are still being cloned
+		private final List<Generation> retired = new ArrayList<Generation>();
+		// stamp of the workspace the current template was made from
+		private String stamp;
+		// time of the last check
+		private long checked;
+
+		Template(final String key){
+			this.key = key;
+		}
+
+		/**
+		 * Returns the current template for a clone, after replacing it if it is outdated.
+		 * Concurrent callers wait for a single extraction.
+		 * 
+		 * @return {@link Generation} - the template, or <code>null</code> if it cannot be extracted
+		 */
+		synchronized Generation acquire(final Source source){
+			long now = System.currentTimeMillis();
+			boolean due = current == null || now - checked >= checkInterval;
+			String newStamp = source.stamp(due);
+			// a source that is not checked keeps its stamp
+			boolean outdated = current == null || (newStamp == null ? due : !newStamp.equals(stamp))
+					|| (due && !current.isIntact());
+			if (outdated){
+				Generation generation = extract(key, source);
+				if (generation == null){
+					return null;
+				}
+				retire(current);
+				current = generation;
+				stamp = newStamp;
+			}
+			if (due){
+				checked = now;
+			}
+			current.clones++;
+			return current;
+		}
+
+		synchronized void release(final Generation generation){
+			generation.clones--;
+			if (generation.retired && generation.clones == 0){
+				retired.remove(generation);
+				delete(generation.directory);
+			}
+		}
+
+		private void retire(final Generation generation){
+			if (generation == null){
+				return;
+			}
+			generation.retired = true;
+			if (generation.clones == 0){
+				delete(generation.directory);
+			} else {
+				retired.add(generation);
+			}
+		}
+
+		synchronized void deleteAll(){
+			if (current != null){
+				delete(current.directory);
+			}
+			for (Generation generation : retired){
+				delete(generation.directory);
+			}
+		}
+	}
+}
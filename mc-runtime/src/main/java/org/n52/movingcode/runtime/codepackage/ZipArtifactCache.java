@@ -0,0 +1,235 @@
+/**
+ * Copyright (C) 2012 52°North Initiative for Geospatial Open Source Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.n52.movingcode.runtime.codepackage;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps a prebuilt zip file for each plain package, so a plain package is zipped once
+ * instead of once per download.
+ * 
+ * An artifact is rebuilt when the package description or the workspace changes, i.e. when a
+ * workspace file is added, removed, resized or touched. The compression can be configured with
+ * {@link #PROPERTY_ARTIFACT_COMPRESSION}; packages whose content is already compressed can be
+ * stored without compression.
+ * 
+ * Artifacts are deleted when the JVM exits.
+ * 
+ * Thread safe.
+ */
+final class ZipArtifactCache {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(ZipArtifactCache.class);
+
+	/**
+	 * System property for the directory of the artifacts. Defaults to a folder in the
+	 * system's temp directory.
+	 */
+	static final String PROPERTY_ARTIFACT_DIRECTORY = "org.n52.movingcode.artifactDirectory";
+
+	/**
+	 * System property for the compression of the artifacts: a deflate level from 0 to 9,
+	 * or <code>STORED</code> for no compression at all. Defaults to the default deflate level.
+	 */
+	static final String PROPERTY_ARTIFACT_COMPRESSION = "org.n52.movingcode.artifactCompression";
+
+	private static final File ARTIFACT_DIRECTORY = new File(System.getProperty(PROPERTY_ARTIFACT_DIRECTORY,
+			new File(FileUtils.getTempDirectory(), "movingcode-artifacts").getAbsolutePath()));
+
+	// compression method and deflate level of the artifacts
+	static final int METHOD;
+	static final int LEVEL;
+
+	static {
+		String compression = System.getProperty(PROPERTY_ARTIFACT_COMPRESSION, "").trim();
+		int method = ZipEntry.DEFLATED;
+		int level = Deflater.DEFAULT_COMPRESSION;
+		if (compression.equalsIgnoreCase("STORED")){
+			method = ZipEntry.STORED;
+		} else if (!compression.isEmpty()){
+			try {
+				level = Integer.parseInt(compression);
+				if (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION){
+					throw new NumberFormatException();
+				}
+			} catch (NumberFormatException e){
+				LOGGER.warn("Invalid value for " + PROPERTY_ARTIFACT_COMPRESSION + ": " + compression);
+				level = Deflater.DEFAULT_COMPRESSION;
+			}
+		}
+		METHOD = method;
+		LEVEL = level;
+	}
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	// package key -> artifact state
+	private static final ConcurrentHashMap<String, Artifact> artifacts = new ConcurrentHashMap<String, Artifact>();
+
+	/**
+	 * Writes the zipped content of a package.
+	 */
+	interface ZipWriter {
+
+		/**
+		 * @param os {@link OutputStream} - the stream to write the zip to
+		 * @param method - {@link ZipEntry#DEFLATED} or {@link ZipEntry#STORED}
+		 * @param level - the deflate level
+		 * @throws IOException
+		 */
+		void write(OutputStream os, int method, int level) throws IOException;
+	}
+
+	private ZipArtifactCache(){
+		// static access only
+	}
+
+	/**
+	 * Returns the artifact for a package. Builds the artifact if it does not exist yet,
+	 * or if the package has changed since it was built.
+	 * 
+	 * @param key {@link String} - identifies the package, e.g. its PID and workspace location
+	 * @param description {@link String} - the package description
+	 * @param workspace {@link File} - the workspace of the package
+	 * @param writer {@link ZipWriter} - zips the package
+	 * @return {@link File} - the artifact, or <code>null</code> if it cannot be built
+	 */
+	static File get(final String key, final String description, final File workspace, final ZipWriter writer){
+		Artifact artifact = artifacts.get(key);
+		if (artifact == null){
+			Artifact newArtifact = new Artifact(new File(ARTIFACT_DIRECTORY, UUID.nameUUIDFromBytes(key.getBytes(UTF8)) + ".zip"));
+			artifact = artifacts.putIfAbsent(key, newArtifact);
+			if (artifact == null){
+				artifact = newArtifact;
+			}
+		}
+
+		// concurrent requests for the same package wait for a single build
+		synchronized (artifact){
+			String stamp = stamp(description, workspace);
+			if (stamp == null){
+				return null;
+			}
+			if (stamp.equals(artifact.stamp) && artifact.file.exists()){
+				return artifact.file;
+			}
+			if (build(artifact, writer)){
+				artifact.stamp = stamp;
+				return artifact.file;
+			}
+			artifact.stamp = null;
+			return null;
+		}
+	}
+
+	/**
+	 * Zips a package into its artifact.
+	 * 
+	 * @return <code>true</code> if the artifact has been built
+	 */
+	private static boolean build(final Artifact artifact, final ZipWriter writer){
+		File tmp = null;
+		try {
+			ARTIFACT_DIRECTORY.mkdirs();
+			tmp = File.createTempFile("artifact", ".part", ARTIFACT_DIRECTORY);
+			try (OutputStream os = new FileOutputStream(tmp)){
+				writer.write(os, METHOD, LEVEL);
+			}
+			// readers of a previous artifact keep their (now unlinked) file
+			Files.move(tmp.toPath(), artifact.file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			tmp = null;
+			artifact.file.deleteOnExit();
+			return true;
+		} catch (IOException e) {
+			LOGGER.error("Could not build zip artifact " + artifact.file + ": " + e.getMessage());
+			return false;
+		} finally {
+			if (tmp != null){
+				FileUtils.deleteQuietly(tmp);
+			}
+		}
+	}
+
+	/**
+	 * Computes a stamp from the package description and the path, size and modification
+	 * time of all workspace files. The file contents are not read.
+	 * 
+	 * @return hex encoded SHA-256 hash, or <code>null</code> if the workspace does not exist
+	 */
+	static String stamp(final String description, final File workspace){
+		if (!workspace.isDirectory()){
+			return null;
+		}
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-256");
+			md.update(description.getBytes(UTF8));
+			stamp(md, workspace, "");
+			StringBuilder sb = new StringBuilder();
+			for (byte b : md.digest()){
+				sb.append(String.format("%02x", b));
+			}
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			return null;
+		}
+	}
+
+	private static void stamp(final MessageDigest md, final File directory, final String path){
+		File[] files = directory.listFiles();
+		if (files == null){
+			return;
+		}
+		Arrays.sort(files);
+		for (File file : files){
+			String name = path + "/" + file.getName();
+			if (file.isDirectory()){
+				stamp(md, file, name);
+			} else {
+				md.update((name + "|" + file.length() + "|" + file.lastModified() + "\n").getBytes(UTF8));
+			}
+		}
+	}
+
+	/**
+	 * Artifact state of a package; guarded by itself.
+	 */
+	private static final class Artifact {
+		final File file;
+		// stamp of the package the artifact was built from
+		String stamp;
+
+		Artifact(File file){
+			this.file = file;
+		}
+	}
+}
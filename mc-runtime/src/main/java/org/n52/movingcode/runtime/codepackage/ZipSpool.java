@@ -0,0 +1,396 @@
+/**
+ * Copyright (C) 2012 52°North Initiative for Geospatial Open Source Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.n52.movingcode.runtime.codepackage;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Spools remote zipped packages to local files, so a remote package is downloaded once
+ * instead of once per access.
+ * 
+ * Each URL has one spool file. It is shared by all packages with this URL and
+ * revalidated after {@link #REVALIDATION_INTERVAL} with a conditional request
+ * (<code>If-None-Match</code>); an unchanged package is not downloaded again.
+ * Packages that exceed the size limit (see {@link #PROPERTY_SPOOL_MAX_BYTES})
+ * are not spooled.
+ * 
+ * The total size of the spool files is bounded (see {@link #PROPERTY_SPOOL_TOTAL_BYTES}):
+ * when a download exceeds it, the least recently used spool files are deleted. Files that
+ * are being read (see {@link #acquire(URL)}) are deleted when the last reader is done.
+ * Evicted packages are spooled again when they are accessed next time.
+ * 
+ * Spool files are deleted when the JVM exits.
+ * 
+ * Thread safe.
+ */
+final class ZipSpool {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(ZipSpool.class);
+
+	/**
+	 * System property for the directory of the spool files. Defaults to a folder in the
+	 * system's temp directory.
+	 */
+	static final String PROPERTY_SPOOL_DIRECTORY = "org.n52.movingcode.spoolDirectory";
+
+	/**
+	 * System property for the maximum size (in bytes) of a spooled package. Defaults to 256 MB.
+	 */
+	static final String PROPERTY_SPOOL_MAX_BYTES = "org.n52.movingcode.spoolMaxBytes";
+
+	/**
+	 * System property for the maximum total size (in bytes) of all spool files. Defaults to 1 GB.
+	 */
+	static final String PROPERTY_SPOOL_TOTAL_BYTES = "org.n52.movingcode.spoolTotalBytes";
+
+	// time after which a spool file is revalidated against its URL
+	static final long REVALIDATION_INTERVAL = 60 * 1000; // 1 min
+
+	private static final File SPOOL_DIRECTORY = new File(System.getProperty(PROPERTY_SPOOL_DIRECTORY,
+			new File(FileUtils.getTempDirectory(), "movingcode-spool").getAbsolutePath()));
+
+	private static final long MAX_BYTES = Long.getLong(PROPERTY_SPOOL_MAX_BYTES, 256L * 1024 * 1024);
+
+	private static volatile long totalBytes = Long.getLong(PROPERTY_SPOOL_TOTAL_BYTES, 1024L * 1024 * 1024);
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	// check time of an entry that has not been downloaded yet
+	private static final long NEVER = Long.MIN_VALUE / 2;
+
+	// URL -> spool state
+	private static final ConcurrentHashMap<String, Spooled> spooled = new ConcurrentHashMap<String, Spooled>();
+
+	// serializes the eviction of spool files
+	private static final Object evictionLock = new Object();
+
+	private ZipSpool(){
+		// static access only
+	}
+
+	/**
+	 * Sets the maximum total size of all spool files; takes effect with the next download.
+	 * 
+	 * @param bytes - the maximum total size in bytes
+	 */
+	static void setTotalBytes(final long bytes){
+		totalBytes = bytes;
+	}
+
+	/**
+	 * Returns the spool file for a URL. Downloads the package if it has not been spooled
+	 * yet, or if it has changed since it was spooled.
+	 * 
+	 * The file is not leased, so it may be evicted at any time; callers should open it right
+	 * away. Use {@link #acquire(URL)} to read the file over a longer time.
+	 * 
+	 * @param url {@link URL} - the URL of a zipped package
+	 * @return {@link File} - the spool file, or <code>null</code> if the package cannot be spooled
+	 */
+	static File get(final URL url){
+		Spooled entry = spool(url, false);
+		return entry == null ? null : entry.file;
+	}
+
+	/**
+	 * Leases the spool file for a URL, like {@link #get(URL)}. The file is not deleted
+	 * before the lease is closed.
+	 * 
+	 * @param url {@link URL} - the URL of a zipped package
+	 * @return {@link Lease} - the lease, or <code>null</code> if the package cannot be spooled
+	 */
+	static Lease acquire(final URL url){
+		Spooled entry = spool(url, true);
+		return entry == null ? null : new Lease(entry.file, entry);
+	}
+
+	/**
+	 * Spools a package, if required.
+	 * 
+	 * @param lease - <code>true</code> if the returned entry shall be leased
+	 * @return {@link Spooled} - the entry, or <code>null</code> if the package cannot be spooled
+	 */
+	private static Spooled spool(final URL url, final boolean lease){
+		String key = url.toString();
+		while (true){
+			Spooled entry = spooled.get(key);
+			if (entry == null){
+				Spooled newEntry = new Spooled(key, new File(SPOOL_DIRECTORY, UUID.nameUUIDFromBytes(key.getBytes(UTF8)) + ".zip"));
+				entry = spooled.putIfAbsent(key, newEntry);
+				if (entry == null){
+					entry = newEntry;
+				}
+			}
+
+			// concurrent requests for the same URL wait for a single download
+			long now = System.currentTimeMillis();
+			entry.lastAccess = now;
+			boolean grown = false;
+			synchronized (entry){
+				if (entry.removed){
+					// evicted or forgotten in the meantime; use a new entry
+					continue;
+				}
+				// an evicted file that is still leased is used again
+				entry.evicted = false;
+				if (now - entry.checked >= REVALIDATION_INTERVAL){
+					long size = entry.size;
+					entry.available = fetch(url, entry);
+					entry.size = entry.available ? entry.file.length() : 0;
+					entry.checked = now;
+					grown = entry.size > size;
+				}
+				if (!entry.available){
+					return null;
+				}
+				if (lease){
+					entry.leases++;
+				}
+			}
+			if (grown){
+				evict(entry);
+			}
+			return entry;
+		}
+	}
+
+	/**
+	 * Closes a lease; deletes the file if it has been evicted meanwhile.
+	 */
+	private static void release(final Spooled entry){
+		synchronized (entry){
+			entry.leases--;
+			if (entry.leases == 0 && entry.evicted){
+				remove(entry);
+			}
+		}
+	}
+
+	/**
+	 * Deletes the file of an entry and drops the entry. Callers hold the entry's lock.
+	 * The file is deleted before the entry is dropped, so a new entry for the URL cannot lose its file.
+	 */
+	private static void remove(final Spooled entry){
+		FileUtils.deleteQuietly(entry.file);
+		entry.removed = true;
+		entry.available = false;
+		entry.size = 0;
+		spooled.remove(entry.key, entry);
+	}
+
+	/**
+	 * Deletes the least recently used spool files until the spool does no longer exceed
+	 * {@link #PROPERTY_SPOOL_TOTAL_BYTES}. Files that are leased are deleted when their last
+	 * lease is closed. Forgets failed downloads that are due for a retry.
+	 * 
+	 * @param keep - the spool entry that has just been downloaded; it is not deleted
+	 */
+	private static void evict(final Spooled keep){
+		synchronized (evictionLock){
+			long now = System.currentTimeMillis();
+			long total = 0;
+			List<Spooled> entries = new ArrayList<Spooled>();
+			for (Spooled entry : spooled.values()){
+				if (entry.size == 0 && entry.checked != NEVER && now - entry.checked >= REVALIDATION_INTERVAL){
+					synchronized (entry){
+						if (!entry.available && entry.leases == 0){
+							remove(entry);
+						}
+					}
+				} else if (!entry.evicted){
+					total += entry.size;
+					entries.add(entry);
+				}
+			}
+			if (total <= totalBytes){
+				return;
+			}
+
+			// least recently used first
+			Collections.sort(entries, new Comparator<Spooled>() {
+				@Override
+				public int compare(Spooled e1, Spooled e2) {
+					return Long.compare(e1.lastAccess, e2.lastAccess);
+				}
+			});
+			for (Spooled entry : entries){
+				if (total <= totalBytes){
+					break;
+				}
+				if (entry == keep || entry.size == 0){
+					continue;
+				}
+				synchronized (entry){
+					if (entry.removed){
+						continue;
+					}
+					total -= entry.size;
+					if (entry.leases == 0){
+						remove(entry);
+					} else {
+						// deleted by the last reader
+						entry.evicted = true;
+					}
+				}
+				LOGGER.debug("Evicted spooled package " + entry.key);
+			}
+		}
+	}
+
+	/**
+	 * Downloads a package into its spool file, unless the spool file is still up to date.
+	 * 
+	 * @return <code>true</code> if the spool file is available
+	 */
+	private static boolean fetch(final URL url, final Spooled entry){
+		File tmp = null;
+		try {
+			URLConnection connection = url.openConnection();
+			boolean cached = entry.available && entry.file.exists();
+			if (connection instanceof HttpURLConnection){
+				HttpURLConnection http = (HttpURLConnection) connection;
+				if (cached && entry.eTag != null){
+					http.setRequestProperty("If-None-Match", entry.eTag);
+				}
+				if (http.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED){
+					http.disconnect();
+					return true;
+				}
+			}
+
+			long length = connection.getContentLengthLong();
+			if (length > MAX_BYTES){
+				LOGGER.info("Package is too large to be spooled (" + length + " bytes): " + url);
+				IOUtils.closeQuietly(connection.getInputStream());
+				return false;
+			}
+
+			SPOOL_DIRECTORY.mkdirs();
+			tmp = File.createTempFile("spool", ".part", SPOOL_DIRECTORY);
+			try (InputStream is = connection.getInputStream(); OutputStream os = new FileOutputStream(tmp)){
+				// the content length may be missing or wrong, so check the bytes that are actually read
+				if (IOUtils.copyLarge(is, os, 0, MAX_BYTES + 1) > MAX_BYTES){
+					LOGGER.info("Package is too large to be spooled: " + url);
+					return false;
+				}
+			}
+			Files.move(tmp.toPath(), entry.file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			tmp = null;
+			if (!cached){
+				entry.file.deleteOnExit();
+			}
+			entry.eTag = connection.getHeaderField("ETag");
+			return true;
+		} catch (IOException e) {
+			LOGGER.error("Could not spool package from " + url + ": " + e.getMessage());
+			// keep serving a previously spooled package
+			return entry.available && entry.file.exists();
+		} finally {
+			if (tmp != null){
+				FileUtils.deleteQuietly(tmp);
+			}
+		}
+	}
+
+	/**
+	 * A spool file that is not deleted before the lease is closed. Not thread safe.
+	 */
+	static final class Lease implements Closeable {
+		private final File file;
+		private final Spooled entry;
+		private boolean closed = false;
+
+		private Lease(final File file, final Spooled entry){
+			this.file = file;
+			this.entry = entry;
+		}
+
+		/**
+		 * Wraps a local file that does not need to be leased, so callers can treat local
+		 * and spooled files alike.
+		 * 
+		 * @param file {@link File} - a local file
+		 * @return {@link Lease}
+		 */
+		static Lease of(final File file){
+			return new Lease(file, null);
+		}
+
+		/**
+		 * @return {@link File} - the leased file
+		 */
+		File getFile(){
+			return file;
+		}
+
+		@Override
+		public void close(){
+			if (entry != null && !closed){
+				closed = true;
+				release(entry);
+			}
+		}
+	}
+
+	/**
+	 * Spool state of a URL; guarded by itself.
+	 */
+	private static final class Spooled {
+		final String key;
+		final File file;
+		String eTag;
+		// time of the last download or revalidation
+		volatile long checked = NEVER;
+		boolean available = false;
+		// size of the spool file; 0 if not available
+		volatile long size = 0;
+		// time of the last request; used to select spool files for eviction
+		volatile long lastAccess;
+		// number of open leases
+		int leases = 0;
+		// set if the file shall be deleted when the last lease is closed
+		volatile boolean evicted = false;
+		// set when the entry has been dropped from the spool
+		boolean removed = false;
+
+		Spooled(String key, File file){
+			this.key = key;
+			this.file = file;
+		}
+	}
+}
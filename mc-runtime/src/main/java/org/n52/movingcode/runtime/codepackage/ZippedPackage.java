@@ -21,9 +21,15 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.lang.ref.SoftReference;
 import java.net.URL;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
 
 import org.apache.commons.io.FileUtils;
@@ -37,6 +43,13 @@ import de.tudresden.gis.geoprocessing.movingcode.schema.PackageDescriptionDocume
 /**
  * This class provides reading and writing capabilities for zipped Moving Code packages.
  * 
+ * Local zip files are accessed randomly via {@link ZipFile}. The names of their entries and
+ * the parsed package description are cached, so description lookups and existence checks
+ * do not scan the archive. The cache is invalidated when the file's modification time or
+ * size changes. Remote packages are fetched once into a local spool file (see {@link ZipSpool})
+ * and then accessed like local zip files. Remote packages that cannot be spooled are read
+ * sequentially from the stream.
+ * 
  * @author Matthias Mueller, TU Dresden
  * 
  */
@@ -50,6 +63,9 @@ final class ZippedPackage implements ICodePackage {
 
 	private static final Logger logger = LoggerFactory.getLogger(ZippedPackage.class);
 
+	// cached index of the local zip file; replaced when the file changes
+	private volatile ZipIndex index;
+
 	/**
 	 * Constructor to create a {@link ZippedPackage} from a local zipfile (i.e. a zipped package).
 	 * 
@@ -72,9 +88,51 @@ final class ZippedPackage implements ICodePackage {
 
 	@Override
 	public final PackageDescriptionDocument getDescription() {
+		try (ZipSpool.Lease lease = lease()) {
+			if (lease != null) {
+				File local = lease.getFile();
+				ZipIndex current = index(local);
+				return current == null ? null : current.getDescription(local);
+			}
+		}
 		return extractDescription(this);
 	}
 
+	/**
+	 * @return {@link File} - the local zip file or the spool file of a remote package;
+	 *         <code>null</code> if the remote package cannot be spooled
+	 */
+	private File localFile() {
+		return zipFile != null ? zipFile : ZipSpool.get(zipURL);
+	}
+
+	/**
+	 * Like {@link #localFile()}, but the spool file is not evicted before the lease is closed.
+	 * 
+	 * @return {@link ZipSpool.Lease} - or <code>null</code> if the remote package cannot be spooled
+	 */
+	private ZipSpool.Lease lease() {
+		return zipFile != null ? ZipSpool.Lease.of(zipFile) : ZipSpool.acquire(zipURL);
+	}
+
+	/**
+	 * Returns the index of the local zip file. The index is rebuilt if the file
+	 * has been modified since the index was built.
+	 * 
+	 * @param local {@link File} - the local zip file, see {@link #localFile()}
+	 * @return {@link ZipIndex} - or <code>null</code> if the file cannot be read
+	 */
+	private ZipIndex index(final File local) {
+		long lastModified = local.lastModified();
+		long length = local.length();
+		ZipIndex current = index;
+		if (current == null || current.lastModified != lastModified || current.length != length) {
+			current = ZipIndex.build(local, lastModified, length);
+			index = current;
+		}
+		return current;
+	}
+
 	/**
 	 * Static private method to extract the description from a package
 	 * 
@@ -134,7 +192,7 @@ final class ZippedPackage implements ICodePackage {
 	 * @param targetDirectory
 	 *        {@link File}
 	 */
-	private static void unzipWorkspace(ZippedPackage archive, String workspaceDirName, File targetDirectory) {
+	private static boolean unzipWorkspace(ZippedPackage archive, String workspaceDirName, File targetDirectory) {
 
 		// zipFile and zip url MUST not be null at the same time
 		assert ( ! ( (archive.zipFile == null) && (archive.zipURL == null)));
@@ -145,6 +203,13 @@ final class ZippedPackage implements ICodePackage {
 			wdName = wdName.substring(2);
 		}
 
+		// local zip files: only read the workspace entries
+		try (ZipSpool.Lease lease = archive.lease()) {
+			if (lease != null) {
+				return unzipWorkspace(lease.getFile(), wdName, targetDirectory);
+			}
+		}
+
 		try {
 
 			ZipInputStream zis = null;
@@ -179,6 +244,7 @@ final class ZippedPackage implements ICodePackage {
 			if (zis != null) {
 				zis.close();
 			}
+			return true;
 		}
 		catch (ZipException e) {
 			logger.error("Error! Could read from archive: " + archiveName);
@@ -189,12 +255,46 @@ final class ZippedPackage implements ICodePackage {
 		catch (NullPointerException e) {
 			logger.error("No archive has been declared. This should not happen ...");
 		}
+		return false;
 	}
 
 
+	/**
+	 * Static private method that unzips the workspace entries of a local zip file.
+	 * 
+	 * @param local
+	 *        {@link File} - the local zip file
+	 * @param wdName
+	 *        {@link String} - the workspace directory, without a leading "./"
+	 * @param targetDirectory
+	 *        {@link File}
+	 */
+	private static boolean unzipWorkspace(File local, String wdName, File targetDirectory) {
+		try (ZipFile zf = new ZipFile(local)) {
+			Enumeration<? extends ZipEntry> entries = zf.entries();
+			while (entries.hasMoreElements()) {
+				ZipEntry entry = entries.nextElement();
+				if (entry.getName().startsWith(wdName)) {
+					File newFile = new File(targetDirectory.getAbsolutePath() + File.separator + entry.getName());
+					new File(newFile.getParent()).mkdirs();
+					if ( !entry.isDirectory()) {
+						try (InputStream is = zf.getInputStream(entry); FileOutputStream fos = new FileOutputStream(newFile)) {
+							IOUtils.copy(is, fos);
+						}
+					}
+				}
+			}
+		}
+		catch (IOException e) {
+			logger.error("Error! Could not open archive: " + local.getAbsolutePath());
+			return false;
+		}
+		return true;
+	}
+
 	@Override
-	public final void dumpPackage(String workspaceDirName, File targetDirectory) {
-		unzipWorkspace(this, workspaceDirName, targetDirectory);
+	public final boolean dumpPackage(String workspaceDirName, File targetDirectory) {
+		return unzipWorkspace(this, workspaceDirName, targetDirectory);
 	}
 
 	@Override
@@ -203,17 +303,17 @@ final class ZippedPackage implements ICodePackage {
 		assert ( ! ( (zipFile == null) && (zipURL == null)));
 
 		// in case there is a zipped package file on disk
-		if (zipFile != null) {
-			try {
-				FileUtils.copyFile(zipFile, targetZipFile);
+		try (ZipSpool.Lease lease = lease()) {
+			if (lease != null) {
+				FileUtils.copyFile(lease.getFile(), targetZipFile);
 				return true;
 			}
-			catch (Exception e) {
-				return false;
-			}
-			// in case there is no file on disk and but a valid url to a zipped package
 		}
-		else if (zipURL != null) {
+		catch (Exception e) {
+			return false;
+		}
+		// in case there is no file on disk and but a valid url to a zipped package
+		if (zipURL != null) {
 			try {
 				FileUtils.copyURLToFile(zipURL, targetZipFile);
 				return true;
@@ -232,17 +332,17 @@ final class ZippedPackage implements ICodePackage {
 		assert ( ! ( (zipFile == null) && (zipURL == null)));
 
 		// in case there is a zipped package file on disk
-		if (zipFile != null) {
-			try {
-				FileUtils.copyFile(zipFile, os);
+		try (ZipSpool.Lease lease = lease()) {
+			if (lease != null) {
+				FileUtils.copyFile(lease.getFile(), os);
 				return true;
 			}
-			catch (Exception e) {
-				return false;
-			}
-			// in case there is no file on disk and but a valid url to a zipped package
 		}
-		else if (zipURL != null) {
+		catch (Exception e) {
+			return false;
+		}
+		// in case there is no file on disk and but a valid url to a zipped package
+		if (zipURL != null) {
 			try (InputStream is = zipURL.openStream()) {
 				IOUtils.copy(is,os);
 				return true;
@@ -257,6 +357,14 @@ final class ZippedPackage implements ICodePackage {
 		return false;
 	}
 
+	/**
+	 * The spool file of a remote package is not leased (see {@link ZipSpool#get(URL)}).
+	 */
+	@Override
+	public File getArchiveFile() {
+		return localFile();
+	}
+
 	@Override
 	public String toString() {
 		StringBuilder builder = new StringBuilder();
@@ -288,6 +396,14 @@ final class ZippedPackage implements ICodePackage {
 
 		String searchEntry = wsName + "/" + relativePath;
 
+		// local zip files: look up the cached entry names
+		try (ZipSpool.Lease lease = lease()) {
+			if (lease != null) {
+				ZipIndex current = index(lease.getFile());
+				return current != null && current.contains(searchEntry);
+			}
+		}
+
 
 		boolean retval = false;
 		try {
@@ -334,4 +450,78 @@ final class ZippedPackage implements ICodePackage {
 		return p1.equalsIgnoreCase(p2);
 	}
 
+	/**
+	 * Normalizes an entry name for lookups; consistent with {@link #samePath(String, String)}.
+	 */
+	private static final String normalizePath(String path){
+		return path.replace("\\", "/").toLowerCase(Locale.ROOT);
+	}
+
+	/**
+	 * Index of a local zip file: the (normalized) names of its entries and its package description.
+	 * Built from the zip's central directory, so the entries are not decompressed.
+	 */
+	private static final class ZipIndex {
+		// state of the zip file when the index was built
+		final long lastModified;
+		final long length;
+		final Set<String> entryNames;
+		// name of the description entry, or null if there is none
+		final String descriptionEntry;
+		// parsed description; softly referenced, re-read if reclaimed
+		private volatile SoftReference<PackageDescriptionDocument> description;
+
+		private ZipIndex(long lastModified, long length, Set<String> entryNames, String descriptionEntry){
+			this.lastModified = lastModified;
+			this.length = length;
+			this.entryNames = entryNames;
+			this.descriptionEntry = descriptionEntry;
+		}
+
+		static ZipIndex build(final File zipFile, final long lastModified, final long length){
+			try (ZipFile zf = new ZipFile(zipFile)) {
+				Set<String> names = new HashSet<String>(zf.size() * 2);
+				String descriptionEntry = null;
+				Enumeration<? extends ZipEntry> entries = zf.entries();
+				while (entries.hasMoreElements()) {
+					String name = entries.nextElement().getName();
+					names.add(normalizePath(name));
+					if (descriptionEntry == null && name.equalsIgnoreCase(Constants.PACKAGE_DESCRIPTION_XML)) {
+						descriptionEntry = name;
+					}
+				}
+				return new ZipIndex(lastModified, length, names, descriptionEntry);
+			}
+			catch (IOException e) {
+				logger.error("Error! Could not open archive: " + zipFile.getAbsolutePath());
+				return null;
+			}
+		}
+
+		boolean contains(final String entryName){
+			return entryNames.contains(normalizePath(entryName));
+		}
+
+		PackageDescriptionDocument getDescription(final File zipFile){
+			if (descriptionEntry == null) {
+				return null;
+			}
+			SoftReference<PackageDescriptionDocument> ref = description;
+			PackageDescriptionDocument doc = ref == null ? null : ref.get();
+			if (doc == null) {
+				try (ZipFile zf = new ZipFile(zipFile); InputStream is = zf.getInputStream(zf.getEntry(descriptionEntry))) {
+					doc = PackageDescriptionDocument.Factory.parse(is);
+					description = new SoftReference<PackageDescriptionDocument>(doc);
+				}
+				catch (IOException e) {
+					logger.error("Error! Could not open archive: " + zipFile.getAbsolutePath());
+				}
+				catch (XmlException e) {
+					logger.error("Error! Could not parse package description from archive: " + zipFile.getAbsolutePath());
+				}
+			}
+			return doc;
+		}
+	}
+
 }
\ No newline at end of file
@@ -16,11 +16,17 @@
 package org.n52.movingcode.runtime.coderepository;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
 
+import org.joda.time.DateTime;
 import org.n52.movingcode.runtime.codepackage.MovingCodePackage;
 import org.n52.movingcode.runtime.codepackage.PID;
-import org.n52.movingcode.runtime.codepackage.XMLUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -39,15 +45,25 @@ import de.tudresden.gis.geoprocessing.movingcode.schema.PackageDescriptionDocume
  * 
  * @author Matthias Mueller, TU Dresden
  * 
- * Considered thread safe. Uses separate read and write locks.
+ * Considered thread safe. Readers access an immutable {@link PackageInventory} without locking;
+ * writers build a new inventory and publish it atomically.
  * 
  */
 public abstract class AbstractRepository implements MovingCodeRepository{
 
-	private volatile PackageInventory inventory = new PackageInventory();
+	// the current inventory; replaced as a whole on every update
+	private volatile PackageInventory inventory = new PackageInventory.Builder().build();
+	
+	// serializes updates of the inventory; readers do not lock
+	private final Object inventoryLock = new Object();
 
-	// registered changeListerners
-	private List<RepositoryChangeListener> changeListeners =  new ArrayList<RepositoryChangeListener>();
+	// registered changeListerners; coalesces and delivers change events
+	private final RepositoryChangeSupport changeSupport = new RepositoryChangeSupport(this);
+	
+	// background tasks of this repository; cancelled on close
+	private final List<ScheduledFuture<?>> tasks = new ArrayList<ScheduledFuture<?>>();
+	
+	private volatile boolean closed = false;
 
 	static final Logger LOGGER = LoggerFactory.getLogger(AbstractRepository.class);
 
@@ -59,8 +75,7 @@ public abstract class AbstractRepository implements MovingCodeRepository{
 	 * @param mcPackage {@link MovingCodePackage}
 	 */
 	protected void register(final MovingCodePackage mcPackage) {
-		inventory.add(mcPackage);
-		informRepositoryChangeListeners();
+		update(Collections.singleton(mcPackage), Collections.<PID>emptySet());
 	}
 
 	/**
@@ -71,21 +86,69 @@ public abstract class AbstractRepository implements MovingCodeRepository{
 	 * @param packageID
 	 */
 	protected void unregister(PID packageId){
-		inventory.remove(packageId);
-		informRepositoryChangeListeners();
+		update(Collections.<MovingCodePackage>emptySet(), Collections.singleton(packageId));
+	}
+	
+	/**
+	 * Registers and un-registers a number of packages at once. Every update copies the
+	 * inventory, so bulk changes should be passed here in a single call rather than
+	 * through {@link #register(MovingCodePackage)} and {@link #unregister(PID)} in a loop.
+	 * 
+	 * @param toRegister {@link Collection} - packages to add or replace
+	 * @param toUnregister {@link Collection} - IDs of the packages to remove; a package in
+	 *        <code>toRegister</code> replaces a removed package with the same ID
+	 */
+	protected void update(final Collection<MovingCodePackage> toRegister, final Collection<PID> toUnregister){
+		RepositoryChangeEvent.Builder delta = new RepositoryChangeEvent.Builder();
+		synchronized (inventoryLock){
+			PackageInventory.Builder newInventory = new PackageInventory.Builder(inventory);
+			Set<PID> removed = new HashSet<PID>();
+			for (PID pid : toUnregister){
+				if (inventory.contains(pid)){
+					newInventory.remove(pid);
+					delta.removed(pid);
+					removed.add(pid);
+				}
+			}
+			for (MovingCodePackage mcPackage : toRegister){
+				PID pid = mcPackage.getPackageId();
+				MovingCodePackage oldPackage = inventory.getPackage(pid);
+				if (oldPackage == mcPackage && !removed.contains(pid)){
+					continue;
+				}
+				newInventory.add(mcPackage);
+				// a removed package that is added again counts as updated
+				if (oldPackage == null || removed.contains(pid)){
+					delta.added(pid);
+				} else {
+					delta.updated(pid);
+				}
+			}
+			if (delta.isEmpty()){
+				return;
+			}
+			inventory = newInventory.build();
+		}
+		changeSupport.fireChange(delta);
 	}
 	
 	/**
-	 * Performs a comparison between old and new inventory. If the content has changed
-	 * the current inventory will be replaced with the new inventory.
+	 * Performs a comparison between old and new inventory. If the content has changed,
+	 * i.e. packages have been added, removed or replaced by a different package with the
+	 * same ID, the current inventory will be replaced with the new inventory.
 	 * 
 	 * @param newInventory
 	 */
 	protected void updateInventory(final PackageInventory newInventory){
-		if (!inventory.equals(newInventory)){
+		RepositoryChangeEvent.Builder delta;
+		synchronized (inventoryLock){
+			delta = RepositoryChangeEvent.diff(inventory, newInventory);
+			if (delta.isEmpty()){
+				return;
+			}
 			inventory = newInventory;
-			informRepositoryChangeListeners();
 		}
+		changeSupport.fireChange(delta);
 	}
 
 	@Override
@@ -117,7 +180,8 @@ public abstract class AbstractRepository implements MovingCodeRepository{
 
 	@Override
 	public PackageDescriptionDocument getPackageDescriptionAsDocument(PID packageId) {
-		return XMLUtils.fromString(getPackageDescriptionAsString(packageId));
+		MovingCodePackage mcp = inventory.getPackage(packageId);
+		return mcp == null ? null : mcp.getDescriptionAsDocument();
 	}
 	
 	@Override
@@ -134,23 +198,88 @@ public abstract class AbstractRepository implements MovingCodeRepository{
 	public ImmutableSet<MovingCodePackage> getLatestPackages() {
 		return inventory.latestPackageVersions();
 	}
+	
+	@Override
+	public MovingCodePackage getLatestPackage(String packageName) {
+		return inventory.getLatestPackage(packageName);
+	}
+	
+	@Override
+	public MovingCodePackage getPackageAsOf(String packageName, DateTime date) {
+		return inventory.getPackageAsOf(packageName, date);
+	}
 
+	/**
+	 * Registers a change listener. Listeners are informed once per burst of changes
+	 * (see {@link RepositoryConfig#getChangeEventWindow()}); {@link RepositoryDeltaListener}s
+	 * receive the added, removed and updated packages.
+	 */
 	@Override
-	public synchronized void addRepositoryChangeListener(RepositoryChangeListener l) {
-		this.changeListeners.add(l);
+	public void addRepositoryChangeListener(RepositoryChangeListener l) {
+		changeSupport.addListener(l);
 	}
 
 	@Override
-	public synchronized void removeRepositoryChangeListener(RepositoryChangeListener l) {
-		this.changeListeners.remove(l);
+	public void removeRepositoryChangeListener(RepositoryChangeListener l) {
+		changeSupport.removeListener(l);
 	}
 
 	/**
-	 * informs all listeners about an update.
+	 * Runs a task once on the shared {@link RepositoryScheduler}. The task is
+	 * cancelled if the repository is closed before it has been started.
+	 * 
+	 * @param task {@link Runnable}
 	 */
-	private synchronized void informRepositoryChangeListeners() {
-		for (RepositoryChangeListener l : this.changeListeners) {
-			l.onRepositoryUpdate(this);
+	protected void execute(final Runnable task){
+		synchronized (tasks){
+			if (!closed){
+				// forget about one-off tasks that have finished
+				Iterator<ScheduledFuture<?>> it = tasks.iterator();
+				while (it.hasNext()){
+					if (it.next().isDone()){
+						it.remove();
+					}
+				}
+				tasks.add(RepositoryScheduler.execute(task));
+			}
+		}
+	}
+	
+	/**
+	 * Runs a task periodically on the shared {@link RepositoryScheduler}
+	 * until the repository is closed.
+	 * 
+	 * @param task {@link Runnable}
+	 * @param initialDelay - delay of the first execution, in milliseconds
+	 * @param interval - delay between two executions, in milliseconds
+	 */
+	protected void schedule(final Runnable task, final long initialDelay, final long interval){
+		synchronized (tasks){
+			if (!closed){
+				tasks.add(RepositoryScheduler.scheduleWithFixedDelay(task, initialDelay, interval));
+			}
+		}
+	}
+	
+	/**
+	 * @return <code>true</code> if this repository has been closed
+	 */
+	protected boolean isClosed(){
+		return closed;
+	}
+	
+	/**
+	 * Cancels the background tasks of this repository. Subclasses that hold further
+	 * resources shall release them and call this method.
+	 */
+	@Override
+	public void close(){
+		synchronized (tasks){
+			closed = true;
+			for (ScheduledFuture<?> task : tasks){
+				task.cancel(false);
+			}
+			tasks.clear();
 		}
 	}
 
@@ -159,10 +288,7 @@ public abstract class AbstractRepository implements MovingCodeRepository{
 	 * the registered listeners.)
 	 */
 	protected void clear(){
-		this.inventory = new PackageInventory();
-
-		// inform change listeners
-		informRepositoryChangeListeners();
+		updateInventory(new PackageInventory.Builder().build());
 	}
 
 }
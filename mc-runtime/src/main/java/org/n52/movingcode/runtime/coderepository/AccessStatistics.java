@@ -0,0 +1,101 @@
+/**
+ * Copyright (C) 2012 52°North Initiative for Geospatial Open Source Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.n52.movingcode.runtime.coderepository;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.n52.movingcode.runtime.codepackage.PID;
+import org.n52.movingcode.runtime.coderepository.RepositoryConfig.EvictionStrategy;
+
+/**
+ * Records how often and how recently packages have been requested, and
+ * selects the package to evict from a cache.
+ * 
+ * Thread safe. Recording an access does not lock.
+ */
+final class AccessStatistics {
+
+	// logical clock; gives a strict order of accesses
+	private final AtomicLong clock = new AtomicLong();
+
+	private final ConcurrentHashMap<PID, Stats> stats = new ConcurrentHashMap<PID, Stats>();
+
+	/**
+	 * Records an access to a package.
+	 * 
+	 * @param pid {@link PID}
+	 */
+	void recordAccess(final PID pid){
+		Stats s = stats.get(pid);
+		if (s == null){
+			s = new Stats();
+			Stats previous = stats.putIfAbsent(pid, s);
+			if (previous != null){
+				s = previous;
+			}
+		}
+		s.lastAccess = clock.incrementAndGet();
+		s.count.incrementAndGet();
+	}
+
+	/**
+	 * Forgets about a package.
+	 * 
+	 * @param pid {@link PID}
+	 */
+	void remove(final PID pid){
+		stats.remove(pid);
+	}
+
+	/**
+	 * Selects the package that shall be evicted first. Packages that have never
+	 * been requested are evicted before all others.
+	 * 
+	 * @param candidates - the packages that may be evicted
+	 * @param strategy {@link EvictionStrategy}
+	 * @return {@link PID} - or <code>null</code> if there are no candidates
+	 */
+	PID selectVictim(final Collection<PID> candidates, final EvictionStrategy strategy){
+		PID victim = null;
+		long victimCount = Long.MAX_VALUE;
+		long victimAccess = Long.MAX_VALUE;
+		for (PID pid : candidates){
+			Stats s = stats.get(pid);
+			long count = s == null ? 0 : s.count.get();
+			long access = s == null ? 0 : s.lastAccess;
+			boolean better;
+			if (strategy == EvictionStrategy.LFU){
+				// least frequently used; least recently used among equals
+				better = count < victimCount || (count == victimCount && access < victimAccess);
+			} else {
+				better = access < victimAccess;
+			}
+			if (victim == null || better){
+				victim = pid;
+				victimCount = count;
+				victimAccess = access;
+			}
+		}
+		return victim;
+	}
+
+	private static final class Stats {
+		volatile long lastAccess;
+		final AtomicLong count = new AtomicLong();
+	}
+}
@@ -17,11 +17,24 @@ package org.n52.movingcode.runtime.coderepository;
 
 import java.io.File;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 
+import org.apache.commons.io.FileUtils;
+import org.n52.movingcode.runtime.codepackage.MovingCodePackage;
 import org.n52.movingcode.runtime.codepackage.PID;
+import org.n52.movingcode.runtime.codepackage.PackageResolver;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -29,6 +42,23 @@ import org.slf4j.LoggerFactory;
  * This class implements an {@link MovingCodeRepository} for Remote Geoprocessing Feeds
  * and caches the contents on disk.
  * 
+ * Missing packages are downloaded concurrently by a {@link PackageDownloadManager}
+ * (see {@link RepositoryConfig#getDownloadParallelism()}). Interrupted downloads are
+ * resumed during the next update. Downloaded packages are verified before they are
+ * moved into the mirror.
+ * 
+ * The size of the mirror can be bounded (see {@link RepositoryConfig#getCacheMaxBytes()} and
+ * {@link RepositoryConfig#getCacheMaxVersions()}). Packages that exceed these bounds are evicted
+ * from the mirror according to {@link RepositoryConfig#getCacheEviction()}, based on the use of
+ * the packages. Evicted packages remain registered; they are mirrored again the next time they
+ * are used. Packages that have been removed from the remote feed are deleted from the mirror;
+ * nothing is deleted while some packages of the feed cannot be fetched.
+ * 
+ * The registered packages are created with {@link MovingCodePackage#createOnDemand(MovingCodePackage, PackageResolver)}:
+ * lookups (also those of a {@link org.n52.movingcode.runtime.GlobalRepositoryManager}) only read their headers. A package is
+ * used, and fetched into the mirror if necessary, when its workspace is cloned or dumped or the
+ * package is written. Concurrent fetches of the same package share a single download (see {@link SingleFlight}).
+ * 
  * @author Matthias Mueller, TU Dresden
  * 
  */
@@ -38,13 +68,50 @@ public class CachedRemoteFeedRepository extends AbstractRepository {
 
 	private final URL atomFeedURL;
 	private final File cacheDirectory;
+	
+	// downloads packages into a hidden folder of the cache directory
+	private final PackageDownloadManager downloadManager;
 
-	private RemoteFeedRepository remoteRepo;
-	private LocalVersionedFileRepository localRepoMirror;
+	private volatile RemoteFeedRepository remoteRepo;
+	private volatile LocalVersionedFileRepository localRepoMirror;
 	
 	private volatile boolean initDone = false;
+	
+	// serializes mirror updates; unlike the repository's monitor, it is held during downloads
+	private final Object mirrorUpdateLock = new Object();
 
 	private Date mirrorTimestamp;
+	
+	// package requests; used to select the packages to evict
+	private final AccessStatistics accessStatistics = new AccessStatistics();
+	
+	// registered packages that are not in the mirror; they are fetched when used
+	private final Set<PID> remoteOnly = Collections.newSetFromMap(new ConcurrentHashMap<PID, Boolean>());
+	
+	// packages that have been evicted; they are not downloaded again until used
+	private final Set<PID> evicted = Collections.newSetFromMap(new ConcurrentHashMap<PID, Boolean>());
+	
+	// disk usage of the mirrored packages
+	private final Map<PID, Long> packageSizes = new ConcurrentHashMap<PID, Long>();
+	
+	// used packages that are being fetched into the mirror
+	private final SingleFlight<PID, MovingCodePackage> fetches = new SingleFlight<PID, MovingCodePackage>();
+	
+	// provides the content of the registered packages; records the access and fetches the package if necessary
+	private final PackageResolver resolver = new PackageResolver() {
+		@Override
+		public MovingCodePackage resolve(final PID packageId) {
+			accessStatistics.recordAccess(packageId);
+			if (remoteOnly.contains(packageId)){
+				MovingCodePackage mirroredPackage = fetchPackage(packageId);
+				if (mirroredPackage != null){
+					return mirroredPackage;
+				}
+			}
+			// null if the package could not be fetched; it is then served from the remote repo
+			return localRepoMirror.getPackage(packageId);
+		}
+	};
 
 	/**
 	 * Constructor for cached atom feed repositories. Additionally requires a cache directory to
@@ -62,14 +129,15 @@ public class CachedRemoteFeedRepository extends AbstractRepository {
 		// assign local variables
 		this.atomFeedURL = atomFeedURL;
 		this.cacheDirectory = cacheDirectory;
+		this.downloadManager = new PackageDownloadManager(new File(cacheDirectory, ".downloads"));
+		this.downloadManager.cleanUp();
 
 		// init local mirror
 		// also loads previously mirrored content
 		initLocalMirror();
 		
-		// trigger initial update from remote repo in separate thread
-		Thread tLoadRemote = new UpdateContentThread();
-		tLoadRemote.start();
+		// trigger initial update from remote repo in the background
+		execute(new UpdateContentTask());
 
 	}
 
@@ -110,47 +178,151 @@ public class CachedRemoteFeedRepository extends AbstractRepository {
 		localRepoMirror = new LocalVersionedFileRepository(cacheDirectory);
 		
 		// 2. Add all processes in the localRepoMirror to a new inventory list
-		PackageInventory newInventory = new PackageInventory();
+		PackageInventory.Builder newInventory = new PackageInventory.Builder();
 		for (PID currentPID : localRepoMirror.getPackageIDs()){
-			newInventory.add(localRepoMirror.getPackage(currentPID));
+			newInventory.add(onDemand(localRepoMirror.getPackage(currentPID)));
 		}
 		
 		// 3. update the current inventory
-		this.updateInventory(newInventory);
+		this.updateInventory(newInventory.build());
 	}
 
 	/**
 	 * Private update method. Updates the content of the local mirror. Usually
 	 * triggered if the remote repository has received an update.
 	 * 
-	 * Synchronized method to avoid race conditions in update threads.
+	 * Updates are serialized to avoid race conditions in update threads. The repository
+	 * is only locked while the mirror is changed, not during the downloads, so packages
+	 * that are fetched on use are not blocked by an update.
 	 * 
 	 */
-	private synchronized void updateLocalMirror(){
-
-		List<PID> remotePIDs = Arrays.asList(remoteRepo.getPackageIDs());
-		
-		for (PID currentRemotePID : remotePIDs){
+	private void updateLocalMirror(){
+		synchronized (mirrorUpdateLock){
+			RemoteFeedRepository remote = remoteRepo;
+			Set<PID> remotePIDs = new HashSet<PID>(Arrays.asList(remote.getPackageIDs()));
+			Map<PID, URL> downloads;
+			synchronized (this){
+				if (!prepareUpdate(remote, remotePIDs)){
+					return;
+				}
+				downloads = selectDownloads(remote, remotePIDs);
+			}
 			
-			// no need to perform validity checks since the remote repo
-			// shall only deliver valid packages
+			// download and verify them concurrently
+			Map<PID, MovingCodePackage> downloaded = Collections.emptyMap();
+			if (!downloads.isEmpty()){
+				LOGGER.info("Downloading " + downloads.size() + " packages from " + atomFeedURL);
+				downloaded = downloadManager.downloadAll(downloads);
+			}
 			
-			// add packages that have not yet been downloaded
-			if(!localRepoMirror.containsPackage(currentRemotePID)){
-				localRepoMirror.addPackage(remoteRepo.getPackage(currentRemotePID));
+			synchronized (this){
+				publishUpdate(remote, remotePIDs, downloaded);
+				downloadManager.cleanUp(downloads.values());
 			}
-
+		}
+	}
+	
+	/**
+	 * Deletes the packages that have been removed from the remote feed.
+	 * 
+	 * @param remote {@link RemoteFeedRepository}
+	 * @param remotePIDs - the packages of the remote repository
+	 * @return <code>false</code> if the remote feed is not available, so the mirror must not be updated
+	 */
+	private boolean prepareUpdate(final RemoteFeedRepository remote, final Set<PID> remotePIDs){
+		if (!remote.isAvailable()){
+			// the feed could not be read; keep serving the mirrored packages
+			LOGGER.warn("Remote feed is not available, using cached packages: " + atomFeedURL);
+			return false;
 		}
 		
-		// remove any packages from repo that are no longer provided by the remote repo
-		for (PID pid : getPackageIDs()){
-			if (!remotePIDs.contains(pid)){
-				unregister(pid);
+		// delete packages that have been removed from the feed
+		// if some packages could not be fetched, they may still be listed; keep everything
+		Set<PID> listedPIDs = remote.getListedPackageIDs();
+		if (listedPIDs != null){
+			List<PID> removedUpstream = new ArrayList<PID>();
+			for (PID pid : localRepoMirror.getPackageIDs()){
+				if (!listedPIDs.contains(pid)){
+					removedUpstream.add(pid);
+					packageSizes.remove(pid);
+				}
+			}
+			if (!removedUpstream.isEmpty()){
+				LOGGER.info("Deleting " + removedUpstream.size() + " packages that have been removed from " + atomFeedURL);
+				localRepoMirror.removePackages(removedUpstream);
 			}
+			evicted.retainAll(listedPIDs);
+		} else {
+			LOGGER.info("Some packages could not be fetched from " + atomFeedURL + ", no packages are deleted from the mirror");
 		}
+		remoteOnly.retainAll(remotePIDs);
+		return true;
+	}
+	
+	/**
+	 * Collects the packages that have not yet been downloaded and that fit into the mirror.
+	 * 
+	 * @param remote {@link RemoteFeedRepository}
+	 * @param remotePIDs - the packages of the remote repository
+	 * @return {@link Map} - the packages to download and their zip URLs
+	 */
+	private Map<PID, URL> selectDownloads(final RemoteFeedRepository remote, final Set<PID> remotePIDs){
+		Map<PID, URL> downloads = new LinkedHashMap<PID, URL>();
+		long maxBytes = RepositoryConfig.getCacheMaxBytes();
+		if (maxBytes <= 0 || mirrorSize() < maxBytes){
+			for (PID currentRemotePID : withinVersionLimit(remotePIDs)){
+				if (!localRepoMirror.containsPackage(currentRemotePID) && !evicted.contains(currentRemotePID)){
+					URL zipURL = remote.getPackageURL(currentRemotePID);
+					if (zipURL != null){
+						downloads.put(currentRemotePID, zipURL);
+					}
+				}
+			}
+		}
+		return downloads;
+	}
+	
+	/**
+	 * Moves downloaded packages into the mirror and publishes the new inventory.
+	 * 
+	 * @param remote {@link RemoteFeedRepository}
+	 * @param remotePIDs - the packages of the remote repository
+	 * @param downloaded - the verified downloads
+	 */
+	private void publishUpdate(final RemoteFeedRepository remote, final Set<PID> remotePIDs,
+			final Map<PID, MovingCodePackage> downloaded){
+		List<MovingCodePackage> newPackages = new ArrayList<MovingCodePackage>();
+		for (MovingCodePackage mcp : downloaded.values()){
+			// may have been fetched by a request in the meantime
+			if (!localRepoMirror.containsPackage(mcp.getPackageId())){
+				newPackages.add(mcp);
+			}
+		}
+		localRepoMirror.addPackages(newPackages);
+		
+		// register the mirrored packages; all other packages are served
+		// from the remote repo until they are used
+		PackageInventory.Builder newInventory = new PackageInventory.Builder();
+		for (PID pid : localRepoMirror.getPackageIDs()){
+			newInventory.add(onDemand(localRepoMirror.getPackage(pid)));
+			remoteOnly.remove(pid);
+		}
+		for (PID pid : remotePIDs){
+			if (!localRepoMirror.containsPackage(pid)){
+				MovingCodePackage remotePackage = remote.getPackage(pid);
+				if (remotePackage != null){
+					newInventory.add(onDemand(remotePackage));
+					remoteOnly.add(pid);
+				}
+			}
+		}
+		updateInventory(newInventory.build());
+		
+		// evict packages if the mirror has grown too large
+		enforceCachePolicy(null);
 		
 		// set to latest update dates
-		mirrorTimestamp = ((RemoteFeedRepository)remoteRepo).lastUpdated();
+		mirrorTimestamp = remote.lastUpdated();
 		cacheDirectory.setLastModified(mirrorTimestamp.getTime());
 		
 		// mark init done
@@ -158,13 +330,211 @@ public class CachedRemoteFeedRepository extends AbstractRepository {
 	}
 
 	/**
-	 * A task which re-computes the directory's fingerprint and
-	 * triggers a content reload if required.
+	 * @param mcp {@link MovingCodePackage} - a package of the mirror or the remote repository
+	 * @return {@link MovingCodePackage} - the package to register; its content is provided by {@link #resolver}
+	 */
+	private MovingCodePackage onDemand(final MovingCodePackage mcp){
+		return MovingCodePackage.createOnDemand(mcp, resolver);
+	}
+
+	/**
+	 * Fetches a single package into the mirror. Concurrent requests for the same
+	 * package wait for the first one.
+	 * 
+	 * @param pid {@link PID}
+	 * @return {@link MovingCodePackage} - the mirrored package, or <code>null</code> if the download failed
+	 */
+	private MovingCodePackage fetchPackage(final PID pid){
+		try {
+			return fetches.execute(pid, new Callable<MovingCodePackage>() {
+				@Override
+				public MovingCodePackage call() {
+					return mirrorPackage(pid);
+				}
+			});
+		} catch (ExecutionException e) {
+			LOGGER.warn("Could not fetch package " + pid + " from " + atomFeedURL, e.getCause());
+			return null;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+	}
+
+	/**
+	 * Downloads a single package into the mirror and registers it. The download
+	 * does not lock this repository, so other packages can be fetched meanwhile.
+	 * 
+	 * @param pid {@link PID}
+	 * @return {@link MovingCodePackage} - the mirrored package, or <code>null</code> if the download failed
+	 */
+	private MovingCodePackage mirrorPackage(final PID pid){
+		if (!remoteOnly.contains(pid)){
+			// fetched by a previous request
+			return localRepoMirror.getPackage(pid);
+		}
+		RemoteFeedRepository remote = remoteRepo;
+		URL zipURL = remote == null ? null : remote.getPackageURL(pid);
+		if (zipURL == null){
+			return null;
+		}
+		
+		LOGGER.info("Downloading used package " + pid + " from " + atomFeedURL);
+		MovingCodePackage downloaded = downloadManager.downloadAll(Collections.singletonMap(pid, zipURL)).get(pid);
+		
+		synchronized (this){
+			// the mirror may have been updated during the download
+			MovingCodePackage mirroredPackage = localRepoMirror.getPackage(pid);
+			if (mirroredPackage == null && downloaded != null){
+				mirroredPackage = localRepoMirror.addPackage(downloaded);
+			}
+			downloadManager.cleanUp(Collections.singleton(zipURL));
+			if (mirroredPackage == null){
+				return null;
+			}
+			
+			remoteOnly.remove(pid);
+			evicted.remove(pid);
+			register(onDemand(mirroredPackage));
+			enforceCachePolicy(pid);
+			return mirroredPackage;
+		}
+	}
+
+	/**
+	 * Evicts packages from the mirror until it complies with the configured bounds.
+	 * First, old versions beyond {@link RepositoryConfig#getCacheMaxVersions()} are evicted.
+	 * Then packages are selected by {@link AccessStatistics} until the mirror does no longer
+	 * exceed {@link RepositoryConfig#getCacheMaxBytes()}.
+	 * 
+	 * @param keep {@link PID} - a package that must not be evicted, may be <code>null</code>
+	 */
+	private synchronized void enforceCachePolicy(final PID keep){
+		Set<PID> mirrored = new HashSet<PID>(Arrays.asList(localRepoMirror.getPackageIDs()));
+		Set<PID> victims = new HashSet<PID>(mirrored);
+		victims.removeAll(withinVersionLimit(mirrored));
+		victims.remove(keep);
+		
+		long maxBytes = RepositoryConfig.getCacheMaxBytes();
+		if (maxBytes > 0){
+			List<PID> candidates = new ArrayList<PID>();
+			long size = 0;
+			for (PID pid : mirrored){
+				if (!victims.contains(pid)){
+					size += packageSize(pid);
+					if (!pid.equals(keep)){
+						candidates.add(pid);
+					}
+				}
+			}
+			while (size > maxBytes && !candidates.isEmpty()){
+				PID victim = accessStatistics.selectVictim(candidates, RepositoryConfig.getCacheEviction());
+				candidates.remove(victim);
+				victims.add(victim);
+				size -= packageSize(victim);
+			}
+		}
+		
+		if (victims.isEmpty()){
+			return;
+		}
+		LOGGER.info("Evicting " + victims.size() + " packages from the cache directory " + cacheDirectory.getAbsolutePath());
+		localRepoMirror.removePackages(victims);
+		RemoteFeedRepository remote = remoteRepo;
+		List<MovingCodePackage> remotePackages = new ArrayList<MovingCodePackage>();
+		List<PID> gone = new ArrayList<PID>();
+		for (PID pid : victims){
+			packageSizes.remove(pid);
+			evicted.add(pid);
+			MovingCodePackage remotePackage = remote == null ? null : remote.getPackage(pid);
+			if (remotePackage != null){
+				remotePackages.add(onDemand(remotePackage));
+				remoteOnly.add(pid);
+			} else {
+				gone.add(pid);
+			}
+		}
+		update(remotePackages, gone);
+	}
+
+	/**
+	 * Returns the newest {@link RepositoryConfig#getCacheMaxVersions()} versions of each package name.
+	 * 
+	 * @param pids
+	 * @return {@link Set} of {@link PID}
+	 */
+	private static Set<PID> withinVersionLimit(final Set<PID> pids){
+		int maxVersions = RepositoryConfig.getCacheMaxVersions();
+		if (maxVersions <= 0){
+			return pids;
+		}
+		Map<String, List<PID>> versions = new HashMap<String, List<PID>>();
+		for (PID pid : pids){
+			List<PID> list = versions.get(pid.name);
+			if (list == null){
+				list = new ArrayList<PID>();
+				versions.put(pid.name, list);
+			}
+			list.add(pid);
+		}
+		Set<PID> result = new HashSet<PID>();
+		for (List<PID> list : versions.values()){
+			// newest first
+			Collections.sort(list, Collections.reverseOrder());
+			result.addAll(list.subList(0, Math.min(maxVersions, list.size())));
+		}
+		return result;
+	}
+
+	/**
+	 * @return the disk usage of all mirrored packages in bytes
+	 */
+	private long mirrorSize(){
+		long size = 0;
+		for (PID pid : localRepoMirror.getPackageIDs()){
+			size += packageSize(pid);
+		}
+		return size;
+	}
+
+	/**
+	 * Files that are shared with other packages (see {@link RepositoryConfig#getBlobStoreDirectory()})
+	 * are counted for each package.
+	 * 
+	 * @param pid
+	 * @return the disk usage of a mirrored package in bytes
+	 */
+	private long packageSize(final PID pid){
+		Long size = packageSizes.get(pid);
+		if (size == null){
+			File folder = localRepoMirror.getPackageFolder(pid);
+			size = folder == null ? 0 : FileUtils.sizeOfDirectory(folder);
+			packageSizes.put(pid, size);
+		}
+		return size;
+	}
+
+	/**
+	 * Closes the remote repository and the local mirror.
+	 */
+	@Override
+	public void close() {
+		super.close();
+		RemoteFeedRepository remote = remoteRepo;
+		if (remote != null){
+			remote.close();
+		}
+		localRepoMirror.close();
+	}
+
+	/**
+	 * A task which loads the remote repository and
+	 * keeps the local mirror in sync with it.
 	 * 
 	 * @author Matthias Mueller
 	 *
 	 */
-	private final class UpdateContentThread extends Thread {
+	private final class UpdateContentTask implements Runnable {
 
 		@Override
 		public void run() {
@@ -172,12 +542,24 @@ public class CachedRemoteFeedRepository extends AbstractRepository {
 			LOGGER.info("Loading remote repository from URL " +  atomFeedURL.toString());
 			// create new remote repo
 			remoteRepo = new RemoteFeedRepository(atomFeedURL);
+			
+			// the repo may have been closed while the feed was loading
+			if (isClosed()){
+				remoteRepo.close();
+				return;
+			}
 
 			// add change listener
 			remoteRepo.addRepositoryChangeListener(new RepositoryChangeListener() {
 				@Override
 				public void onRepositoryUpdate(MovingCodeRepository updatedRepo) {
-					updateLocalMirror();
+					// events are delivered one at a time; downloads must not hold up the other listeners
+					execute(new Runnable() {
+						@Override
+						public void run() {
+							updateLocalMirror();
+						}
+					});
 				}
 			});
 			LOGGER.info("Finished loading remote repository from URL " +  atomFeedURL.toString());
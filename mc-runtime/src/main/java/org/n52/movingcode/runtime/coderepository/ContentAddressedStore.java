@@ -0,0 +1,302 @@
+/**
+ * Copyright (C) 2012 52°North Initiative for Geospatial Open Source Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.n52.movingcode.runtime.coderepository;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.UUID;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A content-addressed store for the files of package folders.
+ * 
+ * Every distinct file content is stored once, as a blob named by its SHA-256 hash:
+ * <code>&lt;root&gt;/&lt;first two hex digits&gt;/&lt;remaining hex digits&gt;</code>.
+ * Package folders do not contain copies, but hard links to the blobs. Identical
+ * files in different package versions, mirrors or repositories thus occupy disk space
+ * only once, as long as they are on the same file system as the store. If a hard link
+ * cannot be created, the file is copied instead.
+ * 
+ * Blobs are write protected, since every package folder that links to a blob shares it.
+ * Package folders are therefore deleted with {@link #delete(File)}.
+ * 
+ * Thread safe; several stores (and processes) may share the same root directory. A blob
+ * is published with a link to the file it was made from, so it is never unlinked while
+ * it is being added. Blobs are only purged some time after they were last linked, and
+ * a file whose blob has been purged in the meantime is stored again.
+ */
+final class ContentAddressedStore {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(ContentAddressedStore.class);
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	// folder for blobs that are about to be added
+	private static final String TEMP_FOLDER = ".tmp";
+
+	// default minimum age of a purged blob, i.e. time since the last change of its links
+	private static final long GRACE_PERIOD = 10 * 60 * 1000L;
+
+	// attempts to link a file whose blob is purged concurrently
+	private static final int LINK_ATTEMPTS = 3;
+
+	private final File root;
+
+	private final long gracePeriod;
+
+	/**
+	 * @param root {@link File} - the root directory of the store
+	 */
+	ContentAddressedStore(final File root){
+		this(root, GRACE_PERIOD);
+	}
+
+	/**
+	 * @param root {@link File} - the root directory of the store
+	 * @param gracePeriod - blobs are only purged if their links have not changed for this time, in milliseconds
+	 */
+	ContentAddressedStore(final File root, final long gracePeriod){
+		this.root = root;
+		this.gracePeriod = gracePeriod;
+	}
+
+	/**
+	 * Replaces every file below a folder with a hard link to the blob of its content.
+	 * Files whose content is not yet stored become blobs themselves.
+	 * 
+	 * @param folder {@link File} - e.g. a freshly written package folder
+	 * @throws IOException - if the folder cannot be processed
+	 */
+	void ingest(final File folder) throws IOException {
+		Files.walkFileTree(folder.toPath(), new SimpleFileVisitor<Path>(){
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				if (attrs.isRegularFile()){
+					store(file);
+				}
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	/**
+	 * Deletes all blobs that are no longer linked from any package folder, and whose links
+	 * have not changed during the grace period. Requires a file system that reports the number
+	 * of links of a file; does nothing otherwise.
+	 * 
+	 * @return the number of deleted blobs
+	 */
+	int purge(){
+		int purged = 0;
+		File[] buckets = root.listFiles();
+		if (buckets == null){
+			return purged;
+		}
+		long threshold = System.currentTimeMillis() - gracePeriod;
+		for (File bucket : buckets){
+			if (!bucket.isDirectory() || bucket.getName().equals(TEMP_FOLDER)){
+				continue;
+			}
+			try (DirectoryStream<Path> blobs = Files.newDirectoryStream(bucket.toPath())){
+				for (Path blob : blobs){
+					// ctime changes whenever a link to the blob is created or removed
+					Map<String, Object> attributes = Files.readAttributes(blob, "unix:nlink,ctime");
+					Object links = attributes.get("nlink");
+					Object changed = attributes.get("ctime");
+					if (links instanceof Integer && (Integer) links <= 1
+							&& changed instanceof FileTime && ((FileTime) changed).toMillis() <= threshold){
+						Files.deleteIfExists(blob);
+						purged++;
+					}
+				}
+			} catch (UnsupportedOperationException e) {
+				LOGGER.debug("Cannot determine the number of links; blobs are not purged.");
+				return purged;
+			} catch (IllegalArgumentException e) {
+				LOGGER.debug("Cannot determine the number of links; blobs are not purged.");
+				return purged;
+			} catch (IOException e) {
+				LOGGER.warn("Could not purge blobs in " + bucket.getAbsolutePath(), e);
+			}
+		}
+		if (purged > 0){
+			LOGGER.info("Purged " + purged + " unused blobs from " + root.getAbsolutePath());
+		}
+		return purged;
+	}
+
+	/**
+	 * Deletes a package folder. Linked files are write protected, so files that cannot be
+	 * deleted are made writable first.
+	 * 
+	 * @param folder {@link File} - the package folder
+	 * @throws IOException - if the folder cannot be deleted
+	 */
+	static void delete(final File folder) throws IOException {
+		if (!folder.exists()){
+			return;
+		}
+		Files.walkFileTree(folder.toPath(), new SimpleFileVisitor<Path>(){
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				try {
+					Files.deleteIfExists(file);
+				} catch (IOException e) {
+					if (!file.toFile().setWritable(true)){
+						throw e;
+					}
+					Files.deleteIfExists(file);
+				}
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+				if (e != null){
+					throw e;
+				}
+				Files.deleteIfExists(dir);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	/**
+	 * Replaces a file with a hard link to the blob of its content. If there is no blob
+	 * for the content yet, the file becomes the blob.
+	 * 
+	 * @param file {@link Path}
+	 * @throws IOException
+	 */
+	private void store(final Path file) throws IOException {
+		String hash = hash(file);
+		Path blob = root.toPath().resolve(hash.substring(0, 2)).resolve(hash.substring(2));
+		for (int attempt = 1; ; attempt++){
+			if (!Files.exists(blob) && publish(file, blob)){
+				return;
+			}
+			try {
+				link(blob, file);
+				return;
+			} catch (NoSuchFileException e) {
+				// the blob has been purged after it was found
+				if (attempt >= LINK_ATTEMPTS){
+					throw e;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Publishes a file as a new blob. The blob is linked to the file before it becomes
+	 * visible, so a concurrent purge never sees it without links.
+	 * 
+	 * @param file {@link Path}
+	 * @param blob {@link Path}
+	 * @return <code>true</code> if the file is the blob now, <code>false</code> if the blob has been
+	 *         published concurrently
+	 * @throws IOException
+	 */
+	private boolean publish(final Path file, final Path blob) throws IOException {
+		Path tempDir = root.toPath().resolve(TEMP_FOLDER);
+		Files.createDirectories(tempDir);
+		Files.createDirectories(blob.getParent());
+		Path tempBlob = tempDir.resolve(UUID.randomUUID().toString());
+		try {
+			Files.createLink(tempBlob, file);
+		} catch (UnsupportedOperationException | FileSystemException e) {
+			LOGGER.debug("Cannot link " + file + " into the store. Keeping the file.");
+			return true;
+		}
+		try {
+			file.toFile().setWritable(false, false);
+			// unlike a move, a link never replaces a blob that has been published concurrently
+			Files.createLink(blob, tempBlob);
+			return true;
+		} catch (FileAlreadyExistsException e) {
+			return false;
+		} finally {
+			Files.deleteIfExists(tempBlob);
+		}
+	}
+
+	/**
+	 * Replaces a file with a hard link to a blob. Falls back to a copy if the
+	 * link cannot be created, e.g. because the blob is on another file system.
+	 * 
+	 * @param blob {@link Path}
+	 * @param file {@link Path}
+	 * @throws NoSuchFileException - if the blob does not exist (any longer)
+	 * @throws IOException
+	 */
+	private static void link(final Path blob, final Path file) throws IOException {
+		if (Files.isSameFile(blob, file)){
+			return;
+		}
+		// create the link next to the file and replace the file atomically
+		Path newLink = file.resolveSibling(file.getFileName() + "." + UUID.randomUUID());
+		try {
+			Files.createLink(newLink, blob);
+		} catch (NoSuchFileException e) {
+			throw e;
+		} catch (UnsupportedOperationException | FileSystemException e) {
+			LOGGER.debug("Cannot link " + file + " to " + blob + ". Keeping a copy.");
+			return;
+		}
+		Files.move(newLink, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Computes the SHA-256 hash of a file's content.
+	 * 
+	 * @param file
+	 * @return hex encoded hash
+	 * @throws IOException
+	 */
+	static String hash(final Path file) throws IOException {
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+		byte[] buffer = new byte[BUFFER_SIZE];
+		try (InputStream is = Files.newInputStream(file)){
+			int read;
+			while ((read = is.read(buffer)) != -1){
+				md.update(buffer, 0, read);
+			}
+		}
+		return RepositoryUtils.toHexString(md.digest());
+	}
+}
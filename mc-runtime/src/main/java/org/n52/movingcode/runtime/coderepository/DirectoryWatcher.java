@@ -0,0 +1,268 @@
+/**
+ * Copyright (C) 2012 52°North Initiative for Geospatial Open Source Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.n52.movingcode.runtime.coderepository;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Watches a directory tree with a {@link WatchService} and reports the paths
+ * that have been created, modified or deleted.
+ *
+ * Sub-directories are registered recursively, including directories that are
+ * created after the watcher has been started. The {@link WatchService} is polled
+ * every {@link #QUIET_PERIOD} milliseconds by the timer thread of the shared {@link RepositoryScheduler},
+ * so a watcher does not occupy a thread of its own. Events are collected until the
+ * tree has been quiet for a whole period, so a file that is still being copied is
+ * reported once instead of once per write. The listener is called on the scheduler's
+ * pool for blocking work, since it usually re-reads the touched files.
+ */
+final class DirectoryWatcher {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(DirectoryWatcher.class);
+
+	// polling interval; also the time to wait for further events before a batch is handed to the listener
+	static final long QUIET_PERIOD = 500; // milliseconds
+
+	private final Path root;
+	private final Listener listener;
+	private final WatchService watchService;
+
+	// watched directories
+	private final Map<WatchKey, Path> watchedDirs = new HashMap<WatchKey, Path>();
+
+	// events collected since the last batch was delivered; only accessed by the poll task
+	private Set<Path> touched = new LinkedHashSet<Path>();
+	private boolean complete = true;
+
+	private ScheduledFuture<?> pollTask;
+
+	/**
+	 * Callback interface for {@link DirectoryWatcher}.
+	 */
+	interface Listener {
+
+		/**
+		 * Called with all paths that have been touched since the last call. A path may
+		 * denote a new or modified file, or a file or directory that no longer exists.
+		 * Files inside a newly created directory are reported individually.
+		 *
+		 * @param touchedPaths {@link Set} of absolute paths
+		 */
+		void onChange(Set<Path> touchedPaths);
+
+		/**
+		 * Called if the {@link WatchService} has lost events. The listener
+		 * should perform a full rescan.
+		 */
+		void onOverflow();
+	}
+
+	/**
+	 * Creates a new watcher and registers the whole directory tree below <code>root</code>.
+	 *
+	 * @param root {@link Path} - the directory to watch
+	 * @param listener {@link Listener} - receives the change notifications
+	 * @throws IOException - if the platform does not support a {@link WatchService} for this directory
+	 */
+	DirectoryWatcher(final Path root, final Listener listener) throws IOException {
+		this.root = root;
+		this.listener = listener;
+		this.watchService = root.getFileSystem().newWatchService();
+		try {
+			registerTree(root, null);
+		} catch (IOException e){
+			watchService.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Starts delivering events to the listener.
+	 */
+	synchronized void start(){
+		if (pollTask == null){
+			pollTask = RepositoryScheduler.scheduleTimerWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					poll();
+				}
+			}, QUIET_PERIOD, QUIET_PERIOD);
+		}
+	}
+
+	/**
+	 * Stops the watcher and releases the {@link WatchService}.
+	 */
+	synchronized void close(){
+		if (pollTask != null){
+			pollTask.cancel(false);
+		}
+		try {
+			watchService.close();
+		} catch (IOException e) {
+			LOGGER.warn("Could not close watch service for " + root, e);
+		}
+	}
+
+	/**
+	 * Registers a directory and all its sub-directories. If <code>newFiles</code> is not null,
+	 * all regular files found on the way will be added to this set.
+	 *
+	 * @param dir
+	 * @param newFiles
+	 * @throws IOException
+	 */
+	private void registerTree(final Path dir, final Set<Path> newFiles) throws IOException {
+		Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) throws IOException {
+				WatchKey key = d.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+				synchronized (watchedDirs){
+					watchedDirs.put(key, d);
+				}
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+				if (newFiles != null && attrs.isRegularFile()){
+					newFiles.add(file);
+				}
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed(Path file, IOException e) {
+				// a file vanished while we were walking the tree; the delete event will follow
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	/**
+	 * Processes the events of a single key and collects the touched paths.
+	 *
+	 * @return <code>false</code> if events have been lost
+	 */
+	private boolean processKey(final WatchKey key, final Set<Path> touched){
+		Path dir;
+		synchronized (watchedDirs){
+			dir = watchedDirs.get(key);
+		}
+
+		boolean complete = true;
+		for (WatchEvent<?> event : key.pollEvents()){
+			if (event.kind() == OVERFLOW){
+				complete = false;
+				continue;
+			}
+			if (dir == null){
+				continue;
+			}
+
+			Path child = dir.resolve((Path) event.context());
+			touched.add(child);
+
+			// watch new directories and report the files that were
+			// moved or copied into them before the registration took place
+			if (event.kind() == ENTRY_CREATE && Files.isDirectory(child)){
+				try {
+					registerTree(child, touched);
+				} catch (IOException e) {
+					LOGGER.warn("Could not watch new directory " + child, e);
+					complete = false;
+				}
+			}
+		}
+
+		// directory is no longer accessible (e.g. deleted)
+		if (!key.reset()){
+			synchronized (watchedDirs){
+				watchedDirs.remove(key);
+			}
+		}
+		return complete;
+	}
+
+	/**
+	 * Collects the pending events and forwards them to the listener once the tree
+	 * has been quiet for a whole polling interval.
+	 */
+	private void poll(){
+		boolean quiet = true;
+		try {
+			WatchKey key;
+			while ((key = watchService.poll()) != null){
+				quiet = false;
+				complete &= processKey(key, touched);
+			}
+		} catch (ClosedWatchServiceException e) {
+			LOGGER.debug("Watch service closed. Watcher stopped.");
+			return;
+		}
+
+		if (!quiet){
+			// wait for the next period
+			return;
+		}
+
+		final Set<Path> batch = touched;
+		boolean batchComplete = complete;
+		touched = new LinkedHashSet<Path>();
+		complete = true;
+
+		// the listener re-reads files, so do not block the timer thread
+		if (!batchComplete){
+			LOGGER.info("Lost file system events for " + root + ". Requesting full rescan.");
+			RepositoryScheduler.execute(new Runnable() {
+				@Override
+				public void run() {
+					listener.onOverflow();
+				}
+			});
+		} else if (!batch.isEmpty()){
+			RepositoryScheduler.execute(new Runnable() {
+				@Override
+				public void run() {
+					listener.onChange(batch);
+				}
+			});
+		}
+	}
+
+}
@@ -0,0 +1,280 @@
+/**
+ * Copyright (C) 2012 52°North Initiative for Geospatial Open Source Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.n52.movingcode.runtime.coderepository;
+
+import static com.fasterxml.jackson.core.JsonToken.*;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.joda.time.DateTime;
+import org.n52.movingcode.runtime.codepackage.PID;
+import org.n52.movingcode.runtime.codepackage.PackageHeader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Reads and writes the on-disk snapshot of a local repository's inventory.
+ * 
+ * For each source (zip file or package folder) the snapshot contains the
+ * modification time, size and hash of its stamp file, the validation verdict,
+ * and - for valid packages - the {@link PackageHeader}. A repository can serve
+ * lookups from the snapshot right after startup and revalidate its sources
+ * in the background.
+ * 
+ * Snapshots are JSON files of the following structure:
+ * 
+ * {"version":1,"sources":[{"source":"...","lastModified":0,"size":0,"hash":"...","valid":true,
+ *   "packageId":"...","timestamp":"...","functionId":"...","title":"...","abstract":"..."}, ...]}
+ */
+final class InventorySnapshot {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(InventorySnapshot.class);
+
+	static final int VERSION = 1;
+
+	static final String KEY_VERSION = "version";
+	static final String KEY_SOURCES = "sources";
+	static final String KEY_SOURCE = "source";
+	static final String KEY_LAST_MODIFIED = "lastModified";
+	static final String KEY_SIZE = "size";
+	static final String KEY_HASH = "hash";
+	static final String KEY_VALID = "valid";
+	static final String KEY_PACKAGE_ID = "packageId";
+	static final String KEY_TIMESTAMP = "timestamp";
+	static final String KEY_FUNCTION_ID = "functionId";
+	static final String KEY_TITLE = "title";
+	static final String KEY_ABSTRACT = "abstract";
+
+	private static final JsonFactory JSON = new JsonFactory();
+
+	private InventorySnapshot(){
+		// static access only
+	}
+
+	/**
+	 * A single source in a snapshot.
+	 */
+	static final class Record {
+		final Path source;
+		final long lastModified;
+		final long size;
+		final String hash;
+		// null for invalid sources
+		final PackageHeader header;
+
+		Record(Path source, long lastModified, long size, String hash, PackageHeader header){
+			this.source = source;
+			this.lastModified = lastModified;
+			this.size = size;
+			this.hash = hash;
+			this.header = header;
+		}
+	}
+
+	/**
+	 * Determines the snapshot file for a repository.
+	 * 
+	 * @param repositoryType {@link String} - a short name for the kind of repository, e.g. "zip"
+	 * @param directory {@link File} - the repository directory
+	 * @return {@link File} - the snapshot file, or <code>null</code> if snapshots are disabled
+	 *         (see {@link RepositoryConfig#getSnapshotDirectory()})
+	 */
+	static File snapshotFile(final String repositoryType, final File directory){
+		File snapshotDir = RepositoryConfig.getSnapshotDirectory();
+		if (snapshotDir == null){
+			return null;
+		}
+		String key = RepositoryUtils.shortHash(directory.getAbsolutePath());
+		return new File(snapshotDir, repositoryType + "-" + key + ".json");
+	}
+
+	/**
+	 * Reads a snapshot.
+	 * 
+	 * @param snapshotFile {@link File}
+	 * @return {@link List} of {@link Record} - empty if there is no readable snapshot
+	 */
+	static List<Record> read(final File snapshotFile){
+		List<Record> records = new ArrayList<Record>();
+		if (!snapshotFile.isFile()){
+			return records;
+		}
+
+		try (InputStream is = new FileInputStream(snapshotFile)) {
+			JsonParser jp = JSON.createParser(is);
+			if (jp.nextToken() != START_OBJECT){
+				throw new IOException("Not a JSON object.");
+			}
+			while (jp.nextToken() == FIELD_NAME){
+				String field = jp.getCurrentName();
+				JsonToken value = jp.nextToken();
+				if (KEY_VERSION.equals(field)){
+					if (jp.getIntValue() != VERSION){
+						LOGGER.info("Ignoring snapshot " + snapshotFile + " with unsupported version " + jp.getText());
+						return new ArrayList<Record>();
+					}
+				} else if (KEY_SOURCES.equals(field) && value == START_ARRAY){
+					while (jp.nextToken() == START_OBJECT){
+						Record record = parseRecord(jp);
+						if (record != null){
+							records.add(record);
+						}
+					}
+				} else {
+					jp.skipChildren();
+				}
+			}
+			jp.close();
+		} catch (IOException e) {
+			LOGGER.warn("Could not read snapshot " + snapshotFile + ": " + e.getMessage());
+			return new ArrayList<Record>();
+		} catch (RuntimeException e) {
+			LOGGER.warn("Could not read snapshot " + snapshotFile + ": " + e.getMessage());
+			return new ArrayList<Record>();
+		}
+		return records;
+	}
+
+	/**
+	 * Parses a single record; the parser is positioned at the record's START_OBJECT.
+	 * 
+	 * @return {@link Record} - or <code>null</code> if the record is incomplete
+	 */
+	private static Record parseRecord(final JsonParser jp) throws IOException {
+		String source = null;
+		long lastModified = -1;
+		long size = -1;
+		String hash = null;
+		boolean valid = false;
+		String packageId = null;
+		String timestamp = null;
+		String functionId = null;
+		String title = null;
+		String functionAbstract = null;
+
+		while (jp.nextToken() == FIELD_NAME){
+			String field = jp.getCurrentName();
+			JsonToken value = jp.nextToken();
+			if (value == VALUE_NULL){
+				continue;
+			}
+			if (KEY_SOURCE.equals(field)){
+				source = jp.getText();
+			} else if (KEY_LAST_MODIFIED.equals(field)){
+				lastModified = jp.getLongValue();
+			} else if (KEY_SIZE.equals(field)){
+				size = jp.getLongValue();
+			} else if (KEY_HASH.equals(field)){
+				hash = jp.getText();
+			} else if (KEY_VALID.equals(field)){
+				valid = jp.getBooleanValue();
+			} else if (KEY_PACKAGE_ID.equals(field)){
+				packageId = jp.getText();
+			} else if (KEY_TIMESTAMP.equals(field)){
+				timestamp = jp.getText();
+			} else if (KEY_FUNCTION_ID.equals(field)){
+				functionId = jp.getText();
+			} else if (KEY_TITLE.equals(field)){
+				title = jp.getText();
+			} else if (KEY_ABSTRACT.equals(field)){
+				functionAbstract = jp.getText();
+			} else {
+				jp.skipChildren();
+			}
+		}
+
+		if (source == null || lastModified < 0 || size < 0){
+			return null;
+		}
+		PackageHeader header = null;
+		if (valid){
+			if (packageId == null || timestamp == null || functionId == null){
+				return null;
+			}
+			PID pid = new PID(packageId, DateTime.parse(timestamp));
+			header = new PackageHeader(pid, functionId, title, functionAbstract);
+		}
+		return new Record(Paths.get(source), lastModified, size, hash, header);
+	}
+
+	/**
+	 * Writes a snapshot. The file is replaced atomically, so readers never see a partial snapshot.
+	 * 
+	 * @param snapshotFile {@link File}
+	 * @param records {@link Collection} of {@link Record}
+	 */
+	static void write(final File snapshotFile, final Collection<Record> records){
+		File dir = snapshotFile.getAbsoluteFile().getParentFile();
+		dir.mkdirs();
+		File tmpFile = new File(dir, snapshotFile.getName() + ".tmp");
+
+		try (OutputStream os = new FileOutputStream(tmpFile)) {
+			JsonGenerator jg = JSON.createGenerator(os, JsonEncoding.UTF8);
+			jg.writeStartObject();
+			jg.writeNumberField(KEY_VERSION, VERSION);
+			jg.writeArrayFieldStart(KEY_SOURCES);
+			for (Record record : records){
+				jg.writeStartObject();
+				jg.writeStringField(KEY_SOURCE, record.source.toString());
+				jg.writeNumberField(KEY_LAST_MODIFIED, record.lastModified);
+				jg.writeNumberField(KEY_SIZE, record.size);
+				jg.writeStringField(KEY_HASH, record.hash);
+				jg.writeBooleanField(KEY_VALID, record.header != null);
+				if (record.header != null){
+					PID pid = record.header.getPackageId();
+					jg.writeStringField(KEY_PACKAGE_ID, pid.name);
+					jg.writeStringField(KEY_TIMESTAMP, pid.timestamp.toString());
+					jg.writeStringField(KEY_FUNCTION_ID, record.header.getFunctionIdentifier());
+					jg.writeStringField(KEY_TITLE, record.header.getTitle());
+					jg.writeStringField(KEY_ABSTRACT, record.header.getAbstract());
+				}
+				jg.writeEndObject();
+			}
+			jg.writeEndArray();
+			jg.writeEndObject();
+			jg.close();
+		} catch (IOException e) {
+			LOGGER.warn("Could not write snapshot " + snapshotFile + ": " + e.getMessage());
+			tmpFile.delete();
+			return;
+		}
+
+		try {
+			Files.move(tmpFile.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			LOGGER.warn("Could not write snapshot " + snapshotFile + ": " + e.getMessage());
+			tmpFile.delete();
+		}
+	}
+}
@@ -21,12 +21,15 @@ import java.nio.file.DirectoryStream;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.Map;
 
 import org.apache.xmlbeans.XmlException;
 import org.n52.movingcode.runtime.codepackage.Constants;
 import org.n52.movingcode.runtime.codepackage.MovingCodePackage;
+import org.n52.movingcode.runtime.codepackage.PackageHeader;
 
 import de.tudresden.gis.geoprocessing.movingcode.schema.PackageDescriptionDocument;
 
@@ -53,7 +56,10 @@ import de.tudresden.gis.geoprocessing.movingcode.schema.PackageDescriptionDocume
  * interpretation as a package description.
  * 
  * This Repo performs occasional checks for updated content.
- * (Interval for periodical checks is given by {@link MovingCodeRepository#localPollingInterval})
+ * (Interval for periodical checks is given by {@link RepositoryConfig#getLocalPollingInterval()})
+ * Only folders with a new or changed <packagedescription.xml> are parsed again during these checks.
+ * If an inventory snapshot is available (see {@link RepositoryConfig#getSnapshotDirectory()}), the
+ * Repo starts with the packages from the snapshot and revalidates them in the background.
  * 
  * @author Matthias Mueller, TU Dresden
  *
@@ -62,8 +68,39 @@ public final class LocalPlainRepository extends AbstractRepository {
 
 	private final File directory;
 
-	private final Thread updateThread;
+	
+	// per-folder state; avoids re-parsing unchanged packages on each rescan
+	private final SourceStateTable folderStates = new SourceStateTable();
+
+	// inventory snapshot; null if snapshots are disabled
+	private final File snapshotFile;
+	
+	private static final PackageLoader packageLoader = new PackageLoader() {
+		@Override
+		public MovingCodePackage load(Path source) {
+			return loadPackage(source);
+		}
+	};
+	
+	private static final SourceStateTable.Restorer folderRestorer = new SourceStateTable.Restorer() {
+		@Override
+		public MovingCodePackage restore(Path source, PackageHeader header) {
+			return MovingCodePackage.createFromPackageFolder(source.toFile(), header);
+		}
+	};
 
+	private final PackageLoader folderLoader = new PackageLoader() {
+		@Override
+		public MovingCodePackage load(Path currentFolder) {
+			// attempt to read packageDescription XML
+			Path packageDescriptionFile = currentFolder.resolve(Constants.PACKAGE_DESCRIPTION_XML);
+			if (!Files.exists(packageDescriptionFile)){
+				folderStates.remove(currentFolder);
+				return null;
+			}
+			return folderStates.get(currentFolder, packageDescriptionFile, packageLoader);
+		}
+	};
 
 	/**
 	 * 
@@ -76,18 +113,23 @@ public final class LocalPlainRepository extends AbstractRepository {
 	 */
 	public LocalPlainRepository(File sourceDirectory) {
 		this.directory = sourceDirectory;
+		this.snapshotFile = InventorySnapshot.snapshotFile("plain", directory);
 
-		// load packages from folder
-		updateContent();
+		// serve the last known packages right away, if there is a snapshot
+		boolean restored = restoreSnapshot();
+		if (!restored){
+			// load packages from folder
+			updateContent();
+		}
 
-		// start update thread
-		updateThread = new UpdateInventoryThread();
-		updateThread.start();
+		// schedule periodic updates; revalidate restored packages right away
+		long updateInterval = RepositoryConfig.getLocalPollingInterval();
+		schedule(new UpdateInventoryTask(), restored ? 0 : updateInterval, updateInterval);
 	}
 	
 	private synchronized void updateContent(){
 		
-		PackageInventory newInventory = new PackageInventory();
+		PackageInventory.Builder newInventory = new PackageInventory.Builder();
 		
 		// recursively obtain all folders in sourceDirectory
 		Path repoRoot = FileSystems.getDefault().getPath(directory.getAbsolutePath());
@@ -95,49 +137,78 @@ public final class LocalPlainRepository extends AbstractRepository {
 
 		LOGGER.info("Scanning directory: " + directory.getAbsolutePath());
 		
-		for (Path currentFolder : potentialPackageFolders) {
-			
-			// attempt to read packageDescription XML
-			File packageDescriptionFile = new File(currentFolder.toFile(), Constants.PACKAGE_DESCRIPTION_XML);
-			if (!packageDescriptionFile.exists()){
-				continue; // skip this and immediately jump to the next iteration
-			}
-
-			PackageDescriptionDocument pd = null;
-			try {
-				pd = PackageDescriptionDocument.Factory.parse(packageDescriptionFile);
-			} catch (XmlException e) {
-				// silently skip this and immediately jump to the next iteration
-				continue;
-			} catch (IOException e) {
-				// silently skip this and immediately jump to the next iteration
-				continue;
-			}
+		// forget about folders that have disappeared
+		folderStates.retainAll(potentialPackageFolders);
+		
+		// load packages concurrently; only new or changed folders are parsed and validated
+		Map<Path, MovingCodePackage> packages = ParallelScanner.loadAll(new ArrayList<Path>(potentialPackageFolders), folderLoader);
+		for (MovingCodePackage mcPackage : packages.values()){
+			newInventory.add(mcPackage);
+		}
+		
+		this.updateInventory(newInventory.build());
+		folderStates.save(snapshotFile);
+	}
+	
+	/**
+	 * Publishes the packages from the inventory snapshot, if there is one.
+	 * 
+	 * @return <code>true</code> if packages have been restored
+	 */
+	private synchronized boolean restoreSnapshot(){
+		Map<Path, MovingCodePackage> packages = folderStates.restore(snapshotFile, folderRestorer);
+		if (packages.isEmpty()){
+			return false;
+		}
+		PackageInventory.Builder newInventory = new PackageInventory.Builder();
+		for (MovingCodePackage mcPackage : packages.values()){
+			newInventory.add(mcPackage);
+		}
+		this.updateInventory(newInventory.build());
+		LOGGER.info("Restored " + packages.size() + " packages from snapshot " + snapshotFile);
+		return true;
+	}
+	
+	/**
+	 * Parses and validates the package in a given folder.
+	 * 
+	 * @param currentFolder {@link Path}
+	 * @return {@link MovingCodePackage} - or <code>null</code> if the folder does not contain a valid package
+	 */
+	private static final MovingCodePackage loadPackage(Path currentFolder){
+		File packageDescriptionFile = new File(currentFolder.toFile(), Constants.PACKAGE_DESCRIPTION_XML);
+		
+		PackageDescriptionDocument pd = null;
+		try {
+			pd = PackageDescriptionDocument.Factory.parse(packageDescriptionFile);
+		} catch (XmlException e) {
+			// silently skip this folder
+			return null;
+		} catch (IOException e) {
+			// silently skip this folder
+			return null;
+		}
 
-			// attempt to access workspace root folder
-			String workspace = pd.getPackageDescription().getWorkspace().getWorkspaceRoot();
-			if (workspace.startsWith("./")){
-				workspace = workspace.substring(2); // remove leading "./" if it exists
-			}
-			File workspaceDir = new File(currentFolder.toFile(), workspace);
-			if (!workspaceDir.exists()){
-				continue; // skip this and immediately jump to the next iteration
-			}
+		// attempt to access workspace root folder
+		String workspace = pd.getPackageDescription().getWorkspace().getWorkspaceRoot();
+		if (workspace.startsWith("./")){
+			workspace = workspace.substring(2); // remove leading "./" if it exists
+		}
+		File workspaceDir = new File(currentFolder.toFile(), workspace);
+		if (!workspaceDir.exists()){
+			return null;
+		}
 
-			MovingCodePackage mcPackage = new MovingCodePackage(workspaceDir, pd);
-			// validate
-			// and add to package map
-			// and add current file to zipFiles map
-			if (mcPackage.isValid()) {
-				newInventory.add(mcPackage);
-				LOGGER.info("Found package: " + currentFolder + "; using ID: " + mcPackage.getPackageId().toString());
-			}
-			else {
-				LOGGER.error(currentFolder + " is an invalid package.");
-			}
+		MovingCodePackage mcPackage = new MovingCodePackage(workspaceDir, pd);
+		// validate
+		if (mcPackage.isValid()) {
+			LOGGER.info("Found package: " + currentFolder + "; using ID: " + mcPackage.getPackageId().toString());
+			return mcPackage;
+		}
+		else {
+			LOGGER.error(currentFolder + " is an invalid package.");
+			return null;
 		}
-		
-		this.updateInventory(newInventory);
 	}
 
 
@@ -154,8 +225,7 @@ public final class LocalPlainRepository extends AbstractRepository {
 				//		        files.add(entry);
 			}
 		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			LOGGER.error("Could not list subdirectories of " + path + ": " + e.getMessage());
 		}
 
 
@@ -163,42 +233,18 @@ public final class LocalPlainRepository extends AbstractRepository {
 	}
 
 	/**
-	 * A thread that occasionally updates the repo's inventory
-	 * triggers a content reload if required.
+	 * A task that occasionally updates the repo's inventory.
+	 * Runs on the shared {@link RepositoryScheduler}.
 	 * 
 	 * @author Matthias Mueller
 	 *
 	 */
-	private final class UpdateInventoryThread extends Thread {
-		
-		private static final long updateInterval = MovingCodeRepository.localPollingInterval;
+	private final class UpdateInventoryTask implements Runnable {
 		
 		@Override
 		public void run() {
-
-			while(true){ // spin forever
-
-				LOGGER.debug("Update thread started."
-						+"\nDirectory: " + directory.getAbsolutePath()
-						+ "\nUpdate interval: " + updateInterval + " milliseconds"
-						);
-
-				try {
-					Thread.sleep(updateInterval);
-				} catch (InterruptedException e1) {
-					LOGGER.debug("Interrupt received. Update thread stopped.");
-					this.interrupt();
-				}
-				
-				updateContent();
-			}
-
+			LOGGER.debug("Updating inventory of directory: " + directory.getAbsolutePath());
+			updateContent();
 		}
 	}
-
-	@Override
-	protected void finalize() throws Throwable {
-		updateThread.interrupt();
-		super.finalize();
-	}
 }
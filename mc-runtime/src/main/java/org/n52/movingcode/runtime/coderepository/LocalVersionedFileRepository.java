@@ -21,15 +21,21 @@ import java.nio.file.DirectoryStream;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.jackrabbit.uuid.UUID;
 import org.apache.xmlbeans.XmlException;
 import org.n52.movingcode.runtime.codepackage.Constants;
 import org.n52.movingcode.runtime.codepackage.MovingCodePackage;
+import org.n52.movingcode.runtime.codepackage.PackageHeader;
 import org.n52.movingcode.runtime.codepackage.PID;
 
 import de.tudresden.gis.geoprocessing.movingcode.schema.PackageDescriptionDocument;
@@ -58,18 +64,68 @@ import de.tudresden.gis.geoprocessing.movingcode.schema.PackageDescriptionDocume
  * 
  * The file <packagedescription.xml> contains the description of the MovingCode package.
  * 
+ * New packages are written to a hidden staging folder (<absPath>/.staging) first and moved
+ * into place as a whole, so an interrupted write never leaves a half-written package folder.
+ * Hidden folders (names starting with ".") are not scanned for packages.
+ * If a content-addressed store is configured (see {@link RepositoryConfig#getBlobStoreDirectory()}),
+ * the files of new packages are hard links into that store, so identical files are kept only once.
+ * 
  * This Repo performs occasional checks for updated content.
- * (Interval for periodical checks is given by {@link MovingCodeRepository#localPollingInterval})
+ * (Interval for periodical checks is given by {@link RepositoryConfig#getLocalPollingInterval()})
+ * Only folders with a new or changed <packagedescription.xml> are parsed again during these checks.
+ * If an inventory snapshot is available (see {@link RepositoryConfig#getSnapshotDirectory()}), the
+ * Repo starts with the packages from the snapshot and revalidates them in the background.
  * 
  * @author Matthias Mueller, TU Dresden
  *
  */
 public class LocalVersionedFileRepository extends AbstractRepository {
 
+	private static final String STAGING_FOLDER = ".staging";
+
 	private final File directory;
-	private final Thread updateThread;
 
-	private static final HashMap<PID,String> packageFolders = new HashMap<PID,String>();
+	// package folders by package ID; replaced on each scan, guarded by this
+	private Map<PID, File> packageFolders = new HashMap<PID, File>();
+
+	// per-folder state; avoids re-parsing unchanged packages on each rescan
+	private final SourceStateTable folderStates = new SourceStateTable();
+
+	// inventory snapshot; null if snapshots are disabled
+	private final File snapshotFile;
+
+	// content-addressed store for package files; null if packages are stored as plain copies
+	private final ContentAddressedStore blobStore;
+
+	private static final PackageLoader packageLoader = new PackageLoader() {
+		@Override
+		public MovingCodePackage load(Path source) {
+			return loadPackage(source);
+		}
+	};
+
+	private static final SourceStateTable.Restorer folderRestorer = new SourceStateTable.Restorer() {
+		@Override
+		public MovingCodePackage restore(Path source, PackageHeader header) {
+			return MovingCodePackage.createFromPackageFolder(source.toFile(), header);
+		}
+	};
+
+	private final PackageLoader folderLoader = new PackageLoader() {
+		@Override
+		public MovingCodePackage load(Path currentFolder) {
+			// attempt to read packageDescription XML
+			Path packageDescriptionFile = currentFolder.resolve(Constants.PACKAGE_DESCRIPTION_XML);
+			// deal with empty inventory folders
+			if (!Files.exists(packageDescriptionFile)){
+				// TODO: remove such invalid folders?
+				LOGGER.warn("Found empty inventory folder: " + currentFolder.toAbsolutePath());
+				folderStates.remove(currentFolder);
+				return null;
+			}
+			return folderStates.get(currentFolder, packageDescriptionFile, packageLoader);
+		}
+	};
 
 	/**
 	 * 
@@ -82,40 +138,102 @@ public class LocalVersionedFileRepository extends AbstractRepository {
 	 */
 	public LocalVersionedFileRepository(File sourceDirectory) {
 		this.directory = sourceDirectory;
+		this.snapshotFile = InventorySnapshot.snapshotFile("versioned", directory);
+		File blobStoreDirectory = RepositoryConfig.getBlobStoreDirectory();
+		this.blobStore = blobStoreDirectory == null ? null : new ContentAddressedStore(blobStoreDirectory);
+
+		// serve the last known packages right away, if there is a snapshot
+		boolean restored = restoreSnapshot();
+		if (!restored){
+			// load packages from folder
+			reloadContent();
+		}
 
-		// load packages from folder
-		reloadContent();
-
-		// start update thread
-		updateThread = new UpdateInventoryThread();
-		updateThread.start();
+		// schedule periodic updates; revalidate restored packages right away
+		long updateInterval = RepositoryConfig.getLocalPollingInterval();
+		schedule(new UpdateInventoryTask(), restored ? 0 : updateInterval, updateInterval);
 	}
 
-	public synchronized void addPackage(File workspace, PackageDescriptionDocument pd){
-		// 1. create moving code packe object
-		// 2. make new directory with UUID
-		// 3. put packagedescription XML in place
-		// 4. dump workspace to repo
-		// 5. dump packageid to repo
-
-		MovingCodePackage mcp = new MovingCodePackage(workspace, pd);
-		File targetDir = makeNewDirectory();
-		mcp.dumpWorkspace(targetDir);
-		mcp.dumpDescription(new File(targetDir.getAbsolutePath() + File.separator + Constants.PACKAGE_DESCRIPTION_XML));
-
-		// 6. register package
-		register(mcp);
-		packageFolders.put(mcp.getPackageId(), targetDir.getAbsolutePath());
+	/**
+	 * Copies a plain workspace and its package description into this repository and
+	 * registers the package.
+	 * 
+	 * @param workspace {@link File} - the workspace to copy
+	 * @param pd {@link PackageDescriptionDocument} - the package description
+	 * @return {@link MovingCodePackage} - the registered package, which is read from its new folder
+	 *         in this repository; or <code>null</code> if the package could not be stored
+	 */
+	public synchronized MovingCodePackage addPackage(File workspace, PackageDescriptionDocument pd){
+		return addPackage(new MovingCodePackage(workspace, pd));
+	}
 
+	/**
+	 * Copies a package into this repository and registers it.
+	 * 
+	 * @param mcp {@link MovingCodePackage} - the package to copy
+	 * @return {@link MovingCodePackage} - the registered package, which is read from its new folder
+	 *         in this repository; or <code>null</code> if the package could not be stored
+	 */
+	public synchronized MovingCodePackage addPackage(MovingCodePackage mcp){
+		List<MovingCodePackage> storedPackages = addPackages(Collections.singleton(mcp));
+		return storedPackages.isEmpty() ? null : storedPackages.get(0);
 	}
 
-	public synchronized void addPackage(MovingCodePackage mcp){
-		File targetDir = makeNewDirectory();
-		mcp.dumpWorkspace(targetDir);
-		mcp.dumpDescription(new File(targetDir.getAbsolutePath() + File.separator + Constants.PACKAGE_DESCRIPTION_XML));
+	/**
+	 * Copies a number of packages into this repository and registers them at once.
+	 * 
+	 * @param mcps {@link Collection} - the packages to copy
+	 * @return {@link List} - the registered packages, which are read from their new folders
+	 *         in this repository; packages that could not be stored are left out
+	 */
+	public synchronized List<MovingCodePackage> addPackages(Collection<MovingCodePackage> mcps){
+		List<MovingCodePackage> storedPackages = new ArrayList<MovingCodePackage>();
+		for (MovingCodePackage mcp : mcps){
+			File targetDir = storePackage(mcp);
+			if (targetDir == null){
+				continue;
+			}
+			// register package from its new location
+			MovingCodePackage storedPackage = folderLoader.load(targetDir.toPath());
+			if (storedPackage == null){
+				LOGGER.error("Stored package cannot be read: " + targetDir.getAbsolutePath());
+				continue;
+			}
+			storedPackages.add(storedPackage);
+			packageFolders.put(storedPackage.getPackageId(), targetDir);
+		}
+		update(storedPackages, Collections.<PID>emptySet());
+		return storedPackages;
+	}
 
-		// finally: register package
-		register(mcp);
+	/**
+	 * Writes a package to a staging folder and moves it to a new package folder.
+	 * 
+	 * @param mcp {@link MovingCodePackage}
+	 * @return {@link File} - the new package folder, or <code>null</code> if the package could not be stored
+	 */
+	private File storePackage(final MovingCodePackage mcp){
+		String folderName = UUID.randomUUID().toString();
+		File stagingDir = new File(new File(directory, STAGING_FOLDER), folderName);
+		File targetDir = new File(directory, folderName);
+		stagingDir.mkdirs();
+		if (!mcp.dumpPackageFolder(stagingDir)){
+			LOGGER.error("Could not write package " + mcp.getPackageId() + " to " + stagingDir.getAbsolutePath());
+			FileUtils.deleteQuietly(stagingDir);
+			return null;
+		}
+		try {
+			if (blobStore != null){
+				// replace the files with links to shared blobs
+				blobStore.ingest(stagingDir);
+			}
+			Files.move(stagingDir.toPath(), targetDir.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			return targetDir;
+		} catch (IOException e) {
+			LOGGER.error("Could not store package in " + targetDir.getAbsolutePath(), e);
+			FileUtils.deleteQuietly(stagingDir);
+			return null;
+		}
 	}
 
 	/**
@@ -124,34 +242,87 @@ public class LocalVersionedFileRepository extends AbstractRepository {
 	 * @param pid
 	 * @return
 	 */
-	public boolean removePackage(PID pid){
-
-		// 1. unregister package, so it cannot be found any longer
-		// 2. remove directory
-		// 3. TODO: care for errors in case something goes wrong to make sure we are
-		//    not left in an undefined state 
+	public synchronized boolean removePackage(PID pid){
+		if (!packageFolders.containsKey(pid)){
+			return false;
+		}
+		// unregister package, so it cannot be found any longer
 		unregister(pid);
+		boolean removed = deletePackage(pid);
+		if (removed){
+			purgeBlobs();
+			folderStates.saveLater(snapshotFile);
+		}
+		return removed;
+	}
+
+	/**
+	 * Remove several packages from this repository.
+	 * 
+	 * @param pids
+	 * @return the number of removed packages
+	 */
+	public synchronized int removePackages(Collection<PID> pids){
+		List<PID> known = new ArrayList<PID>();
+		for (PID pid : pids){
+			if (packageFolders.containsKey(pid)){
+				known.add(pid);
+			}
+		}
+		// unregister packages at once, so they cannot be found any longer
+		update(Collections.<MovingCodePackage>emptySet(), known);
+		int removed = 0;
+		for (PID pid : known){
+			if (deletePackage(pid)){
+				removed++;
+			}
+		}
+		if (removed > 0){
+			purgeBlobs();
+			folderStates.saveLater(snapshotFile);
+		}
+		return removed;
+	}
+
+	/**
+	 * Deletes the folder of an unregistered package.
+	 */
+	private boolean deletePackage(PID pid){
+
+		// 1. remove directory
+		// 2. report errors; the next scan reconciles whatever is left of the folder
+		File packageDir = packageFolders.get(pid);
+		if (packageDir == null){
+			return false;
+		}
+		folderStates.remove(packageDir.toPath());
 
-		File packageDir = new File(packageFolders.get(pid));
 		try {
-			FileUtils.cleanDirectory(packageDir);
-			FileUtils.deleteDirectory(packageDir);
+			// linked files are write protected
+			ContentAddressedStore.delete(packageDir);
 		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			LOGGER.error("Could not delete package folder " + packageDir.getAbsolutePath() + ": " + e.getMessage());
 			return false;
 		}
 
-		// 4. remove folder from inventory
+		// 3. remove folder from inventory
 		packageFolders.remove(pid);
 
 		return true;
 	}
 
+	/**
+	 * Drops blobs that are no longer used by any package.
+	 */
+	private void purgeBlobs(){
+		if (blobStore != null){
+			blobStore.purge();
+		}
+	}
+
 
 	private final synchronized void reloadContent(){
 		
-		PackageInventory newInventory = new PackageInventory();
 
 		// obtain all immediate subfolders
 		Path repoRoot = FileSystems.getDefault().getPath(directory.getAbsolutePath());
@@ -159,60 +330,101 @@ public class LocalVersionedFileRepository extends AbstractRepository {
 
 		LOGGER.info("Scanning directory: " + directory.getAbsolutePath());
 
+		// forget about folders that have disappeared
+		folderStates.retainAll(packageFolders);
 
-		for (Path currentFolder : packageFolders) {
+		// load packages concurrently; only new or changed folders are parsed and validated
+		Map<Path, MovingCodePackage> packages = ParallelScanner.loadAll(new ArrayList<Path>(packageFolders), folderLoader);
+		
+		// announce new content scan
+		publish(packages);
+		folderStates.save(snapshotFile);
+	}
 
-			// attempt to read packageDescription XML
-			File packageDescriptionFile = new File(currentFolder.toFile(), Constants.PACKAGE_DESCRIPTION_XML);
-			// deal with empty inventory folders
-			if (!packageDescriptionFile.exists()){
-				// TODO: remove such invalid folders?
-				LOGGER.warn("Found empty inventory folder: " + currentFolder.toAbsolutePath());
-				continue; // skip this and immediately jump to the next iteration
-			}
+	/**
+	 * Replaces the inventory and the package folder lookup table.
+	 * 
+	 * @param packages {@link Map} - packages by folder
+	 */
+	private void publish(final Map<Path, MovingCodePackage> packages){
+		PackageInventory.Builder newInventory = new PackageInventory.Builder();
+		Map<PID, File> newPackageFolders = new HashMap<PID, File>();
+		for (Map.Entry<Path, MovingCodePackage> entry : packages.entrySet()){
+			newInventory.add(entry.getValue());
+			newPackageFolders.put(entry.getValue().getPackageId(), entry.getKey().toFile());
+		}
+		packageFolders = newPackageFolders;
+		updateInventory(newInventory.build());
+	}
 
-			PackageDescriptionDocument pd;
-			try {
-				pd = PackageDescriptionDocument.Factory.parse(packageDescriptionFile);
-			} catch (XmlException e) {
-				// silently skip this and immediately jump to the next iteration
-				continue;
-			} catch (IOException e) {
-				// silently skip this and immediately jump to the next iteration
-				continue;
-			}
+	/**
+	 * Returns the folder of a package.
+	 * 
+	 * @param pid {@link PID}
+	 * @return {@link File} - or <code>null</code> if there is no such package in this repository
+	 */
+	synchronized File getPackageFolder(final PID pid){
+		return packageFolders.get(pid);
+	}
 
-			// packageID = absolute path
-			LOGGER.info("Found package: " + currentFolder + "; using ID: " + RepositoryUtils.extractId(pd).toString());
+	/**
+	 * Publishes the packages from the inventory snapshot, if there is one.
+	 * 
+	 * @return <code>true</code> if packages have been restored
+	 */
+	private synchronized boolean restoreSnapshot(){
+		Map<Path, MovingCodePackage> packages = folderStates.restore(snapshotFile, folderRestorer);
+		if (packages.isEmpty()){
+			return false;
+		}
+		publish(packages);
+		LOGGER.info("Restored " + packages.size() + " packages from snapshot " + snapshotFile);
+		return true;
+	}
 
-			// attempt to access workspace root folder
-			String workspace = pd.getPackageDescription().getWorkspace().getWorkspaceRoot();
-			if (workspace.startsWith("./")){
-				workspace = workspace.substring(2); // remove leading "./" if it exists
-			}
+	/**
+	 * Parses and validates the package in a given folder.
+	 * 
+	 * @param currentFolder {@link Path}
+	 * @return {@link MovingCodePackage} - or <code>null</code> if the folder does not contain a valid package
+	 */
+	private static final MovingCodePackage loadPackage(Path currentFolder){
+		File packageDescriptionFile = new File(currentFolder.toFile(), Constants.PACKAGE_DESCRIPTION_XML);
 
-			File workspaceDir = new File(currentFolder.toFile(), workspace);
-			if (!workspaceDir.exists()){
-				continue; // skip this and immediately jump to the next iteration
-			}
+		PackageDescriptionDocument pd;
+		try {
+			pd = PackageDescriptionDocument.Factory.parse(packageDescriptionFile);
+		} catch (XmlException e) {
+			// silently skip this folder
+			return null;
+		} catch (IOException e) {
+			// silently skip this folder
+			return null;
+		}
 
+		// attempt to access workspace root folder
+		String workspace = pd.getPackageDescription().getWorkspace().getWorkspaceRoot();
+		if (workspace.startsWith("./")){
+			workspace = workspace.substring(2); // remove leading "./" if it exists
+		}
 
-			MovingCodePackage mcPackage = new MovingCodePackage(workspaceDir, pd);
+		File workspaceDir = new File(currentFolder.toFile(), workspace);
+		if (!workspaceDir.exists()){
+			return null;
+		}
 
-			// validate
-			// and add to package map
-			// and add current file to zipFiles map
-			if (mcPackage.isValid()) {
-				newInventory.add(mcPackage);
-				LOGGER.info("Found package: " + currentFolder + "; using ID: " + mcPackage.getPackageId().toString());
-			}
-			else {
-				LOGGER.error(currentFolder + " is an invalid package.");
-			}
+
+		MovingCodePackage mcPackage = new MovingCodePackage(workspaceDir, pd);
+
+		// validate
+		if (mcPackage.isValid()) {
+			LOGGER.info("Found package: " + currentFolder + "; using ID: " + mcPackage.getPackageId().toString());
+			return mcPackage;
+		}
+		else {
+			LOGGER.error(currentFolder + " is an invalid package.");
+			return null;
 		}
-		
-		// announce new content scan
-		updateInventory(newInventory);
 	}
 
 	/**
@@ -228,69 +440,32 @@ public class LocalVersionedFileRepository extends AbstractRepository {
 		try {
 			stream = Files.newDirectoryStream(path);
 			for (Path entry : stream) {
-				if (Files.isDirectory(entry)) {
+				// skip hidden folders, e.g. the staging folder
+				if (Files.isDirectory(entry) && !entry.getFileName().toString().startsWith(".")) {
 					dirs.add(entry);
 				}
 			}
 		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			LOGGER.error("Could not list subdirectories of " + path + ": " + e.getMessage());
 		}
 
 		return dirs;
 	}
 
-	/**
-	 * Generate a new directory; use a UUID for this task.
-	 * 
-	 * @return
-	 */
-	private final File makeNewDirectory(){
-		String dirName = directory.getAbsolutePath() + File.separator + UUID.randomUUID().toString();
-		File newDir = new File(dirName);
-		newDir.mkdirs();
-		return newDir;
-	}
-
 
 	/**
-	 * A thread that occasionally updates the repo's inventory
-	 * triggers a content reload if required.
+	 * A task that occasionally updates the repo's inventory.
+	 * Runs on the shared {@link RepositoryScheduler}.
 	 * 
 	 * @author Matthias Mueller
 	 *
 	 */
-	private final class UpdateInventoryThread extends Thread {
-
-		private static final long updateInterval = MovingCodeRepository.localPollingInterval;
-
+	private final class UpdateInventoryTask implements Runnable {
+		
 		@Override
 		public void run() {
-
-			while(true){ // spin forever
-
-				LOGGER.debug("Update thread started."
-						+"\nDirectory: " + directory.getAbsolutePath()
-						+ "\nUpdate interval: " + updateInterval + " milliseconds"
-						);
-
-				try {
-					sleep(updateInterval);
-				} catch (InterruptedException e1) {
-					LOGGER.debug("Interrupt received. Update thread stopped.");
-					this.interrupt();
-				}
-				
-				// trigger update routine
-				reloadContent();
-			}
-
+			LOGGER.debug("Updating inventory of directory: " + directory.getAbsolutePath());
+			reloadContent();
 		}
 	}
-
-	@Override
-	protected void finalize() throws Throwable {
-		updateThread.interrupt();
-		super.finalize();
-	}
 }
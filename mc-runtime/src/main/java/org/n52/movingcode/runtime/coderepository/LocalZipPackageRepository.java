@@ -16,12 +16,20 @@
 package org.n52.movingcode.runtime.coderepository;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.apache.commons.io.FileUtils;
 import org.n52.movingcode.runtime.codepackage.MovingCodePackage;
+import org.n52.movingcode.runtime.codepackage.PackageHeader;
 
 /**
  * This class implements an {@link MovingCodeRepository} for local zipped packages, stored
@@ -49,8 +57,14 @@ import org.n52.movingcode.runtime.codepackage.MovingCodePackage;
  * Code Package. Thus, if the parser encounters a zip file, it will attempt an
  * interpretation as a Code Package.
  * 
- * This Repo performs occasional checks for updated content.
- * (Interval for periodical checks is given by {@link MovingCodeRepository#localPollingInterval})
+ * By default, this Repo watches the directory tree for created, modified and deleted files
+ * and only re-reads the affected zip files. If the platform does not provide a
+ * {@link java.nio.file.WatchService} for the directory, or if the repo has been created
+ * with <code>watchDirectory = false</code>, it falls back to occasional checks for updated content.
+ * (Interval for periodical checks is given by {@link RepositoryConfig#getLocalPollingInterval()})
+ * Zip files that have not changed since the last check are not read again.
+ * If an inventory snapshot is available (see {@link RepositoryConfig#getSnapshotDirectory()}), the
+ * Repo starts with the packages from the snapshot and revalidates them in the background.
  * 
  * @author Matthias Mueller, TU Dresden
  *
@@ -61,58 +75,238 @@ public final class LocalZipPackageRepository extends AbstractRepository {
 
 	private final File directory;
 
-	private String fingerprint;
+	// packages by zip file
+	private final Map<Path, MovingCodePackage> packagesByFile = new HashMap<Path, MovingCodePackage>();
 
-	private Timer timerDaemon;
+	private String fingerprint;
+	
+	private DirectoryWatcher watcher;
+	
+	// per-file state; avoids re-reading unchanged zip files
+	private final SourceStateTable zipStates = new SourceStateTable();
+	
+	// inventory snapshot; null if snapshots are disabled
+	private final File snapshotFile;
+	
+	private static final PackageLoader packageLoader = new PackageLoader() {
+		@Override
+		public MovingCodePackage load(Path source) {
+			return loadPackage(source);
+		}
+	};
+	
+	private static final SourceStateTable.Restorer zipRestorer = new SourceStateTable.Restorer() {
+		@Override
+		public MovingCodePackage restore(Path source, PackageHeader header) {
+			return MovingCodePackage.createFromZipFile(source.toFile(), header);
+		}
+	};
+	
+	private final PackageLoader zipLoader = new PackageLoader() {
+		@Override
+		public MovingCodePackage load(Path zipFile) {
+			return zipStates.get(zipFile, zipFile, packageLoader);
+		}
+	};
 
 	/**
 	 * 
 	 * Constructor for file system based repositories. Scans all sub-directories of a given sourceDirectory
 	 * for zip-Files and attempts to interpret them as MovingCodePackages. Zipfiles that do not validate will
-	 * be ignored
+	 * be ignored. Watches the directory for changes.
 	 * 
 	 * @param sourceDirectory {@link File} - the directory to be scanned for Moving Code Packages.
 	 * 
 	 */
 	public LocalZipPackageRepository(final File sourceDirectory) {
+		this(sourceDirectory, true);
+	}
+	
+	/**
+	 * 
+	 * Constructor for file system based repositories. Scans all sub-directories of a given sourceDirectory
+	 * for zip-Files and attempts to interpret them as MovingCodePackages. Zipfiles that do not validate will
+	 * be ignored.
+	 * 
+	 * @param sourceDirectory {@link File} - the directory to be scanned for Moving Code Packages.
+	 * @param watchDirectory <code>true|false</code> - watch the directory for changes (<code>true</code>) or
+	 *        poll its fingerprint every {@link RepositoryConfig#getLocalPollingInterval()} (<code>false</code>)
+	 * 
+	 */
+	public LocalZipPackageRepository(final File sourceDirectory, final boolean watchDirectory) {
 		this.directory = sourceDirectory;
-		// compute directory fingerprint
-		fingerprint = RepositoryUtils.directoryFingerprint(directory);
-
-		// load packages from folder
-		reloadContent();
+		this.snapshotFile = InventorySnapshot.snapshotFile("zip", directory);
+		
+		// start watching before the initial scan so we do not miss any changes
+		if (watchDirectory){
+			watcher = createWatcher();
+		}
+		
+		if (watcher == null){
+			// compute directory fingerprint
+			fingerprint = RepositoryUtils.directoryFingerprint(directory);
+		}
 
-		// start timer daemon
-		timerDaemon = new Timer(true);
-		timerDaemon.scheduleAtFixedRate(new CheckFolder(), 0, MovingCodeRepository.localPollingInterval);
+		// serve the last known packages right away, if there is a snapshot
+		if (restoreSnapshot()){
+			// ... and revalidate them in the background
+			execute(new Runnable(){
+				@Override
+				public void run() {
+					reloadContent();
+					startUpdates();
+				}
+			});
+		} else {
+			// load packages from folder
+			reloadContent();
+			startUpdates();
+		}
+	}
+	
+	/**
+	 * Starts watching or polling the directory.
+	 */
+	private synchronized void startUpdates(){
+		if (isClosed()){
+			return;
+		}
+		if (watcher != null){
+			watcher.start();
+		} else {
+			long interval = RepositoryConfig.getLocalPollingInterval();
+			schedule(new CheckFolder(), interval, interval);
+		}
+	}
+	
+	/**
+	 * Publishes the packages from the inventory snapshot, if there is one.
+	 * 
+	 * @return <code>true</code> if packages have been restored
+	 */
+	private synchronized boolean restoreSnapshot(){
+		Map<Path, MovingCodePackage> packages = zipStates.restore(snapshotFile, zipRestorer);
+		if (packages.isEmpty()){
+			return false;
+		}
+		packagesByFile.putAll(packages);
+		publishInventory();
+		LOGGER.info("Restored " + packages.size() + " packages from snapshot " + snapshotFile);
+		return true;
+	}
+	
+	/**
+	 * Creates a watcher for the repository directory.
+	 * 
+	 * @return {@link DirectoryWatcher} - or <code>null</code> if the directory cannot be watched
+	 */
+	private DirectoryWatcher createWatcher(){
+		try {
+			return new DirectoryWatcher(directory.toPath(), new DirectoryWatcher.Listener() {
+				@Override
+				public void onChange(Set<Path> touchedPaths) {
+					reloadFiles(touchedPaths);
+				}
+				
+				@Override
+				public void onOverflow() {
+					reloadContent();
+				}
+			});
+		} catch (IOException e) {
+			LOGGER.warn("Cannot watch directory " + directory.getAbsolutePath() + ". Falling back to polling.", e);
+		} catch (UnsupportedOperationException e) {
+			LOGGER.warn("Cannot watch directory " + directory.getAbsolutePath() + ". Falling back to polling.", e);
+		}
+		return null;
 	}
 
 	private synchronized void reloadContent(){
-		PackageInventory newInventory = new PackageInventory();
+		packagesByFile.clear();
 		
 		// recursively obtain all zipfiles in sourceDirectory
 		Collection<File> zipFiles = scanForZipFiles(directory);
 
 		LOGGER.info("Scanning directory: " + directory.getAbsolutePath());
 
+		List<Path> zipPaths = new ArrayList<Path>(zipFiles.size());
 		for (File currentFile : zipFiles) {
 			LOGGER.debug("Found package: " + currentFile);
-
-			MovingCodePackage mcPackage = new MovingCodePackage(currentFile);
-
-			// validate
-			// and add to package map
-			// and add current file to zipFiles map
-			if (mcPackage.isValid()) {
-				newInventory.add(mcPackage);
-				LOGGER.debug("Registered package: " + currentFile + "; using ID: " + mcPackage.getPackageId().toString());	
-			} else {
-				LOGGER.error(currentFile.getAbsolutePath() + " is an invalid package.");
+			zipPaths.add(currentFile.toPath());
+		}
+		
+		// forget about files that have disappeared
+		zipStates.retainAll(zipPaths);
+		
+		// load and validate packages concurrently; unchanged files are reused
+		packagesByFile.putAll(ParallelScanner.loadAll(zipPaths, zipLoader));
+		
+		publishInventory();
+		zipStates.save(snapshotFile);
+	}
+	
+	/**
+	 * Re-reads the given paths. Zip files are (re-)loaded, paths that no longer
+	 * exist are removed from the inventory together with all packages below them.
+	 * 
+	 * @param touchedPaths
+	 */
+	private synchronized void reloadFiles(final Set<Path> touchedPaths){
+		List<Path> changedZips = new ArrayList<Path>();
+		for (Path path : touchedPaths){
+			if (Files.isRegularFile(path)){
+				if (isZipFile(path)){
+					LOGGER.debug("Package file has changed: " + path);
+					changedZips.add(path);
+					packagesByFile.remove(path);
+				}
+			} else if (!Files.exists(path)) {
+				// a single file or a whole directory was deleted
+				zipStates.removeBelow(path);
+				Iterator<Path> it = packagesByFile.keySet().iterator();
+				while (it.hasNext()){
+					if (it.next().startsWith(path)){
+						it.remove();
+					}
+				}
 			}
-
 		}
 		
-		updateInventory(newInventory);
+		packagesByFile.putAll(ParallelScanner.loadAll(changedZips, zipLoader));
+		
+		publishInventory();
+		// watcher batches may arrive in quick succession
+		zipStates.saveLater(snapshotFile);
+	}
+	
+	/**
+	 * Reads and validates a single zip file.
+	 * 
+	 * @param zipFile
+	 * @return {@link MovingCodePackage} - or <code>null</code> if the zip file is not a valid package
+	 */
+	private static MovingCodePackage loadPackage(final Path zipFile){
+		MovingCodePackage mcPackage = new MovingCodePackage(zipFile.toFile());
+
+		// validate
+		if (mcPackage.isValid()) {
+			LOGGER.debug("Registered package: " + zipFile + "; using ID: " + mcPackage.getPackageId().toString());
+			return mcPackage;
+		} else {
+			LOGGER.error(zipFile.toAbsolutePath() + " is an invalid package.");
+			return null;
+		}
+	}
+	
+	/**
+	 * Builds a new inventory from the package map and publishes it.
+	 */
+	private void publishInventory(){
+		PackageInventory.Builder newInventory = new PackageInventory.Builder();
+		for (MovingCodePackage mcPackage : packagesByFile.values()){
+			newInventory.add(mcPackage);
+		}
+		updateInventory(newInventory.build());
 	}
 
 	/**
@@ -124,6 +318,10 @@ public final class LocalZipPackageRepository extends AbstractRepository {
 	public static Collection<File> scanForZipFiles(File directory) {
 		return FileUtils.listFiles(directory, ZIP_EXTENSION, true);
 	}
+	
+	private static boolean isZipFile(final Path path){
+		return path.getFileName().toString().toLowerCase().endsWith("." + ZIP_EXTENSION[0]);
+	}
 
 	/**
 	 * A task which re-computes the directory's fingerprint and
@@ -132,7 +330,7 @@ public final class LocalZipPackageRepository extends AbstractRepository {
 	 * @author Matthias Mueller
 	 *
 	 */
-	private final class CheckFolder extends TimerTask {
+	private final class CheckFolder implements Runnable {
 
 		@Override
 		public void run() {
@@ -147,5 +345,13 @@ public final class LocalZipPackageRepository extends AbstractRepository {
 			}			
 		}
 	}
+	
+	@Override
+	public synchronized void close() {
+		super.close();
+		if (watcher != null){
+			watcher.close();
+		}
+	}
 
 }
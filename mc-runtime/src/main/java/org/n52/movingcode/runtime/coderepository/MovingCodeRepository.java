@@ -18,6 +18,7 @@ package org.n52.movingcode.runtime.coderepository;
 import java.io.File;
 import java.net.URL;
 
+import org.joda.time.DateTime;
 import org.n52.movingcode.runtime.codepackage.MovingCodePackage;
 import org.n52.movingcode.runtime.codepackage.PID;
 
@@ -29,10 +30,14 @@ import de.tudresden.gis.geoprocessing.movingcode.schema.PackageDescriptionDocume
 /**
  * A repository that contains MovingCode packages.
  * 
+ * Repositories may perform background work, such as polling their source for updates.
+ * This work runs on a shared scheduler (see {@link RepositoryScheduler}) and stops once
+ * the repository has been closed.
+ * 
  * @author Matthias Mueller, TU Dresden
  */
 
-public interface MovingCodeRepository {
+public interface MovingCodeRepository extends AutoCloseable {
 
 	final long localPollingInterval = 20 * 1000; // 20 sec
 	final long remotePollingInterval = 10 * 60 * 1000; // 10 min
@@ -68,6 +73,26 @@ public interface MovingCodeRepository {
 	 * @return
 	 */
 	public ImmutableSet<MovingCodePackage> getLatestPackages();
+	
+	/**
+	 * Returns the latest version of the package with the given name, i.e. the package
+	 * with this name that has the greatest (newest) timestamp.
+	 * 
+	 * @param packageName {@link String} - the name part of a {@link PID}
+	 * @return {@link MovingCodePackage} - or <code>null</code> if there is no package with this name
+	 */
+	public MovingCodePackage getLatestPackage(String packageName);
+	
+	/**
+	 * Returns the version of a package that was the latest one at a given date, i.e. the package
+	 * with the given name and the greatest timestamp that is not after <code>date</code>.
+	 * Can be used to re-run a function against the package version that was current at that time.
+	 * 
+	 * @param packageName {@link String} - the name part of a {@link PID}
+	 * @param date {@link DateTime} - the point in time
+	 * @return {@link MovingCodePackage} - or <code>null</code> if there was no such package at this date
+	 */
+	public MovingCodePackage getPackageAsOf(String packageName, DateTime date);
 
 	/**
 	 * Returns a package matching a given functionID.
@@ -125,6 +150,15 @@ public interface MovingCodeRepository {
 	 */
 	public void removeRepositoryChangeListener(RepositoryChangeListener l);
 
+	/**
+	 * Stops all background work of this repository, e.g. polling for updates,
+	 * and releases the resources it holds. The packages that have been loaded
+	 * remain accessible, but will no longer be updated. Closing a repository
+	 * more than once has no effect.
+	 */
+	@Override
+	public void close();
+
 
 	//###########################################################################//
 	/**
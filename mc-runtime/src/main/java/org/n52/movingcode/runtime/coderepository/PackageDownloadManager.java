@@ -0,0 +1,325 @@
+/**
+ * Copyright (C) 2012 52°North Initiative for Geospatial Open Source Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.n52.movingcode.runtime.coderepository;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.IOUtils;
+import org.n52.movingcode.runtime.codepackage.MovingCodePackage;
+import org.n52.movingcode.runtime.codepackage.PID;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Downloads zipped packages into a staging directory.
+ * 
+ * Downloads run concurrently on a shared pool; the number of concurrent downloads
+ * is given by {@link RepositoryConfig#getDownloadParallelism()}. Each package is
+ * written to a <code>.part</code> file first. If a transfer is interrupted, the
+ * next attempt resumes the partial file with an HTTP <code>Range</code> request.
+ * The request is conditional (<code>If-Range</code>) on the validator of the first
+ * response, which is kept next to the partial file: if the package has changed
+ * upstream in the meantime, or if the server does not support ranges, the whole
+ * file is sent again and the partial file is discarded. Partial files without a
+ * validator are not resumed.
+ * 
+ * Complete files are verified before they are handed out: the size must match the
+ * announced length, and the file must contain a valid package with the expected
+ * {@link PID}. Broken files are deleted.
+ * 
+ * Concurrent requests for the same package share a single download (see {@link SingleFlight}).
+ */
+final class PackageDownloadManager {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(PackageDownloadManager.class);
+
+	private static final String PART_SUFFIX = ".part";
+	private static final String VALIDATOR_SUFFIX = ".part.validator";
+	private static final String ZIP_SUFFIX = ".zip";
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	// idle download threads are released after this time
+	private static final long KEEP_ALIVE = 60; // seconds
+
+	private static ThreadPoolExecutor executor;
+
+	private final File stagingDirectory;
+
+	// downloads in progress
+	private final SingleFlight<PID, MovingCodePackage> inFlight = new SingleFlight<PID, MovingCodePackage>();
+
+	/**
+	 * @param stagingDirectory {@link File} - directory for partial and verified downloads
+	 */
+	PackageDownloadManager(final File stagingDirectory){
+		this.stagingDirectory = stagingDirectory;
+	}
+
+	/**
+	 * Downloads and verifies packages concurrently. Blocks until all downloads
+	 * have finished. Failed downloads are logged and left out of the result;
+	 * partial files are kept, so they can be resumed next time.
+	 * 
+	 * @param downloads {@link Map} - the packages to download and their zip URLs
+	 * @return {@link Map} - the verified packages, backed by zip files in the staging directory
+	 */
+	Map<PID, MovingCodePackage> downloadAll(final Map<PID, URL> downloads){
+		Map<PID, MovingCodePackage> packages = new LinkedHashMap<PID, MovingCodePackage>();
+		if (downloads.isEmpty()){
+			return packages;
+		}
+		stagingDirectory.mkdirs();
+
+		Map<PID, Future<MovingCodePackage>> futures = new LinkedHashMap<PID, Future<MovingCodePackage>>();
+		ThreadPoolExecutor pool = getExecutor();
+		for (final Map.Entry<PID, URL> entry : downloads.entrySet()){
+			futures.put(entry.getKey(), pool.submit(new Callable<MovingCodePackage>() {
+				@Override
+				public MovingCodePackage call() throws Exception {
+					return inFlight.execute(entry.getKey(), new Callable<MovingCodePackage>() {
+						@Override
+						public MovingCodePackage call() throws IOException {
+							return download(entry.getKey(), entry.getValue());
+						}
+					});
+				}
+			}));
+		}
+
+		for (Map.Entry<PID, Future<MovingCodePackage>> entry : futures.entrySet()){
+			try {
+				MovingCodePackage mcPackage = entry.getValue().get();
+				if (mcPackage != null){
+					packages.put(entry.getKey(), mcPackage);
+				}
+			} catch (ExecutionException e) {
+				// unwrap the exception of the shared download
+				Throwable cause = e.getCause() instanceof ExecutionException ? e.getCause().getCause() : e.getCause();
+				LOGGER.warn("Could not download package " + entry.getKey() + " from " + downloads.get(entry.getKey()), cause);
+			} catch (InterruptedException e) {
+				// stop waiting; running downloads will be resumed next time
+				for (Future<MovingCodePackage> future : futures.values()){
+					future.cancel(true);
+				}
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		return packages;
+	}
+
+	/**
+	 * Deletes all verified zip files from the staging directory, e.g. leftovers of
+	 * a previous run. Partial downloads are kept. Must not be called while downloads
+	 * are running.
+	 */
+	void cleanUp(){
+		File[] files = stagingDirectory.listFiles();
+		if (files == null){
+			return;
+		}
+		for (File file : files){
+			if (file.getName().endsWith(ZIP_SUFFIX)){
+				file.delete();
+			}
+		}
+	}
+
+	/**
+	 * Deletes the verified zip files of some downloads from the staging directory, e.g. after
+	 * they have been copied to the mirror. Partial downloads are kept.
+	 * 
+	 * @param urls - the zip URLs of the downloads
+	 */
+	void cleanUp(final Collection<URL> urls){
+		for (URL url : urls){
+			new File(stagingDirectory, RepositoryUtils.shortHash(url.toString()) + ZIP_SUFFIX).delete();
+		}
+	}
+
+	/**
+	 * Downloads and verifies a single package.
+	 * 
+	 * @param pid {@link PID} - the expected package ID
+	 * @param url {@link URL} - the zip URL
+	 * @return {@link MovingCodePackage} - or <code>null</code> if the download does not contain the expected package
+	 * @throws IOException - if the download fails
+	 */
+	private MovingCodePackage download(final PID pid, final URL url) throws IOException {
+		String key = RepositoryUtils.shortHash(url.toString());
+		Path partFile = new File(stagingDirectory, key + PART_SUFFIX).toPath();
+		Path validatorFile = new File(stagingDirectory, key + VALIDATOR_SUFFIX).toPath();
+		Path zipFile = new File(stagingDirectory, key + ZIP_SUFFIX).toPath();
+
+		if (!Files.exists(zipFile)){
+			transfer(url, partFile, validatorFile);
+			Files.move(partFile, zipFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			Files.deleteIfExists(validatorFile);
+		}
+
+		// verify
+		MovingCodePackage mcPackage = new MovingCodePackage(zipFile.toFile());
+		if (mcPackage.isValid() && pid.equals(mcPackage.getPackageId())){
+			LOGGER.debug("Downloaded package " + pid + " from " + url);
+			return mcPackage;
+		}
+		LOGGER.error("Download from " + url + " does not contain a valid package " + pid);
+		Files.deleteIfExists(zipFile);
+		return null;
+	}
+
+	/**
+	 * Downloads a URL to a file, resuming a partial download if possible.
+	 * 
+	 * @param url {@link URL}
+	 * @param partFile {@link Path}
+	 * @param validatorFile {@link Path} - holds the validator (ETag or Last-Modified) of the partial file
+	 * @throws IOException - if the download fails or is incomplete
+	 */
+	private static void transfer(final URL url, final Path partFile, final Path validatorFile) throws IOException {
+		long offset = Files.exists(partFile) ? Files.size(partFile) : 0;
+		String validator = Files.exists(validatorFile) ? new String(Files.readAllBytes(validatorFile), UTF8) : null;
+
+		URLConnection connection = url.openConnection();
+		boolean append = false;
+		if (connection instanceof HttpURLConnection){
+			HttpURLConnection http = (HttpURLConnection) connection;
+			if (offset > 0 && validator != null){
+				// the range is only sent if the package has not changed since the partial download
+				http.setRequestProperty("Range", "bytes=" + offset + "-");
+				http.setRequestProperty("If-Range", validator);
+			}
+			int status = http.getResponseCode();
+			if (status == HttpURLConnection.HTTP_PARTIAL && validator != null
+					&& String.valueOf(http.getHeaderField("Content-Range")).startsWith("bytes " + offset + "-")){
+				append = true;
+				LOGGER.debug("Resuming download of " + url + " at byte " + offset);
+			} else if (offset > 0 && (status == 416 || status == HttpURLConnection.HTTP_PARTIAL)){
+				// requested range not satisfiable (or not the requested one): start over
+				http.disconnect();
+				Files.deleteIfExists(partFile);
+				Files.deleteIfExists(validatorFile);
+				transfer(url, partFile, validatorFile);
+				return;
+			}
+			
+			if (!append){
+				// a new download; remember its validator, so that it can be resumed
+				String newValidator = validator(http);
+				if (newValidator != null){
+					Files.write(validatorFile, newValidator.getBytes(UTF8));
+				} else {
+					Files.deleteIfExists(validatorFile);
+				}
+			}
+		}
+
+		// expected size of the complete file; unknown if negative
+		long length = connection.getContentLengthLong();
+		long expected = length < 0 ? -1 : (append ? offset + length : length);
+
+		InputStream is = connection.getInputStream();
+		OutputStream os = null;
+		try {
+			if (append){
+				os = Files.newOutputStream(partFile, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+			} else {
+				os = Files.newOutputStream(partFile);
+			}
+			IOUtils.copyLarge(is, os);
+		} finally {
+			IOUtils.closeQuietly(is);
+			IOUtils.closeQuietly(os);
+		}
+
+		if (expected >= 0 && Files.size(partFile) != expected){
+			throw new IOException("Incomplete download of " + url + ": " + Files.size(partFile) + " of " + expected + " bytes");
+		}
+	}
+
+	/**
+	 * Returns a validator for <code>If-Range</code>: a strong ETag, or else the Last-Modified date.
+	 * 
+	 * @param http {@link HttpURLConnection}
+	 * @return {@link String} - or <code>null</code> if the response has no suitable validator
+	 */
+	private static String validator(final HttpURLConnection http){
+		String eTag = http.getHeaderField("ETag");
+		if (eTag != null && !eTag.startsWith("W/")){
+			return eTag;
+		}
+		return http.getHeaderField("Last-Modified");
+	}
+
+	/**
+	 * @return the shared download pool, resized to the configured parallelism
+	 */
+	private static synchronized ThreadPoolExecutor getExecutor(){
+		int parallelism = RepositoryConfig.getDownloadParallelism();
+		if (executor == null){
+			executor = new ThreadPoolExecutor(parallelism, parallelism, KEEP_ALIVE, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>(), new DownloadThreadFactory());
+			// do not keep threads while there is nothing to download
+			executor.allowCoreThreadTimeOut(true);
+		} else if (executor.getMaximumPoolSize() != parallelism){
+			if (parallelism > executor.getMaximumPoolSize()){
+				executor.setMaximumPoolSize(parallelism);
+				executor.setCorePoolSize(parallelism);
+			} else {
+				executor.setCorePoolSize(parallelism);
+				executor.setMaximumPoolSize(parallelism);
+			}
+		}
+		return executor;
+	}
+
+	/**
+	 * Creates named daemon threads.
+	 */
+	private static final class DownloadThreadFactory implements ThreadFactory {
+		private final AtomicInteger counter = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "PackageDownload-" + counter.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+}
@@ -16,79 +16,87 @@
 package org.n52.movingcode.runtime.coderepository;
 
 import java.util.Collection;
-import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.NavigableMap;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.TreeMap;
+
+import org.joda.time.DateTime;
 
 import org.n52.movingcode.runtime.codepackage.MovingCodePackage;
 import org.n52.movingcode.runtime.codepackage.PID;
 
-import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ImmutableCollection;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
-import com.google.common.collect.Multimap;
-import com.google.common.collect.Multimaps;
-import com.google.common.collect.Sets;
-import com.google.common.collect.Sets.SetView;
 
 /**
- * An inventory for code packages. Thread safe for concurrent updates
- * (blocking ADD and REMOVE methods).
+ * An immutable inventory for code packages. Thread safe.
+ * 
+ * Inventories are created with a {@link Builder}. Updates are performed by building
+ * a new inventory (e.g. from a copy of the current one) and publishing it as a whole,
+ * so readers never block and never see a partially updated inventory. All views
+ * returned by an inventory are computed once, when the inventory is built.
+ * 
+ * The versions of each package name are kept in a sorted index (timestamp -> package),
+ * so the latest version of a package is found in constant time, and the latest version
+ * as of a given date in logarithmic time. A {@link Builder} that starts from an existing
+ * inventory only copies the version index of the package names it touches, but building
+ * an inventory is still linear in its size. Bulk changes should therefore be made through a
+ * single builder.
  * 
  * @author Matthias Mueller, TU Dresden
  *
  */
-public class PackageInventory {
+public final class PackageInventory {
 	
 	// lookup table packageId -> package 
-	private final Map<PID, MovingCodePackage> packagesByIdMap;
+	private final ImmutableMap<PID, MovingCodePackage> packagesByIdMap;
 	
-	// lookup table packageName -> package 
-	private final Multimap<String, MovingCodePackage> packagesByNameMap;
+	// version index packageName -> (timestamp -> package); the sorted maps are never modified
+	private final ImmutableMap<String, NavigableMap<DateTime, MovingCodePackage>> versionsByName;
 	
-	// lookup table functionId -> packageID 
-	private final Multimap<String, MovingCodePackage> packagesByFunctionIdMap;
+	// lookup table packageName -> latest package 
+	private final ImmutableMap<String, MovingCodePackage> latestByName;
 	
-	/**
-	 * No argument constructor.
-	 */
-	PackageInventory(){
-		packagesByIdMap = new ConcurrentHashMap<PID, MovingCodePackage>();
-		
-		// multimap for packageName -> packageId LUT
-		Multimap<String, MovingCodePackage> delegate1 = ArrayListMultimap.create();
-		packagesByNameMap = Multimaps.synchronizedMultimap(delegate1);
-		
-		// multimap for functionId -> packageId LUT
-		Multimap<String, MovingCodePackage> delegate2 = ArrayListMultimap.create();
-		packagesByFunctionIdMap = Multimaps.synchronizedMultimap(delegate2);
-	}
+	// lookup table functionId -> package 
+	private final ImmutableListMultimap<String, MovingCodePackage> packagesByFunctionIdMap;
 	
-	/**
-	 * Adds a package to the inventory
-	 * 
-	 * @param mcPackage
-	 */
-	void add(final MovingCodePackage mcPackage) {
-		this.packagesByIdMap.put(mcPackage.getPackageId(), mcPackage);
-		this.packagesByNameMap.put(mcPackage.getPackageId().name, mcPackage);
-		this.packagesByFunctionIdMap.put(mcPackage.getFunctionIdentifier(), mcPackage);
-	}
+	// latest version for each package name
+	private final ImmutableSet<MovingCodePackage> latestPackages;
+	
+	private final int hashCode;
 	
 	/**
-	 * Removes the package with the given packageID from the inventory.
-	 * 
-	 * @param packageId
+	 * Private constructor; use {@link Builder}.
 	 */
-	void remove(final PID packageId) {
-		MovingCodePackage mcp = packagesByIdMap.get(packageId);
-		if (mcp==null){
-			return;
+	private PackageInventory(final Collection<MovingCodePackage> packages, final Map<String, NavigableMap<DateTime, MovingCodePackage>> versions){
+		ImmutableMap.Builder<PID, MovingCodePackage> byId = ImmutableMap.builder();
+		ImmutableListMultimap.Builder<String, MovingCodePackage> byFunctionId = ImmutableListMultimap.builder();
+		int hash = 17;
+		for (MovingCodePackage mcPackage : packages){
+			byId.put(mcPackage.getPackageId(), mcPackage);
+			byFunctionId.put(mcPackage.getFunctionIdentifier(), mcPackage);
+			// order independent, so equal inventories have equal hash codes
+			hash += mcPackage.getPackageId().hashCode();
+		}
+		packagesByIdMap = byId.build();
+		packagesByFunctionIdMap = byFunctionId.build();
+		hashCode = hash;
+		
+		versionsByName = ImmutableMap.copyOf(versions);
+		ImmutableMap.Builder<String, MovingCodePackage> latest = ImmutableMap.builder();
+		for (Map.Entry<String, NavigableMap<DateTime, MovingCodePackage>> entry : versionsByName.entrySet()){
+			// latest (= greatest) version of each package
+			latest.put(entry.getKey(), entry.getValue().lastEntry().getValue());
 		}
-		packagesByFunctionIdMap.remove(mcp.getFunctionIdentifier(), packageId);
-		packagesByNameMap.remove(mcp.getPackageId().name, mcp.getPackageId());
-		packagesByIdMap.remove(packageId);
+		latestByName = latest.build();
+		latestPackages = ImmutableSet.copyOf(latestByName.values());
 	}
 	
 	/**
@@ -113,26 +121,29 @@ public class PackageInventory {
 	
 	/**
 	 * Returns an immutable view of the registered function IDs.
-	 * Subsequent updates to the inventory are not forwarded to this view.
 	 * 
 	 * @return
 	 */
 	ImmutableSet<String> getFunctionIDs(){
-		synchronized (packagesByFunctionIdMap){
-			return ImmutableSet.copyOf(packagesByFunctionIdMap.keys());
-		}
+		return packagesByFunctionIdMap.keySet();
 	}
 	
 	/**
 	 * Returns an immutable view of the registered packageIDs.
-	 * Subsequent updates to the inventory are not forwarded to this view.
 	 * 
 	 * @return
 	 */
 	ImmutableSet<PID> getPackageIDs(){
-		synchronized (packagesByIdMap){
-			return ImmutableSet.copyOf(packagesByIdMap.keySet());
-		}
+		return packagesByIdMap.keySet();
+	}
+	
+	/**
+	 * Returns an immutable view of the registered packages.
+	 * 
+	 * @return
+	 */
+	ImmutableCollection<MovingCodePackage> getPackages(){
+		return packagesByIdMap.values();
 	}
 	
 	/**
@@ -142,10 +153,7 @@ public class PackageInventory {
 	 * @return
 	 */
 	MovingCodePackage[] getPackagesByFunctionId(String functionId){
-		Collection<MovingCodePackage> retval = packagesByFunctionIdMap.asMap().get(functionId);
-		if (retval == null){
-			return new MovingCodePackage[0];
-		}
+		ImmutableList<MovingCodePackage> retval = packagesByFunctionIdMap.get(functionId);
 		return retval.toArray(new MovingCodePackage[retval.size()]);
 	}
 	
@@ -160,26 +168,39 @@ public class PackageInventory {
 	}
 	
 	/**
-	 * Utility method that returns a current copy of 
+	 * Returns the latest version of a package.
 	 * 
-	 * TODO: Should this be a copy or a view in future releases?
+	 * @param packageName {@link String} - the name part of a {@link PID}
+	 * @return {@link MovingCodePackage} - or <code>null</code> if there is no package with this name
+	 */
+	MovingCodePackage getLatestPackage(final String packageName){
+		return latestByName.get(packageName);
+	}
+	
+	/**
+	 * Returns the latest version of a package that existed at a given date,
+	 * i.e. the package with the greatest timestamp that is not after <code>date</code>.
 	 * 
-	 * @param inventory
+	 * @param packageName {@link String} - the name part of a {@link PID}
+	 * @param date {@link DateTime}
+	 * @return {@link MovingCodePackage} - or <code>null</code> if there is no such package
 	 */
-	final ImmutableSet<MovingCodePackage> latestPackageVersions(){
-		
-		Set<MovingCodePackage> retval = new HashSet<MovingCodePackage>();
-		
-		// synchronized access to the inventory
-		// to prevent errors due to concurrent content updates
-		synchronized (packagesByIdMap){
-			for (Collection<MovingCodePackage> namedPages : packagesByNameMap.asMap().values()){
-				// add latest (= greatest) package to result set
-				retval.add(Collections.max(namedPages));
-			}
+	MovingCodePackage getPackageAsOf(final String packageName, final DateTime date){
+		NavigableMap<DateTime, MovingCodePackage> versions = versionsByName.get(packageName);
+		if (versions == null){
+			return null;
 		}
-		
-		return ImmutableSet.copyOf(retval);
+		Map.Entry<DateTime, MovingCodePackage> entry = versions.floorEntry(date);
+		return entry == null ? null : entry.getValue();
+	}
+	
+	/**
+	 * Returns the latest version of each package in this inventory.
+	 * 
+	 * @return
+	 */
+	final ImmutableSet<MovingCodePackage> latestPackageVersions(){
+		return latestPackages;
 	}
 	
 	/**
@@ -188,19 +209,15 @@ public class PackageInventory {
 	 */
 	@Override
 	public boolean equals(Object obj) {
+		if (this == obj){
+			return true;
+		}
 		if (!(obj instanceof PackageInventory)){
 			return false;
 		}
 		PackageInventory ref = (PackageInventory) obj;
 		// comparison of the PIDs is sufficient
-		SetView<PID> symmDiff;
-		// synchronized access to the underlying maps
-		synchronized (packagesByIdMap){
-			synchronized (ref.packagesByIdMap) {
-				symmDiff = Sets.symmetricDifference(ref.packagesByIdMap.keySet(), this.packagesByIdMap.keySet());
-			}
-		}
-		return symmDiff.isEmpty();
+		return hashCode == ref.hashCode && packagesByIdMap.keySet().equals(ref.packagesByIdMap.keySet());
 	}
 	
 	/**
@@ -210,12 +227,105 @@ public class PackageInventory {
 	 */
 	@Override
 	public int hashCode() {
-		int hash = 17;
-		synchronized (packagesByIdMap){
-			for (PID key : packagesByIdMap.keySet()){
-				hash = hash * 31 + key.hashCode();
+		return hashCode;
+	}
+	
+	/**
+	 * Builder for {@link PackageInventory}. Not thread safe.
+	 * 
+	 * @author Matthias Mueller, TU Dresden
+	 *
+	 */
+	static final class Builder {
+		
+		private final Map<PID, MovingCodePackage> packages = new LinkedHashMap<PID, MovingCodePackage>();
+		
+		// version index; maps that are shared with an inventory are copied before they are modified
+		private final Map<String, NavigableMap<DateTime, MovingCodePackage>> versions = new HashMap<String, NavigableMap<DateTime, MovingCodePackage>>();
+		
+		// names whose version maps are owned by this builder
+		private final Set<String> ownedVersions = new HashSet<String>();
+		
+		/**
+		 * Creates a builder for an empty inventory.
+		 */
+		Builder(){
+			// nothing to do
+		}
+		
+		/**
+		 * Creates a builder that starts with the content of an existing inventory.
+		 * 
+		 * @param inventory
+		 */
+		Builder(final PackageInventory inventory){
+			packages.putAll(inventory.packagesByIdMap);
+			versions.putAll(inventory.versionsByName);
+		}
+		
+		/**
+		 * Adds a package. Replaces any package with the same packageID.
+		 * 
+		 * @param mcPackage
+		 * @return
+		 */
+		Builder add(final MovingCodePackage mcPackage){
+			PID pid = mcPackage.getPackageId();
+			packages.put(pid, mcPackage);
+			ownedVersions(pid.name).put(pid.timestamp, mcPackage);
+			return this;
+		}
+		
+		/**
+		 * Adds a number of packages. Replaces any packages with the same packageIDs.
+		 * 
+		 * @param mcPackages
+		 * @return
+		 */
+		Builder addAll(final Collection<MovingCodePackage> mcPackages){
+			for (MovingCodePackage mcPackage : mcPackages){
+				add(mcPackage);
+			}
+			return this;
+		}
+		
+		/**
+		 * Removes the package with the given packageID.
+		 * 
+		 * @param packageId
+		 * @return
+		 */
+		Builder remove(final PID packageId){
+			if (packages.remove(packageId) == null){
+				return this;
+			}
+			NavigableMap<DateTime, MovingCodePackage> named = ownedVersions(packageId.name);
+			named.remove(packageId.timestamp);
+			if (named.isEmpty()){
+				versions.remove(packageId.name);
+				ownedVersions.remove(packageId.name);
+			}
+			return this;
+		}
+		
+		PackageInventory build(){
+			PackageInventory inventory = new PackageInventory(packages.values(), versions);
+			// the version maps are shared with the new inventory from now on
+			ownedVersions.clear();
+			return inventory;
+		}
+		
+		/**
+		 * Returns the version map for a package name that may be modified by this builder.
+		 */
+		private NavigableMap<DateTime, MovingCodePackage> ownedVersions(final String packageName){
+			NavigableMap<DateTime, MovingCodePackage> named = versions.get(packageName);
+			if (!ownedVersions.contains(packageName)){
+				named = named == null ? new TreeMap<DateTime, MovingCodePackage>() : new TreeMap<DateTime, MovingCodePackage>(named);
+				versions.put(packageName, named);
+				ownedVersions.add(packageName);
 			}
+			return named;
 		}
-		return hash;
 	}
 }
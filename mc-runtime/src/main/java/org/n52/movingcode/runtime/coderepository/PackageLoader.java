@@ -0,0 +1,37 @@
+/**
+ * Copyright (C) 2012 52°North Initiative for Geospatial Open Source Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.n52.movingcode.runtime.coderepository;
+
+import java.nio.file.Path;
+
+import org.n52.movingcode.runtime.codepackage.MovingCodePackage;
+
+/**
+ * Loads a {@link MovingCodePackage} from a source in a local repository,
+ * e.g. a zip file or a package folder.
+ * 
+ * Implementations are called concurrently during parallel scans
+ * and must therefore be thread safe.
+ */
+interface PackageLoader {
+
+	/**
+	 * @param source {@link Path}
+	 * @return {@link MovingCodePackage} - a valid package, or <code>null</code> if the
+	 *         source does not contain a valid package
+	 */
+	MovingCodePackage load(Path source);
+}
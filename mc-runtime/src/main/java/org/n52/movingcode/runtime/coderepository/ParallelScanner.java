@@ -0,0 +1,135 @@
+/**
+ * Copyright (C) 2012 52°North Initiative for Geospatial Open Source Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.n52.movingcode.runtime.coderepository;
+
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.n52.movingcode.runtime.codepackage.MovingCodePackage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Loads the packages of a repository scan concurrently.
+ * 
+ * Reading zip files, parsing package descriptions and validating them is independent
+ * between packages, so the sources are split among the workers of a shared {@link ForkJoinPool}.
+ * The results are merged in the order of the sources, so the caller can build its
+ * inventory sequentially.
+ * 
+ * The number of workers is given by {@link RepositoryConfig#getScanParallelism()}.
+ * With a parallelism of <code>1</code> the sources are loaded in the calling thread.
+ */
+final class ParallelScanner {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(ParallelScanner.class);
+
+	private static ForkJoinPool pool;
+
+	private ParallelScanner(){
+		// static access only
+	}
+
+	/**
+	 * Loads all sources with the given loader.
+	 * 
+	 * @param sources {@link List} of {@link Path} - the sources to load
+	 * @param loader {@link PackageLoader} - a thread safe loader
+	 * @return {@link Map} - valid packages by source, in the order of <code>sources</code>
+	 */
+	static Map<Path, MovingCodePackage> loadAll(final List<Path> sources, final PackageLoader loader){
+		MovingCodePackage[] results = new MovingCodePackage[sources.size()];
+		
+		int parallelism = RepositoryConfig.getScanParallelism();
+		if (parallelism <= 1 || sources.size() <= 1){
+			for (int i = 0; i < results.length; i++){
+				results[i] = load(sources.get(i), loader);
+			}
+		} else {
+			getPool(parallelism).invoke(new LoadTask(sources, loader, results, 0, results.length));
+		}
+		
+		Map<Path, MovingCodePackage> packages = new LinkedHashMap<Path, MovingCodePackage>();
+		for (int i = 0; i < results.length; i++){
+			if (results[i] != null){
+				packages.put(sources.get(i), results[i]);
+			}
+		}
+		return packages;
+	}
+
+	/**
+	 * Loads a single source. A failing source must not break the whole scan.
+	 */
+	private static MovingCodePackage load(final Path source, final PackageLoader loader){
+		try {
+			return loader.load(source);
+		} catch (RuntimeException e){
+			LOGGER.error("Could not load package from " + source, e);
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the shared pool; the pool is replaced if the configured parallelism has changed.
+	 */
+	private static synchronized ForkJoinPool getPool(final int parallelism){
+		if (pool == null || pool.getParallelism() != parallelism){
+			if (pool != null){
+				pool.shutdown();
+			}
+			pool = new ForkJoinPool(parallelism);
+		}
+		return pool;
+	}
+
+	/**
+	 * Loads a range of sources; splits itself until a single source remains.
+	 */
+	private static final class LoadTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final List<Path> sources;
+		private final PackageLoader loader;
+		private final MovingCodePackage[] results;
+		private final int from;
+		private final int to;
+
+		LoadTask(List<Path> sources, PackageLoader loader, MovingCodePackage[] results, int from, int to){
+			this.sources = sources;
+			this.loader = loader;
+			this.results = results;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from == 1){
+				results[from] = load(sources.get(from), loader);
+			} else {
+				int middle = (from + to) >>> 1;
+				invokeAll(new LoadTask(sources, loader, results, from, middle),
+						new LoadTask(sources, loader, results, middle, to));
+			}
+		}
+	}
+}
@@ -17,19 +17,39 @@ package org.n52.movingcode.runtime.coderepository;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.HttpURLConnection;
 import java.net.URL;
+import java.net.URLConnection;
+import java.util.ArrayList;
 import java.util.Date;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
+import org.apache.commons.io.IOUtils;
 import org.n52.movingcode.runtime.codepackage.MovingCodePackage;
-import org.n52.movingcode.runtime.feed.CodePackageFeed;
+import org.n52.movingcode.runtime.codepackage.PID;
+import org.n52.movingcode.runtime.feed.StreamingFeedParser;
+import org.n52.movingcode.runtime.feed.StreamingFeedParser.FeedEntryInfo;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 
 /**
  * This class implements an {@link MovingCodeRepository} for Remote Geoprocessing Feeds.
  * 
  * Performs occasional checks for updated content.
- * (Interval for periodical checks is given by {@link MovingCodeRepository#remotePollingInterval})
+ * (Interval for periodical checks is given by {@link RepositoryConfig#getRemotePollingInterval()})
+ * For HTTP feeds, these checks are conditional requests (<code>If-None-Match</code>, <code>If-Modified-Since</code>),
+ * so an unchanged feed is not downloaded again. A changed feed is downloaded and parsed once;
+ * it is streamed through a {@link StreamingFeedParser}, so no document model of the feed is built.
+ * Only packages of new or updated feed entries (according to the entries' <code>updated</code>
+ * time stamps) are fetched and validated; the packages of all other entries are kept.
+ * 
+ * A package that does not validate is remembered until its entry is updated. A package that
+ * cannot be fetched (or read) is retried with the next update check, even if the feed has not
+ * changed; meanwhile the entry keeps its previous package, if any.
  * 
  * @author Matthias Mueller, TU Dresden
  * 
@@ -39,13 +59,27 @@ public final class RemoteFeedRepository extends AbstractRepository {
 	// Atom Feed URL
 	private final URL atomFeedURL;
 
-	// Last known update of the feed
-	private Date lastFeedUpdate;
+	// Last known update of the feed; null if the feed has not been read yet
+	private volatile Date lastFeedUpdate;
+
+	// the last downloaded feed; re-used to retry failed package fetches
+	private FeedContent lastFeed;
 
-	// Timer for content updates
-	private final Timer timerDaemon;
+	// are there feed entries whose packages could not be fetched?
+	private volatile boolean fetchesPending = false;
 
+	// validators of the last downloaded feed; used for conditional requests
+	private String eTag;
+	private long lastModified;
 
+	// last known state of the feed entries, by entry ID; guarded by this
+	private final Map<String, EntryState> entries = new HashMap<String, EntryState>();
+
+	// zip URLs of the packages in the inventory
+	private volatile ImmutableMap<PID, URL> packageURLs = ImmutableMap.of();
+
+	// packages of all feed entries; null if the package of an entry is unknown
+	private volatile ImmutableSet<PID> listedPackageIDs;
 
 	/**
 	 * 
@@ -60,57 +94,202 @@ public final class RemoteFeedRepository extends AbstractRepository {
 	public RemoteFeedRepository(final URL atomFeedURL) {
 		this.atomFeedURL = atomFeedURL;
 		reloadContent();
-		// start timer daemon
-		timerDaemon = new Timer(true);
-		timerDaemon.scheduleAtFixedRate(new CheckFeed(), 0, MovingCodeRepository.remotePollingInterval);
+		// schedule update checks on the shared scheduler
+		long interval = RepositoryConfig.getRemotePollingInterval();
+		schedule(new CheckFeed(), interval, interval);
 	}
 
 	private synchronized void reloadContent(){
-		
-		PackageInventory newInventory = new PackageInventory();
-		
-		InputStream stream = null;
+		LOGGER.debug("Create RemoteFeedRepository from " + atomFeedURL);
 		try {
-			LOGGER.debug("Create RemoteFeedRepository from " + atomFeedURL);
-			// TODO: Do it with Apache HTTPClient
-			stream = atomFeedURL.openStream();
-			CodePackageFeed feed = new CodePackageFeed(stream);
-			lastFeedUpdate = feed.lastUpdated();
+			loadContent(fetchFeed(false));
+		}
+		catch (IOException e) {
+			LOGGER.error("Could read feed from URL: " + atomFeedURL);
+			updateInventory(new PackageInventory.Builder().build());
+		}
+	}
 
-			for (String currentEntryID : feed.getEntryIDs()) {
+	/**
+	 * Builds a new inventory from the entries of a feed and publishes it.
+	 * Packages are only fetched for entries that are new or have been updated;
+	 * unchanged entries keep their package.
+	 * 
+	 * @param feed {@link FeedContent}
+	 */
+	private void loadContent(final FeedContent feed){
+		PackageInventory.Builder newInventory = new PackageInventory.Builder();
+		Map<PID, URL> newPackageURLs = new HashMap<PID, URL>();
+		Map<String, EntryState> newEntries = new HashMap<String, EntryState>();
+		int fetched = 0;
+		int failed = 0;
+		boolean complete = true;
+		
+		for (FeedEntryInfo entry : feed.entries) {
+			String currentEntryID = entry.getId();
+			Date updated = entry.getUpdated();
+			EntryState state = entries.get(currentEntryID);
+			
+			if (state == null || state.failed || updated == null || !updated.equals(state.updated)){
 				// create new moving code package from the entry
-				MovingCodePackage mcp = feed.getPackage(currentEntryID);
 				LOGGER.debug("Loading package for feed entry " + currentEntryID);
+				URL zipURL = entry.getPackageURL();
+				try {
+					state = new EntryState(updated, zipURL, loadPackage(zipURL, currentEntryID), false);
+				} catch (IOException e) {
+					LOGGER.warn("Could not fetch package of feed entry " + currentEntryID + ", will retry: " + e.getMessage());
+					// keep the previous package, if any, until the fetch succeeds
+					state = state == null ? new EntryState(updated, zipURL, null, true)
+							: new EntryState(state.updated, state.zipURL, state.mcPackage, true);
+					failed++;
+				}
+				fetched++;
+			}
+			
+			if (state.failed && state.mcPackage == null){
+				complete = false;
+			}
+			newEntries.put(currentEntryID, state);
+			if (state.mcPackage != null){
+				newInventory.add(state.mcPackage);
+				newPackageURLs.put(state.mcPackage.getPackageId(), state.zipURL);
+			}
+		}
+		
+		entries.clear();
+		entries.putAll(newEntries);
+		packageURLs = ImmutableMap.copyOf(newPackageURLs);
+		listedPackageIDs = complete ? ImmutableSet.copyOf(newPackageURLs.keySet()) : null;
+		lastFeed = feed;
+		lastFeedUpdate = feed.updated;
+		fetchesPending = failed > 0;
+		LOGGER.debug("Fetched " + fetched + " of " + newEntries.size() + " feed entries from " + atomFeedURL
+				+ (failed > 0 ? ", " + failed + " failed" : ""));
+		
+		updateInventory(newInventory.build());
+	}
+	
+	/**
+	 * Fetches and validates the package of a feed entry.
+	 * 
+	 * @param zipURL {@link URL} - the entry's package URL; may be <code>null</code>
+	 * @param entryID {@link String}
+	 * @return {@link MovingCodePackage} - or <code>null</code> if the entry does not provide a valid package
+	 * @throws IOException - if the package cannot be fetched or its description cannot be read
+	 */
+	private MovingCodePackage loadPackage(final URL zipURL, final String entryID) throws IOException {
+		if (zipURL == null){
+			LOGGER.debug("Info: " + atomFeedURL.toString() + " contains an entry without package: " + entryID);
+			return null;
+		}
+		MovingCodePackage mcp = new MovingCodePackage(zipURL);
+		
+		// validate
+		if (mcp.isValid()) {
+			return mcp;
+		}
+		else if (mcp.getPackageId() == null) {
+			// a failed download cannot be told apart from a broken archive, so it is retried
+			throw new IOException("No package description found at " + zipURL);
+		}
+		else {
+			LOGGER.debug("Info: " + atomFeedURL.toString() + " contains an invalid package: "
+					+ mcp.getPackageId().toString());
+			return null;
+		}
+	}
 
-				// validate
-				// and add to package map
-				// and add current file to zipFiles map
-				if (mcp.isValid()) {
-					newInventory.add(mcp);
+	/**
+	 * Downloads and parses the feed.
+	 * 
+	 * @param conditional - if <code>true</code>, HTTP feeds are only downloaded if they have changed
+	 *        since the last download
+	 * @return {@link FeedContent} - or <code>null</code> if the feed has not been modified
+	 * @throws IOException - if the feed cannot be read
+	 */
+	private FeedContent fetchFeed(final boolean conditional) throws IOException {
+		// TODO: Do it with Apache HTTPClient
+		URLConnection connection = atomFeedURL.openConnection();
+		if (connection instanceof HttpURLConnection){
+			HttpURLConnection http = (HttpURLConnection) connection;
+			if (conditional){
+				if (eTag != null){
+					http.setRequestProperty("If-None-Match", eTag);
 				}
-				else {
-					LOGGER.debug("Info: " + atomFeedURL.toString() + " contains an invalid package: "
-							+ mcp.getPackageId().toString());
+				if (lastModified > 0){
+					http.setIfModifiedSince(lastModified);
 				}
 			}
-
-			stream.close();
+			if (http.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED){
+				http.disconnect();
+				return null;
+			}
 		}
-		catch (IOException e) {
-			LOGGER.error("Could read feed from URL: " + atomFeedURL);
+
+		final FeedContent content = new FeedContent();
+		InputStream stream = connection.getInputStream();
+		try {
+			content.updated = StreamingFeedParser.parse(stream, new StreamingFeedParser.EntryHandler() {
+				@Override
+				public void onEntry(FeedEntryInfo entry) {
+					if (entry.getId() != null){
+						content.entries.add(entry);
+					}
+				}
+			});
+		} finally {
+			IOUtils.closeQuietly(stream);
 		}
-		finally {
-			if (stream != null)
-				try {
-					stream.close();
+		
+		// the updated element is mandatory in Atom, but not every feed has it;
+		// use the latest entry instead, or the time of this download
+		if (content.updated == null){
+			for (FeedEntryInfo entry : content.entries){
+				Date updated = entry.getUpdated();
+				if (updated != null && (content.updated == null || updated.after(content.updated))){
+					content.updated = updated;
 				}
-			catch (IOException e) {
-				LOGGER.error("Could not close GeoprocessingFeed stream.", e);
-				stream = null;
 			}
+			if (content.updated == null){
+				content.updated = new Date();
+			}
+			LOGGER.debug("Feed has no updated time stamp, using " + content.updated + ": " + atomFeedURL);
 		}
+
+		eTag = connection.getHeaderField("ETag");
+		lastModified = connection.getLastModified();
+		return content;
+	}
+
+	/**
+	 * The content of a feed that is required to build the inventory.
+	 */
+	private static final class FeedContent {
+		// the feed's updated time stamp; never null once the feed has been read
+		Date updated;
+		// the entries in document order
+		final List<FeedEntryInfo> entries = new ArrayList<FeedEntryInfo>();
+	}
+
+	/**
+	 * Last known state of a feed entry.
+	 */
+	private static final class EntryState {
+		// the entry's updated time stamp
+		final Date updated;
+		// the entry's package URL
+		final URL zipURL;
+		// null if the entry does not provide a valid package
+		final MovingCodePackage mcPackage;
+		// the package could not be fetched; retry with the next update check
+		final boolean failed;
 		
-		updateInventory(newInventory);
+		EntryState(Date updated, URL zipURL, MovingCodePackage mcPackage, boolean failed){
+			this.updated = updated;
+			this.zipURL = zipURL;
+			this.mcPackage = mcPackage;
+			this.failed = failed;
+		}
 	}
 
 	/**
@@ -120,56 +299,79 @@ public final class RemoteFeedRepository extends AbstractRepository {
 	 * @author Matthias Mueller
 	 * 
 	 */
-	private final class CheckFeed extends TimerTask {
+	private final class CheckFeed implements Runnable {
 
 		@Override
 		public void run() {
-			InputStream stream = null;
-			
-			try {
-				// TODO: Do it with Apache HTTPClient
-				stream = atomFeedURL.openStream();
-				CodePackageFeed feed = new CodePackageFeed(stream);
-
-				// if feed's update time is newer than last known update time
-				// re-read the feed and update contents accordingly
-				if (feed.lastUpdated().after(lastFeedUpdate)){
-					LOGGER.info("Repository content has  changed. Running update ...");
-					
-					// do a re-load
-					reloadContent();
+			synchronized (RemoteFeedRepository.this){
+				try {
+					FeedContent feed = fetchFeed(lastFeed != null);
 					
-				}
-				
-				lastFeedUpdate = feed.lastUpdated();
-				stream.close();
-				
-			}
-			catch (IOException e) {
-				LOGGER.error("Could read feed from URL: " + atomFeedURL);
-			}
-			finally {
-				if (stream != null)
-					try {
-						stream.close();
+					// if feed's update time is newer than last known update time
+					// update contents accordingly; the downloaded feed is re-used
+					if (feed != null && (lastFeedUpdate == null || feed.updated.after(lastFeedUpdate))){
+						LOGGER.info("Repository content has  changed. Running update ...");
+						loadContent(feed);
+						LOGGER.info("Reload finished.");
+					} else if (fetchesPending){
+						LOGGER.info("Retrying failed package downloads from " + atomFeedURL);
+						loadContent(feed == null ? lastFeed : feed);
+					} else {
+						LOGGER.debug("Feed has not been modified: " + atomFeedURL);
 					}
+				}
 				catch (IOException e) {
-					LOGGER.error("Could not close GeoprocessingFeed stream.", e);
-					stream = null;
+					LOGGER.error("Could read feed from URL: " + atomFeedURL);
 				}
 			}
-			
-			LOGGER.info("Reload finished.");
 		}
 	}
 	
 	/**
-	 * Returns the time at which the feed was last updated.
+	 * Returns the URL from which a package of this repository can be downloaded.
 	 * 
-	 * @return {@link Date}
+	 * @param packageId {@link PID}
+	 * @return {@link URL} - the zip URL, or <code>null</code> if the package is unknown
+	 */
+	URL getPackageURL(final PID packageId){
+		return packageURLs.get(packageId);
+	}
+
+	/**
+	 * Returns the time at which the feed was last updated. If the feed does not state
+	 * its update time, the update time of its latest entry or the time of the download is used.
+	 * 
+	 * @return {@link Date} - or <code>null</code> if the feed has not been read yet
 	 */
 	protected Date lastUpdated(){
 		return lastFeedUpdate;
 	}
+	
+	/**
+	 * @return <code>true</code> if the feed has been read at least once
+	 */
+	boolean isAvailable(){
+		return lastFeedUpdate != null;
+	}
+	
+	/**
+	 * @return <code>true</code> if the packages of some feed entries could not be fetched,
+	 *         so the inventory may lack packages that are still listed in the feed
+	 */
+	boolean hasPendingFetches(){
+		return fetchesPending;
+	}
+	
+	/**
+	 * Returns the packages of all feed entries. A package that is missing from this set
+	 * has been removed from the feed, whereas {@link #getPackageIDs()} may also lack
+	 * packages that could not be fetched.
+	 * 
+	 * @return {@link Set} of {@link PID} - or <code>null</code> if the feed has not been read yet
+	 *         or lists entries whose package is unknown because it could not be fetched
+	 */
+	Set<PID> getListedPackageIDs(){
+		return listedPackageIDs;
+	}
 
 }
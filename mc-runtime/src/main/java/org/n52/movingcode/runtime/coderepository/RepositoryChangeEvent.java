@@ -0,0 +1,210 @@
+/**
+ * Copyright (C) 2012 52°North Initiative for Geospatial Open Source Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.n52.movingcode.runtime.coderepository;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.n52.movingcode.runtime.codepackage.MovingCodePackage;
+import org.n52.movingcode.runtime.codepackage.PID;
+
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * Describes how the content of a {@link MovingCodeRepository} has changed:
+ * which packages have been added, which have been removed, and which have been
+ * replaced by a different package with the same {@link PID}.
+ * 
+ * Events are immutable. A {@link Builder} collects subsequent changes and reports
+ * their net effect, e.g. a package that has been added and removed again does not
+ * show up at all.
+ */
+public final class RepositoryChangeEvent {
+
+	private final MovingCodeRepository repository;
+	private final ImmutableSet<PID> added;
+	private final ImmutableSet<PID> removed;
+	private final ImmutableSet<PID> updated;
+
+	private RepositoryChangeEvent(final MovingCodeRepository repository, final ImmutableSet<PID> added,
+			final ImmutableSet<PID> removed, final ImmutableSet<PID> updated){
+		this.repository = repository;
+		this.added = added;
+		this.removed = removed;
+		this.updated = updated;
+	}
+
+	/**
+	 * @return {@link MovingCodeRepository} - the repository that has changed
+	 */
+	public MovingCodeRepository getRepository(){
+		return repository;
+	}
+
+	/**
+	 * @return the IDs of the packages that have been added
+	 */
+	public ImmutableSet<PID> getAddedPackages(){
+		return added;
+	}
+
+	/**
+	 * @return the IDs of the packages that have been removed
+	 */
+	public ImmutableSet<PID> getRemovedPackages(){
+		return removed;
+	}
+
+	/**
+	 * @return the IDs of the packages that have been replaced by a different package with the same ID
+	 */
+	public ImmutableSet<PID> getUpdatedPackages(){
+		return updated;
+	}
+
+	/**
+	 * @return <code>true</code> if the event does not contain any changes
+	 */
+	public boolean isEmpty(){
+		return added.isEmpty() && removed.isEmpty() && updated.isEmpty();
+	}
+
+	@Override
+	public String toString(){
+		return "RepositoryChangeEvent [added=" + added + ", removed=" + removed + ", updated=" + updated + "]";
+	}
+
+	/**
+	 * Computes the changes between two inventories. Packages are compared by
+	 * identity, so a package that has been re-loaded from a changed source counts
+	 * as updated.
+	 * 
+	 * @param oldInventory
+	 * @param newInventory
+	 * @return {@link Builder} - containing the differences
+	 */
+	static Builder diff(final PackageInventory oldInventory, final PackageInventory newInventory){
+		Builder delta = new Builder();
+		for (PID pid : oldInventory.getPackageIDs()){
+			MovingCodePackage newPackage = newInventory.getPackage(pid);
+			if (newPackage == null){
+				delta.removed(pid);
+			} else if (newPackage != oldInventory.getPackage(pid)){
+				delta.updated(pid);
+			}
+		}
+		for (PID pid : newInventory.getPackageIDs()){
+			if (!oldInventory.contains(pid)){
+				delta.added(pid);
+			}
+		}
+		return delta;
+	}
+
+	/**
+	 * Collects changes and builds a {@link RepositoryChangeEvent} that describes their net effect.
+	 * 
+	 * Not thread safe.
+	 */
+	public static final class Builder {
+
+		private enum Change {ADDED, REMOVED, UPDATED}
+
+		private final Map<PID, Change> changes = new LinkedHashMap<PID, Change>();
+
+		public Builder added(final PID pid){
+			return apply(pid, Change.ADDED);
+		}
+
+		public Builder removed(final PID pid){
+			return apply(pid, Change.REMOVED);
+		}
+
+		public Builder updated(final PID pid){
+			return apply(pid, Change.UPDATED);
+		}
+
+		/**
+		 * Adds the changes of a subsequent event.
+		 * 
+		 * @param event {@link RepositoryChangeEvent}
+		 * @return this builder
+		 */
+		public Builder merge(final RepositoryChangeEvent event){
+			for (PID pid : event.removed){
+				removed(pid);
+			}
+			for (PID pid : event.added){
+				added(pid);
+			}
+			for (PID pid : event.updated){
+				updated(pid);
+			}
+			return this;
+		}
+
+		public boolean isEmpty(){
+			return changes.isEmpty();
+		}
+
+		/**
+		 * Combines a change with the previous change of the same package.
+		 */
+		private Builder apply(final PID pid, final Change change){
+			Change previous = changes.get(pid);
+			if (previous == null){
+				changes.put(pid, change);
+			} else if (previous == Change.ADDED){
+				// added and removed again: nothing happened; added and updated: still new
+				if (change == Change.REMOVED){
+					changes.remove(pid);
+				}
+			} else if (previous == Change.REMOVED){
+				// removed and added again: the package has been replaced
+				if (change == Change.ADDED){
+					changes.put(pid, Change.UPDATED);
+				}
+			} else if (change == Change.REMOVED){
+				// updated and removed
+				changes.put(pid, Change.REMOVED);
+			}
+			return this;
+		}
+
+		/**
+		 * @param repository {@link MovingCodeRepository} - the repository that has changed
+		 * @return {@link RepositoryChangeEvent}
+		 */
+		public RepositoryChangeEvent build(final MovingCodeRepository repository){
+			ImmutableSet.Builder<PID> added = ImmutableSet.builder();
+			ImmutableSet.Builder<PID> removed = ImmutableSet.builder();
+			ImmutableSet.Builder<PID> updated = ImmutableSet.builder();
+			for (Map.Entry<PID, Change> entry : changes.entrySet()){
+				switch (entry.getValue()){
+				case ADDED:
+					added.add(entry.getKey());
+					break;
+				case REMOVED:
+					removed.add(entry.getKey());
+					break;
+				default:
+					updated.add(entry.getKey());
+				}
+			}
+			return new RepositoryChangeEvent(repository, added.build(), removed.build(), updated.build());
+		}
+	}
+}
@@ -0,0 +1,159 @@
+/**
+ * Copyright (C) 2012 52°North Initiative for Geospatial Open Source Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.n52.movingcode.runtime.coderepository;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Manages the change listeners of a {@link MovingCodeRepository} and delivers
+ * change events to them.
+ * 
+ * Changes that are reported within the time window given by
+ * {@link RepositoryConfig#getChangeEventWindow()} are coalesced into a single
+ * {@link RepositoryChangeEvent}. The timer thread of the shared {@link RepositoryScheduler} only
+ * ends the window; the event is delivered by the scheduler's pool, so slow listeners cannot stall the timer.
+ * {@link RepositoryDeltaListener}s receive the event, plain {@link RepositoryChangeListener}s
+ * are called once per event. {@link SynchronousDeltaListener}s are informed of every change
+ * right away, on the thread that reports it.
+ * 
+ * Thread safe. Events are delivered one at a time and in order.
+ */
+public final class RepositoryChangeSupport {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(RepositoryChangeSupport.class);
+
+	private final MovingCodeRepository source;
+
+	private final List<RepositoryChangeListener> listeners = new CopyOnWriteArrayList<RepositoryChangeListener>();
+
+	// changes that have not been delivered yet; guarded by this
+	private RepositoryChangeEvent.Builder pending = new RepositoryChangeEvent.Builder();
+	private boolean flushScheduled = false;
+
+	// serializes the delivery of events
+	private final Object deliveryLock = new Object();
+
+	private final Runnable flushTask = new Runnable() {
+		@Override
+		public void run() {
+			flush();
+		}
+	};
+
+	// runs on the timer thread when the window has passed; the listeners are called by the pool
+	private final Runnable windowTask = new Runnable() {
+		@Override
+		public void run() {
+			RepositoryScheduler.execute(flushTask);
+		}
+	};
+
+	/**
+	 * @param source {@link MovingCodeRepository} - the repository that is reported as the source of the events
+	 */
+	public RepositoryChangeSupport(final MovingCodeRepository source){
+		this.source = source;
+	}
+
+	public void addListener(final RepositoryChangeListener l){
+		listeners.add(l);
+	}
+
+	public void removeListener(final RepositoryChangeListener l){
+		listeners.remove(l);
+	}
+
+	/**
+	 * Reports a change. Empty changes are ignored.
+	 * 
+	 * @param changes {@link RepositoryChangeEvent.Builder}
+	 */
+	public void fireChange(final RepositoryChangeEvent.Builder changes){
+		if (changes.isEmpty()){
+			return;
+		}
+		fireChange(changes.build(source));
+	}
+
+	/**
+	 * Reports a change. Empty changes are ignored.
+	 * 
+	 * @param event {@link RepositoryChangeEvent}
+	 */
+	public void fireChange(final RepositoryChangeEvent event){
+		if (event.isEmpty()){
+			return;
+		}
+		for (RepositoryChangeListener l : listeners){
+			if (l instanceof SynchronousDeltaListener){
+				deliver(l, event);
+			}
+		}
+		long window = RepositoryConfig.getChangeEventWindow();
+		synchronized (this){
+			pending.merge(event);
+			if (window > 0){
+				if (!flushScheduled){
+					flushScheduled = true;
+					RepositoryScheduler.scheduleTimer(windowTask, window);
+				}
+				return;
+			}
+		}
+		// no coalescing: deliver on the current thread
+		flush();
+	}
+
+	/**
+	 * Delivers the pending changes. Changes that are reported while a flush is waiting
+	 * for the {@link #deliveryLock} are delivered along with them.
+	 */
+	private void flush(){
+		synchronized (deliveryLock){
+			RepositoryChangeEvent event;
+			synchronized (this){
+				event = pending.build(source);
+				pending = new RepositoryChangeEvent.Builder();
+				flushScheduled = false;
+			}
+			if (event.isEmpty()){
+				return;
+			}
+			for (RepositoryChangeListener l : listeners){
+				if (!(l instanceof SynchronousDeltaListener)){
+					deliver(l, event);
+				}
+			}
+		}
+	}
+
+	private void deliver(final RepositoryChangeListener l, final RepositoryChangeEvent event){
+		try {
+			if (l instanceof RepositoryDeltaListener){
+				((RepositoryDeltaListener) l).onRepositoryChange(event);
+			} else {
+				l.onRepositoryUpdate(source);
+			}
+		} catch (RuntimeException e){
+			// do not let a failing listener keep the others from being informed
+			LOGGER.error("Repository change listener failed.", e);
+		}
+	}
+}
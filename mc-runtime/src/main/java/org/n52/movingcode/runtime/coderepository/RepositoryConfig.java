@@ -0,0 +1,431 @@
+/**
+ * Copyright (C) 2012 52°North Initiative for Geospatial Open Source Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.n52.movingcode.runtime.coderepository;
+
+import java.io.File;
+
+/**
+ * Global tuning parameters for the repositories in this package.
+ * 
+ * Default values can be set via system properties (see the PROPERTY_* constants)
+ * and changed at runtime with the static setters. Changes take effect with the
+ * next operation that uses the respective parameter.
+ */
+public final class RepositoryConfig {
+
+	/**
+	 * System property for the number of packages that are loaded and validated
+	 * concurrently during a repository scan.
+	 */
+	public static final String PROPERTY_SCAN_PARALLELISM = "org.n52.movingcode.scanParallelism";
+
+	/**
+	 * System property for the directory where local repositories keep snapshots
+	 * of their inventory. Snapshots are disabled if the property is not set.
+	 */
+	public static final String PROPERTY_SNAPSHOT_DIRECTORY = "org.n52.movingcode.snapshotDirectory";
+
+	/**
+	 * System property for the number of threads that perform the blocking background work
+	 * (feed loads, directory scans, downloads) of all repositories.
+	 */
+	public static final String PROPERTY_SCHEDULER_THREADS = "org.n52.movingcode.schedulerThreads";
+
+	/**
+	 * System property for the time window (in milliseconds) in which repository changes
+	 * are collected and delivered to the listeners as a single event.
+	 */
+	public static final String PROPERTY_CHANGE_EVENT_WINDOW = "org.n52.movingcode.changeEventWindow";
+
+	/**
+	 * System property for the number of packages that are downloaded concurrently
+	 * when a cached remote repository updates its local mirror.
+	 */
+	public static final String PROPERTY_DOWNLOAD_PARALLELISM = "org.n52.movingcode.downloadParallelism";
+
+	/**
+	 * System property for the interval (in milliseconds) in which local repositories check
+	 * their directory for changes, unless they watch it.
+	 */
+	public static final String PROPERTY_LOCAL_POLLING_INTERVAL = "org.n52.movingcode.localPollingInterval";
+
+	/**
+	 * System property for the interval (in milliseconds) in which remote repositories check
+	 * their feed for changes.
+	 */
+	public static final String PROPERTY_REMOTE_POLLING_INTERVAL = "org.n52.movingcode.remotePollingInterval";
+
+	private static volatile long localPollingInterval = Math.max(1, longProperty(PROPERTY_LOCAL_POLLING_INTERVAL, MovingCodeRepository.localPollingInterval));
+
+	private static volatile long remotePollingInterval = Math.max(1, longProperty(PROPERTY_REMOTE_POLLING_INTERVAL, MovingCodeRepository.remotePollingInterval));
+
+	private static volatile int downloadParallelism = Math.max(1, intProperty(PROPERTY_DOWNLOAD_PARALLELISM, 4));
+
+	private static volatile long changeEventWindow = Math.max(0, intProperty(PROPERTY_CHANGE_EVENT_WINDOW, 100));
+
+	private static volatile int schedulerThreads = Math.max(1, intProperty(PROPERTY_SCHEDULER_THREADS, 2));
+
+	private static volatile int scanParallelism = intProperty(PROPERTY_SCAN_PARALLELISM, Runtime.getRuntime().availableProcessors());
+
+	private static volatile File snapshotDirectory = fileProperty(PROPERTY_SNAPSHOT_DIRECTORY);
+
+	/**
+	 * System property for the directory of the content-addressed store in which versioned
+	 * repositories keep the files of their packages. Disabled if the property is not set.
+	 */
+	public static final String PROPERTY_BLOB_STORE_DIRECTORY = "org.n52.movingcode.blobStoreDirectory";
+
+	private static volatile File blobStoreDirectory = fileProperty(PROPERTY_BLOB_STORE_DIRECTORY);
+
+	/**
+	 * System property for the maximum size (in bytes) of the local mirror of a cached remote repository.
+	 */
+	public static final String PROPERTY_CACHE_MAX_BYTES = "org.n52.movingcode.cacheMaxBytes";
+
+	/**
+	 * System property for the maximum number of versions per package name that are kept
+	 * in the local mirror of a cached remote repository.
+	 */
+	public static final String PROPERTY_CACHE_MAX_VERSIONS = "org.n52.movingcode.cacheMaxVersions";
+
+	/**
+	 * System property for the strategy that selects the packages to evict from the local mirror
+	 * of a cached remote repository (<code>LRU</code> or <code>LFU</code>).
+	 */
+	public static final String PROPERTY_CACHE_EVICTION = "org.n52.movingcode.cacheEviction";
+
+	/**
+	 * Strategies for selecting the packages to evict from a cache.
+	 */
+	public enum EvictionStrategy {
+		/** evict the least recently used package first */
+		LRU,
+		/** evict the least frequently used package first */
+		LFU
+	}
+
+	private static volatile long cacheMaxBytes = Math.max(0, longProperty(PROPERTY_CACHE_MAX_BYTES, 0));
+
+	private static volatile int cacheMaxVersions = Math.max(0, intProperty(PROPERTY_CACHE_MAX_VERSIONS, 0));
+
+	private static volatile EvictionStrategy cacheEviction = evictionProperty(PROPERTY_CACHE_EVICTION, EvictionStrategy.LRU);
+
+	private RepositoryConfig(){
+		// static access only
+	}
+
+	/**
+	 * @return the number of packages that are loaded concurrently during a repository scan.
+	 *         A value of <code>1</code> means sequential scans.
+	 */
+	public static int getScanParallelism(){
+		return scanParallelism;
+	}
+
+	/**
+	 * Sets the number of packages that are loaded concurrently during a repository scan.
+	 * 
+	 * @param parallelism - a value of <code>1</code> switches to sequential scans
+	 * @throws IllegalArgumentException - if parallelism is smaller than 1
+	 */
+	public static void setScanParallelism(final int parallelism){
+		if (parallelism < 1){
+			throw new IllegalArgumentException("Scan parallelism must be at least 1: " + parallelism);
+		}
+		scanParallelism = parallelism;
+	}
+
+	/**
+	 * @return the number of threads that perform the blocking background work of all repositories
+	 */
+	public static int getSchedulerThreads(){
+		return schedulerThreads;
+	}
+
+	/**
+	 * Sets the number of threads that perform the blocking background work of all repositories.
+	 * Watcher polls and change event windows run on a timer thread of their own (see {@link RepositoryScheduler}).
+	 * Only takes effect when the shared scheduler is (re-)created.
+	 * 
+	 * @param threads
+	 * @throws IllegalArgumentException - if threads is smaller than 1
+	 */
+	public static void setSchedulerThreads(final int threads){
+		if (threads < 1){
+			throw new IllegalArgumentException("Number of scheduler threads must be at least 1: " + threads);
+		}
+		schedulerThreads = threads;
+	}
+
+	/**
+	 * @return the interval (in milliseconds) in which local repositories check their directory for changes
+	 */
+	public static long getLocalPollingInterval(){
+		return localPollingInterval;
+	}
+
+	/**
+	 * Sets the interval in which local repositories check their directory for changes.
+	 * Only affects repositories created afterwards.
+	 * 
+	 * @param interval - in milliseconds
+	 * @throws IllegalArgumentException - if interval is not positive
+	 */
+	public static void setLocalPollingInterval(final long interval){
+		if (interval < 1){
+			throw new IllegalArgumentException("Polling interval must be positive: " + interval);
+		}
+		localPollingInterval = interval;
+	}
+
+	/**
+	 * @return the interval (in milliseconds) in which remote repositories check their feed for changes
+	 */
+	public static long getRemotePollingInterval(){
+		return remotePollingInterval;
+	}
+
+	/**
+	 * Sets the interval in which remote repositories check their feed for changes.
+	 * Only affects repositories created afterwards.
+	 * 
+	 * @param interval - in milliseconds
+	 * @throws IllegalArgumentException - if interval is not positive
+	 */
+	public static void setRemotePollingInterval(final long interval){
+		if (interval < 1){
+			throw new IllegalArgumentException("Polling interval must be positive: " + interval);
+		}
+		remotePollingInterval = interval;
+	}
+
+	/**
+	 * @return the number of packages that are downloaded concurrently
+	 */
+	public static int getDownloadParallelism(){
+		return downloadParallelism;
+	}
+
+	/**
+	 * Sets the number of packages that are downloaded concurrently.
+	 * Takes effect with the next update of a mirror.
+	 * 
+	 * @param parallelism
+	 * @throws IllegalArgumentException - if parallelism is smaller than 1
+	 */
+	public static void setDownloadParallelism(final int parallelism){
+		if (parallelism < 1){
+			throw new IllegalArgumentException("Download parallelism must be at least 1: " + parallelism);
+		}
+		downloadParallelism = parallelism;
+	}
+
+	/**
+	 * @return the time window (in milliseconds) in which repository changes are coalesced
+	 *         into a single event. A value of <code>0</code> means that every change is delivered
+	 *         immediately.
+	 */
+	public static long getChangeEventWindow(){
+		return changeEventWindow;
+	}
+
+	/**
+	 * Sets the time window in which repository changes are coalesced into a single event.
+	 * 
+	 * @param window - in milliseconds; <code>0</code> delivers every change immediately
+	 *        on the thread that performed the change
+	 * @throws IllegalArgumentException - if window is negative
+	 */
+	public static void setChangeEventWindow(final long window){
+		if (window < 0){
+			throw new IllegalArgumentException("Change event window must not be negative: " + window);
+		}
+		changeEventWindow = window;
+	}
+
+	/**
+	 * @return {@link File} - the directory where local repositories keep snapshots of their inventory,
+	 *         or <code>null</code> if snapshots are disabled
+	 */
+	public static File getSnapshotDirectory(){
+		return snapshotDirectory;
+	}
+
+	/**
+	 * Sets the directory where local repositories keep snapshots of their inventory.
+	 * A repository with a snapshot starts serving its last known packages immediately
+	 * and revalidates them in the background. Only affects repositories created afterwards.
+	 * 
+	 * @param directory {@link File} - the snapshot directory; <code>null</code> disables snapshots
+	 */
+	public static void setSnapshotDirectory(final File directory){
+		snapshotDirectory = directory;
+	}
+
+	/**
+	 * @return {@link File} - the directory of the content-addressed package store,
+	 *         or <code>null</code> if packages are stored as plain copies
+	 */
+	public static File getBlobStoreDirectory(){
+		return blobStoreDirectory;
+	}
+
+	/**
+	 * Sets the directory of the content-addressed package store. If set, versioned repositories
+	 * (e.g. the mirrors of remote feeds) store each distinct file only once and link it into the
+	 * package folders. Should be on the same file system as the repositories, since hard links
+	 * cannot span file systems (files are copied in this case). Only affects repositories created afterwards.
+	 * 
+	 * @param directory {@link File} - the store directory; <code>null</code> disables the store
+	 */
+	public static void setBlobStoreDirectory(final File directory){
+		blobStoreDirectory = directory;
+	}
+
+	/**
+	 * @return the maximum size (in bytes) of the local mirror of a cached remote repository;
+	 *         <code>0</code> means unlimited
+	 */
+	public static long getCacheMaxBytes(){
+		return cacheMaxBytes;
+	}
+
+	/**
+	 * Sets the maximum size of the local mirror of a cached remote repository. If the mirror grows
+	 * beyond this size, packages are evicted according to {@link #getCacheEviction()}. Evicted packages
+	 * remain available and are downloaded again when they are requested.
+	 * 
+	 * @param maxBytes - <code>0</code> means unlimited
+	 * @throws IllegalArgumentException - if maxBytes is negative
+	 */
+	public static void setCacheMaxBytes(final long maxBytes){
+		if (maxBytes < 0){
+			throw new IllegalArgumentException("Maximum cache size must not be negative: " + maxBytes);
+		}
+		cacheMaxBytes = maxBytes;
+	}
+
+	/**
+	 * @return the maximum number of versions per package name in the local mirror of a cached
+	 *         remote repository; <code>0</code> means unlimited
+	 */
+	public static int getCacheMaxVersions(){
+		return cacheMaxVersions;
+	}
+
+	/**
+	 * Sets the maximum number of versions per package name in the local mirror of a cached
+	 * remote repository. Older versions are evicted first.
+	 * 
+	 * @param maxVersions - <code>0</code> means unlimited
+	 * @throws IllegalArgumentException - if maxVersions is negative
+	 */
+	public static void setCacheMaxVersions(final int maxVersions){
+		if (maxVersions < 0){
+			throw new IllegalArgumentException("Maximum number of versions must not be negative: " + maxVersions);
+		}
+		cacheMaxVersions = maxVersions;
+	}
+
+	/**
+	 * @return {@link EvictionStrategy} - selects the packages to evict if the mirror of a cached
+	 *         remote repository exceeds its maximum size
+	 */
+	public static EvictionStrategy getCacheEviction(){
+		return cacheEviction;
+	}
+
+	/**
+	 * @param strategy {@link EvictionStrategy}
+	 */
+	public static void setCacheEviction(final EvictionStrategy strategy){
+		if (strategy == null){
+			throw new IllegalArgumentException("Eviction strategy must not be null.");
+		}
+		cacheEviction = strategy;
+	}
+
+	/**
+	 * Reads an integer system property.
+	 * 
+	 * @param key
+	 * @param defaultValue
+	 * @return the property value or the default value if the property is missing or malformed
+	 */
+	static int intProperty(final String key, final int defaultValue){
+		String value = System.getProperty(key);
+		if (value == null){
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e){
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * Reads a long system property.
+	 * 
+	 * @param key
+	 * @param defaultValue
+	 * @return the property value or the default value if the property is missing or malformed
+	 */
+	static long longProperty(final String key, final long defaultValue){
+		String value = System.getProperty(key);
+		if (value == null){
+			return defaultValue;
+		}
+		try {
+			return Long.parseLong(value.trim());
+		} catch (NumberFormatException e){
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * Reads an eviction strategy system property.
+	 * 
+	 * @param key
+	 * @param defaultValue
+	 * @return the property value or the default value if the property is missing or malformed
+	 */
+	static EvictionStrategy evictionProperty(final String key, final EvictionStrategy defaultValue){
+		String value = System.getProperty(key);
+		if (value == null){
+			return defaultValue;
+		}
+		try {
+			return EvictionStrategy.valueOf(value.trim().toUpperCase());
+		} catch (IllegalArgumentException e){
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * Reads a file system property.
+	 * 
+	 * @param key
+	 * @return {@link File} - or <code>null</code> if the property is not set
+	 */
+	static File fileProperty(final String key){
+		String value = System.getProperty(key);
+		if (value == null || value.trim().isEmpty()){
+			return null;
+		}
+		return new File(value.trim());
+	}
+}
@@ -0,0 +1,36 @@
+/**
+ * Copyright (C) 2012 52°North Initiative for Geospatial Open Source Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.n52.movingcode.runtime.coderepository;
+
+/**
+ * A {@link RepositoryChangeListener} that wants to know what has changed.
+ * 
+ * Instead of {@link #onRepositoryUpdate(MovingCodeRepository)}, repositories call
+ * {@link #onRepositoryChange(RepositoryChangeEvent)} with the added, removed and
+ * updated packages, so the listener can update its own state incrementally.
+ * Changes that happen in quick succession are delivered as a single event
+ * (see {@link RepositoryConfig#getChangeEventWindow()}).
+ */
+public interface RepositoryDeltaListener extends RepositoryChangeListener {
+
+	/**
+	 * callback is triggered when the repository has been updated.
+	 * 
+	 * @param event {@link RepositoryChangeEvent} - the changes; never empty
+	 */
+	public void onRepositoryChange(RepositoryChangeEvent event);
+
+}
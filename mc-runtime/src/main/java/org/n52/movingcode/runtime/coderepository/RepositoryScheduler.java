@@ -0,0 +1,188 @@
+/**
+ * Copyright (C) 2012 52°North Initiative for Geospatial Open Source Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.n52.movingcode.runtime.coderepository;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A shared, bounded scheduler for the background work of all repositories.
+ * 
+ * The work is split between two thread pools, so that slow work cannot starve the
+ * short housekeeping tasks:
+ * <ul>
+ * <li>a pool for work that may block for a long time, i.e. feed loads, directory scans and
+ * package downloads. The number of threads is given by {@link RepositoryConfig#getSchedulerThreads()}.</li>
+ * <li>a single timer thread for short tasks, i.e. polling directory watchers and ending the
+ * time windows of change events. Timer tasks must not block; they hand longer work to the first pool.</li>
+ * </ul>
+ * Neither pool depends on the number of repositories. All threads are daemon threads.
+ * 
+ * Tasks are protected against runtime exceptions, so a failing update does not cancel
+ * the periodic execution of a task.
+ */
+public final class RepositoryScheduler {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(RepositoryScheduler.class);
+
+	// runs blocking work
+	private static ScheduledThreadPoolExecutor executor;
+
+	// runs short, non-blocking tasks
+	private static ScheduledThreadPoolExecutor timer;
+
+	private RepositoryScheduler(){
+		// static access only
+	}
+
+	/**
+	 * Runs a (possibly blocking) task once, as soon as possible.
+	 * 
+	 * @param task {@link Runnable}
+	 * @return {@link ScheduledFuture} - can be used to cancel the task
+	 */
+	static ScheduledFuture<?> execute(final Runnable task){
+		return getExecutor().schedule(new SafeTask(task), 0, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Runs a (possibly blocking) task once, after a delay.
+	 * 
+	 * @param task {@link Runnable}
+	 * @param delay - in milliseconds
+	 * @return {@link ScheduledFuture} - can be used to cancel the task
+	 */
+	static ScheduledFuture<?> schedule(final Runnable task, final long delay){
+		return getExecutor().schedule(new SafeTask(task), delay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Runs a (possibly blocking) task periodically. The next execution starts <code>interval</code>
+	 * milliseconds after the previous one has finished.
+	 * 
+	 * @param task {@link Runnable}
+	 * @param initialDelay - delay of the first execution, in milliseconds
+	 * @param interval - delay between two executions, in milliseconds
+	 * @return {@link ScheduledFuture} - can be used to cancel the task
+	 */
+	static ScheduledFuture<?> scheduleWithFixedDelay(final Runnable task, final long initialDelay, final long interval){
+		return getExecutor().scheduleWithFixedDelay(new SafeTask(task), initialDelay, interval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Runs a short task once on the timer thread, after a delay. The task must not block.
+	 * 
+	 * @param task {@link Runnable}
+	 * @param delay - in milliseconds
+	 * @return {@link ScheduledFuture} - can be used to cancel the task
+	 */
+	static ScheduledFuture<?> scheduleTimer(final Runnable task, final long delay){
+		return getTimer().schedule(new SafeTask(task), delay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Runs a short task periodically on the timer thread. The task must not block.
+	 * 
+	 * @param task {@link Runnable}
+	 * @param initialDelay - delay of the first execution, in milliseconds
+	 * @param interval - delay between two executions, in milliseconds
+	 * @return {@link ScheduledFuture} - can be used to cancel the task
+	 */
+	static ScheduledFuture<?> scheduleTimerWithFixedDelay(final Runnable task, final long initialDelay, final long interval){
+		return getTimer().scheduleWithFixedDelay(new SafeTask(task), initialDelay, interval, TimeUnit.MILLISECONDS);
+	}
+
+	private static synchronized ScheduledThreadPoolExecutor getExecutor(){
+		if (executor == null || executor.isShutdown()){
+			executor = newExecutor(RepositoryConfig.getSchedulerThreads(), "RepositoryScheduler-");
+		}
+		return executor;
+	}
+
+	private static synchronized ScheduledThreadPoolExecutor getTimer(){
+		if (timer == null || timer.isShutdown()){
+			timer = newExecutor(1, "RepositoryTimer-");
+		}
+		return timer;
+	}
+
+	private static ScheduledThreadPoolExecutor newExecutor(final int threads, final String threadPrefix){
+		ScheduledThreadPoolExecutor newExecutor = new ScheduledThreadPoolExecutor(threads, new DaemonThreadFactory(threadPrefix));
+		// do not keep cancelled periodic tasks of closed repositories in the queue
+		newExecutor.setRemoveOnCancelPolicy(true);
+		return newExecutor;
+	}
+
+	/**
+	 * Stops the shared scheduler. Periodic tasks of repositories that are still open
+	 * will not be executed any more. A new scheduler is created on demand.
+	 */
+	public static synchronized void shutdown(){
+		if (executor != null){
+			executor.shutdownNow();
+			executor = null;
+		}
+		if (timer != null){
+			timer.shutdownNow();
+			timer = null;
+		}
+	}
+
+	/**
+	 * Logs runtime exceptions instead of passing them to the executor.
+	 */
+	private static final class SafeTask implements Runnable {
+		private final Runnable task;
+
+		SafeTask(Runnable task){
+			this.task = task;
+		}
+
+		@Override
+		public void run() {
+			try {
+				task.run();
+			} catch (RuntimeException e){
+				LOGGER.error("Repository background task failed.", e);
+			}
+		}
+	}
+
+	/**
+	 * Creates named daemon threads.
+	 */
+	private static final class DaemonThreadFactory implements ThreadFactory {
+		private final String prefix;
+		private final AtomicInteger counter = new AtomicInteger();
+
+		DaemonThreadFactory(String prefix){
+			this.prefix = prefix;
+		}
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, prefix + counter.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+}
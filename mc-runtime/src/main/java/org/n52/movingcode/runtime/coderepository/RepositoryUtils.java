@@ -16,6 +16,7 @@
 package org.n52.movingcode.runtime.coderepository;
 
 import java.io.File;
+import java.nio.charset.Charset;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
@@ -54,27 +55,53 @@ public class RepositoryUtils {
 	public static String directoryFingerprint(final File directory) {
 		final Collection<File> files = FileUtils.listFiles(directory, null, true);
 
-		StringBuffer fNamesAndTimes = new StringBuffer("");
-		for (File file : files){
-			fNamesAndTimes = fNamesAndTimes.append(file.getAbsolutePath() + file.lastModified());
-		}
-
 		MessageDigest md;
 		try {
 			md = MessageDigest.getInstance("SHA-1");
-			byte[] hash = md.digest(fNamesAndTimes.toString().getBytes());
-
-			String result = "";
-			for ( byte b : hash ) {
-				result += Integer.toHexString(b + 256) + " ";
-			}
-
-			return result;
 		} catch (NoSuchAlgorithmException e) {
 			LOGGER.error("Could not find SHA-1 algorithm.");
 			return null;
 		}
 
+		// feed names and times directly into the digest
+		// instead of building one huge String
+		for (File file : files){
+			md.update(file.getAbsolutePath().getBytes());
+			md.update(Long.toString(file.lastModified()).getBytes());
+		}
+
+		return toHexString(md.digest());
+	}
+
+	/**
+	 * Returns the lower case hex representation of a byte array.
+	 * 
+	 * @param bytes
+	 * @return {@link String}
+	 */
+	public static final String toHexString(final byte[] bytes){
+		final char[] digits = "0123456789abcdef".toCharArray();
+		StringBuilder sb = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes){
+			sb.append(digits[(b >> 4) & 0xf]);
+			sb.append(digits[b & 0xf]);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Returns a short hash of a string, e.g. to derive a file name from a path or URL.
+	 * 
+	 * @param s
+	 * @return {@link String} - the first 16 hex digits of the string's SHA-256 hash
+	 */
+	public static final String shortHash(final String s){
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-256");
+			return toHexString(md.digest(s.getBytes(Charset.forName("UTF-8")))).substring(0, 16);
+		} catch (NoSuchAlgorithmException e) {
+			return Integer.toHexString(s.hashCode());
+		}
 	}
 
 	/**
@@ -0,0 +1,63 @@
+/**
+ * Copyright (C) 2012 52°North Initiative for Geospatial Open Source Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.n52.movingcode.runtime.coderepository;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Runs at most one load per key at a time. The first caller for a key runs the
+ * load in its own thread; callers that request the same key while the load is
+ * running wait for it and receive the same result (or exception). Once the
+ * load has finished, the next request for the key starts a new load.
+ * 
+ * Results are not cached; this class only collapses concurrent requests.
+ * 
+ * Thread safe.
+ * 
+ * @param <K> key type
+ * @param <V> result type
+ */
+public final class SingleFlight<K, V> {
+
+	// loads in progress
+	private final ConcurrentHashMap<K, FutureTask<V>> inFlight = new ConcurrentHashMap<K, FutureTask<V>>();
+
+	/**
+	 * Runs the loader, or waits for a load of the same key that is already running.
+	 * 
+	 * @param key - identifies the load, e.g. a {@link org.n52.movingcode.runtime.codepackage.PID}
+	 * @param loader {@link Callable} - the load; only called if no load for this key is running
+	 * @return the result of the load
+	 * @throws ExecutionException - if the load has thrown an exception
+	 * @throws InterruptedException - if the thread has been interrupted while waiting for another caller's load
+	 */
+	public V execute(final K key, final Callable<V> loader) throws ExecutionException, InterruptedException {
+		FutureTask<V> task = new FutureTask<V>(loader);
+		FutureTask<V> running = inFlight.putIfAbsent(key, task);
+		if (running != null){
+			return running.get();
+		}
+		try {
+			task.run();
+		} finally {
+			inFlight.remove(key, task);
+		}
+		return task.get();
+	}
+}
@@ -0,0 +1,262 @@
+/**
+ * Copyright (C) 2012 52°North Initiative for Geospatial Open Source Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.n52.movingcode.runtime.coderepository;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.n52.movingcode.runtime.codepackage.MovingCodePackage;
+import org.n52.movingcode.runtime.codepackage.PackageHeader;
+
+/**
+ * State table for the sources of a local repository (e.g. package folders).
+ *
+ * For each source it remembers the modification time, size and SHA-256 hash
+ * of a stamp file (typically the package description) together with the
+ * {@link MovingCodePackage} that was loaded from it. A rescan only invokes the
+ * {@link PackageLoader} for sources that are new or whose stamp file has changed; all
+ * other sources are served from the table.
+ *
+ * Invalid sources are not remembered. They are loaded again on every request, since
+ * a source may be incomplete while it is being copied (e.g. a package folder whose
+ * description has already arrived, but not its workspace) and the stamp file does not
+ * necessarily change once it is complete.
+ * 
+ * The table can be saved to and restored from an {@link InventorySnapshot}. Frequent
+ * changes (e.g. watcher batches) should use {@link #saveLater(File)}, which writes
+ * at most one snapshot per {@link #SAVE_DELAY}.
+ *
+ * Thread safe.
+ *
+ */
+final class SourceStateTable {
+
+	// delay of deferred snapshot writes, in milliseconds
+	static final long SAVE_DELAY = 5000;
+
+	// source -> last known state
+	private final Map<Path, SourceState> states = new ConcurrentHashMap<Path, SourceState>();
+
+	// has the table changed since it was last saved or restored?
+	private volatile boolean modified = false;
+
+	// is a deferred snapshot write pending?
+	private final AtomicBoolean savePending = new AtomicBoolean(false);
+
+	/**
+	 * Re-creates a package from a snapshot.
+	 */
+	interface Restorer {
+
+		/**
+		 * @param source {@link Path}
+		 * @param header {@link PackageHeader} - header of a package that was valid when the snapshot was taken
+		 * @return {@link MovingCodePackage}
+		 */
+		MovingCodePackage restore(Path source, PackageHeader header);
+	}
+
+	/**
+	 * Returns the package for a given source. The loader is only called if the
+	 * source is unknown or its stamp file has changed since the last call.
+	 *
+	 * @param source {@link Path} - the source, e.g. a package folder
+	 * @param stampFile {@link Path} - the file that identifies the state of the source
+	 * @param loader {@link PackageLoader} - loads the package if required
+	 * @return {@link MovingCodePackage} - or <code>null</code> if the source does not (yet) provide a valid package
+	 */
+	MovingCodePackage get(final Path source, final Path stampFile, final PackageLoader loader){
+		BasicFileAttributes attrs;
+		try {
+			attrs = Files.readAttributes(stampFile, BasicFileAttributes.class);
+		} catch (IOException e) {
+			remove(source);
+			return null;
+		}
+		long lastModified = attrs.lastModifiedTime().toMillis();
+		long size = attrs.size();
+
+		// cheap check: nothing has been touched
+		SourceState state = states.get(source);
+		if (state != null && state.lastModified == lastModified && state.size == size){
+			return state.mcPackage;
+		}
+
+		// file was touched, but maybe the content is still the same
+		String hash = hash(stampFile);
+		if (state != null && hash != null && hash.equals(state.hash)){
+			states.put(source, new SourceState(lastModified, size, hash, state.mcPackage));
+			modified = true;
+			return state.mcPackage;
+		}
+
+		MovingCodePackage mcPackage = loader.load(source);
+		if (mcPackage == null){
+			// try again next time, the source may still be incomplete
+			remove(source);
+			return null;
+		}
+		states.put(source, new SourceState(lastModified, size, hash, mcPackage));
+		modified = true;
+		return mcPackage;
+	}
+
+	/**
+	 * Removes all sources from the table that are not contained in the given collection.
+	 *
+	 * @param sources
+	 */
+	void retainAll(final Collection<Path> sources){
+		Set<Path> keep = new HashSet<Path>(sources);
+		if (states.keySet().retainAll(keep)){
+			modified = true;
+		}
+	}
+
+	/**
+	 * Removes a single source from the table.
+	 *
+	 * @param source
+	 */
+	void remove(final Path source){
+		if (states.remove(source) != null){
+			modified = true;
+		}
+	}
+
+	/**
+	 * Removes a source and all sources below it, e.g. after a directory has been deleted.
+	 * 
+	 * @param path
+	 */
+	void removeBelow(final Path path){
+		Iterator<Path> it = states.keySet().iterator();
+		while (it.hasNext()){
+			if (it.next().startsWith(path)){
+				it.remove();
+				modified = true;
+			}
+		}
+	}
+
+	/**
+	 * Seeds the table from a snapshot. Sources are restored with the stamp file
+	 * attributes recorded in the snapshot, so they will be checked (and re-loaded
+	 * if necessary) the next time they are requested with {@link #get(Path, Path, PackageLoader)}.
+	 * 
+	 * @param snapshotFile {@link File} - may be <code>null</code> if snapshots are disabled
+	 * @param restorer {@link Restorer} - re-creates the packages
+	 * @return {@link Map} - the valid packages by source
+	 */
+	Map<Path, MovingCodePackage> restore(final File snapshotFile, final Restorer restorer){
+		Map<Path, MovingCodePackage> packages = new LinkedHashMap<Path, MovingCodePackage>();
+		if (snapshotFile == null){
+			return packages;
+		}
+		for (InventorySnapshot.Record record : InventorySnapshot.read(snapshotFile)){
+			// invalid sources are not remembered (snapshots of older versions may contain them)
+			if (record.header != null){
+				MovingCodePackage mcPackage = restorer.restore(record.source, record.header);
+				packages.put(record.source, mcPackage);
+				states.put(record.source, new SourceState(record.lastModified, record.size, record.hash, mcPackage));
+			}
+		}
+		modified = false;
+		return packages;
+	}
+
+	/**
+	 * Writes the table to a snapshot, if it has changed since it was last saved or restored.
+	 * 
+	 * @param snapshotFile {@link File} - may be <code>null</code> if snapshots are disabled
+	 */
+	synchronized void save(final File snapshotFile){
+		if (snapshotFile == null || !modified){
+			return;
+		}
+		modified = false;
+		List<InventorySnapshot.Record> records = new ArrayList<InventorySnapshot.Record>(states.size());
+		for (Map.Entry<Path, SourceState> entry : states.entrySet()){
+			SourceState state = entry.getValue();
+			records.add(new InventorySnapshot.Record(entry.getKey(), state.lastModified, state.size, state.hash, state.mcPackage.getHeader()));
+		}
+		InventorySnapshot.write(snapshotFile, records);
+	}
+
+	/**
+	 * Writes the table to a snapshot after {@link #SAVE_DELAY}. Changes made in the meantime
+	 * are included in the same write.
+	 * 
+	 * @param snapshotFile {@link File} - may be <code>null</code> if snapshots are disabled
+	 */
+	void saveLater(final File snapshotFile){
+		if (snapshotFile == null || !modified || !savePending.compareAndSet(false, true)){
+			return;
+		}
+		RepositoryScheduler.schedule(new Runnable(){
+			@Override
+			public void run() {
+				savePending.set(false);
+				save(snapshotFile);
+			}
+		}, SAVE_DELAY);
+	}
+
+	/**
+	 * Computes the SHA-256 hash of a file's content.
+	 *
+	 * @param file
+	 * @return hex encoded hash, or <code>null</code> if the file cannot be read
+	 */
+	static String hash(final Path file){
+		try {
+			return ContentAddressedStore.hash(file);
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Immutable state of a single source.
+	 */
+	private static final class SourceState {
+		final long lastModified;
+		final long size;
+		final String hash;
+		// never null
+		final MovingCodePackage mcPackage;
+
+		SourceState(long lastModified, long size, String hash, MovingCodePackage mcPackage){
+			this.lastModified = lastModified;
+			this.size = size;
+			this.hash = hash;
+			this.mcPackage = mcPackage;
+		}
+	}
+}
@@ -0,0 +1,33 @@
+/**
+ * Copyright (C) 2012 52°North Initiative for Geospatial Open Source Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.n52.movingcode.runtime.coderepository;
+
+/**
+ * A {@link RepositoryDeltaListener} that is informed right away.
+ * 
+ * {@link #onRepositoryChange(RepositoryChangeEvent)} is called on the thread that has
+ * changed the repository, before the change returns, and once per change, i.e. events
+ * are not coalesced. This keeps derived state, such as a lookup index, in step with
+ * the repository.
+ * 
+ * Changes made by different threads are reported concurrently and not necessarily in
+ * order, so implementations should re-read the current state of the reported packages
+ * rather than replay the event. They must be thread safe and must not block.
+ *
+ */
+public interface SynchronousDeltaListener extends RepositoryDeltaListener {
+
+}
@@ -18,10 +18,10 @@ package org.n52.movingcode.runtime.feed;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.ArrayList;
-import java.util.Arrays;
+import java.net.URL;
 import java.util.Date;
-import java.util.List;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import org.apache.abdera.Abdera;
 import org.apache.abdera.model.Document;
@@ -36,6 +36,9 @@ import org.slf4j.LoggerFactory;
 /**
  * A {@link CodePackageFeed} is a class that provides access to a set of {@link GeoprocessingFeedEntry}.
  * 
+ * Entries are indexed by their ID, and the feed's update time stamp is maintained as entries are
+ * added or updated. Thus, reading or building a feed is linear in the number of entries.
+ * 
  * @author Matthias Mueller, TU Dresden
  * 
  */
@@ -45,6 +48,9 @@ public final class CodePackageFeed {
 
 	private final Feed feed;
 	
+	// entryID -> entry, in document order; guarded by this
+	private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+	
 	public static final String feedMimeType = "application/atom+xml";
 	public static final String PACKAGE_MIMETYPE = "application/zip";
 	public static final String PACKAGE_DESCRIPTION_MIMETYPE = "text/xml";
@@ -62,6 +68,13 @@ public final class CodePackageFeed {
 		Parser parser = Abdera.getInstance().getParser();
 		Document<Feed> doc = parser.parse(atomStream);
 		feed = doc.getRoot();
+		for (Entry currentEntry : feed.getEntries()){
+			String entryID = currentEntry.getId().toString();
+			// the first entry wins if an ID is used more than once
+			if (!entries.containsKey(entryID)){
+				entries.put(entryID, currentEntry);
+			}
+		}
 
 		LOGGER.info("New Feed: " + feed.getTitle());
 	}
@@ -106,19 +119,20 @@ public final class CodePackageFeed {
 	 */
 	public synchronized boolean addEntry(final MovingCodePackage mcp, final String webRoot){
 		// add only if ID is still free
-		String entryId = mcp.getPackageId().name;
+		String entryId = webRoot + mcp.getPackageId().name;
 		if (!containsEntry(entryId)){
 			GeoprocessingFeedEntry entry = new GeoprocessingFeedEntry(
-					webRoot + entryId,
+					entryId,
 					mcp.getDescriptionAsDocument(),
 					mcp.getTimestamp().toDate(),
 					webRoot + mcp.getPackageId().toString() + ".zip",
 					webRoot + mcp.getPackageId().toString() + ".xml"
 			);
 			feed.addEntry(entry.getAtomEntry());
+			entries.put(entry.getAtomEntry().getId().toString(), entry.getAtomEntry());
 
 			// call global time stamp update routine
-			updateFeedTimestamp();
+			updateFeedTimestamp(entry.getAtomEntry().getUpdated());
 			return true;
 		}
 		else {
@@ -133,13 +147,9 @@ public final class CodePackageFeed {
 	 * @param entryID {@link String}
 	 * @return {@link GeoprocessingFeedEntry} -  the entry
 	 */
-	public GeoprocessingFeedEntry getFeedEntry(final String entryID){
-		for (Entry currentEntry : feed.getEntries()){
-			if (currentEntry.getId().toString().equals(entryID)){
-				return new GeoprocessingFeedEntry(currentEntry);
-			}
-		}
-		return null;
+	public synchronized GeoprocessingFeedEntry getFeedEntry(final String entryID){
+		Entry currentEntry = entries.get(entryID);
+		return currentEntry == null ? null : new GeoprocessingFeedEntry(currentEntry);
 	}
 
 	/**
@@ -150,17 +160,28 @@ public final class CodePackageFeed {
 	 * @return {@link MovingCodePackage} - the package
 	 */
 	public MovingCodePackage getPackage(final String entryID){
-		GeoprocessingFeedEntry gpfe = getFeedEntry(entryID);
+		URL zipURL = getPackageURL(entryID);
 		// if there is no entry or if its URL is invalid, return null
-		if (gpfe == null || gpfe.getZipPackageURL() == null){
+		if (zipURL == null){
 			return null;
 		} 
 		// else: return new package
 		else {
-			return new MovingCodePackage(gpfe.getZipPackageURL());
+			return new MovingCodePackage(zipURL);
 		}
 	}
 
+	/**
+	 * Returns the URL of the zipped package for a given entryID.
+	 * 
+	 * @param entryID {@link String}
+	 * @return {@link URL} - or <code>null</code> if there is no such entry or if its package URL is invalid
+	 */
+	public URL getPackageURL(final String entryID){
+		GeoprocessingFeedEntry gpfe = getFeedEntry(entryID);
+		return gpfe == null ? null : gpfe.getZipPackageURL();
+	}
+
 	/**
 	 * Write this feed to the given output stream. Might throw an exception if the output stream signals an IO
 	 * Exception.
@@ -192,12 +213,8 @@ public final class CodePackageFeed {
 	 * 
 	 * @return {@link String} - the IDs
 	 */
-	public String[] getEntryIDs(){
-		ArrayList<String> allIDs = new ArrayList<String>();
-		for (Entry currentEntry : feed.getEntries()){
-			allIDs.add(currentEntry.getId().toString());
-		}
-		return allIDs.toArray(new String[allIDs.size()]);
+	public synchronized String[] getEntryIDs(){
+		return entries.keySet().toArray(new String[entries.size()]);
 	}
 
 	/**
@@ -205,13 +222,9 @@ public final class CodePackageFeed {
 	 * @param entryID
 	 * @return {@link Date} - the updated time stamp for the entryID (returns <code>null</code> if the entry is not registered.)
 	 */
-	public Date getEntryUpdatedTimeStamp(String entryID){
-		for (Entry currentEntry : feed.getEntries()){
-			if (currentEntry.getId().toString().equals(entryID)){
-				return currentEntry.getUpdated();
-			}
-		}
-		return null;
+	public synchronized Date getEntryUpdatedTimeStamp(String entryID){
+		Entry currentEntry = entries.get(entryID);
+		return currentEntry == null ? null : currentEntry.getUpdated();
 	}
 
 	/**
@@ -219,14 +232,13 @@ public final class CodePackageFeed {
 	 * @param entryID {@link String}
 	 * @return {@link Date} - the updated time stamp for the entryID (returns <code>null</code> if the entry is not registered.)
 	 */
-	public void setEntryUpdatedTimeStamp(String entryID, Date upDate){
-		for (Entry currentEntry : feed.getEntries()){
-			if (currentEntry.getId().toString().equals(entryID)){
-				currentEntry.setUpdated(upDate);
-			}
+	public synchronized void setEntryUpdatedTimeStamp(String entryID, Date upDate){
+		Entry currentEntry = entries.get(entryID);
+		if (currentEntry != null){
+			currentEntry.setUpdated(upDate);
+			// call global time stamp update routine
+			updateFeedTimestamp(upDate);
 		}
-		// call global time stamp update routine
-		updateFeedTimestamp();
 	}
 
 
@@ -237,23 +249,21 @@ public final class CodePackageFeed {
 	 * @return <code>true|false</code>
 	 */
 	private boolean containsEntry(String entryID){
-		List<String> entries = Arrays.asList(getEntryIDs());
-		return entries.contains(entryID);
-
+		return entries.containsKey(entryID);
 	}
 
 	/**
-	 * checks all update timestamps of the feed entries and sets a new update timestamp for the whole feed.
+	 * Sets a new update timestamp for the whole feed if an entry has been updated after
+	 * the feed's current update timestamp. Since the feed timestamp only moves forward, it
+	 * always equals the latest update of all entries.
+	 * 
+	 * @param entryUpdate {@link Date} - the update timestamp of an added or updated entry
 	 */
-	private final void updateFeedTimestamp() {
+	private final void updateFeedTimestamp(final Date entryUpdate) {
 		Date lastUpdate = feed.getUpdated();
-
-		for (Entry currentEntry : feed.getEntries()) {
-			if (currentEntry.getUpdated().after(lastUpdate)) {
-				lastUpdate = currentEntry.getUpdated();
-			}
+		if (entryUpdate != null && (lastUpdate == null || entryUpdate.after(lastUpdate))) {
+			feed.setUpdated(entryUpdate);
 		}
-		feed.setUpdated(lastUpdate);
 	}
 	
 	@Override
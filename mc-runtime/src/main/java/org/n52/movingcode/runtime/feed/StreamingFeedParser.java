@@ -0,0 +1,224 @@
+/**
+ * Copyright (C) 2012 52°North Initiative for Geospatial Open Source Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.n52.movingcode.runtime.feed;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Date;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.abdera.model.AtomDate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A streaming parser for Geoprocessing Feeds. Unlike {@link CodePackageFeed}, it does not build
+ * a document model; it reads the feed with StAX and extracts only what is required to ingest
+ * the feed: the feed's <code>updated</code> time stamp and, for each entry, the ID, the
+ * <code>updated</code> time stamp and the URL of the zipped package. Entries are passed to an
+ * {@link EntryHandler} as soon as they have been read.
+ */
+public final class StreamingFeedParser {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(StreamingFeedParser.class);
+
+	private static final String ATOM_NS = "http://www.w3.org/2005/Atom";
+	private static final QName FEED = new QName(ATOM_NS, "feed");
+	private static final QName ENTRY = new QName(ATOM_NS, "entry");
+	private static final QName ID = new QName(ATOM_NS, "id");
+	private static final QName UPDATED = new QName(ATOM_NS, "updated");
+	private static final QName LINK = new QName(ATOM_NS, "link");
+
+	private static final XMLInputFactory FACTORY = createFactory();
+
+	private StreamingFeedParser(){
+		// static utility
+	}
+
+	/**
+	 * Receives the entries of a feed.
+	 */
+	public interface EntryHandler {
+
+		/**
+		 * Called for each entry of the feed, in document order.
+		 * 
+		 * @param entry {@link FeedEntryInfo}
+		 */
+		void onEntry(FeedEntryInfo entry);
+	}
+
+	/**
+	 * Reads a feed from a stream and passes its entries to a handler. The stream is not closed.
+	 * 
+	 * @param atomStream {@link InputStream} - an Atom XML stream
+	 * @param handler {@link EntryHandler}
+	 * @return {@link Date} - the feed's <code>updated</code> time stamp, or <code>null</code> if the feed does not have one
+	 * @throws IOException - if the stream cannot be read or does not contain an Atom feed
+	 */
+	public static Date parse(final InputStream atomStream, final EntryHandler handler) throws IOException {
+		XMLStreamReader reader = null;
+		try {
+			reader = FACTORY.createXMLStreamReader(atomStream);
+			reader.nextTag();
+			if (!FEED.equals(reader.getName())){
+				throw new IOException("Not an Atom feed: " + reader.getName());
+			}
+
+			Date feedUpdated = null;
+			while (reader.nextTag() == XMLStreamConstants.START_ELEMENT){
+				QName name = reader.getName();
+				if (UPDATED.equals(name)){
+					feedUpdated = parseDate(reader.getElementText());
+				} else if (ENTRY.equals(name)){
+					handler.onEntry(readEntry(reader));
+				} else {
+					skipElement(reader);
+				}
+			}
+			return feedUpdated;
+		} catch (XMLStreamException e) {
+			throw new IOException("Feed cannot be parsed: " + e.getMessage(), e);
+		} finally {
+			if (reader != null){
+				try {
+					reader.close();
+				} catch (XMLStreamException e) {
+					// ignore
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads an entry. The reader is positioned on the entry's start tag and
+	 * will be positioned on its end tag.
+	 */
+	private static FeedEntryInfo readEntry(final XMLStreamReader reader) throws XMLStreamException {
+		String id = null;
+		Date updated = null;
+		URL packageURL = null;
+		while (reader.nextTag() == XMLStreamConstants.START_ELEMENT){
+			QName name = reader.getName();
+			if (ID.equals(name)){
+				id = reader.getElementText().trim();
+			} else if (UPDATED.equals(name)){
+				updated = parseDate(reader.getElementText());
+			} else if (LINK.equals(name)){
+				if (packageURL == null
+						&& CodePackageFeed.PACKAGE_LINK_REL.equals(reader.getAttributeValue(null, "rel"))
+						&& CodePackageFeed.PACKAGE_MIMETYPE.equals(reader.getAttributeValue(null, "type"))){
+					packageURL = parseURL(reader.getAttributeValue(null, "href"));
+				}
+				skipElement(reader);
+			} else {
+				skipElement(reader);
+			}
+		}
+		return new FeedEntryInfo(id, updated, packageURL);
+	}
+
+	/**
+	 * Skips an element and its content. The reader is positioned on the element's start tag
+	 * and will be positioned on its end tag.
+	 */
+	private static void skipElement(final XMLStreamReader reader) throws XMLStreamException {
+		int depth = 1;
+		while (depth > 0){
+			int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT){
+				depth++;
+			} else if (event == XMLStreamConstants.END_ELEMENT){
+				depth--;
+			}
+		}
+	}
+
+	private static Date parseDate(final String text){
+		try {
+			return AtomDate.parse(text.trim());
+		} catch (IllegalArgumentException e) {
+			LOGGER.error("Wrong date: " + text);
+			return null;
+		}
+	}
+
+	private static URL parseURL(final String href){
+		if (href == null){
+			return null;
+		}
+		try {
+			return new URL(href.trim());
+		} catch (MalformedURLException e) {
+			LOGGER.error("Wrong package URL: " + href);
+			return null;
+		}
+	}
+
+	private static XMLInputFactory createFactory(){
+		XMLInputFactory factory = XMLInputFactory.newInstance();
+		factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+		factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+		// feeds are remote content: do not resolve DTDs or external entities
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+		return factory;
+	}
+
+	/**
+	 * The parts of a feed entry that are required for ingestion.
+	 */
+	public static final class FeedEntryInfo {
+		private final String id;
+		private final Date updated;
+		private final URL packageURL;
+
+		FeedEntryInfo(String id, Date updated, URL packageURL){
+			this.id = id;
+			this.updated = updated;
+			this.packageURL = packageURL;
+		}
+
+		/**
+		 * @return {@link String} - the entry ID, or <code>null</code> if the entry does not have one
+		 */
+		public String getId(){
+			return id;
+		}
+
+		/**
+		 * @return {@link Date} - the entry's <code>updated</code> time stamp, may be <code>null</code>
+		 */
+		public Date getUpdated(){
+			return updated;
+		}
+
+		/**
+		 * @return {@link URL} - the URL of the zipped package, or <code>null</code> if the entry does not
+		 *         link a package or its URL is invalid
+		 */
+		public URL getPackageURL(){
+			return packageURL;
+		}
+	}
+}
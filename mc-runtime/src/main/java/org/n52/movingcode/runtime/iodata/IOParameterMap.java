@@ -43,7 +43,7 @@ public class IOParameterMap extends TreeMap<ParameterID, IOParameter> implements
         // retrieve functional description types
         // TODO: rework resolution mechanism for WPS 1.0 cs 2.0
         this.isWPSdescription = true;
-        PackageDescriptionDocument pd = mcp.getDescriptionAsDocument();
+        PackageDescriptionDocument pd = mcp.getSharedDescription();
 
         // create input index
         Map<String, InputDescriptionType> inputs = new HashMap<String, InputDescriptionType>();
@@ -52,7 +52,8 @@ public abstract class AbstractProcessor extends IOParameterMap implements IProce
 		this.scratchWorkspace = scratchworkspace;
 		this.mcPackage = mcp;
 		this.properties = properties;
-		this.packageDescriptionDoc = mcp.getDescriptionAsDocument();
+		// read-only; shared with the package
+		this.packageDescriptionDoc = mcp.getSharedDescription();
 	}
 
 }
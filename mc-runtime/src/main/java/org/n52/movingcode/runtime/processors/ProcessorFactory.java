@@ -63,7 +63,7 @@ public class ProcessorFactory {
 	 */
 	public AbstractProcessor newProcessor(final MovingCodePackage mcPackage) {
 
-		String processorID = findCompatibleProcessor(mcPackage.getDescriptionAsDocument().getPackageDescription());
+		String processorID = findCompatibleProcessor(mcPackage.getSharedDescription().getPackageDescription());
 
 		if (processorID != null) {
 			LOGGER.debug("Creating new processor for package: " + mcPackage.getPackageId().toString());
@@ -79,7 +79,7 @@ public class ProcessorFactory {
 	}
 
 	public boolean supportsPackage(final MovingCodePackage mcPackage){
-		String processorID = findCompatibleProcessor(mcPackage.getDescriptionAsDocument().getPackageDescription());
+		String processorID = findCompatibleProcessor(mcPackage.getSharedDescription().getPackageDescription());
 
 		// return true if processorID is not null
 		return processorID != null ? true : false; 
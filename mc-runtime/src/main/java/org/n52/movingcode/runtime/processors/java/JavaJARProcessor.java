@@ -75,7 +75,7 @@ public class JavaJARProcessor extends AbstractProcessor {
 
 		// 3. unzip workspace from package and assign workspaceDir
 		try {
-			this.clonedWorkspace = new File(this.mcPackage.dumpWorkspace(tmpWorkspace));
+			this.clonedWorkspace = new File(this.mcPackage.cloneWorkspace(tmpWorkspace));
 		}
 		catch (Exception e) {
 			LOGGER.error("Cannot write to instance workspace. " + this.clonedWorkspace.getAbsolutePath());
@@ -34,7 +34,6 @@ import org.apache.commons.exec.ExecuteException;
 import org.apache.commons.exec.ExecuteWatchdog;
 import org.apache.commons.exec.Executor;
 import org.apache.commons.exec.PumpStreamHandler;
-import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.n52.movingcode.runtime.iodata.IODataType;
 import org.n52.movingcode.runtime.iodata.IOParameter;
@@ -83,7 +82,7 @@ public class PythonCLIProcessor extends AbstractProcessor {
 
 		// 3. unzip workspace from package and assign workspaceDir
 		try {
-			this.clonedWorkspace = new File(this.mcPackage.dumpWorkspace(tmpWorkspace));
+			this.clonedWorkspace = new File(this.mcPackage.cloneWorkspace(tmpWorkspace));
 			LOGGER.info("Using temporary workspace at "+this.clonedWorkspace);
 		}
 		catch (Exception e) {
@@ -384,10 +383,7 @@ public class PythonCLIProcessor extends AbstractProcessor {
 
 	// delete the current workspace
 	protected void finalize() throws IOException {
-		try {
-			FileUtils.deleteDirectory(this.clonedWorkspace.getParentFile());
-		}
-		catch (IOException e) {
+		if (!MovingCodePackage.deleteWorkspace(this.clonedWorkspace.getParentFile())) {
 			System.out.println("Could not delete dead workspace:\n" + this.clonedWorkspace.getParentFile().getAbsolutePath());
 		}
 	}
@@ -0,0 +1,105 @@
+/**
+ * Copyright (C) 2012 52°North Initiative for Geospatial Open Source Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.n52.movingcode.runtime.codepackage;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class WorkspaceTemplatesTest {
+
+	private static final File testPackages = new File("src/test/resources/testpackages");
+
+	private File tmpDir;
+
+	@Before
+	public void setUp() throws Exception {
+		tmpDir = Files.createTempDirectory("templates").toFile();
+		// check templates on each clone
+		WorkspaceTemplates.setCheckInterval(0);
+	}
+
+	@After
+	public void tearDown() {
+		WorkspaceTemplates.setCheckInterval(60000);
+		MovingCodePackage.deleteWorkspace(tmpDir);
+	}
+
+	@Test
+	public void modifiedTemplateIsExtractedAgain() throws Exception {
+		// Arrange
+		MovingCodePackage mcPackage = new MovingCodePackage(new File(testPackages, "py_copy.zip"));
+		File firstScript = new File(mcPackage.cloneWorkspace(new File(tmpDir, "first")), "copy.py");
+		String original = FileUtils.readFileToString(firstScript);
+
+		// Act
+		// write protection does not stop root, so the template is modified through the link
+		firstScript.setWritable(true);
+		FileUtils.write(firstScript, "\n# changed\n", true);
+		File secondScript = new File(mcPackage.cloneWorkspace(new File(tmpDir, "second")), "copy.py");
+
+		// Assert
+		assertEquals(original, FileUtils.readFileToString(secondScript));
+		assertFalse(Files.isSameFile(firstScript.toPath(), secondScript.toPath()));
+	}
+
+	@Test
+	public void plainWorkspaceIsClonedFromTemplate() throws Exception {
+		// Arrange
+		File packageFolder = new File(tmpDir, "package");
+		FileUtils.copyDirectory(new File(testPackages, "py_copy"), packageFolder);
+		MovingCodePackage zipped = new MovingCodePackage(new File(testPackages, "py_copy.zip"));
+		MovingCodePackage mcPackage = MovingCodePackage.createFromPackageFolder(packageFolder, zipped.getHeader());
+		File source = new File(packageFolder, "py_copy/copy.py");
+
+		// Act
+		File firstScript = new File(mcPackage.cloneWorkspace(new File(tmpDir, "first")), "copy.py");
+		File secondScript = new File(mcPackage.cloneWorkspace(new File(tmpDir, "second")), "copy.py");
+
+		// Assert
+		assertTrue(FileUtils.contentEquals(source, firstScript));
+		// never linked to the package's own files
+		assertFalse(Files.isSameFile(source.toPath(), firstScript.toPath()));
+		assertTrue(Files.isSameFile(firstScript.toPath(), secondScript.toPath()));
+	}
+
+	@Test
+	public void changedPlainWorkspaceIsCopiedAgain() throws Exception {
+		// Arrange
+		File packageFolder = new File(tmpDir, "package");
+		FileUtils.copyDirectory(new File(testPackages, "py_copy"), packageFolder);
+		MovingCodePackage zipped = new MovingCodePackage(new File(testPackages, "py_copy.zip"));
+		MovingCodePackage mcPackage = MovingCodePackage.createFromPackageFolder(packageFolder, zipped.getHeader());
+		File source = new File(packageFolder, "py_copy/copy.py");
+		File firstScript = new File(mcPackage.cloneWorkspace(new File(tmpDir, "first")), "copy.py");
+		String original = FileUtils.readFileToString(firstScript);
+
+		// Act
+		FileUtils.write(source, "\n# changed\n", true);
+		File secondScript = new File(mcPackage.cloneWorkspace(new File(tmpDir, "second")), "copy.py");
+
+		// Assert
+		// the first clone still links to the replaced template
+		assertEquals(original, FileUtils.readFileToString(firstScript));
+		assertTrue(FileUtils.contentEquals(source, secondScript));
+	}
+}
@@ -0,0 +1,92 @@
+/**
+ * Copyright (C) 2012 52°North Initiative for Geospatial Open Source Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.n52.movingcode.runtime.codepackage;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.net.URL;
+import java.nio.file.Files;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ZipSpoolTest {
+
+	private static final File testPackages = new File("src/test/resources/testpackages");
+
+	private File tmpDir;
+
+	@Before
+	public void setUp() throws Exception {
+		tmpDir = Files.createTempDirectory("spool").toFile();
+		// any second package exceeds the spool
+		ZipSpool.setTotalBytes(1);
+	}
+
+	@After
+	public void tearDown() {
+		ZipSpool.setTotalBytes(1024L * 1024 * 1024);
+		FileUtils.deleteQuietly(tmpDir);
+	}
+
+	private URL packageURL(final String name) throws Exception {
+		File file = new File(tmpDir, name);
+		FileUtils.copyFile(new File(testPackages, name), file);
+		return file.toURI().toURL();
+	}
+
+	@Test
+	public void leasedFileIsDeletedAfterLastReader() throws Exception {
+		// Arrange
+		URL first = packageURL("py_copy.zip");
+		URL second = packageURL("jar_copy.zip");
+		ZipSpool.Lease lease = ZipSpool.acquire(first);
+		File leased = lease.getFile();
+
+		// Act
+		File other = ZipSpool.get(second);
+		boolean existsWhileLeased = leased.exists();
+		lease.close();
+		boolean existsAfterLease = leased.exists();
+
+		// Assert
+		assertNotNull(other);
+		assertTrue(existsWhileLeased);
+		assertFalse(existsAfterLease);
+	}
+
+	@Test
+	public void evictedPackageIsSpooledAgain() throws Exception {
+		// Arrange
+		URL first = packageURL("py_copy.zip");
+		URL second = packageURL("jar_copy.zip");
+		File spooled = ZipSpool.get(first);
+
+		// Act
+		ZipSpool.get(second);
+		boolean evicted = !spooled.exists();
+		// within the revalidation interval
+		File again = ZipSpool.get(first);
+
+		// Assert
+		assertTrue(evicted);
+		assertNotNull(again);
+		assertTrue(again.exists());
+	}
+}
@@ -0,0 +1,98 @@
+/**
+ * Copyright (C) 2012 52°North Initiative for Geospatial Open Source Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.n52.movingcode.runtime.codepackage;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.tudresden.gis.geoprocessing.movingcode.schema.PackageDescriptionDocument;
+
+public class ZippedPackageTest {
+
+	private static final File testPackages = new File("src/test/resources/testpackages");
+
+	private File tmpDir;
+
+	@Before
+	public void setUp() throws Exception {
+		tmpDir = Files.createTempDirectory("zipped").toFile();
+	}
+
+	@After
+	public void tearDown() {
+		FileUtils.deleteQuietly(tmpDir);
+	}
+
+	@Test
+	public void descriptionIsReadOnce() throws Exception {
+		// Arrange
+		File zipFile = new File(tmpDir, "package.zip");
+		FileUtils.copyFile(new File(testPackages, "py_copy.zip"), zipFile);
+		ZippedPackage archive = new ZippedPackage(zipFile);
+
+		// Act
+		PackageDescriptionDocument first = archive.getDescription();
+		PackageDescriptionDocument second = archive.getDescription();
+
+		// Assert
+		assertNotNull(first);
+		assertSame(first, second);
+		assertTrue(archive.containsFileInWorkspace("copy.py"));
+		assertTrue(archive.containsFileInWorkspace("./copy.py"));
+		assertFalse(archive.containsFileInWorkspace("jarcopy.jar"));
+	}
+
+	@Test
+	public void indexIsRebuiltWhenFileChanges() throws Exception {
+		// Arrange
+		File zipFile = new File(tmpDir, "package.zip");
+		FileUtils.copyFile(new File(testPackages, "py_copy.zip"), zipFile);
+		ZippedPackage archive = new ZippedPackage(zipFile);
+		String pyRoot = archive.getDescription().getPackageDescription().getWorkspace().getWorkspaceRoot();
+
+		// Act
+		FileUtils.copyFile(new File(testPackages, "jar_copy.zip"), zipFile);
+		zipFile.setLastModified(zipFile.lastModified() + 2000);
+
+		// Assert
+		String jarRoot = archive.getDescription().getPackageDescription().getWorkspace().getWorkspaceRoot();
+		assertFalse(pyRoot.equals(jarRoot));
+		assertTrue(archive.containsFileInWorkspace("jarcopy.jar"));
+		assertFalse(archive.containsFileInWorkspace("copy.py"));
+	}
+
+	@Test
+	public void dumpPackageExtractsOnlyTheWorkspace() throws Exception {
+		// Arrange
+		ZippedPackage archive = new ZippedPackage(new File(testPackages, "py_copy.zip"));
+		String wsRoot = archive.getDescription().getPackageDescription().getWorkspace().getWorkspaceRoot();
+
+		// Act
+		boolean dumped = archive.dumpPackage(wsRoot, tmpDir);
+
+		// Assert
+		assertTrue(dumped);
+		assertTrue(new File(tmpDir, "py_copy/copy.py").isFile());
+		assertFalse(new File(tmpDir, Constants.PACKAGE_DESCRIPTION_XML).exists());
+	}
+}
@@ -0,0 +1,109 @@
+/**
+ * Copyright (C) 2012 52°North Initiative for Geospatial Open Source Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.n52.movingcode.runtime.coderepository;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermission;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ContentAddressedStoreTest {
+
+	private File tmpDir;
+
+	@Before
+	public void setUp() throws Exception {
+		tmpDir = Files.createTempDirectory("store").toFile();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		ContentAddressedStore.delete(tmpDir);
+	}
+
+	private File packageFolder(final String name) throws Exception {
+		File folder = new File(tmpDir, name);
+		FileUtils.write(new File(folder, "a.txt"), "content");
+		FileUtils.write(new File(folder, "workspace/b.txt"), "content");
+		return folder;
+	}
+
+	@Test
+	public void filesAreLinkedToReadOnlyBlobs() throws Exception {
+		// Arrange
+		ContentAddressedStore store = new ContentAddressedStore(new File(tmpDir, "blobs"));
+		File folder = packageFolder("package");
+
+		// Act
+		store.ingest(folder);
+
+		// Assert
+		File a = new File(folder, "a.txt");
+		File b = new File(folder, "workspace/b.txt");
+		assertTrue(Files.isSameFile(a.toPath(), b.toPath()));
+		// two files and the blob
+		assertEquals(3, Files.getAttribute(a.toPath(), "unix:nlink"));
+		assertFalse(Files.getPosixFilePermissions(a.toPath()).contains(PosixFilePermission.OWNER_WRITE));
+		assertEquals("content", FileUtils.readFileToString(a));
+	}
+
+	@Test
+	public void unusedBlobsArePurgedAfterGracePeriod() throws Exception {
+		// Arrange
+		File root = new File(tmpDir, "blobs");
+		ContentAddressedStore store = new ContentAddressedStore(root, 0);
+		File folder = packageFolder("package");
+		store.ingest(folder);
+
+		// Act
+		int linkedPurged = store.purge();
+		ContentAddressedStore.delete(folder);
+		int gracePurged = new ContentAddressedStore(root).purge();
+		// the file system clock may be coarser than the system clock
+		Thread.sleep(100);
+		int unusedPurged = store.purge();
+
+		// Assert
+		assertFalse(folder.exists());
+		assertEquals(0, linkedPurged);
+		assertEquals(0, gracePurged);
+		assertEquals(1, unusedPurged);
+	}
+
+	@Test
+	public void unusedBlobIsLinkedAgain() throws Exception {
+		// Arrange
+		ContentAddressedStore store = new ContentAddressedStore(new File(tmpDir, "blobs"), 0);
+		File first = packageFolder("first");
+		store.ingest(first);
+		ContentAddressedStore.delete(first);
+
+		// Act
+		File second = packageFolder("second");
+		store.ingest(second);
+		int purged = store.purge();
+
+		// Assert
+		assertEquals(0, purged);
+		assertEquals(3, Files.getAttribute(new File(second, "a.txt").toPath(), "unix:nlink"));
+	}
+}
@@ -0,0 +1,103 @@
+/**
+ * Copyright (C) 2012 52°North Initiative for Geospatial Open Source Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.n52.movingcode.runtime.coderepository;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+
+import org.joda.time.DateTime;
+import org.junit.Test;
+import org.n52.movingcode.runtime.codepackage.MovingCodePackage;
+import org.n52.movingcode.runtime.codepackage.PID;
+import org.n52.movingcode.runtime.codepackage.PackageHeader;
+
+public class PackageInventoryTest {
+
+	private static MovingCodePackage mockPackage(final String name, final DateTime timestamp){
+		PID pid = new PID(name, timestamp);
+		// the zip file is never opened
+		return MovingCodePackage.createFromZipFile(new File(pid.getCanonicalName() + ".zip"),
+				new PackageHeader(pid, name + ".function", name, null));
+	}
+
+	@Test
+	public void viewsAreComputedOnce() {
+		PackageInventory inventory = new PackageInventory.Builder()
+				.add(mockPackage("my.package.a", DateTime.now()))
+				.add(mockPackage("my.package.b", DateTime.now()))
+				.build();
+		
+		assertSame(inventory.getPackageIDs(), inventory.getPackageIDs());
+		assertSame(inventory.getFunctionIDs(), inventory.getFunctionIDs());
+		assertSame(inventory.latestPackageVersions(), inventory.latestPackageVersions());
+	}
+	
+	@Test
+	public void builderDoesNotModifyInventory() {
+		MovingCodePackage a = mockPackage("my.package.a", DateTime.now());
+		MovingCodePackage b = mockPackage("my.package.b", DateTime.now());
+		PackageInventory inventory = new PackageInventory.Builder().add(a).build();
+		
+		PackageInventory updated = new PackageInventory.Builder(inventory).add(b).remove(a.getPackageId()).build();
+		
+		assertTrue(inventory.contains(a.getPackageId()));
+		assertFalse(inventory.contains(b.getPackageId()));
+		assertEquals(1, inventory.getPackageIDs().size());
+		assertFalse(updated.contains(a.getPackageId()));
+		assertTrue(updated.contains(b.getPackageId()));
+		assertFalse(inventory.equals(updated));
+	}
+	
+	@Test
+	public void equalInventoriesHaveEqualHashCodes() {
+		MovingCodePackage a = mockPackage("my.package.a", DateTime.now());
+		MovingCodePackage b = mockPackage("my.package.b", DateTime.now());
+		
+		PackageInventory ab = new PackageInventory.Builder().add(a).add(b).build();
+		PackageInventory ba = new PackageInventory.Builder().add(b).add(a).build();
+		
+		assertEquals(ab, ba);
+		assertEquals(ab.hashCode(), ba.hashCode());
+	}
+	
+	@Test
+	public void latestAndAsOfLookups() {
+		DateTime t1 = new DateTime(2014, 1, 1, 0, 0);
+		DateTime t2 = new DateTime(2014, 6, 1, 0, 0);
+		DateTime t3 = new DateTime(2015, 1, 1, 0, 0);
+		MovingCodePackage v1 = mockPackage("my.package.a", t1);
+		MovingCodePackage v2 = mockPackage("my.package.a", t2);
+		MovingCodePackage v3 = mockPackage("my.package.a", t3);
+		MovingCodePackage other = mockPackage("my.package.b", t1);
+		
+		PackageInventory inventory = new PackageInventory.Builder().add(v2).add(v1).add(v3).add(other).build();
+		
+		assertSame(v3, inventory.getLatestPackage("my.package.a"));
+		assertSame(other, inventory.getLatestPackage("my.package.b"));
+		assertNull(inventory.getLatestPackage("my.package.c"));
+		assertEquals(2, inventory.latestPackageVersions().size());
+		assertNull(inventory.getPackageAsOf("my.package.a", t1.minusDays(1)));
+		assertSame(v1, inventory.getPackageAsOf("my.package.a", t1));
+		assertSame(v2, inventory.getPackageAsOf("my.package.a", t3.minusDays(1)));
+		assertSame(v3, inventory.getPackageAsOf("my.package.a", t3.plusDays(1)));
+		
+		// removing the latest version exposes the previous one
+		PackageInventory updated = new PackageInventory.Builder(inventory).remove(v3.getPackageId()).build();
+		assertSame(v2, updated.getLatestPackage("my.package.a"));
+		assertSame(v3, inventory.getLatestPackage("my.package.a"));
+	}
+}
@@ -15,14 +15,24 @@
  */
 package org.n52.movingcode.runtime.test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
 
 import org.junit.Assert;
 import org.junit.Test;
 import org.n52.movingcode.runtime.GlobalRepositoryManager;
 import org.n52.movingcode.runtime.codepackage.MovingCodePackage;
 import org.n52.movingcode.runtime.codepackage.PID;
+import org.n52.movingcode.runtime.feed.CodePackageFeed;
+import org.n52.movingcode.runtime.feed.FeedTemplate;
+import org.n52.movingcode.runtime.feed.StreamingFeedParser;
+import org.n52.movingcode.runtime.feed.StreamingFeedParser.FeedEntryInfo;
 import org.n52.movingcode.runtime.iodata.IOParameter;
 import org.n52.movingcode.runtime.processors.AbstractProcessor;
 import org.n52.movingcode.runtime.processors.ProcessorFactory;
@@ -84,4 +94,61 @@ public class FeedReadTest extends MCRuntimeTestConfig {
 			LOGGER.info("Could not read test feed from URL " + feedURL + CR + "Please check if this feed is indeed up and running.");
 		}
 	}
+
+	@Test
+	public void streamingFeedParserTest() throws Exception {
+		String webRoot = "http://localhost/feed/";
+		CodePackageFeed feed = new CodePackageFeed(new FeedTemplate.Builder().feedUrl(webRoot).build());
+		for (String name : new String[]{"jar_copy.zip", "py_copy.zip", "ztransform.zip"}){
+			File zipFile = new File("src/test/resources/testpackages/" + name);
+			Assert.assertTrue(feed.addEntry(new MovingCodePackage(zipFile), webRoot));
+		}
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		feed.write(os);
+		
+		final List<FeedEntryInfo> entries = new ArrayList<FeedEntryInfo>();
+		Date updated = StreamingFeedParser.parse(new ByteArrayInputStream(os.toByteArray()), new StreamingFeedParser.EntryHandler() {
+			@Override
+			public void onEntry(FeedEntryInfo entry) {
+				entries.add(entry);
+			}
+		});
+		
+		// the parser must extract the same information as the document model
+		Assert.assertEquals(feed.lastUpdated(), updated);
+		Assert.assertEquals(feed.getEntryIDs().length, entries.size());
+		for (FeedEntryInfo entry : entries){
+			Assert.assertEquals(feed.getEntryUpdatedTimeStamp(entry.getId()), entry.getUpdated());
+			Assert.assertEquals(feed.getPackageURL(entry.getId()), entry.getPackageURL());
+			Assert.assertNotNull(entry.getPackageURL());
+		}
+	}
+
+	@Test
+	public void feedEntryIndexTest() throws Exception {
+		// Arrange
+		String webRoot = "http://localhost/feed/";
+		CodePackageFeed feed = new CodePackageFeed(new FeedTemplate.Builder().feedUrl(webRoot).build());
+		MovingCodePackage mcp = new MovingCodePackage(new File("src/test/resources/testpackages/py_copy.zip"));
+		for (String name : new String[]{"jar_copy.zip", "py_copy.zip", "ztransform.zip"}){
+			feed.addEntry(new MovingCodePackage(new File("src/test/resources/testpackages/" + name)), webRoot);
+		}
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		feed.write(os);
+
+		// Act
+		CodePackageFeed readFeed = new CodePackageFeed(new ByteArrayInputStream(os.toByteArray()));
+		String entryID = webRoot + mcp.getPackageId().name;
+		Date later = new Date(readFeed.lastUpdated().getTime() + 60000);
+		readFeed.setEntryUpdatedTimeStamp(entryID, later);
+
+		// Assert
+		Assert.assertFalse("Duplicate entry has been added!", feed.addEntry(mcp, webRoot));
+		Assert.assertArrayEquals(feed.getEntryIDs(), readFeed.getEntryIDs());
+		Assert.assertEquals(feed.getPackageURL(entryID), readFeed.getPackageURL(entryID));
+		Assert.assertNotNull(readFeed.getFeedEntry(entryID));
+		Assert.assertNull(readFeed.getFeedEntry(webRoot + "no.such.package"));
+		Assert.assertEquals(later, readFeed.getEntryUpdatedTimeStamp(entryID));
+		Assert.assertEquals(later, readFeed.lastUpdated());
+	}
 }
@@ -0,0 +1,71 @@
+/**
+ * Copyright (C) 2012 52°North Initiative for Geospatial Open Source Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.n52.movingcode.runtime.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+
+import junit.framework.Assert;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Test;
+import org.n52.movingcode.runtime.codepackage.PID;
+import org.n52.movingcode.runtime.coderepository.LocalZipPackageRepository;
+import org.n52.movingcode.runtime.coderepository.MovingCodeRepository;
+import org.n52.movingcode.runtime.coderepository.RepositoryConfig;
+import org.n52.movingcode.runtime.processors.AUID;
+
+public class InventorySnapshotTest extends MCRuntimeTestConfig {
+
+	private static final String echoFunctionID = "de.tu-dresden.geo.gis.algorithms.test.echo";
+
+	@After
+	public void disableSnapshots(){
+		RepositoryConfig.setSnapshotDirectory(null);
+	}
+
+	@Test
+	public void shouldRestoreInventoryFromSnapshot() throws URISyntaxException, IOException {
+		// Arrange
+		File tmpDir = FileUtils.getTempDirectory();
+		File repoDir = new File(tmpDir, AUID.randomAUID());
+		File snapshotDir = new File(tmpDir, AUID.randomAUID());
+		repoDir.mkdir();
+		repoDir.deleteOnExit();
+		snapshotDir.deleteOnExit();
+
+		URL testPackage = getClass().getResource("/testpackages/py_copy.zip");
+		FileUtils.copyFileToDirectory(new File(testPackage.toURI()), repoDir);
+
+		RepositoryConfig.setSnapshotDirectory(snapshotDir);
+		MovingCodeRepository scannedRepo = new LocalZipPackageRepository(repoDir, false);
+		Assert.assertTrue(scannedRepo.providesFunction(echoFunctionID));
+		Assert.assertEquals("Snapshot has not been written", 1, snapshotDir.list().length);
+
+		// Act
+		MovingCodeRepository restoredRepo = new LocalZipPackageRepository(repoDir, false);
+
+		// Assert
+		Assert.assertTrue(restoredRepo.providesFunction(echoFunctionID));
+		PID pid = scannedRepo.getPackageIDs()[0];
+		Assert.assertTrue(restoredRepo.containsPackage(pid));
+		Assert.assertEquals(scannedRepo.getPackageDescriptionAsString(pid), restoredRepo.getPackageDescriptionAsString(pid));
+	}
+
+}
@@ -0,0 +1,122 @@
+/**
+ * Copyright (C) 2012 52°North Initiative for Geospatial Open Source Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.n52.movingcode.runtime.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.n52.movingcode.runtime.codepackage.PID;
+import org.n52.movingcode.runtime.coderepository.LocalPlainRepository;
+import org.n52.movingcode.runtime.coderepository.LocalZipPackageRepository;
+import org.n52.movingcode.runtime.coderepository.MovingCodeRepository;
+import org.n52.movingcode.runtime.coderepository.RepositoryConfig;
+
+/**
+ * Scans and rescans of local repositories.
+ */
+public class LocalRepositoryTest extends MCRuntimeTestConfig {
+
+	private static final String echoFunctionID = "de.tu-dresden.geo.gis.algorithms.test.echo";
+	private static final File testPackages = new File("src/test/resources/testpackages");
+	private static final File pyCopyFolder = new File(testPackages, "py_copy");
+
+	private long pollingInterval;
+	private int scanParallelism;
+	private File repoDir;
+
+	@Before
+	public void setUp() throws Exception {
+		pollingInterval = RepositoryConfig.getLocalPollingInterval();
+		scanParallelism = RepositoryConfig.getScanParallelism();
+		RepositoryConfig.setLocalPollingInterval(100);
+		repoDir = Files.createTempDirectory("repo").toFile();
+	}
+
+	@After
+	public void tearDown() {
+		RepositoryConfig.setLocalPollingInterval(pollingInterval);
+		RepositoryConfig.setScanParallelism(scanParallelism);
+		FileUtils.deleteQuietly(repoDir);
+	}
+
+	@Test
+	public void shouldPickUpPackageFolderOnceComplete() throws Exception {
+		// Arrange: the description has arrived, the workspace is still missing
+		File packageFolder = new File(repoDir, "py_copy");
+		FileUtils.copyFileToDirectory(new File(pyCopyFolder, "packagedescription.xml"), packageFolder);
+		MovingCodeRepository repo = new LocalPlainRepository(repoDir);
+		assertFalse(repo.providesFunction(echoFunctionID));
+
+		// Act
+		FileUtils.copyDirectoryToDirectory(new File(pyCopyFolder, "py_copy"), packageFolder);
+
+		// Assert
+		try {
+			assertTrue("Completed package folder not detected!", waitForFunction(repo, true));
+		} finally {
+			repo.close();
+		}
+	}
+
+	@Test
+	public void parallelScanShouldFindTheSamePackages() throws Exception {
+		// Arrange: all test packages plus a broken zip file
+		for (File zipFile : FileUtils.listFiles(testPackages, new String[]{"zip"}, false)){
+			FileUtils.copyFileToDirectory(zipFile, repoDir);
+		}
+		FileUtils.writeStringToFile(new File(repoDir, "broken.zip"), "not a zip file");
+
+		// Act
+		RepositoryConfig.setScanParallelism(1);
+		MovingCodeRepository sequential = new LocalZipPackageRepository(repoDir, false);
+		RepositoryConfig.setScanParallelism(4);
+		MovingCodeRepository parallel = new LocalZipPackageRepository(repoDir, false);
+
+		// Assert
+		try {
+			Set<PID> expected = new HashSet<PID>(Arrays.asList(sequential.getPackageIDs()));
+			assertFalse("No packages found!", expected.isEmpty());
+			assertEquals(expected, new HashSet<PID>(Arrays.asList(parallel.getPackageIDs())));
+		} finally {
+			sequential.close();
+			parallel.close();
+		}
+	}
+
+	/**
+	 * Waits until the repository does (or does not) provide the echo function.
+	 */
+	static boolean waitForFunction(MovingCodeRepository repo, boolean expected) throws InterruptedException{
+		for (int i = 0; i < 100; i++){
+			if (repo.providesFunction(echoFunctionID) == expected){
+				return true;
+			}
+			Thread.sleep(100);
+		}
+		return false;
+	}
+}
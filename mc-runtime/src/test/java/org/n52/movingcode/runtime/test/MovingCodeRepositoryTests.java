@@ -16,16 +16,35 @@
 package org.n52.movingcode.runtime.test;
 
 import java.io.File;
+import java.io.FileFilter;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.filefilter.HiddenFileFilter;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
 import static org.junit.Assert.*;
 import org.junit.Test;
 import org.n52.movingcode.runtime.GlobalRepositoryManager;
 import org.n52.movingcode.runtime.codepackage.MovingCodePackage;
 import org.n52.movingcode.runtime.codepackage.PID;
+import org.n52.movingcode.runtime.coderepository.LocalVersionedFileRepository;
+import org.n52.movingcode.runtime.coderepository.LocalZipPackageRepository;
 import org.n52.movingcode.runtime.coderepository.MovingCodeRepository;
+import org.n52.movingcode.runtime.coderepository.RepositoryChangeEvent;
+import org.n52.movingcode.runtime.coderepository.RepositoryChangeListener;
+import org.n52.movingcode.runtime.coderepository.RepositoryChangeSupport;
+import org.n52.movingcode.runtime.coderepository.RepositoryConfig;
+import org.n52.movingcode.runtime.coderepository.RepositoryDeltaListener;
+import org.n52.movingcode.runtime.coderepository.SingleFlight;
 import org.n52.movingcode.runtime.iodata.IOParameter;
 import org.n52.movingcode.runtime.iodata.IOParameterMap;
 import org.n52.movingcode.runtime.processors.AUID;
@@ -273,6 +292,67 @@ public class MovingCodeRepositoryTests extends MCRuntimeTestConfig {
 		assertTrue(repoMan.providesFunction(zTransformFunctionID));
 	}
 
+	@Test
+	public void testRepoManagerIndex() throws Exception {
+
+		// Arrange
+		File repoFolder = newTempDir();
+		FileUtils.copyFileToDirectory(new File(packageFolderName, "ztransform.zip"), repoFolder);
+		MovingCodeRepository repo = MovingCodeRepository.Factory.createFromZipFilesFolder(repoFolder);
+		PID pid = repo.getPackageByFunction(zTransformFunctionID)[0].getPackageId();
+		GlobalRepositoryManager repoMan = GlobalRepositoryManager.getInstance();
+		int multiplicity = repoMan.checkMultiplicityOfPackage(pid);
+
+		// Act
+		repoMan.addRepository(repo, repoFolder.getAbsolutePath());
+
+		// Assert
+		assertEquals(multiplicity + 1, repoMan.checkMultiplicityOfPackage(pid));
+		assertTrue(repoMan.providesFunction(zTransformFunctionID));
+		assertNotNull(repoMan.getPackage(pid));
+		assertNotNull(repoMan.getPackageDescriptionAsString(pid));
+
+		// Act
+		repoMan.removeRepository(repoFolder.getAbsolutePath());
+
+		// Assert
+		assertEquals(multiplicity, repoMan.checkMultiplicityOfPackage(pid));
+		assertEquals(multiplicity > 0, repoMan.containsPackage(pid));
+	}
+
+	@Test
+	public void testSharedSchedulerThreads() throws Exception {
+
+		// Arrange
+		File packageFolder = new File(packageFolderName);
+		MovingCodeRepository[] repos = new MovingCodeRepository[10];
+
+		// Act
+		for (int i = 0; i < repos.length; i++){
+			repos[i] = new LocalZipPackageRepository(packageFolder);
+		}
+
+		// Assert
+		assertTrue(countThreads("RepositoryScheduler-") <= RepositoryConfig.getSchedulerThreads());
+		assertTrue(countThreads("RepositoryTimer-") <= 1);
+		for (MovingCodeRepository repo : repos){
+			assertTrue(repo.providesFunction(zTransformFunctionID));
+			repo.close();
+			repo.close(); // closing twice has no effect
+			assertTrue(repo.providesFunction(zTransformFunctionID));
+		}
+	}
+
+	private static final int countThreads(final String namePrefix){
+		int count = 0;
+		for (Thread t : Thread.getAllStackTraces().keySet()){
+			if (t.getName().startsWith(namePrefix)){
+				count++;
+			}
+		}
+		return count;
+	}
+
 	@Test
 	public void testPackageZipping() throws Exception {
 
@@ -302,6 +382,273 @@ public class MovingCodeRepositoryTests extends MCRuntimeTestConfig {
 		assertTrue(mcp.isValid());
 	}
 	
+	@Test
+	public void testPackageVersionLookup() throws Exception {
+
+		// Arrange
+		File wsFolder = new File(workspace);
+		LocalVersionedFileRepository repo = new LocalVersionedFileRepository(newTempDir());
+		DateTime olderTimestamp = new DateTime(2013, 1, 1, 0, 0, DateTimeZone.UTC);
+		DateTime newerTimestamp = new DateTime(2014, 1, 1, 0, 0, DateTimeZone.UTC);
+
+		// Act
+		for (DateTime timestamp : new DateTime[]{newerTimestamp, olderTimestamp}){
+			PackageDescriptionDocument doc = PackageDescriptionDocument.Factory.parse(new File(descriptionXML));
+			doc.getPackageDescription().setTimestamp(timestamp.toGregorianCalendar());
+			repo.addPackage(wsFolder, doc);
+		}
+		String packageName = repo.getPackageIDs()[0].name;
+
+		// Assert
+		assertEquals(2, repo.getPackageIDs().length);
+		assertTrue(repo.getLatestPackage(packageName).getTimestamp().isEqual(newerTimestamp));
+		assertTrue(repo.getPackageAsOf(packageName, newerTimestamp.minusDays(1)).getTimestamp().isEqual(olderTimestamp));
+		assertTrue(repo.getPackageAsOf(packageName, newerTimestamp).getTimestamp().isEqual(newerTimestamp));
+		assertNull(repo.getPackageAsOf(packageName, olderTimestamp.minusDays(1)));
+		assertNull(repo.getLatestPackage("no.such.package"));
+	}
+	
+	@Test
+	public void testAddedWorkspaceIsCopied() throws Exception {
+
+		// Arrange
+		File sourceFolder = newTempDir();
+		FileUtils.copyDirectory(new File(workspace).getParentFile(), sourceFolder);
+		PackageDescriptionDocument doc = PackageDescriptionDocument.Factory.parse(new File(sourceFolder, "packagedescription.xml"));
+		LocalVersionedFileRepository repo = new LocalVersionedFileRepository(newTempDir());
+
+		// Act
+		MovingCodePackage mcp = repo.addPackage(new File(sourceFolder, "ztransform"), doc);
+		FileUtils.deleteDirectory(sourceFolder);
+
+		// Assert: the registered package is read from its copy in the repository
+		assertNotNull(mcp);
+		assertSame(mcp, repo.getPackage(mcp.getPackageId()));
+		File dumpedWorkspace = new File(mcp.dumpWorkspace(newTempDir()));
+		assertTrue(new File(dumpedWorkspace, "ztransform.py").isFile());
+		repo.close();
+	}
+	
+	@Test
+	public void testRepoManagerVersionLookup() throws Exception {
+
+		// Arrange: two repositories with different versions of the same package
+		File wsFolder = new File(workspace);
+		String packageName = "org.n52.movingcode.runtime.test.versions";
+		DateTime olderTimestamp = new DateTime(2013, 1, 1, 0, 0, DateTimeZone.UTC);
+		DateTime newerTimestamp = new DateTime(2014, 1, 1, 0, 0, DateTimeZone.UTC);
+		File olderFolder = newTempDir();
+		File newerFolder = newTempDir();
+		LocalVersionedFileRepository olderRepo = new LocalVersionedFileRepository(olderFolder);
+		LocalVersionedFileRepository newerRepo = new LocalVersionedFileRepository(newerFolder);
+		for (DateTime timestamp : new DateTime[]{olderTimestamp, newerTimestamp}){
+			PackageDescriptionDocument doc = PackageDescriptionDocument.Factory.parse(new File(descriptionXML));
+			doc.getPackageDescription().setPackageId(packageName);
+			doc.getPackageDescription().setTimestamp(timestamp.toGregorianCalendar());
+			(timestamp == olderTimestamp ? olderRepo : newerRepo).addPackage(wsFolder, doc);
+		}
+		GlobalRepositoryManager repoMan = GlobalRepositoryManager.getInstance();
+
+		// Act
+		repoMan.addRepository(olderRepo, olderFolder.getAbsolutePath());
+		repoMan.addRepository(newerRepo, newerFolder.getAbsolutePath());
+
+		// Assert
+		try {
+			MovingCodePackage latest = repoMan.getLatestPackage(packageName);
+			assertTrue(latest.getTimestamp().isEqual(newerTimestamp));
+			assertTrue(repoMan.getLatestPackages().contains(latest));
+			assertTrue(repoMan.getPackageAsOf(packageName, newerTimestamp.minusDays(1)).getTimestamp().isEqual(olderTimestamp));
+			assertNull(repoMan.getPackageAsOf(packageName, olderTimestamp.minusDays(1)));
+
+			// Act
+			repoMan.removeRepository(newerFolder.getAbsolutePath());
+
+			// Assert
+			assertTrue(repoMan.getLatestPackage(packageName).getTimestamp().isEqual(olderTimestamp));
+			assertFalse(repoMan.getLatestPackages().contains(latest));
+		} finally {
+			repoMan.removeRepository(olderFolder.getAbsolutePath());
+			repoMan.removeRepository(newerFolder.getAbsolutePath());
+		}
+		assertNull(repoMan.getLatestPackage(packageName));
+	}
+	
+	@Test
+	public void testContentAddressedStore() throws Exception {
+
+		// Arrange
+		File wsFolder = new File(workspace);
+		File repoFolder = newTempDir();
+		RepositoryConfig.setBlobStoreDirectory(newTempDir());
+		LocalVersionedFileRepository repo;
+		try {
+			repo = new LocalVersionedFileRepository(repoFolder);
+		} finally {
+			RepositoryConfig.setBlobStoreDirectory(null);
+		}
+
+		// Act
+		for (int year = 2013; year <= 2014; year++){
+			PackageDescriptionDocument doc = PackageDescriptionDocument.Factory.parse(new File(descriptionXML));
+			doc.getPackageDescription().setTimestamp(new DateTime(year, 1, 1, 0, 0, DateTimeZone.UTC).toGregorianCalendar());
+			repo.addPackage(wsFolder, doc);
+		}
+		repo.close();
+
+		// Assert: both versions share the files of their workspace
+		File[] packageFolders = repoFolder.listFiles((FileFilter) HiddenFileFilter.VISIBLE);
+		assertEquals(2, packageFolders.length);
+		int shared = 0;
+		for (File file : FileUtils.listFiles(packageFolders[0], null, true)){
+			String relativePath = packageFolders[0].toURI().relativize(file.toURI()).getPath();
+			File other = new File(packageFolders[1], relativePath);
+			if (!file.getName().equals("packagedescription.xml")){
+				assertTrue(Files.isSameFile(file.toPath(), other.toPath()));
+				shared++;
+			}
+		}
+		assertTrue(shared > 0);
+	}
+
+	@Test
+	public void testCoalescedChangeEvents() throws Exception {
+
+		// Arrange
+		File wsFolder = new File(workspace);
+		LocalVersionedFileRepository repo = new LocalVersionedFileRepository(newTempDir());
+		final List<RepositoryChangeEvent> events = new CopyOnWriteArrayList<RepositoryChangeEvent>();
+		final List<MovingCodeRepository> updates = new CopyOnWriteArrayList<MovingCodeRepository>();
+		final CountDownLatch delivered = new CountDownLatch(2);
+		repo.addRepositoryChangeListener(new RepositoryDeltaListener() {
+			@Override
+			public void onRepositoryChange(RepositoryChangeEvent event) {
+				events.add(event);
+				delivered.countDown();
+			}
+
+			@Override
+			public void onRepositoryUpdate(MovingCodeRepository updatedRepo) {
+				fail("Delta listeners shall only receive change events.");
+			}
+		});
+		repo.addRepositoryChangeListener(new RepositoryChangeListener() {
+			@Override
+			public void onRepositoryUpdate(MovingCodeRepository updatedRepo) {
+				updates.add(updatedRepo);
+				delivered.countDown();
+			}
+		});
+		long window = RepositoryConfig.getChangeEventWindow();
+		RepositoryConfig.setChangeEventWindow(500);
+
+		// Act
+		PID[] pids = new PID[3];
+		for (int i = 0; i < pids.length; i++){
+			PackageDescriptionDocument doc = PackageDescriptionDocument.Factory.parse(new File(descriptionXML));
+			doc.getPackageDescription().setTimestamp(new DateTime(2013 + i, 1, 1, 0, 0, DateTimeZone.UTC).toGregorianCalendar());
+			repo.addPackage(wsFolder, doc);
+			pids[i] = repo.getLatestPackage(repo.getPackageIDs()[0].name).getPackageId();
+		}
+		repo.removePackage(pids[0]);
+		boolean done = delivered.await(10, TimeUnit.SECONDS);
+		RepositoryConfig.setChangeEventWindow(window);
+		repo.close();
+
+		// Assert
+		assertTrue("Change events have not been delivered", done);
+		assertEquals(1, events.size());
+		assertEquals(1, updates.size());
+		RepositoryChangeEvent event = events.get(0);
+		assertSame(repo, event.getRepository());
+		assertEquals(2, event.getAddedPackages().size());
+		assertTrue(event.getAddedPackages().contains(pids[1]));
+		assertTrue(event.getAddedPackages().contains(pids[2]));
+		assertTrue(event.getRemovedPackages().isEmpty());
+		assertTrue(event.getUpdatedPackages().isEmpty());
+	}
+
+	@Test
+	public void testRepoManagerIndexIsUpdatedRightAway() throws Exception {
+
+		// Arrange
+		File repoFolder = newTempDir();
+		LocalVersionedFileRepository repo = new LocalVersionedFileRepository(repoFolder);
+		GlobalRepositoryManager repoMan = GlobalRepositoryManager.getInstance();
+		repoMan.addRepository(repo, repoFolder.getAbsolutePath());
+		long window = RepositoryConfig.getChangeEventWindow();
+		RepositoryConfig.setChangeEventWindow(60000);
+		PackageDescriptionDocument doc = PackageDescriptionDocument.Factory.parse(new File(descriptionXML));
+		doc.getPackageDescription().setPackageId("org.n52.movingcode.runtime.test.index");
+
+		try {
+			// Act
+			repo.addPackage(new File(workspace), doc);
+			PID pid = repo.getPackageIDs()[0];
+
+			// Assert
+			assertTrue(repoMan.containsPackage(pid));
+			assertSame(repo.getPackage(pid), repoMan.getPackage(pid));
+
+			// Act
+			repo.removePackage(pid);
+
+			// Assert
+			assertFalse(repoMan.containsPackage(pid));
+		} finally {
+			RepositoryConfig.setChangeEventWindow(window);
+			repoMan.removeRepository(repoFolder.getAbsolutePath());
+		}
+	}
+
+	@Test
+	public void testChangeEventMerge() {
+		PID pid = new PID("my.package.name", new DateTime(2013, 1, 1, 0, 0, DateTimeZone.UTC));
+
+		assertTrue(new RepositoryChangeEvent.Builder().added(pid).removed(pid).isEmpty());
+		assertTrue(new RepositoryChangeEvent.Builder().added(pid).updated(pid).build(null).getAddedPackages().contains(pid));
+		assertTrue(new RepositoryChangeEvent.Builder().removed(pid).added(pid).build(null).getUpdatedPackages().contains(pid));
+		assertTrue(new RepositoryChangeEvent.Builder().updated(pid).removed(pid).build(null).getRemovedPackages().contains(pid));
+	}
+
+	@Test
+	public void testSlowListenerDoesNotStallTimer() throws Exception {
+		// Arrange: a listener of one repository that blocks until it is released
+		PID pid = new PID("my.package.name", new DateTime(2013, 1, 1, 0, 0, DateTimeZone.UTC));
+		final CountDownLatch release = new CountDownLatch(1);
+		final CountDownLatch delivered = new CountDownLatch(1);
+		RepositoryChangeSupport slow = new RepositoryChangeSupport(null);
+		slow.addListener(new RepositoryChangeListener() {
+			@Override
+			public void onRepositoryUpdate(MovingCodeRepository updatedRepo) {
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+		RepositoryChangeSupport other = new RepositoryChangeSupport(null);
+		other.addListener(new RepositoryChangeListener() {
+			@Override
+			public void onRepositoryUpdate(MovingCodeRepository updatedRepo) {
+				delivered.countDown();
+			}
+		});
+
+		try {
+			// Act
+			slow.fireChange(new RepositoryChangeEvent.Builder().added(pid));
+			Thread.sleep(2 * RepositoryConfig.getChangeEventWindow());
+			other.fireChange(new RepositoryChangeEvent.Builder().added(pid));
+
+			// Assert: the timer ends the window of the other repository while the slow listener is still busy
+			assertTrue(delivered.await(5, TimeUnit.SECONDS));
+		} finally {
+			release.countDown();
+		}
+	}
+
 	private static final File newTempDir(){
 		File tmpDir = FileUtils.getTempDirectory();
 		File newTmpFolder = new File(tmpDir, AUID.randomAUID());
@@ -309,4 +656,60 @@ public class MovingCodeRepositoryTests extends MCRuntimeTestConfig {
 		newTmpFolder.deleteOnExit();
 		return newTmpFolder;
 	}
+
+	@Test
+	public void testSingleFlight() throws Exception {
+
+		// Arrange
+		final SingleFlight<PID, String> flight = new SingleFlight<PID, String>();
+		final PID pid = new PID("my.package.name", new DateTime(2013, 1, 1, 0, 0, DateTimeZone.UTC));
+		final AtomicInteger loads = new AtomicInteger();
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final Callable<String> loader = new Callable<String>() {
+			@Override
+			public String call() throws Exception {
+				loads.incrementAndGet();
+				started.countDown();
+				release.await();
+				return "loaded";
+			}
+		};
+		final List<String> results = new CopyOnWriteArrayList<String>();
+		Thread[] callers = new Thread[5];
+		for (int i = 0; i < callers.length; i++){
+			callers[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						results.add(flight.execute(pid, loader));
+					} catch (Exception e) {
+						results.add(e.toString());
+					}
+				}
+			});
+		}
+
+		// Act
+		callers[0].start();
+		started.await();
+		for (int i = 1; i < callers.length; i++){
+			callers[i].start();
+		}
+		Thread.sleep(200);
+		release.countDown();
+		for (Thread caller : callers){
+			caller.join();
+		}
+
+		// Assert
+		assertEquals(1, loads.get());
+		assertEquals(callers.length, results.size());
+		for (String result : results){
+			assertEquals("loaded", result);
+		}
+		// the next request starts a new load
+		flight.execute(pid, loader);
+		assertEquals(2, loads.get());
+	}
 }
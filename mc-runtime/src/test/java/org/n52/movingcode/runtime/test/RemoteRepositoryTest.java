@@ -0,0 +1,311 @@
+/**
+ * Copyright (C) 2012 52°North Initiative for Geospatial Open Source Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.n52.movingcode.runtime.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Date;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.n52.movingcode.runtime.codepackage.MovingCodePackage;
+import org.n52.movingcode.runtime.coderepository.CachedRemoteFeedRepository;
+import org.n52.movingcode.runtime.coderepository.MovingCodeRepository;
+import org.n52.movingcode.runtime.coderepository.RemoteFeedRepository;
+import org.n52.movingcode.runtime.coderepository.RepositoryConfig;
+import org.n52.movingcode.runtime.coderepository.RepositoryUtils;
+
+/**
+ * Remote and cached remote repositories against a local {@link TestFeedServer}.
+ */
+public class RemoteRepositoryTest extends MCRuntimeTestConfig {
+
+	private static final File testPackages = new File("src/test/resources/testpackages");
+
+	private long pollingInterval;
+	private TestFeedServer server;
+	private File cacheDir;
+
+	@Before
+	public void setUp() throws Exception {
+		pollingInterval = RepositoryConfig.getRemotePollingInterval();
+		RepositoryConfig.setRemotePollingInterval(200);
+		server = new TestFeedServer();
+		cacheDir = Files.createTempDirectory("cache").toFile();
+	}
+
+	@After
+	public void tearDown() {
+		RepositoryConfig.setRemotePollingInterval(pollingInterval);
+		server.stop();
+		FileUtils.deleteQuietly(cacheDir);
+	}
+
+	@Test
+	public void unchangedFeedIsNotDownloadedAgain() throws Exception {
+		// Arrange
+		server.addEntry("urn:test:py_copy", new Date(), "py_copy.zip", new File(testPackages, "py_copy.zip"));
+		MovingCodeRepository repo = new RemoteFeedRepository(server.feedURL());
+
+		try {
+			// Act
+			for (int i = 0; i < 100 && server.feedNotModified.get() < 2; i++){
+				Thread.sleep(100);
+			}
+
+			// Assert
+			assertTrue("Feed has not been polled!", server.feedNotModified.get() >= 2);
+			assertEquals(1, server.feedDownloads.get());
+			assertEquals(1, repo.getPackageIDs().length);
+
+			// Act
+			server.addEntry("urn:test:jar_copy", new Date(), "jar_copy.zip", new File(testPackages, "jar_copy.zip"));
+
+			// Assert: the changed feed is downloaded once
+			assertTrue("Changed feed has not been loaded!", waitForPackages(repo, 2));
+			assertEquals(2, server.feedDownloads.get());
+		} finally {
+			repo.close();
+		}
+	}
+
+	@Test
+	public void failedPackageFetchIsRetried() throws Exception {
+		// Arrange
+		server.addEntry("urn:test:py_copy", new Date(), "py_copy.zip", new File(testPackages, "py_copy.zip"));
+		server.setFailing("py_copy.zip", true);
+		MovingCodeRepository repo = new RemoteFeedRepository(server.feedURL());
+		assertEquals(0, repo.getPackageIDs().length);
+
+		// Act
+		server.setFailing("py_copy.zip", false);
+
+		// Assert: the unchanged feed is not downloaded again
+		try {
+			assertTrue("Failed package has not been retried!", waitForPackages(repo, 1));
+			assertEquals(1, server.feedDownloads.get());
+		} finally {
+			repo.close();
+		}
+	}
+
+	@Test
+	public void feedWithoutUpdatedIsMirrored() throws Exception {
+		// Arrange
+		server.addEntry("urn:test:py_copy", new Date(), "py_copy.zip", new File(testPackages, "py_copy.zip"));
+		server.setFeedUpdated(null);
+
+		// Act
+		MovingCodeRepository repo = new CachedRemoteFeedRepository(server.feedURL(), cacheDir);
+
+		// Assert
+		try {
+			assertTrue(waitForPackages(repo, 1));
+			assertEquals(1, mirroredPackages(cacheDir));
+		} finally {
+			repo.close();
+		}
+	}
+
+	@Test
+	public void failedPackageFetchDoesNotDeleteMirror() throws Exception {
+		// Arrange
+		server.addEntry("urn:test:py_copy", new Date(), "py_copy.zip", new File(testPackages, "py_copy.zip"));
+		MovingCodeRepository repo = new CachedRemoteFeedRepository(server.feedURL(), cacheDir);
+		try {
+			assertTrue(waitForPackages(repo, 1));
+		} finally {
+			repo.close();
+		}
+		assertEquals(1, mirroredPackages(cacheDir));
+
+		// Act: restart while the package cannot be fetched
+		// (a new server, so the package is not served from a spooled copy)
+		server.stop();
+		server = new TestFeedServer();
+		server.addEntry("urn:test:py_copy", new Date(), "py_copy.zip", new File(testPackages, "py_copy.zip"));
+		server.setFailing("py_copy.zip", true);
+		repo = new CachedRemoteFeedRepository(server.feedURL(), cacheDir);
+		try {
+			for (int i = 0; i < 100 && server.feedNotModified.get() < 2; i++){
+				Thread.sleep(100);
+			}
+
+			// Assert
+			assertTrue("Feed has not been polled!", server.feedNotModified.get() >= 2);
+			assertEquals(1, mirroredPackages(cacheDir));
+			assertEquals(1, repo.getPackageIDs().length);
+		} finally {
+			repo.close();
+		}
+	}
+
+	@Test
+	public void removedEntryIsDeletedFromMirror() throws Exception {
+		// Arrange
+		server.addEntry("urn:test:py_copy", new Date(), "py_copy.zip", new File(testPackages, "py_copy.zip"));
+		server.addEntry("urn:test:jar_copy", new Date(), "jar_copy.zip", new File(testPackages, "jar_copy.zip"));
+		MovingCodeRepository repo = new CachedRemoteFeedRepository(server.feedURL(), cacheDir);
+
+		try {
+			assertTrue(waitForPackages(repo, 2));
+			assertEquals(2, mirroredPackages(cacheDir));
+
+			// Act
+			server.removeEntry("urn:test:jar_copy");
+
+			// Assert
+			assertTrue("Removed package is still registered!", waitForPackages(repo, 1));
+			assertEquals(1, mirroredPackages(cacheDir));
+		} finally {
+			repo.close();
+		}
+	}
+
+	@Test
+	public void evictedPackageIsMirroredWhenUsed() throws Exception {
+		// Arrange: a mirror that keeps only the package that has been used last
+		long cacheMaxBytes = RepositoryConfig.getCacheMaxBytes();
+		RepositoryConfig.setCacheMaxBytes(1);
+		server.addEntry("urn:test:py_copy", new Date(), "py_copy.zip", new File(testPackages, "py_copy.zip"));
+		server.addEntry("urn:test:jar_copy", new Date(), "jar_copy.zip", new File(testPackages, "jar_copy.zip"));
+		MovingCodeRepository repo = new CachedRemoteFeedRepository(server.feedURL(), cacheDir);
+
+		try {
+			assertTrue(waitForPackages(repo, 2));
+			for (int i = 0; i < 100 && mirroredPackages(cacheDir) > 0; i++){
+				Thread.sleep(100);
+			}
+			assertEquals(0, mirroredPackages(cacheDir));
+
+			// Act: both packages provide the same function
+			MovingCodePackage[] packages = repo.getPackageByFunction(repo.getFunctionIDs()[0]);
+
+			// Assert: the lookup does not fetch anything
+			assertEquals(2, packages.length);
+			assertEquals(0, mirroredPackages(cacheDir));
+
+			// Act
+			File workspace = Files.createTempDirectory("workspace").toFile();
+			try {
+				packages[0].cloneWorkspace(workspace);
+
+				// Assert: only the used package has been fetched
+				assertEquals(1, mirroredPackages(cacheDir));
+				assertTrue(workspace.list().length > 0);
+			} finally {
+				MovingCodePackage.deleteWorkspace(workspace);
+			}
+		} finally {
+			repo.close();
+			RepositoryConfig.setCacheMaxBytes(cacheMaxBytes);
+		}
+	}
+
+	@Test
+	public void partialDownloadIsResumed() throws Exception {
+		// Arrange: the first half of a package that has not changed since
+		File zipFile = new File(testPackages, "py_copy.zip");
+		server.addEntry("urn:test:py_copy", new Date(), "py_copy.zip", zipFile);
+		File downloads = new File(cacheDir, ".downloads");
+		String key = RepositoryUtils.shortHash(server.packageURL("py_copy.zip").toString());
+		byte[] content = FileUtils.readFileToByteArray(zipFile);
+		FileUtils.writeByteArrayToFile(new File(downloads, key + ".part"), Arrays.copyOf(content, content.length / 2));
+		// the test server's ETag
+		FileUtils.writeStringToFile(new File(downloads, key + ".part.validator"),
+				"\"" + zipFile.lastModified() + "-" + content.length + "\"", "UTF-8");
+
+		// Act
+		MovingCodeRepository repo = new CachedRemoteFeedRepository(server.feedURL(), cacheDir);
+
+		// Assert
+		try {
+			assertTrue(waitForPackages(repo, 1));
+			for (int i = 0; i < 100 && mirroredPackages(cacheDir) == 0; i++){
+				Thread.sleep(100);
+			}
+			assertEquals(1, mirroredPackages(cacheDir));
+			assertEquals(1, server.partialZipDownloads.get());
+		} finally {
+			repo.close();
+		}
+	}
+
+	@Test
+	public void changedPackageIsNotResumed() throws Exception {
+		// Arrange: a partial download of a package that has since been replaced upstream
+		File zipFile = new File(cacheDir.getParentFile(), cacheDir.getName() + ".zip");
+		FileUtils.copyFile(new File(testPackages, "py_copy.zip"), zipFile);
+		server.addEntry("urn:test:py_copy", new Date(), "py_copy.zip", zipFile);
+		File downloads = new File(cacheDir, ".downloads");
+		String key = RepositoryUtils.shortHash(server.packageURL("py_copy.zip").toString());
+		// all but the last bytes, so that a resumed download would lack the zip's central directory
+		byte[] outdated = new byte[(int) zipFile.length() - 10];
+		FileUtils.writeByteArrayToFile(new File(downloads, key + ".part"), outdated);
+		FileUtils.writeStringToFile(new File(downloads, key + ".part.validator"), "\"0-" + outdated.length + "\"", "UTF-8");
+
+		// Act
+		MovingCodeRepository repo = new CachedRemoteFeedRepository(server.feedURL(), cacheDir);
+
+		// Assert: the whole package has been downloaded again
+		try {
+			assertTrue(waitForPackages(repo, 1));
+			for (int i = 0; i < 100 && mirroredPackages(cacheDir) == 0; i++){
+				Thread.sleep(100);
+			}
+			assertEquals(1, mirroredPackages(cacheDir));
+			assertEquals(0, server.partialZipDownloads.get());
+			assertFalse(new File(downloads, key + ".part").exists());
+		} finally {
+			repo.close();
+			FileUtils.deleteQuietly(zipFile);
+		}
+	}
+
+	/**
+	 * Waits until the repository contains the given number of packages.
+	 */
+	static boolean waitForPackages(MovingCodeRepository repo, int count) throws InterruptedException {
+		for (int i = 0; i < 100; i++){
+			if (repo.getPackageIDs().length == count){
+				return true;
+			}
+			Thread.sleep(100);
+		}
+		return false;
+	}
+
+	/**
+	 * Counts the package folders of a mirror; hidden (e.g. staging) folders are skipped.
+	 */
+	static int mirroredPackages(File cacheDir){
+		File[] folders = cacheDir.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File file) {
+				return file.isDirectory() && !file.getName().startsWith(".");
+			}
+		});
+		return folders == null ? 0 : folders.length;
+	}
+}
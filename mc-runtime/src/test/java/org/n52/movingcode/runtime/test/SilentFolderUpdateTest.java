@@ -25,6 +25,7 @@ import junit.framework.Assert;
 
 import org.apache.commons.io.FileUtils;
 import org.junit.Test;
+import org.n52.movingcode.runtime.codepackage.PID;
 import org.n52.movingcode.runtime.coderepository.MovingCodeRepository;
 import org.n52.movingcode.runtime.coderepository.LocalZipPackageRepository;
 import org.n52.movingcode.runtime.coderepository.RepositoryChangeListener;
@@ -33,6 +34,52 @@ import org.n52.movingcode.runtime.processors.AUID;
 
 public class SilentFolderUpdateTest extends MCRuntimeTestConfig{
 	
+	private static final String echoFunctionID = "de.tu-dresden.geo.gis.algorithms.test.echo";
+	
+	@Test
+	public void shouldPickUpWatchedPackageDrop() throws URISyntaxException, IOException, InterruptedException {
+		// Arrange
+		File tmpDir = FileUtils.getTempDirectory();
+		File tmpDropIn = new File(tmpDir, AUID.randomAUID());
+		tmpDropIn.mkdir();
+		tmpDropIn.deleteOnExit();
+		
+		URL testPackage = getClass().getResource("/testpackages/py_copy.zip");
+		File testFile = new File(testPackage.toURI());
+		File subDir = new File(tmpDropIn, "nested");
+		
+		MovingCodeRepository repo = new LocalZipPackageRepository(tmpDropIn, true);
+		Assert.assertFalse(repo.providesFunction(echoFunctionID));
+		
+		// Act
+		LOGGER.info("Copying "+ testFile.getAbsolutePath() +" to "+subDir.getAbsolutePath());
+		FileUtils.copyFileToDirectory(testFile, subDir);
+		
+		// Assert
+		Assert.assertTrue("Package drop not detected!", waitForFunction(repo, true));
+		PID[] pids = repo.getPackageIDs();
+		LOGGER.info("Repos packages: "+ Arrays.toString(pids));
+		
+		// Act
+		FileUtils.deleteDirectory(subDir);
+		
+		// Assert
+		Assert.assertTrue("Package removal not detected!", waitForFunction(repo, false));
+	}
+	
+	/**
+	 * Waits until the repository does (or does not) provide the echo function.
+	 */
+	private static boolean waitForFunction(MovingCodeRepository repo, boolean expected) throws InterruptedException{
+		for (int i = 0; i < 100; i++){
+			if (repo.providesFunction(echoFunctionID) == expected){
+				return true;
+			}
+			Thread.sleep(100);
+		}
+		return false;
+	}
+	
 //	protected boolean updateReceived;
 //
 //	@Test
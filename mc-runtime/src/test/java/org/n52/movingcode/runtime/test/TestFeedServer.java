@@ -0,0 +1,211 @@
+/**
+ * Copyright (C) 2012 52°North Initiative for Geospatial Open Source Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.n52.movingcode.runtime.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.abdera.model.AtomDate;
+import org.n52.movingcode.runtime.feed.CodePackageFeed;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A minimal HTTP server for remote repository tests. Serves an Atom feed at
+ * <code>/feed</code> and zipped packages at <code>/zip/&lt;name&gt;</code>.
+ * 
+ * The feed supports <code>If-None-Match</code>, the packages support
+ * <code>Range</code> and <code>If-Range</code>. Packages can be made to fail.
+ */
+class TestFeedServer {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final HttpServer server;
+
+	// feed entries; guarded by this
+	private final List<String[]> entries = new ArrayList<String[]>();
+	private Date feedUpdated = new Date();
+
+	// package name -> zip file
+	private final Map<String, File> zips = new ConcurrentHashMap<String, File>();
+
+	// packages that respond with an error
+	private final Set<String> failing = new CopyOnWriteArraySet<String>();
+
+	final AtomicInteger feedDownloads = new AtomicInteger();
+	final AtomicInteger feedNotModified = new AtomicInteger();
+	final AtomicInteger zipDownloads = new AtomicInteger();
+	final AtomicInteger partialZipDownloads = new AtomicInteger();
+
+	TestFeedServer() throws IOException {
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+		server.createContext("/feed", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				serveFeed(exchange);
+			}
+		});
+		server.createContext("/zip/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				servePackage(exchange);
+			}
+		});
+		server.start();
+	}
+
+	URL feedURL() throws MalformedURLException {
+		return new URL("http://localhost:" + server.getAddress().getPort() + "/feed");
+	}
+
+	URL packageURL(final String name) throws MalformedURLException {
+		return new URL("http://localhost:" + server.getAddress().getPort() + "/zip/" + name);
+	}
+
+	/**
+	 * Adds a feed entry for a zipped package; a zip file that does not exist results in 404s.
+	 */
+	synchronized void addEntry(final String entryID, final Date updated, final String name, final File zipFile){
+		entries.add(new String[]{entryID, AtomDate.format(updated), name});
+		zips.put(name, zipFile);
+		touch();
+	}
+
+	synchronized void removeEntry(final String entryID){
+		Iterator<String[]> it = entries.iterator();
+		while (it.hasNext()){
+			if (it.next()[0].equals(entryID)){
+				it.remove();
+			}
+		}
+		touch();
+	}
+
+	/**
+	 * Advances the feed's updated time stamp, unless the feed has none.
+	 */
+	private void touch(){
+		if (feedUpdated != null){
+			feedUpdated = new Date(feedUpdated.getTime() + 1000);
+		}
+	}
+
+	/**
+	 * @param updated {@link Date} - the feed's updated time stamp; <code>null</code> omits the element
+	 */
+	synchronized void setFeedUpdated(final Date updated){
+		feedUpdated = updated;
+	}
+
+	void setFailing(final String name, final boolean fail){
+		if (fail){
+			failing.add(name);
+		} else {
+			failing.remove(name);
+		}
+	}
+
+	void stop(){
+		server.stop(0);
+	}
+
+	private synchronized byte[] feed() throws MalformedURLException {
+		StringBuilder sb = new StringBuilder();
+		sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<feed xmlns=\"http://www.w3.org/2005/Atom\">\n");
+		sb.append("<id>").append(feedURL()).append("</id>\n<title>Test feed</title>\n");
+		if (feedUpdated != null){
+			sb.append("<updated>").append(AtomDate.format(feedUpdated)).append("</updated>\n");
+		}
+		for (String[] entry : entries){
+			sb.append("<entry>\n<id>").append(entry[0]).append("</id>\n<title>").append(entry[2]).append("</title>\n");
+			sb.append("<updated>").append(entry[1]).append("</updated>\n");
+			sb.append("<link rel=\"").append(CodePackageFeed.PACKAGE_LINK_REL).append("\" type=\"")
+				.append(CodePackageFeed.PACKAGE_MIMETYPE).append("\" href=\"").append(packageURL(entry[2])).append("\"/>\n");
+			sb.append("</entry>\n");
+		}
+		sb.append("</feed>\n");
+		return sb.toString().getBytes(UTF8);
+	}
+
+	private void serveFeed(final HttpExchange exchange) throws IOException {
+		byte[] body = feed();
+		String eTag = "\"" + Integer.toHexString(Arrays.hashCode(body)) + "\"";
+		exchange.getResponseHeaders().set("ETag", eTag);
+		if (eTag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))){
+			feedNotModified.incrementAndGet();
+			exchange.sendResponseHeaders(304, -1);
+			exchange.close();
+			return;
+		}
+		feedDownloads.incrementAndGet();
+		send(exchange, 200, body, 0);
+	}
+
+	private void servePackage(final HttpExchange exchange) throws IOException {
+		String name = exchange.getRequestURI().getPath().substring("/zip/".length());
+		File zipFile = zips.get(name);
+		if (failing.contains(name) || zipFile == null || !zipFile.isFile()){
+			exchange.sendResponseHeaders(failing.contains(name) ? 503 : 404, -1);
+			exchange.close();
+			return;
+		}
+		zipDownloads.incrementAndGet();
+		byte[] body = Files.readAllBytes(zipFile.toPath());
+		String eTag = "\"" + zipFile.lastModified() + "-" + body.length + "\"";
+		exchange.getResponseHeaders().set("ETag", eTag);
+		exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+
+		String range = exchange.getRequestHeaders().getFirst("Range");
+		String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+		if (range != null && range.startsWith("bytes=") && range.endsWith("-") && (ifRange == null || ifRange.equals(eTag))){
+			int offset = Integer.parseInt(range.substring("bytes=".length(), range.length() - 1));
+			if (offset < body.length){
+				exchange.getResponseHeaders().set("Content-Range", "bytes " + offset + "-" + (body.length - 1) + "/" + body.length);
+				partialZipDownloads.incrementAndGet();
+				send(exchange, 206, body, offset);
+				return;
+			}
+		}
+		send(exchange, 200, body, 0);
+	}
+
+	private static void send(final HttpExchange exchange, final int status, final byte[] body, final int offset) throws IOException {
+		exchange.sendResponseHeaders(status, body.length - offset);
+		try (OutputStream os = exchange.getResponseBody()){
+			os.write(body, offset, body.length - offset);
+		}
+	}
+}
@@ -16,10 +16,17 @@
 package org.n52.movingcode.runtime.test;
 
 import java.io.File;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
+import org.apache.commons.io.FileUtils;
 import org.junit.Assert;
 import org.junit.Test;
 import org.n52.movingcode.runtime.codepackage.MovingCodePackage;
+import org.n52.movingcode.runtime.codepackage.ValidationCache;
 
 public class ValidatePackageTest extends MCRuntimeTestConfig {
 
@@ -51,6 +58,111 @@ public class ValidatePackageTest extends MCRuntimeTestConfig {
         Assert.assertTrue(mcPackage.isValid());
     }
 
+    @Test
+    public void loadAndValidateUrlPackage() throws Exception {
+
+        // Arrange
+        File packageFile = new File("src/test/resources/testpackages/py_copy.zip");
+        File workspace = Files.createTempDirectory("workspace").toFile();
+
+        // Act
+        // URL packages are spooled to a local file on first access
+        MovingCodePackage mcPackage = new MovingCodePackage(packageFile.toURI().toURL());
+        String wsPath = mcPackage.dumpWorkspace(workspace);
+
+        // Assert
+        Assert.assertTrue(mcPackage.isValid());
+        Assert.assertTrue(new File(wsPath).isDirectory());
+        FileUtils.deleteQuietly(workspace);
+    }
+
+    @Test
+    public void validationResultIsCached() throws Exception {
+
+        // Arrange
+        File packageFile = new File("src/test/resources/testpackages/jar_copy.zip");
+        File cacheFile = File.createTempFile("validation", ".cache");
+        cacheFile.deleteOnExit();
+        File previous = ValidationCache.getCacheFile();
+        ValidationCache.setCacheFile(cacheFile);
+        ValidationCache.clear();
+
+        try {
+            // Act
+            boolean first = new MovingCodePackage(packageFile).isValid();
+            boolean second = new MovingCodePackage(packageFile).isValid();
+            // results are read back from the file
+            ValidationCache.clear();
+            boolean third = new MovingCodePackage(packageFile).isValid();
+
+            // Assert
+            Assert.assertTrue(first && second && third);
+            List<String> lines = Files.readAllLines(cacheFile.toPath(), Charset.forName("UTF-8"));
+            Assert.assertEquals(1, lines.size());
+            Assert.assertTrue(lines.get(0).endsWith(" 1 1"));
+        } finally {
+            ValidationCache.setCacheFile(previous);
+            ValidationCache.clear();
+        }
+    }
+
+    @Test
+    public void plainPackageArtifactIsReused() throws Exception {
+
+        // Arrange
+        File packageFolder = Files.createTempDirectory("plainpackage").toFile();
+        FileUtils.copyDirectory(new File("src/test/resources/testpackages/py_copy"), packageFolder);
+        MovingCodePackage zipped = new MovingCodePackage(new File("src/test/resources/testpackages/py_copy.zip"));
+        MovingCodePackage mcPackage = MovingCodePackage.createFromPackageFolder(packageFolder, zipped.getHeader());
+
+        try {
+            // Act
+            File first = mcPackage.getArchiveFile();
+            long firstModified = first.lastModified();
+            File second = mcPackage.getArchiveFile();
+            long secondModified = second.lastModified();
+            // a changed workspace leads to a new artifact
+            File script = new File(packageFolder, "py_copy/copy.py");
+            FileUtils.write(script, "\n# changed\n", true);
+            File third = mcPackage.getArchiveFile();
+
+            // Assert
+            Assert.assertEquals(first, second);
+            Assert.assertEquals(firstModified, secondModified);
+            try (ZipFile zf = new ZipFile(third)) {
+                Assert.assertNotNull(zf.getEntry("packagedescription.xml"));
+                ZipEntry entry = zf.getEntry("py_copy/copy.py");
+                Assert.assertEquals(script.length(), entry.getSize());
+            }
+        } finally {
+            FileUtils.deleteQuietly(packageFolder);
+        }
+    }
+
+    @Test
+    public void workspaceIsClonedFromTemplate() throws Exception {
+
+        // Arrange
+        MovingCodePackage mcPackage = new MovingCodePackage(new File("src/test/resources/testpackages/py_copy.zip"));
+        File first = Files.createTempDirectory("workspace").toFile();
+        File second = Files.createTempDirectory("workspace").toFile();
+
+        try {
+            // Act
+            File firstScript = new File(mcPackage.cloneWorkspace(first), "copy.py");
+            File secondScript = new File(mcPackage.cloneWorkspace(second), "copy.py");
+
+            // Assert
+            Assert.assertTrue(firstScript.isFile());
+            Assert.assertTrue(FileUtils.contentEquals(firstScript, secondScript));
+            // both workspaces link to the same template file
+            Assert.assertTrue(Files.isSameFile(firstScript.toPath(), secondScript.toPath()));
+        } finally {
+            FileUtils.deleteQuietly(first);
+            FileUtils.deleteQuietly(second);
+        }
+    }
+
 //    @Test
 //    public void loadAndValidateBadPackage() {
 //